@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   An append-only list that any number of threads may read while a single writer adds to it. Elements live
+ *   in segments that double in size, so growing never copies what is already stored, and the number of
+ *   elements is published through a volatile field after they are written. A reader that has seen the size
+ *   may therefore read every element below it without locking.
+ * </p>
+ * <p>
+ *   The list ends in one of three ways: it completes, it fails with the error that stopped its loading, or it
+ *   is superseded by a modified copy. Readers that run out of elements may wait for the writer to add more
+ *   or to end the list. Writers must be serialized by the caller.
+ * </p>
+ */
+class AppendList<T> {
+    static public final int OPEN       = 0;
+    static public final int COMPLETE   = 1;
+    static public final int FAILED     = 2;
+    static public final int SUPERSEDED = 3;
+
+    /**
+     * The first segment holds <code>1 &lt;&lt; FIRST_SHIFT</code> elements and each one after it twice as many
+     * as the one before.
+     */
+    static private final int FIRST_SHIFT = 4;
+    static private final int FIRST       = 1 << FIRST_SHIFT;
+
+    private volatile Throwable      error;
+    private final ReentrantLock     lock     = new ReentrantLock();
+    private final Object[][]        segments = new Object[32 - FIRST_SHIFT][];
+    private volatile int            size     = 0;
+    private volatile int            state    = OPEN;
+    private final Condition         grown    = lock.newCondition();
+    private final AtomicInteger     waiters  = new AtomicInteger(0);
+    private volatile int            wakeups  = 0;
+
+    public AppendList() { }
+
+    public AppendList(@Nonnull Collection<? extends T> items) {
+        addAll(items);
+    }
+
+    public void add(@Nullable T item) {
+        int n = size;
+
+        store(n, item);
+        size = n + 1;
+        signal(false);
+    }
+
+    public void addAll(@Nonnull Collection<? extends T> items) {
+        int n = size;
+
+        for( T item : items ) {
+            store(n++, item);
+        }
+        size = n;
+        signal(false);
+    }
+
+    /**
+     * Waits until the list holds more than the specified number of elements, the list has ended, or
+     * another thread calls {@link #wake()}.
+     * @param count the number of elements the caller has already seen
+     * @return the number of elements in the list when the wait ended
+     */
+    public int await(int count) {
+        int n = size;
+
+        if( n > count || state != OPEN ) {
+            return n;
+        }
+        int generation = wakeups;
+
+        waiters.incrementAndGet();
+        lock.lock();
+        try {
+            while( (n = size) <= count && state == OPEN && wakeups == generation ) {
+                grown.awaitUninterruptibly();
+            }
+            return n;
+        }
+        finally {
+            lock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
+
+    public void complete() {
+        end(COMPLETE, null);
+    }
+
+    public void fail(@Nonnull Throwable error) {
+        end(FAILED, error);
+    }
+
+    /**
+     * Returns the element at the specified index, which must be below a size the caller has already read.
+     * @param index the index of the element
+     * @return the element at that index
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable T get(int index) {
+        int pos = index + FIRST;
+        int segment = 31 - Integer.numberOfLeadingZeros(pos) - FIRST_SHIFT;
+
+        return (T)segments[segment][pos - (FIRST << segment)];
+    }
+
+    public @Nullable Throwable getError() {
+        return error;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @param o the object being sought
+     * @param from the first index to check
+     * @param to the index beyond the last to check
+     * @return the index of the first match in the range, or -1 if there is none
+     */
+    public int indexOf(@Nullable Object o, int from, int to) {
+        for( int i=from; i<to; i++ ) {
+            Object item = get(i);
+
+            if( o == null ? item == null : o.equals(item) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(@Nullable Object o) {
+        for( int i=size-1; i>=0; i-- ) {
+            Object item = get(i);
+
+            if( o == null ? item == null : o.equals(item) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void supersede() {
+        end(SUPERSEDED, null);
+    }
+
+    /**
+     * Releases every thread waiting in {@link #await(int)} so that it can re-examine conditions this
+     * list does not track, such as an expected size announced by the producer.
+     */
+    public void wake() {
+        lock.lock();
+        try {
+            wakeups++;
+            grown.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public @Nonnull Object[] toArray() {
+        int n = size;
+        Object[] items = new Object[n];
+
+        for( int i=0; i<n; i++ ) {
+            items[i] = get(i);
+        }
+        return items;
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nonnull <E> E[] toArray(@Nonnull E[] a) {
+        int n = size;
+
+        if( a.length < n ) {
+            a = Arrays.copyOf(a, n);
+        }
+        for( int i=0; i<n; i++ ) {
+            a[i] = (E)get(i);
+        }
+        if( a.length > n ) {
+            a[n] = null;
+        }
+        return a;
+    }
+
+    /**
+     * @return a modifiable copy of the elements of this list
+     */
+    public @Nonnull ArrayList<T> toList() {
+        int n = size;
+        ArrayList<T> items = new ArrayList<T>(n);
+
+        for( int i=0; i<n; i++ ) {
+            items.add(get(i));
+        }
+        return items;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return toList().toString();
+    }
+
+    private void end(int state, @Nullable Throwable error) {
+        if( this.state != OPEN ) {
+            return;
+        }
+        this.error = error;
+        this.state = state;
+        signal(true);
+    }
+
+    private void signal(boolean always) {
+        if( always || waiters.get() > 0 ) {
+            lock.lock();
+            try {
+                grown.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void store(int index, @Nullable T item) {
+        int pos = index + FIRST;
+        int segment = 31 - Integer.numberOfLeadingZeros(pos) - FIRST_SHIFT;
+        Object[] items = segments[segment];
+
+        if( items == null ) {
+            items = new Object[FIRST << segment];
+            segments[segment] = items;
+        }
+        items[pos - (FIRST << segment)] = item;
+    }
+}
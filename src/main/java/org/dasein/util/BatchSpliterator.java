@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ *   A spliterator over a source that hands out its items in batches as they arrive, such as a {@link Jiterator}
+ *   or a {@link ForwardCursor}. Items are taken from the source a batch at a time, so a stream runs its stages
+ *   on each item as soon as its batch is available rather than waiting for the source to finish loading.
+ * </p>
+ * <p>
+ *   Splitting hands off the items this spliterator has buffered, or else the batch the source has ready,
+ *   waiting for one only if the source is momentarily empty. Each split is larger than the one before, so
+ *   a parallel stream over a large result spreads its work across the pool in chunks that amortize the
+ *   cost of forking.
+ * </p>
+ * <p>
+ *   The spliterator reports {@link #SIZED} if the source knew its remaining size when the spliterator was
+ *   created, in which case that size must be exact.
+ * </p>
+ * @param <T> the type of items in the source
+ */
+abstract class BatchSpliterator<T> implements Spliterator<T> {
+    /**
+     * The number of items read from the source at a time, and the increment by which split sizes grow.
+     */
+    static private final int BATCH_UNIT = 256;
+    static private final int MAX_BATCH  = 1 << 16;
+
+    private List<T>   batch = Collections.emptyList();
+    private final int characteristics;
+    private int       index = 0;
+    private int       splitSize = BATCH_UNIT;
+
+    BatchSpliterator(boolean sized) {
+        characteristics = ORDERED | (sized ? SIZED | SUBSIZED : 0);
+    }
+
+    /**
+     * Takes up to <code>max</code> items from the source, waiting for at least one if none are buffered.
+     * @param max the maximum number of items to take
+     * @return the items taken, or an empty list once the source is exhausted
+     */
+    abstract @Nonnull List<T> fetch(int max);
+
+    /**
+     * @return the number of items the source has yet to hand out, or a negative value if it is not known
+     */
+    abstract long remaining();
+
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+
+    @Override
+    public long estimateSize() {
+        long count = remaining();
+
+        if( count < 0 ) {
+            return Long.MAX_VALUE;
+        }
+        return count + (batch.size() - index);
+    }
+
+    @Override
+    public void forEachRemaining(@Nonnull Consumer<? super T> action) {
+        do {
+            while( index < batch.size() ) {
+                action.accept(batch.get(index++));
+            }
+        } while( refill() );
+    }
+
+    private boolean refill() {
+        batch = fetch(BATCH_UNIT);
+        index = 0;
+        return !batch.isEmpty();
+    }
+
+    @Override
+    public boolean tryAdvance(@Nonnull Consumer<? super T> action) {
+        if( index >= batch.size() && !refill() ) {
+            return false;
+        }
+        action.accept(batch.get(index++));
+        return true;
+    }
+
+    @Override
+    public @Nullable Spliterator<T> trySplit() {
+        Object[] items;
+
+        if( index < batch.size() ) {
+            items = batch.subList(index, batch.size()).toArray();
+            batch = Collections.emptyList();
+            index = 0;
+        }
+        else {
+            List<T> next = fetch(splitSize);
+
+            if( next.isEmpty() ) {
+                return null;
+            }
+            items = next.toArray();
+        }
+        splitSize = Math.min(MAX_BATCH, splitSize + BATCH_UNIT);
+        return Spliterators.spliterator(items, ORDERED);
+    }
+}
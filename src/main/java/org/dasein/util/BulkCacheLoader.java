@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>
+ *   Loads many cached items from their persistent data store in a single call. The loader
+ *   is used by {@link ConcurrentCache#getAll(java.util.Collection, BulkCacheLoader)} and
+ *   {@link ConcurrentMultiCache#findAll(String, java.util.Collection, BulkCacheLoader)} to
+ *   fetch every missing value in one round-trip rather than one round-trip per value.
+ * </p>
+ * @param <K> the type of keys identifying the items to load
+ * @param <V> the type of objects being loaded
+ */
+public interface BulkCacheLoader<K,V> {
+    /**
+     * Loads the items for the specified keys. Keys for which no item exists should simply
+     * be left out of the result. The result must be keyed by the same key objects (or equal
+     * ones) that were passed in.
+     * @param keys the keys of the items to load, never empty
+     * @return the loaded items mapped by key
+     */
+    public abstract @Nonnull Map<K,V> loadAll(@Nonnull Collection<? extends K> keys);
+}
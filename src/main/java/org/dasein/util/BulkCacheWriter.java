@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>
+ *   Writes many cached items back to their persistent data store in a single call. The writer
+ *   is used by a {@link ConcurrentCache} in write-behind mode, which records the keys put into
+ *   or removed from the cache and writes them back in batches from the background. Several
+ *   updates to the same key between two batches reach the writer only as the latest of them.
+ * </p>
+ * @param <K> the type of keys identifying the items to write
+ * @param <V> the type of objects being written
+ */
+public interface BulkCacheWriter<K,V> {
+    /**
+     * Stores the specified items, inserting or overwriting them as needed. A failure should be
+     * signalled by throwing an exception, in which case every item in the batch is retried
+     * with a later batch.
+     * @param items the items to store mapped by key, never empty
+     */
+    public abstract void writeAll(@Nonnull Map<K,V> items);
+
+    /**
+     * Deletes the items for the specified keys. Keys for which no item exists should simply be
+     * ignored. A failure should be signalled by throwing an exception, in which case every key in
+     * the batch is retried with a later batch.
+     * @param keys the keys of the items to delete, never empty
+     */
+    public abstract void deleteAll(@Nonnull Collection<K> keys);
+}
@@ -18,13 +18,23 @@
 
 package org.dasein.util;
 
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+
 // Java imports
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * <p>
@@ -32,7 +42,13 @@ import java.util.Iterator;
  * contents fail to be used. This cache uses
  * {@link java.lang.ref.SoftReference} to guarantee
  * that cached items will be removed when they have not been
- * referenced for a long time. 
+ * referenced for a long time. Entries whose objects have been collected
+ * are purged through a reference queue as the cache is written to.
+ * </p>
+ * <p>
+ * A cache constructed with a maximum size or a maximum weight instead holds
+ * its contents strongly and evicts the least valuable entries according to a
+ * segmented LRU policy whenever the bound is exceeded.
  * </p>
  * <p>
  * This class is not synchronized and therefore should be synchronized
@@ -51,15 +67,84 @@ public class Cache<T> implements Collection<T>, Serializable {
 	 */
 	static private final long serialVersionUID = 3256437010649592628L;
 	/**
-     * A hash map indexing references by unique keys.
+     * A soft reference to a cached object that also holds the object strongly when the cache
+     * is bounded.
+     * @param <T> the type of object being stored in the cache
      */
-    private HashMap<Object,SoftReference<T>> cache = new HashMap<Object,SoftReference<T>>();
+    static private class CacheEntry<T> extends SoftReference<T> {
+        private final Object                        key;
+        private SegmentedLru.Node<CacheEntry<T>>    node;
+        private final T                             strong;
+
+        private CacheEntry(Object key, T val, ReferenceQueue<? super T> queue, boolean bounded) {
+            super(val, queue);
+            this.key = key;
+            this.strong = (bounded ? val : null);
+        }
+
+        public T get() {
+            return (strong != null ? strong : super.get());
+        }
+    }
+
+	/**
+     * A hash map indexing references by unique keys. The references cannot be serialized, so the live
+     * objects they refer to are written in their place.
+     */
+    private transient HashMap<Object,CacheEntry<T>> cache = new HashMap<Object,CacheEntry<T>>();
+    /**
+     * The maximum total weight of the cache, negative if the cache is bounded only by garbage collection.
+     * Caches serialized before bounds existed have no value for it and are read back as unbounded.
+     */
+    private long                          maximumWeight;
+    /**
+     * The eviction policy for a bounded cache, created on demand.
+     */
+    private transient SegmentedLru<CacheEntry<T>> policy;
+    /**
+     * Receives the entries of an unbounded cache whose values have been collected, created on demand.
+     */
+    private transient ReferenceQueue<T>           collected;
+    /**
+     * Accumulates the hit, miss and eviction statistics of this cache, created on demand.
+     */
+    private transient CacheStatsRecorder          stats;
+    /**
+     * The object name under which the statistics of this cache are registered over JMX, if any.
+     */
+    private transient ObjectName                  statsName;
+    /**
+     * The weigher for entries in a bounded cache, <code>null</code> if every entry weighs 1. It is serialized
+     * along with {@link #maximumWeight} so that a deserialized cache enforces the same bound.
+     */
+    private Weigher<Object,? super T>             weigher;
 
     /*
      * Constructs a new empty cache.
      */
     public Cache() {
         super();
+        maximumWeight = -1L;
+    }
+
+    /**
+     * Constructs a new empty cache that holds at most the specified number of objects.
+     * @param maximumSize the maximum number of objects in the cache
+     */
+    public Cache(long maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * Constructs a new empty cache whose objects may weigh at most the specified total weight.
+     * @param maximumWeight the maximum total weight of objects in the cache
+     * @param weigher calculates the weight of each object, or <code>null</code> to count each
+     * object as 1; it must be {@link Serializable} if the cache is to be serialized
+     */
+    public Cache(long maximumWeight, Weigher<Object,? super T> weigher) {
+        super();
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
     }
 
     /**
@@ -88,7 +173,29 @@ public class Cache<T> implements Collection<T>, Serializable {
      * @param val the object to be cached
      */
     public void cache(Object key, T val) {
-        cache.put(key, new SoftReference<T>(val));
+        SegmentedLru<CacheEntry<T>> policy = getPolicy();
+        CacheEntry<T> entry;
+        CacheEntry<T> old;
+
+        if( policy == null ) {
+            purgeCollected();
+            entry = new CacheEntry<T>(key, val, getCollected(), false);
+        }
+        else {
+            entry = new CacheEntry<T>(key, val, null, true);
+        }
+        old = cache.put(key, entry);
+
+        if( policy != null ) {
+            if( old != null && old.node != null ) {
+                policy.remove(old.node);
+            }
+            entry.node = policy.add(entry, (weigher == null ? 1L : weigher.weigh(key, val)));
+            for( CacheEntry<T> victim : policy.evict() ) {
+                cache.remove(victim.key);
+                getStatsRecorder().recordEviction(EvictionCause.SIZE);
+            }
+        }
     }
 
     /**
@@ -96,6 +203,9 @@ public class Cache<T> implements Collection<T>, Serializable {
      */
     public void clear() {
         cache.clear();
+        if( policy != null ) {
+            policy.clear();
+        }
     }
     
     /**
@@ -150,16 +260,18 @@ public class Cache<T> implements Collection<T>, Serializable {
             return false;
         }
         else {
-            SoftReference<T> ref = cache.get(key);
+            CacheEntry<T> ref = cache.get(key);
             T ob = ref.get();
             
             if( ob == null ) {
                 release(key);
+                getStatsRecorder().recordEviction(EvictionCause.COLLECTED);
                 return false;
             }
             if( ob instanceof CachedItem ) {
                 if( !((CachedItem)ob).isValidForCache() ) {
                     release(key);
+                    getStatsRecorder().recordEviction(EvictionCause.INVALID);
                     return false;
                 }
             }
@@ -175,29 +287,98 @@ public class Cache<T> implements Collection<T>, Serializable {
      * @return the cached object or null
      */
     public T get(Object key) {
-        SoftReference<T> ref = cache.get(key);
+        CacheStatsRecorder stats = getStatsRecorder();
+        CacheEntry<T> ref = cache.get(key);
         T ob;
         
         if( ref == null ) {
+            stats.recordMiss();
             return null;
         }
         ob = ref.get();
         if( ob == null ) {
             release(key);
+            stats.recordEviction(EvictionCause.COLLECTED);
+            stats.recordMiss();
+            return null;
         }
         if( ob instanceof CachedItem ) {
             if( !((CachedItem)ob).isValidForCache() ) {
                 release(key);
+                stats.recordEviction(EvictionCause.INVALID);
+                stats.recordMiss();
                 return null;
             }
         }
+        if( ref.node != null ) {
+            policy.access(ref.node);
+        }
+        stats.recordHit();
         return ob;
     }
 
+    /**
+     * @return the queue receiving entries whose values have been collected, created on demand
+     */
+    private ReferenceQueue<T> getCollected() {
+        if( collected == null ) {
+            collected = new ReferenceQueue<T>();
+        }
+        return collected;
+    }
+
+    /**
+     * Removes the entries whose values the garbage collector has cleared since the last purge.
+     */
+    @SuppressWarnings("unchecked")
+    private void purgeCollected() {
+        Reference<? extends T> ref;
+
+        if( collected == null ) {
+            return;
+        }
+        while( (ref = collected.poll()) != null ) {
+            CacheEntry<T> entry = (CacheEntry<T>)ref;
+
+            if( cache.get(entry.key) == entry ) {
+                cache.remove(entry.key);
+                getStatsRecorder().recordEviction(EvictionCause.COLLECTED);
+            }
+        }
+    }
+
+    /**
+     * @return the eviction policy for a bounded cache or <code>null</code> if the cache is unbounded
+     */
+    private SegmentedLru<CacheEntry<T>> getPolicy() {
+        if( policy == null && maximumWeight >= 0L ) {
+            policy = new SegmentedLru<CacheEntry<T>>(maximumWeight);
+        }
+        return policy;
+    }
+
+    /**
+     * @return a snapshot of the hit, miss and eviction statistics of this cache
+     */
+    public @Nonnull CacheStats getStats() {
+        return getStatsRecorder().snapshot();
+    }
+
+    /**
+     * @return the recorder for the statistics of this cache
+     */
+    private CacheStatsRecorder getStatsRecorder() {
+        if( stats == null ) {
+            stats = new CacheStatsRecorder();
+        }
+        return stats;
+    }
+
     /**
      * @return true if the cache is empty
      */
     public boolean isEmpty() {
+        purgeCollected();
         return cache.isEmpty();
     }
 
@@ -210,12 +391,39 @@ public class Cache<T> implements Collection<T>, Serializable {
         return toList().iterator();
     }
     
+    /**
+     * Publishes the statistics of this cache over JMX through the platform MBean server, under
+     * the object name <code>org.dasein.util:type=Cache,name=<i>name</i></code>.
+     * @param name the name identifying this cache
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    public @Nonnull ObjectName registerMBean(@Nonnull String name) {
+        statsName = CacheStatsRecorder.register("Cache", name, null, getStatsRecorder());
+        return statsName;
+    }
+
+    /**
+     * Withdraws the statistics of this cache from JMX if they were published with {@link #registerMBean(String)}.
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    public void unregisterMBean() {
+        if( statsName != null ) {
+            CacheStatsRecorder.unregister(statsName);
+            statsName = null;
+        }
+    }
+
     /**
      * Releases the specified object from the cache.
      * @param key the unique identified for the item to release
      */
     public void release(Object key) {
-        cache.remove(key);
+        CacheEntry<T> ref = cache.remove(key);
+
+        if( ref != null && ref.node != null ) {
+            policy.remove(ref.node);
+        }
     }
 
     /**
@@ -249,10 +457,14 @@ public class Cache<T> implements Collection<T>, Serializable {
     }
 
     /**
-     * @return the number of elements in the cache
+     * Provides the number of objects in the cache without examining them. Objects collected since
+     * the last write are purged first, but the count may still include objects that have been
+     * collected since or that are no longer valid for the cache.
+     * @return the approximate number of elements in the cache
      */
     public int size() {
-        return toList().size();
+        purgeCollected();
+        return cache.size();
     }
 
     /**
@@ -290,6 +502,55 @@ public class Cache<T> implements Collection<T>, Serializable {
         return tmp;
     }
 
+    /**
+     * Reads the bound, weigher and cached objects of a serialized cache, caching the objects anew so
+     * that the bound is enforced with the weigher read back.
+     * @param in the stream from which the cache is read
+     * @throws IOException an error occurred reading the stream
+     * @throws ClassNotFoundException the class of a cached object is not available
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        cache = new HashMap<Object,CacheEntry<T>>();
+        maximumWeight = fields.get("maximumWeight", -1L);
+        weigher = (Weigher<Object,? super T>)fields.get("weigher", null);
+        if( !fields.defaulted("maximumWeight") ) {
+            int count = in.readInt();
+
+            for( int i=0; i<count; i++ ) {
+                Object key = in.readObject();
+
+                cache(key, (T)in.readObject());
+            }
+        }
+    }
+
+    /**
+     * Writes the bound and weigher of the cache followed by the objects it currently holds.
+     * @param out the stream to which the cache is written
+     * @throws IOException an error occurred writing the stream, for example because a cached object or
+     * the weigher is not serializable
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ArrayList<Map.Entry<Object,T>> live = new ArrayList<Map.Entry<Object,T>>();
+
+        for( Map.Entry<Object,CacheEntry<T>> entry : cache.entrySet() ) {
+            T item = entry.getValue().get();
+
+            if( item != null ) {
+                live.add(new AbstractMap.SimpleImmutableEntry<Object,T>(entry.getKey(), item));
+            }
+        }
+        out.defaultWriteObject();
+        out.writeInt(live.size());
+        for( Map.Entry<Object,T> entry : live ) {
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
     /**
      * Displays the current contents of the cache.
      * @return a string representation of the current cache contents
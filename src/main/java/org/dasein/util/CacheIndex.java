@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * <p>
+ *   The index of a {@link ConcurrentMultiCache} for a single unique identifier. Index keys are
+ *   passed as objects in the normalized form produced by the multi-cache; an index stores them in
+ *   whatever form suits it best.
+ * </p>
+ * @param <V> the type of objects being indexed
+ */
+abstract class CacheIndex<V> {
+    /**
+     * Creates an index backed by a {@link ConcurrentCache}, which accepts keys of any type.
+     * @param cache the cache holding the index
+     * @param <V> the type of objects being indexed
+     * @return an index over the cache
+     */
+    static <V> CacheIndex<V> forObjects(@Nonnull final ConcurrentCache<Object,V> cache) {
+        return new CacheIndex<V>() {
+            public void clear() {
+                cache.clear();
+            }
+
+            public V get(Object key) {
+                return cache.get(key);
+            }
+
+            public CacheStats getStats() {
+                return cache.getStats();
+            }
+
+            public CacheStatsRecorder getStatsRecorder() {
+                return cache.getStatsRecorder();
+            }
+
+            public boolean isEmpty() {
+                return cache.isEmpty();
+            }
+
+            public V peek(Object key) {
+                return cache.peek(key);
+            }
+
+            public V put(Object key, V val, TimePeriod<?> ttl) {
+                return cache.put(key, val, ttl);
+            }
+
+            public V putIfAbsent(Object key, V val, TimePeriod<?> ttl) {
+                return cache.putIfAbsent(key, val, ttl);
+            }
+
+            public boolean remove(Object key, V val) {
+                return cache.remove(key, val);
+            }
+
+            public V removeLocally(Object key) {
+                return cache.removeLocally(key);
+            }
+
+            public void setExpireAfterAccess(TimePeriod<?> period) {
+                cache.setExpireAfterAccess(period);
+            }
+
+            public void setExpireAfterWrite(TimePeriod<?> period) {
+                cache.setExpireAfterWrite(period);
+            }
+
+            public Collection<V> values() {
+                return cache.values();
+            }
+
+            public String toString() {
+                return cache.toString();
+            }
+        };
+    }
+
+    /**
+     * Creates an index backed by a {@link LongKeyedConcurrentCache}, which accepts numeric keys.
+     * Lookups of keys that are not numbers find nothing, and indexing under them fails.
+     * @param cache the cache holding the index
+     * @param <V> the type of objects being indexed
+     * @return an index over the cache
+     */
+    static <V> CacheIndex<V> forLongs(@Nonnull final LongKeyedConcurrentCache<V> cache) {
+        return new CacheIndex<V>() {
+            public void clear() {
+                cache.clear();
+            }
+
+            public V get(Object key) {
+                if( key instanceof Number ) {
+                    return cache.get(((Number)key).longValue());
+                }
+                cache.getStatsRecorder().recordMiss();
+                return null;
+            }
+
+            public CacheStats getStats() {
+                return cache.getStats();
+            }
+
+            public CacheStatsRecorder getStatsRecorder() {
+                return cache.getStatsRecorder();
+            }
+
+            public boolean isEmpty() {
+                return cache.isEmpty();
+            }
+
+            public V peek(Object key) {
+                return (key instanceof Number ? cache.peek(((Number)key).longValue()) : null);
+            }
+
+            public V put(Object key, V val, TimePeriod<?> ttl) {
+                return cache.put(toLong(key), val, ttl);
+            }
+
+            public V putIfAbsent(Object key, V val, TimePeriod<?> ttl) {
+                return cache.putIfAbsent(toLong(key), val, ttl);
+            }
+
+            public boolean remove(Object key, V val) {
+                return (key instanceof Number && cache.remove(((Number)key).longValue(), val));
+            }
+
+            public V removeLocally(Object key) {
+                return (key instanceof Number ? cache.remove(((Number)key).longValue()) : null);
+            }
+
+            public void setExpireAfterAccess(TimePeriod<?> period) {
+                cache.setExpireAfterAccess(period);
+            }
+
+            public void setExpireAfterWrite(TimePeriod<?> period) {
+                cache.setExpireAfterWrite(period);
+            }
+
+            public Collection<V> values() {
+                return cache.values();
+            }
+
+            public String toString() {
+                return cache.toString();
+            }
+        };
+    }
+
+    static private long toLong(Object key) {
+        if( !(key instanceof Number) ) {
+            throw new CacheManagementException("Long-keyed index cannot hold a key of " + (key == null ? "null" : key.getClass().getName()));
+        }
+        return ((Number)key).longValue();
+    }
+
+    public abstract void clear();
+
+    /**
+     * Looks up an item, counting the lookup as a hit or miss.
+     * @param key the index key
+     * @return the indexed item, if any
+     */
+    public abstract @Nullable V get(@Nonnull Object key);
+
+    public abstract @Nonnull CacheStats getStats();
+
+    public abstract @Nonnull CacheStatsRecorder getStatsRecorder();
+
+    public abstract boolean isEmpty();
+
+    /**
+     * Looks up an item on behalf of the multi-cache without counting a hit or miss.
+     * @param key the index key
+     * @return the indexed item, if any
+     */
+    public abstract @Nullable V peek(@Nonnull Object key);
+
+    public abstract V put(@Nonnull Object key, @Nonnull V val, @Nullable TimePeriod<?> ttl);
+
+    public abstract V putIfAbsent(@Nonnull Object key, @Nonnull V val, @Nullable TimePeriod<?> ttl);
+
+    public abstract boolean remove(@Nonnull Object key, @Nonnull V val);
+
+    /**
+     * Removes an item without announcing the removal on any invalidation bus.
+     * @param key the index key
+     * @return the removed item, if any
+     */
+    public abstract @Nullable V removeLocally(@Nonnull Object key);
+
+    public abstract void setExpireAfterAccess(@Nullable TimePeriod<?> period);
+
+    public abstract void setExpireAfterWrite(@Nullable TimePeriod<?> period);
+
+    public abstract @Nonnull Collection<V> values();
+}
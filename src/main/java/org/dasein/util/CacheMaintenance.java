@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   Runs periodic clean up for caches that would otherwise only clean up as a side effect
+ *   of being used. A single daemon thread serves every cache. Caches are held weakly, so
+ *   registering a cache does not keep it from being garbage collected; the task for a
+ *   collected cache cancels itself.
+ * </p>
+ */
+class CacheMaintenance {
+    static private final Logger logger = Logger.getLogger(CacheMaintenance.class);
+
+    static private class DaemonThreadFactory implements ThreadFactory {
+        private static final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        public Thread newThread(Runnable r) {
+            Thread t = threadFactory.newThread(r);
+            t.setName("Dasein Cache Maintenance");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Periodic clean up of a single, weakly held target. Implementations must not hold a
+     * strong reference to the target, so they should be static nested classes.
+     * @param <T> the type of target being cleaned up
+     */
+    static abstract class Task<T> implements Runnable {
+        private volatile ScheduledFuture<?> future;
+        private final WeakReference<T>      target;
+
+        protected Task(@Nonnull T target) {
+            this.target = new WeakReference<T>(target);
+        }
+
+        /**
+         * Stops any further clean up by this task.
+         */
+        void cancel() {
+            ScheduledFuture<?> f = future;
+
+            if( f != null ) {
+                f.cancel(false);
+            }
+        }
+
+        /**
+         * Cleans up the specified target.
+         * @param target the target to clean up
+         */
+        protected abstract void maintain(@Nonnull T target);
+
+        public void run() {
+            T t = target.get();
+
+            if( t == null ) {
+                cancel();
+                return;
+            }
+            try {
+                maintain(t);
+            }
+            catch( Throwable e ) {
+                logger.error("Error cleaning up " + t + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    static {
+        try {
+            PoolTerminator.addTerminationHandler(new Callable<Boolean>() {
+                public Boolean call() {
+                    scheduler.shutdown();
+                    return true;
+                }
+            });
+        }
+        catch( Throwable ignore ) {
+            // this will get thrown when not in a J2EE container
+        }
+    }
+
+    /**
+     * Schedules periodic clean up for as long as the task's target remains reachable.
+     * @param task the clean up task
+     * @param period the time between clean ups
+     * @param unit the unit for the period
+     */
+    static void schedule(@Nonnull Task<?> task, long period, @Nonnull TimeUnit unit) {
+        task.future = scheduler.scheduleWithFixedDelay(task, period, period, unit);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>
+ *   An immutable snapshot of the activity of a cache: how often lookups found a value, how
+ *   loads fared and how long they took, and how many entries the cache dropped on its own
+ *   and why. Counts accumulate from the creation of the cache.
+ * </p>
+ * <p>
+ *   Load times are also kept as a histogram with buckets for loads taking under 1ms, under
+ *   10ms, under 100ms, under 1s, under 10s and 10s or more.
+ * </p>
+ */
+public class CacheStats {
+    static private final long[] LOAD_TIME_BOUNDS = { 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L };
+
+    /**
+     * Identifies the histogram bucket for a load of the specified duration.
+     * @param nanos the duration of the load in nanoseconds
+     * @return the index of the matching bucket
+     */
+    static int getLoadTimeBucket(long nanos) {
+        for( int i=0; i<LOAD_TIME_BOUNDS.length; i++ ) {
+            if( nanos < LOAD_TIME_BOUNDS[i] ) {
+                return i;
+            }
+        }
+        return LOAD_TIME_BOUNDS.length;
+    }
+
+    /**
+     * @return the number of buckets in the load time histogram
+     */
+    static int getLoadTimeBucketCount() {
+        return LOAD_TIME_BOUNDS.length + 1;
+    }
+
+    private final long[] evictions;
+    private final long   hitCount;
+    private final long   loadFailureCount;
+    private final long   loadSuccessCount;
+    private final long[] loadTimes;
+    private final long   missCount;
+    private final long   totalLoadNanos;
+
+    CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long totalLoadNanos, @Nonnull long[] loadTimes, @Nonnull long[] evictions) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadNanos = totalLoadNanos;
+        this.loadTimes = loadTimes;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return the average time spent loading a value in nanoseconds, or 0 if nothing has been loaded
+     */
+    public double getAverageLoadPenalty() {
+        long loads = loadSuccessCount + loadFailureCount;
+
+        return (loads == 0L ? 0.0 : ((double)totalLoadNanos) / loads);
+    }
+
+    /**
+     * @return the total number of entries dropped by the cache on its own
+     */
+    public long getEvictionCount() {
+        long total = 0L;
+
+        for( long count : evictions ) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @param cause the reason for the evictions being sought
+     * @return the number of entries dropped for the specified reason
+     */
+    public long getEvictionCount(@Nonnull EvictionCause cause) {
+        return evictions[cause.ordinal()];
+    }
+
+    /**
+     * @return the number of lookups that found a live value
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the ratio of hits to lookups, or 1 if there have been no lookups
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+
+        return (requests == 0L ? 1.0 : ((double)hitCount) / requests);
+    }
+
+    /**
+     * @return the number of loads that failed with an exception
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return the number of loads that completed, whether or not they found a value
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * @return the number of loads in each bucket of the load time histogram, fastest first
+     */
+    public @Nonnull long[] getLoadTimeHistogram() {
+        return loadTimes.clone();
+    }
+
+    /**
+     * @return the number of lookups that found no live value
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the total number of lookups
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return the total time spent loading values in nanoseconds
+     */
+    public long getTotalLoadTime() {
+        return totalLoadNanos;
+    }
+
+    /**
+     * Combines these statistics with others, as when summarizing several caches as one.
+     * @param other the statistics to add to these
+     * @return the sum of both sets of statistics
+     */
+    public @Nonnull CacheStats plus(@Nonnull CacheStats other) {
+        long[] times = new long[loadTimes.length];
+        long[] evicted = new long[evictions.length];
+
+        for( int i=0; i<times.length; i++ ) {
+            times[i] = loadTimes[i] + other.loadTimes[i];
+        }
+        for( int i=0; i<evicted.length; i++ ) {
+            evicted[i] = evictions[i] + other.evictions[i];
+        }
+        return new CacheStats(hitCount + other.hitCount, missCount + other.missCount, loadSuccessCount + other.loadSuccessCount, loadFailureCount + other.loadFailureCount, totalLoadNanos + other.totalLoadNanos, times, evicted);
+    }
+
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[hits=").append(hitCount);
+        str.append(",misses=").append(missCount);
+        str.append(",loads=").append(loadSuccessCount);
+        str.append(",loadFailures=").append(loadFailureCount);
+        str.append(",totalLoadTime=").append(totalLoadNanos);
+        for( EvictionCause cause : EvictionCause.values() ) {
+            str.append(",").append(cause.name().toLowerCase()).append("=").append(evictions[cause.ordinal()]);
+        }
+        str.append("]");
+        return str.toString();
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+/**
+ * <p>
+ *   The management interface through which cache statistics are published over JMX. Each
+ *   attribute reads a fresh snapshot of the underlying {@link CacheStats}.
+ * </p>
+ */
+public interface CacheStatsMXBean {
+    public abstract double getAverageLoadPenalty();
+
+    public abstract long getCollectedCount();
+
+    public abstract long getEvictionCount();
+
+    public abstract long getExpiredCount();
+
+    public abstract long getHitCount();
+
+    public abstract double getHitRate();
+
+    public abstract long getInvalidCount();
+
+    public abstract long getLoadFailureCount();
+
+    public abstract long getLoadSuccessCount();
+
+    public abstract long[] getLoadTimeHistogram();
+
+    public abstract long getMissCount();
+
+    public abstract long getSizeEvictionCount();
+
+    public abstract long getTotalLoadTime();
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *   Accumulates the statistics of a single cache. Hits and misses, which are recorded on
+ *   every lookup, are counted on {@link LongAdder}s so that readers on different threads do
+ *   not contend; loads and evictions are rare enough to count on plain atomics.
+ * </p>
+ */
+class CacheStatsRecorder {
+    /**
+     * Publishes the statistics of a recorder as an MXBean.
+     */
+    static private class View implements CacheStatsMXBean {
+        private final CacheStatsRecorder recorder;
+
+        private View(CacheStatsRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        public double getAverageLoadPenalty() {
+            return recorder.snapshot().getAverageLoadPenalty();
+        }
+
+        public long getCollectedCount() {
+            return recorder.snapshot().getEvictionCount(EvictionCause.COLLECTED);
+        }
+
+        public long getEvictionCount() {
+            return recorder.snapshot().getEvictionCount();
+        }
+
+        public long getExpiredCount() {
+            return recorder.snapshot().getEvictionCount(EvictionCause.EXPIRED);
+        }
+
+        public long getHitCount() {
+            return recorder.snapshot().getHitCount();
+        }
+
+        public double getHitRate() {
+            return recorder.snapshot().getHitRate();
+        }
+
+        public long getInvalidCount() {
+            return recorder.snapshot().getEvictionCount(EvictionCause.INVALID);
+        }
+
+        public long getLoadFailureCount() {
+            return recorder.snapshot().getLoadFailureCount();
+        }
+
+        public long getLoadSuccessCount() {
+            return recorder.snapshot().getLoadSuccessCount();
+        }
+
+        public long[] getLoadTimeHistogram() {
+            return recorder.snapshot().getLoadTimeHistogram();
+        }
+
+        public long getMissCount() {
+            return recorder.snapshot().getMissCount();
+        }
+
+        public long getSizeEvictionCount() {
+            return recorder.snapshot().getEvictionCount(EvictionCause.SIZE);
+        }
+
+        public long getTotalLoadTime() {
+            return recorder.snapshot().getTotalLoadTime();
+        }
+    }
+
+    /**
+     * Registers the statistics of the specified recorder with the platform MBean server.
+     * @param type the type of cache, used as the <code>type</code> key of the object name
+     * @param name the name of the cache, used as the <code>name</code> key of the object name
+     * @param attribute the attribute of a multi-cache the recorder covers, or <code>null</code>
+     * @param recorder the recorder to publish
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    static @Nonnull ObjectName register(@Nonnull String type, @Nonnull String name, @Nullable String attribute, @Nonnull CacheStatsRecorder recorder) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String id = "org.dasein.util:type=" + type + ",name=" + ObjectName.quote(name);
+
+        if( attribute != null ) {
+            id = id + ",attribute=" + ObjectName.quote(attribute);
+        }
+        try {
+            ObjectName objectName = new ObjectName(id);
+
+            server.registerMBean(new StandardMBean(new View(recorder), CacheStatsMXBean.class, true), objectName);
+            return objectName;
+        }
+        catch( JMException e ) {
+            throw new CacheManagementException(e);
+        }
+    }
+
+    /**
+     * Removes statistics previously registered with the platform MBean server, if they are still registered.
+     * @param objectName the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    static void unregister(@Nonnull ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            if( server.isRegistered(objectName) ) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch( JMException e ) {
+            throw new CacheManagementException(e);
+        }
+    }
+
+    private final AtomicLongArray evictions        = new AtomicLongArray(EvictionCause.values().length);
+    private final LongAdder       hits             = new LongAdder();
+    private final AtomicLong      loadFailures     = new AtomicLong(0L);
+    private final AtomicLong      loadSuccesses    = new AtomicLong(0L);
+    private final AtomicLongArray loadTimes        = new AtomicLongArray(CacheStats.getLoadTimeBucketCount());
+    private final LongAdder       misses           = new LongAdder();
+    private final AtomicLong      totalLoadNanos   = new AtomicLong(0L);
+
+    public void recordEviction(@Nonnull EvictionCause cause) {
+        evictions.incrementAndGet(cause.ordinal());
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordLoadFailure(long nanos) {
+        loadFailures.incrementAndGet();
+        recordLoadTime(nanos);
+    }
+
+    public void recordLoadSuccess(long nanos) {
+        loadSuccesses.incrementAndGet();
+        recordLoadTime(nanos);
+    }
+
+    private void recordLoadTime(long nanos) {
+        totalLoadNanos.addAndGet(nanos);
+        loadTimes.incrementAndGet(CacheStats.getLoadTimeBucket(nanos));
+    }
+
+    /**
+     * @return the statistics accumulated so far
+     */
+    public @Nonnull CacheStats snapshot() {
+        long[] times = new long[loadTimes.length()];
+        long[] evicted = new long[evictions.length()];
+
+        for( int i=0; i<times.length; i++ ) {
+            times[i] = loadTimes.get(i);
+        }
+        for( int i=0; i<evicted.length; i++ ) {
+            evicted[i] = evictions.get(i);
+        }
+        return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.get(), loadFailures.get(), totalLoadNanos.get(), times, evicted);
+    }
+}
@@ -20,14 +20,34 @@
 /* Copyright (c) 2005 Valtira Corporation, All Rights Reserved */
 package org.dasein.util;
 
+import org.apache.log4j.Logger;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>
@@ -39,6 +59,54 @@ import java.util.concurrent.ConcurrentMap;
  *   that object.
  * </p>
  * <p>
+ *   The cache is backed by a lock-striped {@link ConcurrentHashMap}. Reads never block,
+ *   and writes only contend with other writes to the same bin. The conditional operations
+ *   ({@link #putIfAbsent(Object, Object)}, {@link #replace(Object, Object)},
+ *   {@link #replace(Object, Object, Object)} and {@link #remove(Object, Object)}) are atomic
+ *   with respect to one another. Entries whose soft references have been cleared or whose
+ *   {@link CachedItem} values are no longer valid are treated as absent and are removed
+ *   from the map as they are encountered. Cleared soft references are also reported through
+ *   a reference queue, which is drained a little on every write and fully by the periodic
+ *   background maintenance, so entries collected by the garbage collector do not linger in
+ *   the map waiting for a read of their key. Keys may not be <code>null</code>.
+ * </p>
+ * <p>
+ *   By default, the cache relies on soft references and therefore on garbage collection to
+ *   release memory. A cache constructed with a maximum size or a maximum weight instead holds
+ *   its values strongly and evicts entries according to a segmented LRU policy whenever the
+ *   bound is exceeded, so that the cache holds a predictable working set regardless of heap
+ *   pressure. Reads in a bounded cache are recorded in a buffer that is applied to the policy
+ *   in batches, so reads still never block.
+ * </p>
+ * <p>
+ *   A bounded cache may also be given off-heap storage with
+ *   {@link #setOffHeapStorage(long, Serializer)}. Entries evicted from the heap are then
+ *   serialized into direct byte buffers and moved back onto the heap when next read, so the
+ *   cache can hold far more data than its on-heap bound without adding to garbage collection.
+ * </p>
+ * <p>
+ *   Entries may also expire a fixed time after they were written, a fixed time after they
+ *   were last read, or after a time-to-live given when they are put into the cache. Expired
+ *   entries are never returned. They are tracked on a hierarchical timer wheel and purged
+ *   proactively, both as a side effect of writes and by a background maintenance thread,
+ *   so they do not pin memory until someone happens to read them. Expiry is cheaper than
+ *   implementing {@link CachedItem}, since reads of an entry that carries a deadline only
+ *   compare it against the clock.
+ * </p>
+ * <p>
+ *   A cache configured to refresh after write reloads entries that have reached the refresh
+ *   age in the background when they are read through {@link #getOrLoad(Object, CacheLoader)}.
+ *   The reader, and any other readers until the reload completes, get the current value
+ *   without waiting. Combine a refresh period with a longer expiry period so that hot
+ *   entries are reloaded before they expire, while entries nobody reads still expire.
+ * </p>
+ * <p>
+ *   A cache that owns the persistence of its values may be put in write-behind mode with
+ *   {@link #setWriteBehind(BulkCacheWriter, TimePeriod)}. Puts and removals then return as soon as
+ *   the cache is updated, and a background flusher writes the latest value of each updated key
+ *   to the store in batches.
+ * </p>
+ * <p>
  *   Last modified: $Date: 2009/07/02 01:37:02 $
  * </p>
  * @version $Revision: 1.5 $
@@ -47,18 +115,359 @@ import java.util.concurrent.ConcurrentMap;
  * @param <V> the type of objects stored in the cache
  */
 public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
+    static private final Logger logger = Logger.getLogger(ConcurrentCache.class);
+
+    /**
+     * The default number of concurrently updating threads the backing map is tuned for.
+     */
+    static public final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    /**
+     * The default initial capacity of the backing map.
+     */
+    static public final int DEFAULT_INITIAL_CAPACITY  = 16;
+    /**
+     * The default number of keys at which a micro-batch of single-key loads is run without
+     * waiting out the batch window.
+     */
+    static public final int DEFAULT_MAXIMUM_BATCH_SIZE = 100;
+
+    /**
+     * The number of buffered reads that prompts a reader to apply them to the eviction policy.
+     */
+    static private final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    /**
+     * The number of buffered reads beyond which further reads are not recorded.
+     */
+    static private final int READ_BUFFER_MAXIMUM         = 1024;
+
+    /**
+     * How often the background maintenance thread cleans up caches with expiring entries.
+     */
+    static private final long MAINTENANCE_PERIOD_MILLIS = 1000L;
+    /**
+     * The default size of each segment of off-heap storage, which is also the largest serialized
+     * value off-heap storage can hold.
+     */
+    static public final int DEFAULT_OFF_HEAP_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /**
+     * The maximum number of collected entries purged on each write, keeping the cost of any one write small.
+     */
+    static private final int COLLECTED_DRAIN_LIMIT = 16;
+    /**
+     * The number of keys written in a single batch by write-behind when no batch size is specified.
+     */
+    static public final int DEFAULT_WRITE_BATCH_SIZE = 100;
+    /**
+     * The number of keys awaiting write-behind at which updates of further keys wait, when no maximum is specified.
+     */
+    static public final int DEFAULT_MAXIMUM_PENDING_WRITES = 10000;
+
+    /**
+     * A soft reference to a cached value that also holds the value strongly when the cache
+     * is bounded. The expiry fields are set before the entry is published to the map and
+     * are not changed afterwards, except for the deadline, which reads may push back.
+     * @param <K> the type for key values stored in the cache
+     * @param <V> the type of objects stored in the cache
+     */
+    static private class CacheEntry<K,V> extends SoftReference<V> implements TimerWheel.Timed {
+        /**
+         * Ensures only one refresh is started for a given entry.
+         */
+        @SuppressWarnings("rawtypes")
+        static private final AtomicIntegerFieldUpdater<CacheEntry> REFRESHING = AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "refreshing");
+
+        private long                                       accessNanos = -1L;
+        private volatile long                              deadline;
+        private boolean                                    expires;
+        private final K                                    key;
+        private SegmentedLru.Node<CacheEntry<K,V>>         node;
+        private long                                       refreshAt;
+        private boolean                                    refreshes;
+        private volatile int                               refreshing;
+        private final V                                    strong;
+        private TimerWheel.Node<CacheEntry<K,V>>           timer;
+        private final boolean                              validating;
+        private final long                                 weight;
+        private long                                       writeDeadline;
+        private boolean                                    writeExpires;
+
+        private CacheEntry(K key, V val, ReferenceQueue<? super V> queue, boolean bounded, long weight) {
+            super(val, queue);
+            this.key = key;
+            this.strong = (bounded ? val : null);
+            this.validating = (val instanceof CachedItem);
+            this.weight = weight;
+        }
+
+        private void expireAt(long now, long ttlNanos, long accessNanos) {
+            expires = true;
+            this.accessNanos = accessNanos;
+            if( ttlNanos >= 0L ) {
+                writeExpires = true;
+                writeDeadline = now + ttlNanos;
+                deadline = writeDeadline;
+            }
+            if( accessNanos >= 0L ) {
+                long d = now + accessNanos;
+
+                if( !writeExpires || d - writeDeadline < 0L ) {
+                    deadline = d;
+                }
+            }
+        }
+
+        public V get() {
+            return (strong != null ? strong : super.get());
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        private boolean isExpired(long now) {
+            return (now - deadline >= 0L);
+        }
+
+        private boolean isRefreshDue(long now) {
+            return (now - refreshAt >= 0L);
+        }
+
+        private boolean startRefresh() {
+            return REFRESHING.compareAndSet(this, 0, 1);
+        }
+
+        private void abandonRefresh() {
+            refreshing = 0;
+        }
+
+        private void touch(long now) {
+            long d = now + accessNanos;
+
+            if( writeExpires && d - writeDeadline > 0L ) {
+                d = writeDeadline;
+            }
+            deadline = d;
+        }
+    }
+
+    /**
+     * Cleans up a cache from the background maintenance thread without keeping it reachable.
+     */
+    static private class CacheCleaner extends CacheMaintenance.Task<ConcurrentCache<?,?>> {
+        private CacheCleaner(ConcurrentCache<?,?> cache) {
+            super(cache);
+        }
+
+        protected void maintain(ConcurrentCache<?,?> cache) {
+            cache.cleanUp();
+        }
+    }
+
+    /**
+     * The concurrent hash map that backs up this cache.
+     */
+    private final ConcurrentHashMap<K,CacheEntry<K,V>>   cache;
+    /**
+     * Receives the entries of an unbounded cache whose values have been collected, <code>null</code> if bounded.
+     */
+    private final ReferenceQueue<V>                      collected;
+    /**
+     * Coordinates loads so that only one load per key is in flight at a time.
+     */
+    private final LoadCoalescer<K,V>                     loads = new LoadCoalescer<K,V>();
+    /**
+     * The eviction policy for a bounded cache, <code>null</code> if the cache is unbounded.
+     */
+    private final SegmentedLru<CacheEntry<K,V>>          policy;
+    /**
+     * Guards all access to the eviction policy and the timer wheel.
+     */
+    private final ReentrantLock                          maintenanceLock = new ReentrantLock();
+    /**
+     * Whether the cache has been registered for background maintenance.
+     */
+    private final AtomicBoolean                          maintained = new AtomicBoolean(false);
+    /**
+     * Reads not yet applied to the eviction policy.
+     */
+    private final ConcurrentLinkedQueue<CacheEntry<K,V>> readBuffer;
+    /**
+     * The approximate number of reads in the read buffer.
+     */
+    private final AtomicInteger                          readBufferSize;
+    /**
+     * The timer wheel tracking expiring entries, created when the first expiring entry is added.
+     */
+    private TimerWheel<CacheEntry<K,V>>                  timers;
+    /**
+     * How long the first single-key miss through {@link #getOrLoadBatched(Object, BulkCacheLoader)}
+     * waits for other misses to join its batch.
+     */
+    private volatile long                                batchWindowNanos = 0L;
+    /**
+     * The number of keys at which a micro-batch is run without waiting out the batch window.
+     */
+    private volatile int                                 maximumBatchSize = DEFAULT_MAXIMUM_BATCH_SIZE;
+    /**
+     * The time after the last read that an entry expires, negative if entries do not expire on idle.
+     */
+    private volatile long                                expireAfterAccessNanos = -1L;
+    /**
+     * The time after being written that an entry expires, negative if entries do not expire on age.
+     */
+    private volatile long                                expireAfterWriteNanos = -1L;
+    /**
+     * The executor for background refreshes, <code>null</code> to use {@link DaseinUtilTasks}.
+     */
+    private volatile Executor                            refreshExecutor;
+    /**
+     * The time after being written that a read triggers a background refresh, negative if entries are not refreshed.
+     */
+    private volatile long                                refreshAfterWriteNanos = -1L;
+    /**
+     * The bus on which changes to this cache are announced to other caches, <code>null</code> if none.
+     */
+    private volatile InvalidationBus                     invalidationBus;
+    /**
+     * The channel of the invalidation bus to which this cache subscribes.
+     */
+    private volatile String                              invalidationChannel;
+    /**
+     * Drops the keys invalidated by other caches on the invalidation bus.
+     */
+    private final InvalidationListener                   invalidationListener = new InvalidationListener() {
+        public void invalidate(@Nonnull Collection<Invalidation> invalidations) {
+            for( Invalidation invalidation : invalidations ) {
+                if( invalidation.getAttribute() == null ) {
+                    removeLocally(invalidation.getKey());
+                }
+            }
+        }
+    };
+    /**
+     * The second tier to which entries evicted from the heap are moved, <code>null</code> if none.
+     */
+    private volatile OffHeapStore<K,V>                   offHeap;
+    /**
+     * The object name under which the statistics of this cache are registered over JMX, if any.
+     */
+    private volatile ObjectName                          statsName;
+    /**
+     * Accumulates the hit, miss, load and eviction statistics of this cache.
+     */
+    private final CacheStatsRecorder                     stats = new CacheStatsRecorder();
+    /**
+     * The weigher for entries in a bounded cache, <code>null</code> if every entry weighs 1.
+     */
+    private final Weigher<? super K,? super V>           weigher;
+    /**
+     * Writes updates back to the persistent data store when the cache is in write-behind mode.
+     */
+    private volatile WriteBehind<K,V>                    writeBehind;
+
+    /**
+     * Constructs an empty cache using the default capacity and concurrency level.
+     */
+    public ConcurrentCache() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Constructs an empty cache tuned for the specified initial capacity and number of
+     * concurrently updating threads.
+     * @param initialCapacity the number of entries the cache should accommodate without resizing
+     * @param concurrencyLevel the estimated number of threads concurrently updating the cache
+     */
+    public ConcurrentCache(int initialCapacity, int concurrencyLevel) {
+        this(initialCapacity, concurrencyLevel, -1L, null);
+    }
+
+    /**
+     * Constructs an empty cache that holds at most the specified number of entries.
+     * @param maximumSize the maximum number of entries in the cache
+     */
+    public ConcurrentCache(long maximumSize) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, maximumSize, null);
+    }
+
+    /**
+     * Constructs an empty cache whose entries may weigh at most the specified total weight.
+     * @param maximumWeight the maximum total weight of entries in the cache
+     * @param weigher calculates the weight of each entry
+     */
+    public ConcurrentCache(long maximumWeight, Weigher<? super K,? super V> weigher) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, maximumWeight, weigher);
+    }
+
     /**
-     * The hash map that backs up this cache.
+     * Constructs an empty cache with full control over its tuning and bounds.
+     * @param initialCapacity the number of entries the cache should accommodate without resizing
+     * @param concurrencyLevel the estimated number of threads concurrently updating the cache
+     * @param maximumWeight the maximum total weight of entries in the cache, or a negative
+     * number for a cache bounded only by garbage collection of soft references
+     * @param weigher calculates the weight of each entry, or <code>null</code> to count each
+     * entry as 1 so that the maximum weight is the maximum number of entries
      */
-    //private HashMap<K,WeakReference<V>> cache = new HashMap<K,WeakReference<V>>();
-    private HashMap<K,SoftReference<V>> cache = new HashMap<K,SoftReference<V>>();
+    public ConcurrentCache(int initialCapacity, int concurrencyLevel, long maximumWeight, Weigher<? super K,? super V> weigher) {
+        super();
+        cache = new ConcurrentHashMap<K,CacheEntry<K,V>>(initialCapacity, 0.75f, concurrencyLevel);
+        this.weigher = weigher;
+        if( maximumWeight < 0L ) {
+            collected = new ReferenceQueue<V>();
+            policy = null;
+            readBuffer = null;
+            readBufferSize = null;
+        }
+        else {
+            collected = null;
+            policy = new SegmentedLru<CacheEntry<K,V>>(maximumWeight);
+            readBuffer = new ConcurrentLinkedQueue<CacheEntry<K,V>>();
+            readBufferSize = new AtomicInteger(0);
+        }
+    }
 
     /**
      * Clears out all elements of the cache and starts fresh.
      */
     public void clear() {
-        synchronized( this ) {
+        maintenanceLock.lock();
+        try {
             cache.clear();
+            if( policy != null ) {
+                readBuffer.clear();
+                readBufferSize.set(0);
+                policy.clear();
+            }
+            if( timers != null ) {
+                timers.clear();
+            }
+            if( offHeap != null ) {
+                offHeap.clear();
+            }
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Purges expired and collected entries and applies any buffered reads to the eviction policy. The cache
+     * does this on its own as it is used and periodically in the background, so there is
+     * rarely any need to call this method directly.
+     */
+    public void cleanUp() {
+        if( collected != null ) {
+            purgeCollected(-1);
+        }
+        maintenanceLock.lock();
+        try {
+            if( policy != null ) {
+                drainReadBuffer();
+            }
+            evict(System.nanoTime());
+        }
+        finally {
+            maintenanceLock.unlock();
         }
     }
 
@@ -68,31 +477,8 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @param key the key to test for existence
      * @return true if the cache has a value with the specified key
      */
-    @SuppressWarnings("unchecked")
     public boolean containsKey(Object key) {
-        synchronized( this ) {
-            //WeakReference ref;
-            SoftReference ref;
-            V item;
-            
-            if( !cache.containsKey(key) ) {
-                return false;
-            }
-            ref = cache.get(key);
-            item = (V)ref.get();
-            if( item == null ) {
-                return false;
-            }
-            if( item instanceof CachedItem ) {
-                CachedItem ci = (CachedItem)item;
-                
-                if( !ci.isValidForCache() ) {
-                    remove(key);
-                    return false;
-                }
-            }
-            return true;
-        }
+        return (peek(key) != null);
     }
 
     /**
@@ -101,73 +487,176 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @return true if it is in the cache and value
      */
     public boolean containsValue(Object val) {
-        synchronized( this ) {
-            for( V item : values() ) {
-                if( item instanceof CachedItem ){
-                    CachedItem ci = (CachedItem)item;
-
-                    if( ci.isValidForCache() && ci.equals(val) ) {
-                        return true;
-                    }
-                }
-                else if( item.equals(val) ) {
-                    return true;
-                }
+        if( val == null ) {
+            return false;
+        }
+        for( V item : values() ) {
+            if( val.equals(item) ) {
+                return true;
             }
         }
         return false;
     }
     
     /**
-     * Returns a set of entries in this cache.
+     * Returns a snapshot of the entries in this cache. Setting the value of a returned
+     * entry writes through to the cache.
      * @return cache entries
      */
     public Set<Entry<K, V>> entrySet() {
-        TreeSet<Entry<K,V>> set = new TreeSet<Entry<K,V>>();
+        HashSet<Entry<K,V>> set = new HashSet<Entry<K,V>>();
         
-        synchronized( this ) {
-            for(K key : keySet() ) {
-                if( containsKey(key) ) {
-                    get(key);
-                    set.add(getEntry(key));
-                }
+        for( Map.Entry<K,CacheEntry<K,V>> entry : cache.entrySet() ) {
+            K key = entry.getKey();
+
+            if( resolve(key, entry.getValue()) != null ) {
+                set.add(getEntry(key));
             }
-            return set;
         }
+        return set;
     }
     
     /**
      * Retrieves the item associated with the specified key if it is currently
-     * valid for the cache.
+     * valid for the cache. This method never blocks.
      * @param key the key whose item is being sought
      * @return the current value for that key, if any
      */
-    @SuppressWarnings("unchecked")
     public V get(Object key) {
-        synchronized( this ) {
-            //WeakReference ref;
-            SoftReference ref;
-            V item;
-            
-            if( !containsKey(key) ) {
-                return null;
+        V item = peek(key);
+
+        if( item == null ) {
+            stats.recordMiss();
+        }
+        else {
+            stats.recordHit();
+        }
+        return item;
+    }
+
+    /**
+     * Retrieves the item associated with the specified key exactly as {@link #get(Object)} does,
+     * but without counting the lookup as a hit or miss. Used for lookups the cache or its
+     * owner make on its own behalf.
+     * @param key the key whose item is being sought
+     * @return the current value for that key, if any
+     */
+    V peek(Object key) {
+        CacheEntry<K,V> ref;
+        V item;
+
+        if( key == null ) {
+            return null;
+        }
+        ref = cache.get(key);
+        item = (ref == null ? null : read(key, ref));
+        if( item == null && offHeap != null ) {
+            item = promote(key);
+        }
+        return item;
+    }
+
+    /**
+     * Moves the value for the specified key from off-heap storage back into the cache, keeping
+     * whatever remains of its time to live.
+     * @param key the key whose value is being sought
+     * @return the promoted value, or <code>null</code> if off-heap storage has no live value for the key
+     */
+    @SuppressWarnings("unchecked")
+    private V promote(Object key) {
+        OffHeapStore<K,V> store = offHeap;
+        OffHeapStore.Stored<V> stored;
+        long now = System.nanoTime();
+
+        try {
+            stored = store.take(key, now);
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Unable to read " + key + " from off-heap storage: " + e.getMessage());
+            return null;
+        }
+        if( stored == null || !isValid(stored.value) ) {
+            return null;
+        }
+        return putIfAbsent((K)key, stored.value, newEntry((K)key, stored.value, (stored.expires ? Math.max(0L, stored.deadline - now) : -1L)));
+    }
+
+    /**
+     * Reads the value for the specified key from off-heap storage without moving it back into the cache,
+     * for operations that only compare or drop the value and so must not disturb the entries on the heap.
+     * @param key the key whose value is being sought
+     * @param take true to also remove the value from off-heap storage
+     * @return the stored value, or <code>null</code> if off-heap storage has no live value for the key
+     */
+    private @Nullable OffHeapStore.Stored<V> readOffHeap(Object key, boolean take) {
+        OffHeapStore<K,V> store = offHeap;
+        OffHeapStore.Stored<V> stored;
+        long now = System.nanoTime();
+
+        try {
+            stored = (take ? store.take(key, now) : store.get(key, now));
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Unable to read " + key + " from off-heap storage: " + e.getMessage());
+            return null;
+        }
+        return (stored == null || !isValid(stored.value) ? null : stored);
+    }
+
+    /**
+     * Announces on the invalidation bus, if any, that the value for the specified key has changed
+     * so that other caches on the same channel drop their copies.
+     * @param key the key whose value changed
+     */
+    private void publishInvalidation(Object key) {
+        InvalidationBus bus = invalidationBus;
+
+        if( bus != null && key != null ) {
+            bus.publish(invalidationListener, Collections.singletonList(new Invalidation(invalidationChannel, null, key)));
+        }
+    }
+
+    /**
+     * Writes an entry being evicted from the heap to off-heap storage, if the cache has off-heap storage.
+     * Entries are spilled while still mapped and the spill is withdrawn if unmapping then fails, so a
+     * writer that replaces the entry in the meantime, and clears the key from off-heap storage as it does,
+     * can never be followed by the stale value. Must be called while holding the maintenance lock.
+     * @param victim the entry being evicted
+     * @return true if the value was written to off-heap storage
+     */
+    private boolean spill(CacheEntry<K,V> victim) {
+        OffHeapStore<K,V> store = offHeap;
+
+        if( store != null && isValid(victim.strong) ) {
+            try {
+                return store.put(victim.key, victim.strong, victim.writeExpires, victim.writeDeadline);
             }
-            ref = cache.get(key);
-            item = (V)ref.get();
-            if( item == null ) {
-                return null;
+            catch( RuntimeException e ) {
+                logger.warn("Unable to move " + victim.key + " to off-heap storage: " + e.getMessage());
             }
-            if( item instanceof CachedItem ) {
-                CachedItem ci = (CachedItem)item;
-                
-                if( ci.isValidForCache() ) {
-                    return item;
-                }
-                remove(key);
-                return null;
+        }
+        return false;
+    }
+
+    /**
+     * Provides the value for the specified entry if it is live, recording the read for
+     * idle expiry and the eviction policy.
+     * @param key the key under which the entry is stored
+     * @param ref the entry being read
+     * @return the live, valid value or <code>null</code>
+     */
+    private V read(Object key, CacheEntry<K,V> ref) {
+        V item = resolve(key, ref);
+
+        if( item != null ) {
+            if( ref.accessNanos >= 0L ) {
+                ref.touch(System.nanoTime());
+            }
+            if( policy != null ) {
+                recordRead(ref);
             }
-            return item;
         }
+        return item;
     }
 
     /**
@@ -182,11 +671,12 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
             public boolean equals(Object ob) {
                 if( ob instanceof Entry ) {
                     Entry entry = (Entry)ob;
-                    
-                    if( !entry.getKey().equals(getKey()) ) {
+                    Object v = getValue();
+
+                    if( !getKey().equals(entry.getKey()) ) {
                         return false;
                     }
-                    if( !entry.getValue().equals(getValue()) ) {
+                    if( v == null ? entry.getValue() != null : !v.equals(entry.getValue()) ) {
                         return false;
                     }
                     return true;
@@ -199,7 +689,13 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
             }
 
             public V getValue() {
-                return ConcurrentCache.this.get(getKey());
+                return ConcurrentCache.this.peek(getKey());
+            }
+
+            public int hashCode() {
+                V v = getValue();
+
+                return (k.hashCode() ^ (v == null ? 0 : v.hashCode()));
             }
 
             public V setValue(V val) {
@@ -213,41 +709,202 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * will attempt to load a value and place it into the cache. This method appears
      * atomic in accordance with the contract of a @{link ConcurrentMap}, but any
      * required loading will actually occur outside of a synchronous block, thus allowing
-     * for other operations on the cache while a load is in process. In the rare
-     * instance that two loads occur simultaneously, the result of the first completed
-     * load will be stored in the cache and the second will be discarded. As a result,
-     * the return value of both calls will be the item loaded from the first load to
-     * complete.
+     * for other operations on the cache while a load is in process. Only one load per
+     * key is ever in flight: threads that miss on a key while another thread is loading
+     * it wait for that load and share its result, or its exception. If the cache refreshes
+     * after write and the value found has reached the refresh age, the loader is also
+     * used to reload the value in the background while the current value is returned.
      * @param key the key being sought 
      * @param loader a loader to load a new value if a value is missing
      * @return the value matching the specified key or <code>null</code> if no object
      * exists in the system matching the desired key
+     * @throws CacheManagementException the loader failed with a checked exception
      */
-    public V getOrLoad(K key, CacheLoader<V> loader) {
-        V item;
-        
-       // synchronized( this ) {
-            if( containsKey(key) ) {
-                return get(key);
+    public V getOrLoad(final K key, final CacheLoader<V> loader) {
+        CacheEntry<K,V> ref = (key == null ? null : cache.get(key));
+        V item = (ref == null ? null : read(key, ref));
+
+        if( item == null && key != null && offHeap != null ) {
+            item = promote(key);
+            if( item != null ) {
+                stats.recordHit();
+                return item;
             }
-        //}
-        item = loader.load();
-        if( item != null ) {
-            putIfAbsent(key, item);
-            return get(key);
+        }
+        if( item == null ) {
+            stats.recordMiss();
         }
         else {
-            return null;
+            stats.recordHit();
+            if( ref.refreshes && ref.isRefreshDue(System.nanoTime()) ) {
+                refresh(key, ref, loader);
+            }
+            return item;
         }
+        return loads.load(key, new Callable<V>() {
+            public V call() {
+                V item = peek(key);
+                WriteBehind.Write<V> write;
+
+                if( item != null ) {
+                    return item;
+                }
+                write = unflushed(key);
+                if( write != null ) {
+                    return fill(key, write.getValue());
+                }
+                return fill(key, load(loader));
+            }
+        });
     }
 
     /**
-     * @return true of the cache is empty
-     */
+     * Retrieves the value for the specified key, loading it through the specified bulk loader if
+     * it is missing. When a batch window has been set with {@link #setBatchWindow(TimePeriod)},
+     * concurrent misses using the same loader that arrive within the window of one another are
+     * gathered into a single call to {@link BulkCacheLoader#loadAll(Collection)}. Without a
+     * batch window, each miss is loaded on its own. As with {@link #getOrLoad(Object, CacheLoader)},
+     * only one load per key is ever in flight.
+     * @param key the key being sought
+     * @param loader a bulk loader to load the value if it is missing
+     * @return the value matching the specified key or <code>null</code> if no object
+     * exists in the system matching the desired key
+     * @throws CacheManagementException the loader failed with a checked exception
+     */
+    public V getOrLoadBatched(final K key, final BulkCacheLoader<K,V> loader) {
+        V item = get(key);
+
+        if( item != null ) {
+            return item;
+        }
+        return loads.loadBatched(key, loader, toBatchLoad(loader), batchWindowNanos, maximumBatchSize);
+    }
+
+    /**
+     * Retrieves the values for all of the specified keys. Values already in the cache are
+     * resolved in a single pass, and all of the missing values are then fetched through one
+     * call to {@link BulkCacheLoader#loadAll(Collection)} and placed in the cache. Keys
+     * already being loaded by another thread are not loaded again; their values are awaited
+     * instead.
+     * @param keys the keys being sought
+     * @param loader a bulk loader to load the missing values
+     * @return the values found or loaded, in the order of the keys requested; keys for which
+     * no object exists in the system are left out
+     * @throws CacheManagementException the loader failed with a checked exception
+     */
+    public @Nonnull Map<K,V> getAll(@Nonnull Collection<? extends K> keys, @Nonnull BulkCacheLoader<K,V> loader) {
+        HashMap<K,V> found = new HashMap<K,V>();
+        ArrayList<K> misses = new ArrayList<K>();
+
+        for( K key : keys ) {
+            V item = get(key);
+
+            if( item != null ) {
+                found.put(key, item);
+            }
+            else if( key != null ) {
+                misses.add(key);
+            }
+        }
+        if( !misses.isEmpty() ) {
+            found.putAll(loads.loadAll(misses, toBatchLoad(loader)));
+        }
+        return orderBy(keys, found);
+    }
+
+    static private <K,V> Map<K,V> orderBy(Collection<? extends K> keys, Map<K,V> values) {
+        LinkedHashMap<K,V> ordered = new LinkedHashMap<K,V>();
+
+        for( K key : keys ) {
+            V item = values.get(key);
+
+            if( item != null ) {
+                ordered.put(key, item);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Adapts a bulk loader to a batch load that skips keys cached in the meantime and places
+     * the loaded values in the cache.
+     * @param loader the bulk loader
+     * @return a batch load populating this cache
+     */
+    private LoadCoalescer.BatchLoad<K,V> toBatchLoad(final BulkCacheLoader<K,V> loader) {
+        return new LoadCoalescer.BatchLoad<K,V>() {
+            public Map<K,V> call(Collection<K> keys) {
+                HashMap<K,V> values = new HashMap<K,V>();
+                ArrayList<K> misses = new ArrayList<K>();
+
+                for( K key : keys ) {
+                    V item = peek(key);
+
+                    if( item == null ) {
+                        WriteBehind.Write<V> write = unflushed(key);
+
+                        if( write == null ) {
+                            misses.add(key);
+                            continue;
+                        }
+                        item = fill(key, write.getValue());
+                    }
+                    if( item != null ) {
+                        values.put(key, item);
+                    }
+                }
+                if( !misses.isEmpty() ) {
+                    Map<K,V> loaded = loadAll(loader, misses);
+
+                    for( K key : misses ) {
+                        V item = fill(key, loaded.get(key));
+
+                        if( item != null ) {
+                            values.put(key, item);
+                        }
+                    }
+                }
+                return values;
+            }
+        };
+    }
+
+    /**
+     * @return the number of {@link #getOrLoad(Object, CacheLoader)} misses that waited on a load
+     * already in flight rather than running their own
+     */
+    public long getCoalescedLoadCount() {
+        return loads.getCoalescedCount();
+    }
+
+    /**
+     * @return the number of loads executed by {@link #getOrLoad(Object, CacheLoader)}, counting
+     * each batch loaded by {@link #getAll(Collection, BulkCacheLoader)} or
+     * {@link #getOrLoadBatched(Object, BulkCacheLoader)} once
+     */
+    public long getLoadCount() {
+        return loads.getLoadCount();
+    }
+
+    /**
+     * @return a snapshot of the hit, miss, load and eviction statistics of this cache
+     */
+    public @Nonnull CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * @return the recorder accumulating the statistics of this cache
+     */
+    @Nonnull CacheStatsRecorder getStatsRecorder() {
+        return stats;
+    }
+
+    /**
+     * @return true of the cache is empty
+     */
     public boolean isEmpty() {
-        //synchronized( this ) {
-            return cache.isEmpty();
-        //}
+        return cache.isEmpty();
     }
 
     /**
@@ -255,24 +912,42 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @param key the key for the item being placed into the cache
      * @param val the item to be cached
      * @return the resulting value stored in the cache
+     * @throws NullPointerException the key is <code>null</code>
      */
     public V put(K key, V val) {
-        //synchronized( this ) {
-            //WeakReference<V> ref = new WeakReference<V>(val);
-            SoftReference<V> ref = new SoftReference<V>(val);
-            
-            cache.put(key, ref);
-            return get(key);
-        //}
+        CacheEntry<K,V> entry = newEntry(key, val, -1L);
+
+        holdBack(key);
+        afterWrite(entry, cache.put(key, entry));
+        publishInvalidation(key);
+        writeBehind(key, val);
+        return (isValid(val) ? val : null);
+    }
+
+    /**
+     * Places the specified value into the cache for no longer than the specified time to live,
+     * overriding any expire-after-write period configured for the cache.
+     * @param key the key for the item being placed into the cache
+     * @param val the item to be cached
+     * @param ttl the time after which the entry expires, or <code>null</code> for the cache default
+     * @return the resulting value stored in the cache
+     * @throws NullPointerException the key is <code>null</code>
+     */
+    public V put(K key, V val, @Nullable TimePeriod<?> ttl) {
+        CacheEntry<K,V> entry = newEntry(key, val, toNanos(ttl));
+
+        holdBack(key);
+        afterWrite(entry, cache.put(key, entry));
+        publishInvalidation(key);
+        writeBehind(key, val);
+        return (isValid(val) ? val : null);
     }
 
     /**
      * @return all of the keys in the cache
      */
     public Set<K> keySet() {
-        //synchronized( this ) {
-            return cache.keySet();
-        //}
+        return cache.keySet();
     }
 
     /**
@@ -280,39 +955,136 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @param map the map to store in this cache.
      */
     public void putAll(Map<? extends K, ? extends V> map) {
-        //synchronized( this ) {
-            for(K key : map.keySet() ) {
-                put(key, map.get(key));
-            }
-        //}
+        for( Map.Entry<? extends K, ? extends V> entry : map.entrySet() ) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
      * Conditionally associates the specified value with the specified key if
      * no value currently exists for the key. The actual value stored with the
-     * key is returned.
+     * key is returned. An existing entry that has been garbage collected or is no
+     * longer valid for the cache is considered absent.
      * @param key the key for which a value is to be stored
      * @param val the proposed new value
      * @return the actual value stored with key, whether the old or the new
+     * @throws NullPointerException the key is <code>null</code>
      */
     public V putIfAbsent(K key, V val) {
-        //synchronized( this ) {
+        V item;
+
+        holdBack(key);
+        item = putIfAbsent(key, val, newEntry(key, val, -1L));
+
+        if( item == val ) {
+            writeBehind(key, val);
+        }
+        return item;
+    }
+
+    /**
+     * Conditionally associates the specified value with the specified key for no longer than
+     * the specified time to live if no value currently exists for the key. The actual value
+     * stored with the key is returned.
+     * @param key the key for which a value is to be stored
+     * @param val the proposed new value
+     * @param ttl the time after which a new entry expires, or <code>null</code> for the cache default
+     * @return the actual value stored with key, whether the old or the new
+     * @throws NullPointerException the key is <code>null</code>
+     */
+    public V putIfAbsent(K key, V val, @Nullable TimePeriod<?> ttl) {
+        V item;
+
+        holdBack(key);
+        item = putIfAbsent(key, val, newEntry(key, val, toNanos(ttl)));
+
+        if( item == val ) {
+            writeBehind(key, val);
+        }
+        return item;
+    }
+
+    private V putIfAbsent(K key, V val, CacheEntry<K,V> ref) {
+        while( true ) {
+            CacheEntry<K,V> current = cache.putIfAbsent(key, ref);
             V item;
-            
-            if( !containsKey(key) ) {
-                return put(key, val);
-            }
-            item = get(key);
-            if( item instanceof CachedItem ) {
-                CachedItem ci = (CachedItem)item;
-                
-                if( !ci.isValidForCache() ) {
-                    put(key, val);
-                    return null;
-                }
+
+            if( current == null ) {
+                afterWrite(ref, null);
+                return (isValid(val) ? val : null);
             }
-            return item;
-        //}
+            item = resolve(key, current);
+            if( item != null ) {
+                return item;
+            }
+            // the stale entry was removed by resolve(), so try again
+        }
+    }
+
+    /**
+     * Places a value that came from the persistent data store into the cache unless a value is
+     * already cached. Unlike {@link #putIfAbsent(Object, Object)}, the value is neither announced
+     * on the invalidation bus nor written back to the store.
+     * @param key the key for which a value was loaded
+     * @param val the loaded value, or <code>null</code> if none exists
+     * @return the value stored with the key, whether the old or the new
+     */
+    private V fill(K key, @Nullable V val) {
+        if( val == null ) {
+            return null;
+        }
+        return putIfAbsent(key, val, newEntry(key, val, -1L));
+    }
+
+    /**
+     * Provides the update of the specified key still waiting to be written behind, if any. Such a
+     * key must not be loaded from the persistent data store, which does not yet hold its value.
+     * @param key the key being sought
+     * @return the pending update or <code>null</code> if the store is up to date for the key
+     */
+    private @Nullable WriteBehind.Write<V> unflushed(Object key) {
+        WriteBehind<K,V> wb = writeBehind;
+
+        return (wb == null ? null : wb.pending(key));
+    }
+
+    /**
+     * Waits for room to record an update of the specified key, if the cache is in write-behind mode
+     * and the persistent data store has fallen behind.
+     * @param key the key about to be updated
+     */
+    private void holdBack(Object key) {
+        WriteBehind<K,V> wb = writeBehind;
+
+        if( wb != null && key != null ) {
+            wb.reserve(key);
+        }
+    }
+
+    /**
+     * Records the new value for the specified key for writing behind, if the cache is in write-behind mode.
+     * @param key the updated key
+     * @param val the new value
+     */
+    private void writeBehind(K key, V val) {
+        WriteBehind<K,V> wb = writeBehind;
+
+        if( wb != null && key != null ) {
+            wb.write(key, val);
+        }
+    }
+
+    /**
+     * Records the removal of the specified key for deleting behind, if the cache is in write-behind mode.
+     * @param key the removed key
+     */
+    @SuppressWarnings("unchecked")
+    private void deleteBehind(Object key) {
+        WriteBehind<K,V> wb = writeBehind;
+
+        if( wb != null && key != null ) {
+            wb.delete((K)key);
+        }
     }
     
     /**
@@ -320,30 +1092,44 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @param key the key to be removed from the cache
      * @return the previous value or null if nothing was in there in the first place
      */
-    @SuppressWarnings("unchecked")
     public V remove(Object key) {
-        //synchronized( this ) {
-            //WeakReference ref;
-            SoftReference ref;
-            V item;
-            
-            ref = cache.remove(key);
+        V item;
+
+        holdBack(key);
+        item = removeLocally(key);
+
+        publishInvalidation(key);
+        deleteBehind(key);
+        return item;
+    }
+
+    /**
+     * Removes the specified key from this cache without announcing the removal on the invalidation bus.
+     * @param key the key to be removed from the cache
+     * @return the previous value or null if nothing was in there in the first place
+     */
+    V removeLocally(Object key) {
+        CacheEntry<K,V> ref;
+        V item;
+
+        if( key == null ) {
+            return null;
+        }
+        ref = cache.remove(key);
+        if( offHeap != null ) {
             if( ref == null ) {
-                return null;
-            }
-            item = (V)ref.get();
-            if( item == null ) {
-                return null;
-            }
-            if( item instanceof CachedItem ) {
-                CachedItem ci = (CachedItem)item;
-                
-                if( ci.isValidForCache() ) {
-                    return item;
-                }
+                OffHeapStore.Stored<V> stored = readOffHeap(key, true);
+
+                return (stored == null ? null : stored.value);
             }
+            offHeap.remove(key);
+        }
+        if( ref == null ) {
             return null;
-        //}
+        }
+        afterRemove(ref);
+        item = ref.get();
+        return (isValid(item) ? item : null);
     }
 
     /**
@@ -353,27 +1139,34 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @param val the value that must be matched by the current value for this key
      */
     public boolean remove(Object key, Object val) {
-        String k = key.toString();
-        
-       // synchronized( this ) {
-            V item;
-            
-            if( !containsKey(k) ) {
-                return false;
-            }
-            item = get(k);
-            if( val == null && item == null ) {
-                remove(k);
-                return true;
-            }
-            if( val == null || item == null ) {
+        CacheEntry<K,V> ref;
+        V item;
+
+        if( key == null || val == null ) {
+            return false;
+        }
+        holdBack(key);
+        ref = cache.get(key);
+        if( ref == null ) {
+            OffHeapStore.Stored<V> stored = (offHeap == null ? null : readOffHeap(key, false));
+
+            if( stored == null || !val.equals(stored.value) || !offHeap.remove(key, stored) ) {
                 return false;
             }
-            if( val.equals(item) ) {
-                remove(k);
-                return true;
-            }
-       // }
+            publishInvalidation(key);
+            deleteBehind(key);
+            return true;
+        }
+        item = resolve(key, ref);
+        if( item == null || !val.equals(item) ) {
+            return false;
+        }
+        if( cache.remove(key, ref) ) {
+            afterRemove(ref);
+            publishInvalidation(key);
+            deleteBehind(key);
+            return true;
+        }
         return false;
     }
 
@@ -384,12 +1177,31 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @return whatever is stored in the cache for the key when the operation completes
      */
     public V replace(K key, V val) {
-       // synchronized( this ) {
-            if( !containsKey(key) ) {
+        CacheEntry<K,V> ref = newEntry(key, val, -1L);
+
+        holdBack(key);
+        while( true ) {
+            CacheEntry<K,V> current = cache.get(key);
+
+            if( current == null && offHeap != null && readOffHeap(key, true) != null ) {
+                if( cache.putIfAbsent(key, ref) == null ) {
+                    afterWrite(ref, null);
+                    publishInvalidation(key);
+                    writeBehind(key, val);
+                    return (isValid(val) ? val : null);
+                }
+                continue;
+            }
+            if( current == null || resolve(key, current) == null ) {
                 return null;
             }
-            return put(key, val);
-        //}
+            if( cache.replace(key, current, ref) ) {
+                afterWrite(ref, current);
+                publishInvalidation(key);
+                writeBehind(key, val);
+                return (isValid(val) ? val : null);
+            }
+        }
     }
 
     /**
@@ -401,22 +1213,641 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
      * @return true if the value was replaced
      */
     public boolean replace(K key, V ov, V nv) {
-      //  synchronized( this ) {
-            if( !remove(key, ov) ) {
+        CacheEntry<K,V> current;
+        CacheEntry<K,V> ref;
+        V item;
+
+        holdBack(key);
+        current = cache.get(key);
+        if( current == null && ov != null && offHeap != null ) {
+            OffHeapStore.Stored<V> stored = readOffHeap(key, false);
+
+            if( stored == null || !ov.equals(stored.value) || !offHeap.remove(key, stored) ) {
+                return false;
+            }
+            ref = newEntry(key, nv, -1L);
+            if( cache.putIfAbsent(key, ref) != null ) {
                 return false;
             }
-            put(key, nv);
+            afterWrite(ref, null);
+            publishInvalidation(key);
+            writeBehind(key, nv);
             return true;
-        //}
+        }
+        if( current == null || ov == null ) {
+            return false;
+        }
+        item = resolve(key, current);
+        if( item == null || !ov.equals(item) ) {
+            return false;
+        }
+        ref = newEntry(key, nv, -1L);
+        if( cache.replace(key, current, ref) ) {
+            afterWrite(ref, current);
+            publishInvalidation(key);
+            writeBehind(key, nv);
+            return true;
+        }
+        return false;
     }
 
     /**
-     * @return the number of elements currently in the cache
+     * Provides the value referenced by the specified cache entry, removing the entry
+     * from the cache if its referent has been collected, has expired, or is no longer valid. The removal
+     * only succeeds if the entry is still mapped to the same reference, so a concurrent
+     * replacement is never lost.
+     * @param key the key under which the reference is stored
+     * @param ref the reference currently stored for the key
+     * @return the live, valid value or <code>null</code>
+     */
+    private V resolve(Object key, CacheEntry<K,V> ref) {
+        V item = ref.get();
+        EvictionCause cause = null;
+
+        if( item == null ) {
+            cause = EvictionCause.COLLECTED;
+        }
+        else if( ref.expires && ref.isExpired(System.nanoTime()) ) {
+            cause = EvictionCause.EXPIRED;
+        }
+        else if( ref.validating && !((CachedItem)item).isValidForCache() ) {
+            cause = EvictionCause.INVALID;
+        }
+        if( cause != null ) {
+            if( cache.remove(key, ref) ) {
+                stats.recordEviction(cause);
+                afterRemove(ref);
+            }
+            return null;
+        }
+        return item;
+    }
+
+    /**
+     * Runs the specified loader, recording the outcome and duration of the load.
+     * @param loader the loader to run
+     * @return the loaded value
+     */
+    private V load(CacheLoader<V> loader) {
+        long start = System.nanoTime();
+        V item;
+
+        try {
+            item = loader.load();
+        }
+        catch( RuntimeException e ) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        catch( Error e ) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        stats.recordLoadSuccess(System.nanoTime() - start);
+        return item;
+    }
+
+    /**
+     * Runs the specified bulk loader, recording the outcome and duration of the load.
+     * @param loader the loader to run
+     * @param keys the keys to load
+     * @return the loaded values
+     */
+    private Map<K,V> loadAll(BulkCacheLoader<K,V> loader, Collection<K> keys) {
+        long start = System.nanoTime();
+        Map<K,V> items;
+
+        try {
+            items = loader.loadAll(keys);
+        }
+        catch( RuntimeException e ) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        catch( Error e ) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        stats.recordLoadSuccess(System.nanoTime() - start);
+        return items;
+    }
+
+    /**
+     * Creates a new entry for the cache, weighing it if the cache is bounded and setting its
+     * deadlines if it expires or refreshes.
+     * @param key the key for the entry
+     * @param val the value for the entry
+     * @param ttlNanos the time to live for the entry, or a negative number for the cache default
+     * @return a new entry
+     * @throws NullPointerException the key is <code>null</code>
+     */
+    private CacheEntry<K,V> newEntry(K key, V val, long ttlNanos) {
+        long accessNanos = expireAfterAccessNanos;
+        long refreshNanos = refreshAfterWriteNanos;
+        CacheEntry<K,V> entry;
+
+        if( key == null ) {
+            throw new NullPointerException("Concurrent caches may not have null keys.");
+        }
+        if( policy == null ) {
+            entry = new CacheEntry<K,V>(key, val, collected, false, 0L);
+        }
+        else {
+            entry = new CacheEntry<K,V>(key, val, null, true, (weigher == null ? 1L : weigher.weigh(key, val)));
+        }
+        if( ttlNanos < 0L ) {
+            ttlNanos = expireAfterWriteNanos;
+        }
+        if( ttlNanos >= 0L || accessNanos >= 0L || refreshNanos >= 0L ) {
+            long now = System.nanoTime();
+
+            if( ttlNanos >= 0L || accessNanos >= 0L ) {
+                entry.expireAt(now, ttlNanos, accessNanos);
+            }
+            if( refreshNanos >= 0L ) {
+                entry.refreshes = true;
+                entry.refreshAt = now + refreshNanos;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Informs the eviction policy and timer wheel, if any, that an entry was placed into the
+     * map and then evicts entries as necessary to stay within bounds. The added entry is only
+     * tracked if it is still mapped when the maintenance lock is acquired, so that racing
+     * writers never leave untracked or orphaned entries behind.
+     * @param added the entry that was placed into the map
+     * @param replaced the entry it replaced, if any
+     */
+    private void afterWrite(CacheEntry<K,V> added, CacheEntry<K,V> replaced) {
+        if( offHeap != null ) {
+            offHeap.remove(added.key);
+        }
+        if( collected != null ) {
+            purgeCollected(COLLECTED_DRAIN_LIMIT);
+            if( !maintained.get() ) {
+                scheduleMaintenance();
+            }
+        }
+        if( policy == null && !added.expires && (replaced == null || !replaced.expires) && timers == null ) {
+            return;
+        }
+        maintenanceLock.lock();
+        try {
+            if( policy != null ) {
+                drainReadBuffer();
+            }
+            if( replaced != null ) {
+                untrack(replaced);
+            }
+            if( cache.get(added.key) == added ) {
+                if( policy != null ) {
+                    added.node = policy.add(added, added.weight);
+                }
+                if( added.expires ) {
+                    added.timer = getTimers().schedule(added);
+                }
+            }
+            evict(System.nanoTime());
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Informs the eviction policy and timer wheel, if any, that an entry was removed from the map.
+     * @param removed the entry that was removed
+     */
+    private void afterRemove(CacheEntry<K,V> removed) {
+        if( policy == null && !removed.expires ) {
+            return;
+        }
+        maintenanceLock.lock();
+        try {
+            untrack(removed);
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes expired entries and, for a bounded cache, entries beyond the bound. Must be called
+     * while holding the maintenance lock.
+     * @param now the current value of {@link System#nanoTime()}
+     */
+    private void evict(long now) {
+        if( timers != null ) {
+            for( CacheEntry<K,V> victim : timers.advance(now) ) {
+                victim.timer = null;
+                if( cache.remove(victim.key, victim) ) {
+                    stats.recordEviction(EvictionCause.EXPIRED);
+                    untrack(victim);
+                }
+            }
+        }
+        if( policy != null ) {
+            for( CacheEntry<K,V> victim : policy.evict() ) {
+                boolean spilled;
+
+                victim.node = null;
+                spilled = spill(victim);
+                if( cache.remove(victim.key, victim) ) {
+                    stats.recordEviction(EvictionCause.SIZE);
+                    untrack(victim);
+                }
+                else if( spilled ) {
+                    // only spills write off-heap and they all hold this lock, so the value removed is ours
+                    offHeap.remove(victim.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides the timer wheel, creating it and registering the cache for background
+     * maintenance the first time it is needed. Must be called while holding the maintenance lock.
+     * @return the timer wheel for this cache
+     */
+    private TimerWheel<CacheEntry<K,V>> getTimers() {
+        if( timers == null ) {
+            timers = new TimerWheel<CacheEntry<K,V>>(System.nanoTime());
+            scheduleMaintenance();
+        }
+        return timers;
+    }
+
+    /**
+     * Registers the cache for periodic background maintenance unless it is already registered.
+     */
+    private void scheduleMaintenance() {
+        if( maintained.compareAndSet(false, true) ) {
+            CacheMaintenance.schedule(new CacheCleaner(this), MAINTENANCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes entries whose values the garbage collector has cleared, as reported through the
+     * reference queue. Entries already removed when found to be collected on a read are skipped.
+     * @param limit the maximum number of cleared references to process, or a negative number for all of them
+     */
+    @SuppressWarnings("unchecked")
+    private void purgeCollected(int limit) {
+        Reference<? extends V> ref;
+
+        while( limit-- != 0 && (ref = collected.poll()) != null ) {
+            CacheEntry<K,V> entry = (CacheEntry<K,V>)ref;
+
+            if( cache.remove(entry.key, entry) ) {
+                stats.recordEviction(EvictionCause.COLLECTED);
+                afterRemove(entry);
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the specified entry in the eviction policy and timer wheel. Must be called
+     * while holding the maintenance lock.
+     * @param entry the entry to stop tracking
+     */
+    private void untrack(CacheEntry<K,V> entry) {
+        if( entry.node != null ) {
+            policy.remove(entry.node);
+            entry.node = null;
+        }
+        if( entry.timer != null ) {
+            timers.deschedule(entry.timer);
+            entry.timer = null;
+        }
+    }
+
+    /**
+     * Applies buffered reads to the eviction policy. Must be called while holding the maintenance lock.
+     */
+    private void drainReadBuffer() {
+        CacheEntry<K,V> entry;
+
+        while( (entry = readBuffer.poll()) != null ) {
+            readBufferSize.decrementAndGet();
+            if( entry.node != null ) {
+                policy.access(entry.node);
+            }
+        }
+    }
+
+    /**
+     * Records a read of the specified entry for the eviction policy without blocking. Reads
+     * are dropped rather than buffered if the buffer is full.
+     * @param entry the entry that was read
+     */
+    private void recordRead(CacheEntry<K,V> entry) {
+        int buffered = readBufferSize.get();
+
+        if( buffered < READ_BUFFER_MAXIMUM ) {
+            readBuffer.offer(entry);
+            buffered = readBufferSize.incrementAndGet();
+        }
+        if( buffered >= READ_BUFFER_DRAIN_THRESHOLD && maintenanceLock.tryLock() ) {
+            try {
+                drainReadBuffer();
+            }
+            finally {
+                maintenanceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the specified value may be handed out of the cache.
+     * @param item the value to check
+     * @return true if the value is not <code>null</code> and, if it is a {@link CachedItem}, still valid
+     */
+    static private boolean isValid(Object item) {
+        if( item == null ) {
+            return false;
+        }
+        if( item instanceof CachedItem ) {
+            return ((CachedItem)item).isValidForCache();
+        }
+        return true;
+    }
+
+    /**
+     * Starts a background reload of the specified entry unless one has already been started.
+     * The reloaded value only replaces the entry if the entry has not been changed in the
+     * meantime. If the loader finds nothing, the entry is removed. If the loader fails, the
+     * current value stays in place and a later read will try again.
+     * @param key the key under which the entry is stored
+     * @param ref the entry to refresh
+     * @param loader the loader for a fresh value
+     */
+    private void refresh(final K key, final CacheEntry<K,V> ref, final CacheLoader<V> loader) {
+        Executor executor = refreshExecutor;
+        Runnable task;
+
+        if( unflushed(key) != null || !ref.startRefresh() ) {
+            return;
+        }
+        task = new Runnable() {
+            public void run() {
+                try {
+                    V item = load(loader);
+
+                    if( item == null ) {
+                        if( cache.remove(key, ref) ) {
+                            afterRemove(ref);
+                        }
+                    }
+                    else {
+                        CacheEntry<K,V> entry = newEntry(key, item, -1L);
+
+                        if( cache.replace(key, ref, entry) ) {
+                            afterWrite(entry, ref);
+                        }
+                    }
+                }
+                catch( Throwable t ) {
+                    logger.warn("Failed to refresh " + key + ": " + t.getMessage());
+                    ref.abandonRefresh();
+                }
+            }
+        };
+        try {
+            if( executor == null ) {
+                DaseinUtilTasks.execute(task);
+            }
+            else {
+                executor.execute(task);
+            }
+        }
+        catch( RejectedExecutionException e ) {
+            logger.warn("Unable to schedule refresh of " + key + ": " + e.getMessage());
+            ref.abandonRefresh();
+        }
+    }
+
+    /**
+     * Publishes the statistics of this cache over JMX through the platform MBean server, under
+     * the object name <code>org.dasein.util:type=ConcurrentCache,name=<i>name</i></code>.
+     * @param name the name identifying this cache
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    public @Nonnull ObjectName registerMBean(@Nonnull String name) {
+        ObjectName objectName = CacheStatsRecorder.register("ConcurrentCache", name, null, stats);
+
+        statsName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Withdraws the statistics of this cache from JMX if they were published with {@link #registerMBean(String)}.
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    public void unregisterMBean() {
+        ObjectName objectName = statsName;
+
+        if( objectName != null ) {
+            statsName = null;
+            CacheStatsRecorder.unregister(objectName);
+        }
+    }
+
+    /**
+     * Attaches this cache to an invalidation bus. Every key this cache explicitly puts, replaces
+     * or removes is then announced on the specified channel, and this cache drops the keys
+     * announced on that channel by other caches. Values loaded into an absent key are not
+     * announced, since no other cache can hold a newer copy.
+     * @param bus the bus to attach to, or <code>null</code> to detach from the current bus
+     * @param channel the channel shared by caches holding the same values
+     */
+    public void setInvalidationBus(@Nullable InvalidationBus bus, @Nonnull String channel) {
+        InvalidationBus current = invalidationBus;
+
+        if( current != null ) {
+            current.unsubscribe(invalidationListener);
+        }
+        invalidationChannel = channel;
+        invalidationBus = bus;
+        if( bus != null ) {
+            bus.subscribe(channel, invalidationListener);
+        }
+    }
+
+    /**
+     * Gives this cache a second tier of storage outside of the Java heap, using segments of
+     * {@link #DEFAULT_OFF_HEAP_SEGMENT_SIZE} bytes.
+     * @param maximumBytes the maximum number of bytes held off the heap
+     * @param serializer converts values to and from bytes
+     * @throws IllegalStateException the cache is not bounded by size or weight
+     * @see #setOffHeapStorage(long, int, Serializer)
+     */
+    public void setOffHeapStorage(long maximumBytes, @Nonnull Serializer<V> serializer) {
+        setOffHeapStorage(maximumBytes, DEFAULT_OFF_HEAP_SEGMENT_SIZE, serializer);
+    }
+
+    /**
+     * Gives this cache a second tier of storage outside of the Java heap. Entries evicted from
+     * the heap to keep the cache within its bounds are serialized into direct byte buffers
+     * instead of being dropped, and are moved back onto the heap the next time they are read.
+     * Off-heap storage is filled segment by segment and, once full, recycles its oldest segment,
+     * dropping the values in it. Values larger than a segment are not kept. Off-heap storage
+     * should be set before the cache is used; it holds only bounded caches, because entries of
+     * an unbounded cache are dropped by the garbage collector rather than evicted.
+     * @param maximumBytes the maximum number of bytes held off the heap
+     * @param segmentSize the size of each segment of off-heap storage
+     * @param serializer converts values to and from bytes
+     * @throws IllegalStateException the cache is not bounded by size or weight
+     */
+    public void setOffHeapStorage(long maximumBytes, int segmentSize, @Nonnull Serializer<V> serializer) {
+        if( policy == null ) {
+            throw new IllegalStateException("Off-heap storage requires a cache bounded by size or weight");
+        }
+        offHeap = new OffHeapStore<K,V>(maximumBytes, segmentSize, serializer);
+    }
+
+    /**
+     * Sets how long the first single-key miss through {@link #getOrLoadBatched(Object, BulkCacheLoader)}
+     * waits for concurrent misses to join its batch. A short window of a few milliseconds trades a
+     * little latency on a miss for far fewer round-trips to the backing store under load.
+     * @param window the batch window, or <code>null</code> to load every miss on its own
+     */
+    public void setBatchWindow(@Nullable TimePeriod<?> window) {
+        batchWindowNanos = Math.max(0L, toNanos(window));
+    }
+
+    /**
+     * Sets the number of keys at which a micro-batch is loaded without waiting out the batch window.
+     * @param size the maximum batch size
+     * @throws IllegalArgumentException the size is less than 1
+     */
+    public void setMaximumBatchSize(int size) {
+        if( size < 1 ) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + size);
+        }
+        maximumBatchSize = size;
+    }
+
+    /**
+     * Sets how long after its last read an entry expires. The period applies to entries
+     * written after this call.
+     * @param period the idle period after which entries expire, or <code>null</code> for no idle expiry
+     */
+    public void setExpireAfterAccess(@Nullable TimePeriod<?> period) {
+        expireAfterAccessNanos = toNanos(period);
+    }
+
+    /**
+     * Sets how long after being written an entry expires. The period applies to entries
+     * written after this call.
+     * @param period the age after which entries expire, or <code>null</code> for no age-based expiry
+     */
+    public void setExpireAfterWrite(@Nullable TimePeriod<?> period) {
+        expireAfterWriteNanos = toNanos(period);
+    }
+
+    /**
+     * Sets how long after being written an entry becomes due for a background refresh the
+     * next time it is read through {@link #getOrLoad(Object, CacheLoader)}. The period applies
+     * to entries written after this call.
+     * @param period the age after which entries are refreshed, or <code>null</code> for no refresh
+     */
+    public void setRefreshAfterWrite(@Nullable TimePeriod<?> period) {
+        refreshAfterWriteNanos = toNanos(period);
+    }
+
+    /**
+     * Sets the executor on which background refreshes run.
+     * @param executor the executor for refreshes, or <code>null</code> to use {@link DaseinUtilTasks}
+     */
+    public void setRefreshExecutor(@Nullable Executor executor) {
+        refreshExecutor = executor;
+    }
+
+    /**
+     * Puts the cache in write-behind mode, writing in batches of {@link #DEFAULT_WRITE_BATCH_SIZE} keys
+     * and holding back updates once {@link #DEFAULT_MAXIMUM_PENDING_WRITES} keys await writing.
+     * @param writer the writer for the persistent data store, or <code>null</code> to leave write-behind mode
+     * @param delay the longest time an update waits to be written while the store is available
+     * @throws IllegalArgumentException the cache is entering write-behind mode and the delay is not positive
+     * @see #setWriteBehind(BulkCacheWriter, TimePeriod, int, int)
+     */
+    public void setWriteBehind(@Nullable BulkCacheWriter<K,V> writer, @Nullable TimePeriod<?> delay) {
+        setWriteBehind(writer, delay, DEFAULT_WRITE_BATCH_SIZE, DEFAULT_MAXIMUM_PENDING_WRITES);
+    }
+
+    /**
+     * Puts the cache in write-behind mode, making the cache responsible for writing its updates back to
+     * the persistent data store. Every put, replace or remove then marks its key dirty, and dirty keys are
+     * written through the specified writer from the background: as soon as a full batch is dirty and
+     * otherwise after at most the specified delay. A key updated several times before it is written is
+     * only written once, with its latest value. While a key is dirty, loads of the key use its pending
+     * value instead of asking the store. Once the maximum number of keys are dirty, because the store
+     * cannot keep up or is unavailable, updates of keys that are not already dirty wait for a write to
+     * make room. Dirty keys are written when the application is shut down through {@link PoolTerminator},
+     * and may be written at any other time with {@link #flush()}. Values loaded from the store and
+     * entries evicted or expired from the cache are never written.
+     * @param writer the writer for the persistent data store, or <code>null</code> to leave write-behind
+     * mode after writing any dirty keys
+     * @param delay the longest time an update waits to be written while the store is available
+     * @param batchSize the largest number of keys written in a single batch
+     * @param maximumPending the number of dirty keys at which updates of further keys wait
+     * @throws IllegalArgumentException the cache is entering write-behind mode and the delay is not positive,
+     * or the batch size or maximum is less than 1
+     */
+    public void setWriteBehind(@Nullable BulkCacheWriter<K,V> writer, @Nullable TimePeriod<?> delay, int batchSize, int maximumPending) {
+        WriteBehind<K,V> current = writeBehind;
+
+        if( writer == null ) {
+            writeBehind = null;
+        }
+        else {
+            long delayNanos = toNanos(delay);
+
+            if( delayNanos <= 0L ) {
+                throw new IllegalArgumentException("Write-behind delay must be positive: " + delay);
+            }
+            if( batchSize < 1 ) {
+                throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+            }
+            if( maximumPending < 1 ) {
+                throw new IllegalArgumentException("Maximum pending writes must be at least 1: " + maximumPending);
+            }
+            writeBehind = new WriteBehind<K,V>(writer, delayNanos, batchSize, maximumPending);
+        }
+        if( current != null && !current.close() ) {
+            logger.warn("Unable to write " + current.size() + " cached items to the store when leaving write-behind mode");
+        }
+    }
+
+    /**
+     * Writes every update awaiting write-behind to the persistent data store and waits for the writes
+     * to complete.
+     * @return true if every update was written, false if the writer failed and updates remain pending
+     */
+    public boolean flush() {
+        WriteBehind<K,V> wb = writeBehind;
+
+        return (wb == null || wb.flush());
+    }
+
+    /**
+     * @return the number of keys whose updates await write-behind
+     */
+    public int getPendingWriteCount() {
+        WriteBehind<K,V> wb = writeBehind;
+
+        return (wb == null ? 0 : wb.size());
+    }
+
+    /**
+     * @return the approximate number of elements currently in the cache, including any that have
+     * been collected or invalidated but not yet purged
      */
     public int size() {
-      //  synchronized( this ) {
-            return cache.size();
-       // }
+        return cache.size();
     }
 
     /**
@@ -425,16 +1856,23 @@ public class ConcurrentCache<K,V> implements ConcurrentMap<K,V> {
     public Collection<V> values() {
         ArrayList<V> values = new ArrayList<V>();
         
-       // synchronized( this ) {
-            for( K key: keySet() ) {
-                if( containsKey(key) ) {
-                    values.add(get(key));
-                }
+        for( Map.Entry<K,CacheEntry<K,V>> entry : cache.entrySet() ) {
+            V item = resolve(entry.getKey(), entry.getValue());
+
+            if( item != null ) {
+                values.add(item);
             }
-            return values;
-       // }
+        }
+        return values;
     }
     
+    static private long toNanos(@Nullable TimePeriod<?> period) {
+        if( period == null ) {
+            return -1L;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(period.convertTo(TimePeriod.MILLISECOND).longValue());
+    }
+
     public String toString() {
         return (super.toString() + ": " + cache.toString());
     }
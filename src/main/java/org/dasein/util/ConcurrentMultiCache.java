@@ -20,15 +20,35 @@
 /* Copyright (c) 2005 Valtira Corporation, All Rights Reserved */
 package org.dasein.util;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * <p>
@@ -39,6 +59,8 @@ import java.util.Map;
  * <p>
  *   This class is backed up by multiple @{link ConcurrentCache} instances (one for
  *   each unique key) and thus behaves in accordance with the rules for that object.
+ *   Numeric unique keys may instead be indexed by a {@link LongKeyedConcurrentCache},
+ *   which holds its keys as primitive values; see {@link #setLongKeyed(String)}.
  *   If, for example, you wanted to create a memory cache of employees:
  * </p>
  * <p>
@@ -63,6 +85,17 @@ import java.util.Map;
  *   on the employee ID or email address, respectively.
  * </p>
  * <p>
+ *   Objects are not indexed under attributes whose value is <code>null</code>.
+ * </p>
+ * <p>
+ *   No global lock is taken when caching or releasing. Each object is claimed atomically
+ *   under the first unique identifier for which it has a value, so that threads caching
+ *   equivalent objects at the same time all agree on a single instance before indexing it
+ *   under the remaining identifiers. Once indexed, the claim is validated; if the object was
+ *   released or replaced in the meantime, its secondary entries are backed out and the
+ *   operation is retried. Writes to unrelated objects therefore never contend with one another.
+ * </p>
+ * <p>
  *   Last modified: $Date: 2006/08/31 18:46:17 $
  * </p>
  * @version $Revision: 1.11 $
@@ -70,10 +103,27 @@ import java.util.Map;
  * @param <T> the type for objects being stored in instances of the cache
  */
 public class ConcurrentMultiCache<T> {
+    /**
+     * Identifies a multi-cache snapshot file.
+     */
+    static private final int SNAPSHOT_MAGIC   = 0x44534d43;
+    /**
+     * The version of the snapshot format written by this class.
+     */
+    static private final int SNAPSHOT_VERSION = 1;
+
     /**
      * A mapping of the unique identifer names to concurrent caches.
      */
-    private HashMap<String,ConcurrentCache<Object,T>> caches = new HashMap<String,ConcurrentCache<Object,T>>();
+    private HashMap<String,CacheIndex<T>>             caches = new HashMap<String,CacheIndex<T>>();
+    /**
+     * Extractors supplied for specific attributes, taking precedence over reflective lookup.
+     */
+    private final ConcurrentHashMap<String,KeyExtractor<? super T>> customExtractors = new ConcurrentHashMap<String,KeyExtractor<? super T>>();
+    /**
+     * The extractors resolved for each class of item seen, by attribute name.
+     */
+    private final ConcurrentHashMap<Class<?>,ConcurrentHashMap<String,KeyExtractor<? super T>>> extractors = new ConcurrentHashMap<Class<?>,ConcurrentHashMap<String,KeyExtractor<? super T>>>();
     /**
      * The ordered list of unique identifiers supported by this cache.
      */
@@ -82,6 +132,45 @@ public class ConcurrentMultiCache<T> {
      * The class being managed by this cache, if any.
      */
     private Class<T>                                  target = null;
+    /**
+     * Coordinates loads so that only one load per attribute/value pair is in flight at a time.
+     */
+    private final LoadCoalescer<Map.Entry<String,Object>,T> loads = new LoadCoalescer<Map.Entry<String,Object>,T>();
+    /**
+     * The bus on which releases from this cache are announced to other caches, <code>null</code> if none.
+     */
+    private volatile InvalidationBus                  invalidationBus;
+    /**
+     * The channel of the invalidation bus to which this cache subscribes.
+     */
+    private volatile String                           invalidationChannel;
+    /**
+     * Releases the items invalidated by other caches on the invalidation bus, under every unique identifier.
+     */
+    private final InvalidationListener                invalidationListener = new InvalidationListener() {
+        public void invalidate(@Nonnull Collection<Invalidation> invalidations) {
+            for( Invalidation invalidation : invalidations ) {
+                CacheIndex<T> cache = (invalidation.getAttribute() == null ? null : caches.get(invalidation.getAttribute()));
+                T item = (cache == null ? null : cache.peek(invalidation.getKey()));
+
+                if( item != null ) {
+                    releaseLocally(item);
+                }
+            }
+        }
+    };
+    /**
+     * The idle period after which items expire, <code>null</code> for no idle expiry.
+     */
+    private volatile TimePeriod<?>                    expireAfterAccess;
+    /**
+     * The age after which items expire, <code>null</code> for no age-based expiry.
+     */
+    private volatile TimePeriod<?>                    expireAfterWrite;
+    /**
+     * The object names under which the statistics of each index are registered over JMX, if any.
+     */
+    private final ConcurrentLinkedQueue<ObjectName>   statsNames = new ConcurrentLinkedQueue<ObjectName>();
 
     /**
      * Constructs a concurrent multi-cache that caches for unique keys specified by the
@@ -94,9 +183,7 @@ public class ConcurrentMultiCache<T> {
         target = cls;
         for( String attr : attrs ) {
             if( !caches.containsKey(attr) ) {
-                ConcurrentCache<Object,T> cache = new ConcurrentCache<Object,T>();
-
-                caches.put(attr, cache);
+                caches.put(attr, CacheIndex.forObjects(new ConcurrentCache<Object,T>()));
                 order.add(attr);
             }
         }
@@ -111,9 +198,7 @@ public class ConcurrentMultiCache<T> {
         super();
         for( String attr : attrs ) {
             if( !caches.containsKey(attr) ) {
-                ConcurrentCache<Object,T> cache = new ConcurrentCache<Object,T>();
-
-                caches.put(attr, cache);
+                caches.put(attr, CacheIndex.forObjects(new ConcurrentCache<Object,T>()));
                 order.add(attr);
             }
         }
@@ -130,9 +215,7 @@ public class ConcurrentMultiCache<T> {
         target = cls;
         for( String attr : attrs ) {
             if( !caches.containsKey(attr) ) {
-                ConcurrentCache<Object,T> cache = new ConcurrentCache<Object,T>();
-
-                caches.put(attr, cache);
+                caches.put(attr, CacheIndex.forObjects(new ConcurrentCache<Object,T>()));
                 order.add(attr);
             }
         }
@@ -147,20 +230,66 @@ public class ConcurrentMultiCache<T> {
      * @return whatever item is in the cache after this operation
      */
     public T cache(T item) {
+        return cache(item, null);
+    }
+
+    /**
+     * Places the specified item in the cache with the specified time to live. It will not
+     * replace an existing item in the cache. Instead, if an item already exists in the cache,
+     * it will make sure that item is cached across all identifiers with the specified time
+     * to live and then return the cached item.
+     * @param item the item to be cached
+     * @param ttl the time after which the item expires, or <code>null</code> for the cache default
+     * @return whatever item is in the cache after this operation
+     */
+    public T cache(T item, @Nullable TimePeriod<?> ttl) {
         HashMap<String,Object> keys;
 
         if( item == null ) {
             throw new NullPointerException("Multi caches may not have null values.");
         }
-        keys = getKeys(item);
-        synchronized( this ) {
-            item = getCurrent(item);
-            for( String key : caches.keySet() ) {
-                ConcurrentCache<Object,T> cache = caches.get(key);
+        keys = getIndexKeys(item);
+        while( true ) {
+            String claim = null;
+            T current;
+
+            for( String key : order ) {
+                if( keys.get(key) != null ) {
+                    claim = key;
+                    break;
+                }
+            }
+            if( claim == null ) {
+                return item;
+            }
+            CacheIndex<T> primary = caches.get(claim);
+            Object id = keys.get(claim);
+
+            current = getCurrent(keys);
+            if( current == null ) {
+                current = primary.putIfAbsent(id, item, ttl);
+                if( current == null ) {
+                    return item;
+                }
+            }
+            for( String key : order ) {
+                Object ob = keys.get(key);
 
-                cache.put(keys.get(key), item);
+                if( ob != null ) {
+                    caches.get(key).put(ob, current, ttl);
+                }
+            }
+            if( primary.peek(id) == current ) {
+                return current;
+            }
+            // released or replaced while being indexed, so back out and try again
+            for( String key : order ) {
+                Object ob = keys.get(key);
+
+                if( ob != null ) {
+                    caches.get(key).remove(ob, current);
+                }
             }
-            return item;
         }
     }
 
@@ -246,15 +375,19 @@ public class ConcurrentMultiCache<T> {
      * Seeks the item from the cache that is identified by the specified key having
      * the specified value. If no match is found, the specified loader will be called
      * with the specified arguments in order to place an instantiated item into the cache.
+     * Only one load per key/value pair is ever in flight: threads that miss on the same
+     * key/value pair while another thread is loading it wait for that load and share its
+     * result, or its exception, regardless of the loader and arguments they passed.
      * @param key the name of the unique identifier attribute whose value you have
      * @param val the value of the unique identifier that identifiers the desired item
      * @param loader a loader to load the desired object from the persistence store if it
      * is not in memory
      * @param args any arguments to pass to the loader
      * @return the object that matches the specified key/value
+     * @throws CacheManagementException the loader failed with a checked exception
      */
-    public T find(String key, Object val, CacheLoader<T> loader, Object ... args) {
-        ConcurrentCache<Object,T> cache = caches.get(key);
+    public T find(String key, Object val, final CacheLoader<T> loader, final Object ... args) {
+        final CacheIndex<T> cache = caches.get(key);
         T item;
 
         if( val instanceof BigDecimal ) {
@@ -262,47 +395,174 @@ public class ConcurrentMultiCache<T> {
         }
         item = cache.get(val);
         if( item == null  && loader != null ) {
-            item = loader.load(args);
-            if( item == null ) {
-                return null;
-            }
-            synchronized( this ) {
-                item = getCurrent(item);
-                put(item);
-            }
+            final Object v = val;
+
+            item = loads.load(new AbstractMap.SimpleImmutableEntry<String,Object>(key, val), new Callable<T>() {
+                public T call() {
+                    CacheStatsRecorder stats = cache.getStatsRecorder();
+                    long start = System.nanoTime();
+                    T item = cache.peek(v);
+
+                    if( item != null ) {
+                        return item;
+                    }
+                    try {
+                        item = loader.load(args);
+                    }
+                    catch( RuntimeException e ) {
+                        stats.recordLoadFailure(System.nanoTime() - start);
+                        throw e;
+                    }
+                    stats.recordLoadSuccess(System.nanoTime() - start);
+                    if( item == null ) {
+                        return null;
+                    }
+                    return cache(item);
+                }
+            });
         }
         return item;
     }
 
     /**
-     * Provides the current version of the specified item stored in the cache.
-     * If no item matches the passed in item, then the passed in item is returned
-     * but not cached. This better be called from a synchronized block!
-     * @param item the item being sought
-     * @return the currently cached object that is equivalent to the passed in object
+     * Seeks the items from the cache identified by the specified key having each of the
+     * specified values. Items already in memory are resolved in a single pass, and every
+     * missing item is then loaded through one call to the specified bulk loader, which is
+     * handed the missing values of the unique identifier. Values already being loaded by
+     * another thread are not loaded again; their items are awaited instead. You may pass
+     * in <code>null</code> for the loader, in which case only objects in active memory are
+     * returned.
+     * @param key the name of the unique identifier attribute whose values you have
+     * @param vals the values of the unique identifier that identify the desired items
+     * @param loader a bulk loader to load the missing objects from the persistence store
+     * @return the matching objects mapped by the values passed in, in the order passed in;
+     * values matching no object are left out
+     * @throws CacheManagementException the loader failed with a checked exception
      */
-    private T getCurrent(T item) {
-        for( String key: order ) {
-            ConcurrentCache<Object,T> cache = caches.get(key);
-            Object val = getValue(key, item);
-            T tmp;
+    public @Nonnull Map<Object,T> findAll(String key, @Nonnull Collection<?> vals, @Nullable final BulkCacheLoader<Object,T> loader) {
+        final CacheIndex<T> cache = caches.get(key);
+        LinkedHashMap<Object,T> items = new LinkedHashMap<Object,T>();
+        ArrayList<Map.Entry<String,Object>> misses = new ArrayList<Map.Entry<String,Object>>();
+
+        for( Object val : vals ) {
+            Object v = (val instanceof BigDecimal ? ((BigDecimal)val).longValue() : val);
+            T item = (v == null ? null : cache.get(v));
 
-            if( val instanceof BigDecimal ) {
-                val = ((BigDecimal)val).longValue();
+            if( item != null ) {
+                items.put(val, item);
             }
-            tmp = cache.get(val);
-            if( tmp != null ) {
-                if( tmp instanceof CachedItem ) {
-                    if( ((CachedItem)tmp).isValidForCache() ) {
-                        return tmp;
+            else if( v != null && loader != null ) {
+                misses.add(new AbstractMap.SimpleImmutableEntry<String,Object>(key, v));
+            }
+        }
+        if( misses.isEmpty() ) {
+            return items;
+        }
+        Map<Map.Entry<String,Object>,T> loaded = loads.loadAll(misses, new LoadCoalescer.BatchLoad<Map.Entry<String,Object>,T>() {
+            public Map<Map.Entry<String,Object>,T> call(Collection<Map.Entry<String,Object>> entries) {
+                HashMap<Map.Entry<String,Object>,T> results = new HashMap<Map.Entry<String,Object>,T>();
+                ArrayList<Object> missing = new ArrayList<Object>();
+
+                for( Map.Entry<String,Object> entry : entries ) {
+                    T item = cache.peek(entry.getValue());
+
+                    if( item != null ) {
+                        results.put(entry, item);
+                    }
+                    else {
+                        missing.add(entry.getValue());
                     }
                 }
-                else {
-                    return tmp;
+                if( !missing.isEmpty() ) {
+                    CacheStatsRecorder stats = cache.getStatsRecorder();
+                    long start = System.nanoTime();
+                    Map<Object,T> found;
+
+                    try {
+                        found = loader.loadAll(missing);
+                    }
+                    catch( RuntimeException e ) {
+                        stats.recordLoadFailure(System.nanoTime() - start);
+                        throw e;
+                    }
+                    stats.recordLoadSuccess(System.nanoTime() - start);
+
+                    for( Map.Entry<String,Object> entry : entries ) {
+                        T item = (results.containsKey(entry) ? null : found.get(entry.getValue()));
+
+                        if( item != null ) {
+                            results.put(entry, cache(item));
+                        }
+                    }
                 }
+                return results;
+            }
+        });
+        LinkedHashMap<Object,T> ordered = new LinkedHashMap<Object,T>();
+
+        for( Object val : vals ) {
+            Object v = (val instanceof BigDecimal ? ((BigDecimal)val).longValue() : val);
+            T item = items.get(val);
+
+            if( item == null && v != null ) {
+                item = loaded.get(new AbstractMap.SimpleImmutableEntry<String,Object>(key, v));
+            }
+            if( item != null ) {
+                ordered.put(val, item);
             }
         }
-        return item;
+        return ordered;
+    }
+
+    /**
+     * @return the number of {@link #find(String, Object, CacheLoader, Object...)} misses that waited
+     * on a load already in flight rather than running their own
+     */
+    public long getCoalescedLoadCount() {
+        return loads.getCoalescedCount();
+    }
+
+    /**
+     * @return the number of loads executed by {@link #find(String, Object, CacheLoader, Object...)},
+     * counting each batch loaded by {@link #findAll(String, Collection, BulkCacheLoader)} once
+     */
+    public long getLoadCount() {
+        return loads.getLoadCount();
+    }
+
+    /**
+     * Provides the item currently cached under any of the specified index keys, checking
+     * the unique identifiers in order.
+     * @param keys the normalized index keys of the item being sought
+     * @return the currently cached object sharing one of those keys, or <code>null</code> if none
+     */
+    private @Nullable T getCurrent(Map<String,Object> keys) {
+        for( String key: order ) {
+            Object val = keys.get(key);
+            T tmp = (val == null ? null : caches.get(key).peek(val));
+
+            if( tmp != null ) {
+                return tmp;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Provides the values for all of the unique identifiers of the specified item in the form
+     * under which they are indexed.
+     * @param item the item whose key values are being sought
+     * @return a mapping of key names to index keys
+     */
+    private HashMap<String,Object> getIndexKeys(T item) {
+        HashMap<String,Object> keys = getKeys(item);
+
+        for( Map.Entry<String,Object> entry : keys.entrySet() ) {
+            if( entry.getValue() instanceof BigDecimal ) {
+                entry.setValue(((BigDecimal)entry.getValue()).longValue());
+            }
+        }
+        return keys;
     }
 
     /**
@@ -319,104 +579,265 @@ public class ConcurrentMultiCache<T> {
         return keys;
     }
 
+    /**
+     * Provides the statistics of the whole cache, summed across the indexes of every unique
+     * identifier. An item dropped from every index counts once per index.
+     * @return a snapshot of the statistics of the cache
+     */
+    public @Nonnull CacheStats getStats() {
+        CacheStats stats = null;
+
+        for( String key : order ) {
+            CacheStats s = caches.get(key).getStats();
+
+            stats = (stats == null ? s : stats.plus(s));
+        }
+        return stats;
+    }
+
+    /**
+     * Provides the statistics of the index for the specified unique identifier, including the
+     * lookups and loads made through {@link #find(String, Object, CacheLoader, Object...)} and
+     * {@link #findAll(String, Collection, BulkCacheLoader)} for that identifier.
+     * @param attr the name of the unique identifier attribute
+     * @return a snapshot of the statistics of that index
+     * @throws CacheManagementException the attribute is not a unique identifier of this cache
+     */
+    public @Nonnull CacheStats getStats(String attr) {
+        CacheIndex<T> cache = caches.get(attr);
+
+        if( cache == null ) {
+            throw new CacheManagementException("No such unique identifier: " + attr);
+        }
+        return cache.getStats();
+    }
+
     public Class<T> getTarget() {
         return target;
     }
 
     /**
      * Provides the actual value for the specified unique ID key for the specified object.
+     * The accessor for each attribute is resolved once per class of item, so that extracting
+     * a value afterwards is a single direct call.
      * @param key the name of the unique identifier
      * @param item the object who's unique identifier value is sought
      * @return the unique identifier for the object's attribute matching the key
      */
     private Object getValue(String key, T item) {
-        Class cls = item.getClass();
+        Class<?> cls = item.getClass();
+        ConcurrentHashMap<String,KeyExtractor<? super T>> resolved = extractors.get(cls);
+        KeyExtractor<? super T> extractor;
 
-        while( true ) {
-            try {
-                Field f = cls.getDeclaredField(key);
-                int m = f.getModifiers();
+        if( resolved == null ) {
+            ConcurrentHashMap<String,KeyExtractor<? super T>> current;
 
-                if( Modifier.isTransient(m) || Modifier.isStatic(m) ) {
-                    return null;
-                }
-                f.setAccessible(true);
-                return f.get(item);
+            resolved = new ConcurrentHashMap<String,KeyExtractor<? super T>>(customExtractors);
+            current = extractors.putIfAbsent(cls, resolved);
+            if( current != null ) {
+                resolved = current;
             }
-            catch( Exception e ) {
-                Class[] params = new Class[0];
-                String mname;
+        }
+        extractor = resolved.get(key);
+        if( extractor == null ) {
+            extractor = ReflectiveKeyExtractor.resolve(cls, key);
+            resolved.put(key, extractor);
+        }
+        return extractor.extract(item);
+    }
 
-                mname = "get" + key.substring(0,1).toUpperCase() + key.substring(1);
-                try {
-                    Method method = cls.getDeclaredMethod(mname, params);
-                    Object[] args = new Object[0];
+    /**
+     * Releases the specified item from the cache. If it is still in the persistent
+     * store, it will be retrieved back into the cache on next query. Otherwise,
+     * subsequent attempts to search for it in the cache will result in <code>null</code>.
+     * @param item the item to be released from the cache.
+     */
+    public void release(T item) {
+        HashMap<String,Object> keys = releaseLocally(item);
+        InvalidationBus bus = invalidationBus;
 
-                    return method.invoke(item, args);
-                }
-                catch( IllegalAccessException e2 ) {
-                    // ignore
-                }
-                catch( SecurityException e2 ) {
-                    // ignore
-                }
-                catch( NoSuchMethodException e2 ) {
-                    // ignore
-                }
-                catch( IllegalArgumentException e2 ) {
-                    // ignore
-                }
-                catch( InvocationTargetException e2 ) {
-                    // ignore
-                }
-                cls = cls.getSuperclass();
-                if( cls == null || cls.getName().getClass().equals(Object.class.getName()) ) {
-                    throw new CacheManagementException("No such property: " + key);
+        if( bus != null ) {
+            ArrayList<Invalidation> invalidations = new ArrayList<Invalidation>();
+
+            for( String key : order ) {
+                Object val = keys.get(key);
+
+                if( val != null ) {
+                    invalidations.add(new Invalidation(invalidationChannel, key, val));
                 }
             }
+            bus.publish(invalidationListener, invalidations);
         }
     }
 
     /**
-     * Places the specified item into the cache regardless of current cache state.
-     * @param item the item being placed into the cache
+     * Releases the specified item from every index of this cache without announcing the release
+     * on the invalidation bus.
+     * @param item the item to be released from the cache
+     * @return the index keys of the item
      */
-    private void put(T item) {
-        HashMap<String,Object> keys;
+    private HashMap<String,Object> releaseLocally(T item) {
+        HashMap<String,Object> keys = getIndexKeys(item);
 
-        if( item == null ) {
-            throw new NullPointerException("Multi caches may not have null values.");
+        for( String key : order ) {
+            Object val = keys.get(key);
+
+            if( val != null ) {
+                caches.get(key).removeLocally(val);
+            }
         }
-        keys = getKeys(item);
-        synchronized( this ) {
-            for( String key : caches.keySet() ) {
-                ConcurrentCache<Object,T> cache = caches.get(key);
-                Object ob = keys.get(key);
+        return keys;
+    }
+
+    /**
+     * Reads a snapshot written by {@link #saveSnapshot(File, Serializer)} and caches every object
+     * in it, so that a freshly started cache begins warm. The file is read sequentially, and the
+     * objects are then deserialized and indexed under all unique identifiers in parallel. Objects
+     * already in the cache take precedence over the equivalent objects in the snapshot.
+     * @param file the snapshot file
+     * @param serializer converts the stored bytes back into objects
+     * @return the number of objects read from the snapshot
+     * @throws IOException the file could not be read or is not a snapshot of a cache with these unique identifiers
+     * @throws CacheManagementException an object could not be deserialized
+     */
+    public int loadSnapshot(@Nonnull File file, @Nonnull final Serializer<T> serializer) throws IOException {
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+        try {
+            int count;
+
+            if( in.readInt() != SNAPSHOT_MAGIC ) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            if( in.readInt() != SNAPSHOT_VERSION ) {
+                throw new IOException("Unsupported cache snapshot version in " + file);
+            }
+            count = in.readInt();
+            if( count != order.size() ) {
+                throw new IOException("Snapshot " + file + " does not match the unique identifiers " + order);
+            }
+            for( String key : order ) {
+                if( !key.equals(in.readUTF()) ) {
+                    throw new IOException("Snapshot " + file + " does not match the unique identifiers " + order);
+                }
+            }
+            count = in.readInt();
+            records.ensureCapacity(count);
+            for( int i=0; i<count; i++ ) {
+                byte[] bytes = new byte[in.readInt()];
+
+                in.readFully(bytes);
+                records.add(bytes);
+            }
+        }
+        finally {
+            in.close();
+        }
+        int partitions = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, records.size() / 1000));
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int chunk = (records.size() + partitions - 1) / partitions;
+
+        for( int i=0; i<records.size(); i+= chunk ) {
+            final List<byte[]> partition = records.subList(i, Math.min(records.size(), i + chunk));
 
-                if( ob instanceof BigDecimal ) {
-                    ob = ((BigDecimal)ob).longValue();
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for( byte[] bytes : partition ) {
+                        cache(serializer.deserialize(bytes));
+                    }
+                    return null;
                 }
-                cache.put(ob, item);
+            });
+        }
+        if( tasks.size() == 1 ) {
+            try {
+                tasks.get(0).call();
+            }
+            catch( RuntimeException e ) {
+                throw e;
+            }
+            catch( Exception e ) {
+                throw new CacheManagementException(e);
             }
         }
+        else if( !tasks.isEmpty() ) {
+            try {
+                for( Future<Object> result : DaseinUtilTasks.invokeAll(tasks) ) {
+                    result.get();
+                }
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new CacheManagementException(e);
+            }
+            catch( ExecutionException e ) {
+                if( e.getCause() instanceof RuntimeException ) {
+                    throw (RuntimeException)e.getCause();
+                }
+                throw new CacheManagementException(e.getCause());
+            }
+        }
+        return records.size();
     }
 
     /**
-     * Releases the specified item from the cache. If it is still in the persistent
-     * store, it will be retrieved back into the cache on next query. Otherwise,
-     * subsequent attempts to search for it in the cache will result in <code>null</code>.
-     * @param item the item to be released from the cache.
+     * Writes every object currently in the cache to the specified file so that a later instance
+     * of the cache can start warm with {@link #loadSnapshot(File, Serializer)}. The snapshot is a
+     * compressed binary file listing the unique identifiers of the cache followed by each object
+     * in serialized form; index keys are not stored since they are derived again from the objects
+     * on load. The snapshot is written to a temporary file first and then moved into place, so an
+     * existing snapshot is never left half written.
+     * @param file the snapshot file
+     * @param serializer converts objects to bytes
+     * @return the number of objects written
+     * @throws IOException the file could not be written
+     * @throws CacheManagementException an object could not be serialized
      */
-    public void release(T item) {
-        HashMap<String,Object> keys = getKeys(item);
-
-        synchronized( this ) {
+    public int saveSnapshot(@Nonnull File file, @Nonnull Serializer<T> serializer) throws IOException {
+        IdentityHashMap<T,Boolean> items = new IdentityHashMap<T,Boolean>();
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out;
+
+        for( String key : order ) {
+            for( T item : caches.get(key).values() ) {
+                items.put(item, Boolean.TRUE);
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(order.size());
             for( String key : order ) {
-                ConcurrentCache<Object,T> cache = caches.get(key);
+                out.writeUTF(key);
+            }
+            out.writeInt(items.size());
+            for( T item : items.keySet() ) {
+                byte[] bytes = serializer.serialize(item);
 
-                cache.remove(keys.get(key));
+                out.writeInt(bytes.length);
+                out.write(bytes);
             }
         }
+        catch( IOException e ) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if( !tmp.renameTo(file) ) {
+            if( !file.delete() || !tmp.renameTo(file) ) {
+                tmp.delete();
+                throw new IOException("Unable to move snapshot into place at " + file);
+            }
+        }
+        return items.size();
     }
 
     /**
@@ -427,11 +848,123 @@ public class ConcurrentMultiCache<T> {
      * in the internal Maps.  Not good.
      */
     public void releaseAll() {
-    	synchronized( this ) {
-    		for (ConcurrentCache<Object,T> cache : caches.values()) {
-    			cache.clear();
-    		}
-    	}
+        for( CacheIndex<T> cache : caches.values() ) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Publishes the statistics of each unique identifier index over JMX through the platform
+     * MBean server, under the object names
+     * <code>org.dasein.util:type=ConcurrentMultiCache,name=<i>name</i>,attribute=<i>attr</i></code>.
+     * @param name the name identifying this cache
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    public void registerMBean(@Nonnull String name) {
+        for( String key : order ) {
+            statsNames.add(CacheStatsRecorder.register("ConcurrentMultiCache", name, key, caches.get(key).getStatsRecorder()));
+        }
+    }
+
+    /**
+     * Withdraws the statistics of this cache from JMX if they were published with {@link #registerMBean(String)}.
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    public void unregisterMBean() {
+        ObjectName objectName;
+
+        while( (objectName = statsNames.poll()) != null ) {
+            CacheStatsRecorder.unregister(objectName);
+        }
+    }
+
+    /**
+     * Attaches this cache to an invalidation bus. Every item released from this cache is then
+     * announced on the specified channel under each of its unique identifiers, and this cache
+     * releases any item matching an identifier announced on that channel by another cache.
+     * Caches on the same channel must share the names of the unique identifiers they have in common.
+     * @param bus the bus to attach to, or <code>null</code> to detach from the current bus
+     * @param channel the channel shared by caches holding the same objects
+     */
+    public void setInvalidationBus(@Nullable InvalidationBus bus, @Nonnull String channel) {
+        InvalidationBus current = invalidationBus;
+
+        if( current != null ) {
+            current.unsubscribe(invalidationListener);
+        }
+        invalidationChannel = channel;
+        invalidationBus = bus;
+        if( bus != null ) {
+            bus.subscribe(channel, invalidationListener);
+        }
+    }
+
+    /**
+     * Sets the extractor used to read the specified unique identifier attribute from cached
+     * items in place of the reflective field or getter lookup. Extractors should be set before
+     * any items are cached.
+     * @param attr the name of the unique identifier attribute
+     * @param extractor the extractor for that attribute
+     * @throws CacheManagementException the attribute is not a unique identifier of this cache
+     */
+    public void setKeyExtractor(String attr, KeyExtractor<? super T> extractor) {
+        if( !caches.containsKey(attr) ) {
+            throw new CacheManagementException("No such unique identifier: " + attr);
+        }
+        customExtractors.put(attr, extractor);
+        extractors.clear();
+    }
+
+    /**
+     * Stores the index for the specified numeric unique identifier in a {@link LongKeyedConcurrentCache}
+     * instead of a {@link ConcurrentCache}. The index then keeps its keys as primitive <code>long</code>
+     * values without a boxed key or hash node per item, and a lookup in it allocates nothing beyond
+     * the boxing of the value passed to <code>find()</code>. Every value of the identifier must be a
+     * {@link Number}, compared by its <code>long</code> value; lookups by other values find nothing,
+     * and caching an item with a non-numeric value for the identifier fails. Indexes must be set up
+     * before any items are cached.
+     * @param attr the name of the numeric unique identifier attribute
+     * @throws CacheManagementException the attribute is not a unique identifier of this cache
+     * @throws IllegalStateException items have already been cached under the attribute
+     */
+    public void setLongKeyed(@Nonnull String attr) {
+        CacheIndex<T> current = caches.get(attr);
+        LongKeyedConcurrentCache<T> cache;
+
+        if( current == null ) {
+            throw new CacheManagementException("No such unique identifier: " + attr);
+        }
+        if( !current.isEmpty() ) {
+            throw new IllegalStateException("Items are already cached under " + attr);
+        }
+        cache = new LongKeyedConcurrentCache<T>();
+        cache.setExpireAfterAccess(expireAfterAccess);
+        cache.setExpireAfterWrite(expireAfterWrite);
+        caches.put(attr, CacheIndex.forLongs(cache));
+    }
+
+    /**
+     * Sets how long after its last read through a given attribute an item expires from that
+     * attribute's index. The period applies to items cached after this call.
+     * @param period the idle period after which items expire, or <code>null</code> for no idle expiry
+     */
+    public void setExpireAfterAccess(@Nullable TimePeriod<?> period) {
+        expireAfterAccess = period;
+        for( CacheIndex<T> cache : caches.values() ) {
+            cache.setExpireAfterAccess(period);
+        }
+    }
+
+    /**
+     * Sets how long after being cached an item expires. The period applies to items cached
+     * after this call.
+     * @param period the age after which items expire, or <code>null</code> for no age-based expiry
+     */
+    public void setExpireAfterWrite(@Nullable TimePeriod<?> period) {
+        expireAfterWrite = period;
+        for( CacheIndex<T> cache : caches.values() ) {
+            cache.setExpireAfterWrite(period);
+        }
     }
 
     public String toString() {
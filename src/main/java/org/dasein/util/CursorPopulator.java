@@ -18,6 +18,8 @@
 
 package org.dasein.util;
 
+import java.util.concurrent.Flow;
+
 public abstract class CursorPopulator<T> {
     private ForwardCursor<T> cursor;
 
@@ -52,6 +54,19 @@ public abstract class CursorPopulator<T> {
     
     public abstract void populate(ForwardCursor<T> cursor);
 
+    /**
+     * Provides a reactive-streams view of this populator in place of {@link #populate()}. The populator starts
+     * with the subscriber's first request and pushes only as many items as it has requested.
+     * @return a publisher that accepts a single subscriber
+     */
+    public Flow.Publisher<T> publish() {
+        return new PopulatorPublisher<T>(this);
+    }
+
+    public void setCapacity(int capacity) {
+        cursor.setCapacity(capacity);
+    }
+
     public void setSize(int size) {
         cursor.setSize(size);
     }
@@ -20,36 +20,51 @@ package org.dasein.util;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * <p>
+ *   The single pool running dasein-util's background work: jiterator populators, the tasks that copy
+ *   jiterators into collections, cache refreshes and write-behind flushes. The pool follows the
+ *   {@link ExecutorStrategy} named by the <code>org.dasein.util.tasks.strategy</code> system property,
+ *   a cached pool of daemon threads by default. It may be resized with
+ *   {@link #configure(int, int, int, RejectedExecutionHandler)}, switched to another strategy with
+ *   {@link #setExecutorStrategy(ExecutorStrategy)} or replaced outright with {@link #setExecutorService(ExecutorService)}.
+ * </p>
+ * <p>
+ *   Every task is measured as it passes through the pool. {@link #getStats()} reports the number of tasks
+ *   running and queued along with the time they wait to start and take to run, and {@link #registerMBean()}
+ *   publishes the same figures over JMX.
+ * </p>
+ */
 public class DaseinUtilTasks {
     static private Logger logger = Logger.getLogger(DaseinUtilTasks.class);
 
-    private static class DaemonThreadFactory implements ThreadFactory {
-        private static final ThreadFactory threadFactory = Executors.defaultThreadFactory();
-        public Thread newThread(Runnable r) {
-            Thread t = threadFactory.newThread(r);
-            t.setName("Dasein Util Task");
-            t.setDaemon(true);
-            return t;
-        }
-    }
+    static private final String THREAD_NAME = "Dasein Util Task";
+
+    static private volatile ExecutorService executorService;
+    static private final TaskPoolRecorder   recorder;
+    static private volatile ObjectName      statsName;
 
-    static private final ExecutorService executorService;
     static {
-        executorService = Executors.newCachedThreadPool(new DaemonThreadFactory());
+        executorService = ExecutorStrategy.getConfiguredStrategy().newExecutor(THREAD_NAME, ExecutorStrategy.getConfiguredMaximumThreads(), true);
+        recorder = new TaskPoolRecorder(executorService);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 try {
+                    ExecutorService executorService = DaseinUtilTasks.executorService;
+
                     executorService.shutdown();
                     boolean terminated = executorService.awaitTermination(100L, TimeUnit.MILLISECONDS);
                     if (!terminated) {
@@ -63,9 +78,96 @@ public class DaseinUtilTasks {
                 }
             }
         });
+        try {
+            PoolTerminator.addTerminationHandler(new Callable<Boolean>() {
+                public Boolean call() {
+                    shutdown();
+                    return true;
+                }
+            });
+        }
+        catch( Throwable ignore ) {
+            // this will get thrown when not in a J2EE container
+        }
         logger.debug("Created dasein-util task pool");
     }
 
+    /**
+     * Replaces the task pool with a pool of platform threads of the specified dimensions. Each
+     * {@link PopulatorThread} occupies two tasks while it loads, one populating its jiterator and one
+     * copying the jiterator into its collection, so a pool too small for the jiterators loading at once
+     * stalls them until they time out.
+     * @param coreThreads the number of threads kept while idle
+     * @param maximumThreads the maximum number of threads
+     * @param queueCapacity the number of tasks queued while all threads are busy, or 0 for no limit
+     * @param rejection the policy for tasks submitted while the queue is full, such as
+     * {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy}
+     * @throws IllegalArgumentException the dimensions are not valid for a pool
+     */
+    static public void configure(int coreThreads, int maximumThreads, int queueCapacity, @Nonnull RejectedExecutionHandler rejection) {
+        if( maximumThreads < 1 || coreThreads < 0 || coreThreads > maximumThreads || queueCapacity < 0 ) {
+            throw new IllegalArgumentException("Invalid task pool dimensions: " + coreThreads + "/" + maximumThreads + "/" + queueCapacity);
+        }
+        setExecutorService(ExecutorStrategy.newBoundedPool(THREAD_NAME, coreThreads, maximumThreads, queueCapacity, recorder.countRejections(rejection), true));
+    }
+
+    /**
+     * @return the activity of the task pool so far
+     */
+    static public @Nonnull TaskPoolStats getStats() {
+        return recorder.snapshot();
+    }
+
+    /**
+     * Publishes the statistics of the task pool over JMX through the platform MBean server, under
+     * the object name <code>org.dasein.util:type=TaskPool,name=DaseinUtilTasks</code>.
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    static public synchronized @Nonnull ObjectName registerMBean() {
+        if( statsName == null ) {
+            statsName = TaskPoolRecorder.register("DaseinUtilTasks", recorder);
+        }
+        return statsName;
+    }
+
+    /**
+     * Replaces the task pool with one following the specified strategy. Bounded pools are sized from
+     * the <code>org.dasein.util.tasks.coreThreads</code>, <code>org.dasein.util.tasks.maxThreads</code>
+     * and <code>org.dasein.util.tasks.queueCapacity</code> system properties.
+     * @param strategy the strategy for the new pool
+     */
+    static public void setExecutorStrategy(@Nonnull ExecutorStrategy strategy) {
+        setExecutorService(strategy.newExecutor(THREAD_NAME, ExecutorStrategy.getConfiguredMaximumThreads(), true));
+    }
+
+    /**
+     * Replaces the task pool with the specified executor. New work goes to the new executor at once; the
+     * old one is shut down, letting the work it already accepted run to completion. Statistics carry over.
+     * @param executor the executor to run dasein-util background work from now on
+     */
+    static public void setExecutorService(@Nonnull ExecutorService executor) {
+        ExecutorService old = executorService;
+
+        executorService = executor;
+        recorder.setExecutor(executor);
+        if( old != executor ) {
+            old.shutdown();
+        }
+        logger.debug("Replaced dasein-util task pool");
+    }
+
+    /**
+     * Withdraws the statistics of the task pool from JMX if they were published with {@link #registerMBean()}.
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    static public synchronized void unregisterMBean() {
+        if( statsName != null ) {
+            CacheStatsRecorder.unregister(statsName);
+            statsName = null;
+        }
+    }
+
     static public void shutdown() {
         logger.debug("Shutting down dasein-util task pool");
         executorService.shutdown();
@@ -89,34 +191,58 @@ public class DaseinUtilTasks {
     }
 
     static public <T> Future<T> submit(Callable<T> task) {
-        return executorService.submit(task);
+        try {
+            return executorService.submit(recorder.wrap(task));
+        }
+        catch( RejectedExecutionException e ) {
+            recorder.recordRejection();
+            throw e;
+        }
     }
 
     static public <T> Future<T> submit(Runnable task, T result) {
-        return executorService.submit(task, result);
+        try {
+            return executorService.submit(recorder.wrap(task), result);
+        }
+        catch( RejectedExecutionException e ) {
+            recorder.recordRejection();
+            throw e;
+        }
     }
 
     static public Future<?> submit(Runnable task) {
-        return executorService.submit(task);
+        try {
+            return executorService.submit(recorder.wrap(task));
+        }
+        catch( RejectedExecutionException e ) {
+            recorder.recordRejection();
+            throw e;
+        }
     }
 
     static public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        return executorService.invokeAll(tasks);
+        return executorService.invokeAll(recorder.wrapAll(tasks));
     }
 
     static public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-        return executorService.invokeAll(tasks, timeout, unit);
+        return executorService.invokeAll(recorder.wrapAll(tasks), timeout, unit);
     }
 
     static public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        return executorService.invokeAny(tasks);
+        return executorService.invokeAny(recorder.wrapAll(tasks));
     }
 
     static public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return executorService.invokeAny(tasks, timeout, unit);
+        return executorService.invokeAny(recorder.wrapAll(tasks), timeout, unit);
     }
 
     static public void execute(Runnable command) {
-        executorService.execute(command);
+        try {
+            executorService.execute(recorder.wrap(command));
+        }
+        catch( RejectedExecutionException e ) {
+            recorder.recordRejection();
+            throw e;
+        }
     }
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+/**
+ * <p>
+ *   The reasons for which a cache drops an entry on its own, as reported by {@link CacheStats}.
+ *   Entries released or replaced explicitly by the application are not evictions.
+ * </p>
+ */
+public enum EvictionCause {
+    /**
+     * The garbage collector cleared the soft reference to the value.
+     */
+    COLLECTED,
+    /**
+     * The entry outlived its time to live or idle period.
+     */
+    EXPIRED,
+    /**
+     * The value was a {@link CachedItem} that reported itself no longer valid for the cache.
+     */
+    INVALID,
+    /**
+     * The entry was evicted to keep a bounded cache within its maximum size or weight.
+     */
+    SIZE
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   The ways in which {@link DaseinUtilTasks} can run dasein-util's background work. The pool picks its
+ *   strategy from the <code>org.dasein.util.tasks.strategy</code> system property (<code>cached</code>,
+ *   <code>bounded</code> or <code>virtual</code>) when first used, and the bounded strategy sizes itself from
+ *   <code>org.dasein.util.tasks.coreThreads</code>, <code>org.dasein.util.tasks.maxThreads</code> and
+ *   <code>org.dasein.util.tasks.queueCapacity</code>. The pool may be switched later through
+ *   {@link DaseinUtilTasks#setExecutorStrategy(ExecutorStrategy)} or {@link DaseinUtilTasks#configure}.
+ * </p>
+ */
+public enum ExecutorStrategy {
+    /**
+     * An unbounded pool that starts a new platform thread whenever all existing ones are busy. This was
+     * the only behavior before strategies were introduced and remains the default.
+     */
+    CACHED,
+    /**
+     * A fixed maximum of platform threads with a queue for work beyond it, unbounded unless
+     * <code>org.dasein.util.tasks.queueCapacity</code> is set. Idle threads beyond
+     * <code>org.dasein.util.tasks.coreThreads</code> exit after a minute. Work that blocks waiting on other
+     * queued work may stall once every thread is busy, so size the pool well above twice the number of
+     * concurrent jiterators you expect.
+     */
+    BOUNDED,
+    /**
+     * A new virtual thread for each task, so that populators blocked on I/O or on their readers do not
+     * hold an operating system thread. Requires Java 21 or later; on earlier JDKs this falls back to
+     * {@link #BOUNDED}.
+     */
+    VIRTUAL;
+
+    static private final Logger logger = Logger.getLogger(ExecutorStrategy.class);
+
+    /**
+     * The system property naming the strategy both task pools start with.
+     */
+    static public final String STRATEGY_PROPERTY = "org.dasein.util.tasks.strategy";
+
+    /**
+     * The system property setting the number of threads in a {@link #BOUNDED} pool.
+     */
+    static public final String MAX_THREADS_PROPERTY = "org.dasein.util.tasks.maxThreads";
+
+    /**
+     * The system property setting the number of threads a {@link #BOUNDED} pool keeps even when idle.
+     */
+    static public final String CORE_THREADS_PROPERTY = "org.dasein.util.tasks.coreThreads";
+
+    /**
+     * The system property limiting the number of tasks a {@link #BOUNDED} pool queues once all of its
+     * threads are busy. Work submitted beyond the limit is rejected.
+     */
+    static public final String QUEUE_CAPACITY_PROPERTY = "org.dasein.util.tasks.queueCapacity";
+
+    /**
+     * Reads the number of core threads for a bounded pool from {@link #CORE_THREADS_PROPERTY}.
+     * @param maximumThreads the size of the pool
+     * @return the configured number, or the size of the pool if none is configured
+     */
+    static public int getConfiguredCoreThreads(int maximumThreads) {
+        Integer core = Integer.getInteger(CORE_THREADS_PROPERTY);
+
+        if( core == null || core < 0 ) {
+            return maximumThreads;
+        }
+        return Math.min(core, maximumThreads);
+    }
+
+    /**
+     * Reads the queue limit for a bounded pool from {@link #QUEUE_CAPACITY_PROPERTY}.
+     * @return the configured limit, or 0 for an unbounded queue if none is configured
+     */
+    static public int getConfiguredQueueCapacity() {
+        Integer capacity = Integer.getInteger(QUEUE_CAPACITY_PROPERTY);
+
+        if( capacity == null || capacity < 0 ) {
+            return 0;
+        }
+        return capacity;
+    }
+
+    /**
+     * Constructs a pool of platform threads.
+     * @param name the base name given to the pool's threads
+     * @param coreThreads the number of threads kept while idle
+     * @param maximumThreads the maximum number of threads
+     * @param queueCapacity the number of tasks queued while all threads are busy, or 0 for no limit
+     * @param rejection the handler for tasks submitted to a full queue
+     * @param daemon whether the threads should be daemon threads
+     * @return a new pool
+     */
+    static @Nonnull ThreadPoolExecutor newBoundedPool(@Nonnull String name, int coreThreads, int maximumThreads, int queueCapacity, @Nonnull RejectedExecutionHandler rejection, boolean daemon) {
+        BlockingQueue<Runnable> queue;
+
+        if( queueCapacity > 0 ) {
+            queue = new LinkedBlockingQueue<Runnable>(queueCapacity);
+        }
+        else {
+            // a pool never grows past its core threads while its queue accepts work
+            coreThreads = maximumThreads;
+            queue = new LinkedBlockingQueue<Runnable>();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(coreThreads, maximumThreads, 60L, TimeUnit.SECONDS, queue, new NamedThreadFactory(name, daemon), rejection);
+
+        if( coreThreads == maximumThreads ) {
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Reads the strategy selected by {@link #STRATEGY_PROPERTY}.
+     * @return the configured strategy, or {@link #CACHED} if none or an unknown one is configured
+     */
+    static public @Nonnull ExecutorStrategy getConfiguredStrategy() {
+        String value = System.getProperty(STRATEGY_PROPERTY);
+
+        if( value == null || value.trim().length() < 1 ) {
+            return CACHED;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        }
+        catch( IllegalArgumentException e ) {
+            logger.warn("Unknown task executor strategy " + value + " in " + STRATEGY_PROPERTY + ", using " + CACHED);
+            return CACHED;
+        }
+    }
+
+    /**
+     * Reads the bounded pool size from {@link #MAX_THREADS_PROPERTY}.
+     * @return the configured size, or four threads per processor (at least 16) if none is configured
+     */
+    static public int getConfiguredMaximumThreads() {
+        Integer max = Integer.getInteger(MAX_THREADS_PROPERTY);
+
+        if( max == null || max < 1 ) {
+            return Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        }
+        return max;
+    }
+
+    /**
+     * @return true if this strategy can run on the current JVM rather than falling back to another one
+     */
+    public boolean isSupported() {
+        return (this != VIRTUAL || newVirtualThreadFactory("probe") != null);
+    }
+
+    /**
+     * Constructs an executor implementing this strategy.
+     * @param name the base name given to the executor's threads
+     * @param maximumThreads the number of threads in a {@link #BOUNDED} pool; ignored by other strategies
+     * @param daemon whether platform threads should be daemon threads (virtual threads always are)
+     * @return a new executor
+     */
+    public @Nonnull ExecutorService newExecutor(@Nonnull String name, int maximumThreads, boolean daemon) {
+        switch( this ) {
+            case VIRTUAL:
+                ThreadFactory factory = newVirtualThreadFactory(name);
+
+                if( factory != null ) {
+                    try {
+                        Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+                        return (ExecutorService)m.invoke(null, factory);
+                    }
+                    catch( Exception e ) {
+                        logger.warn("Unable to create a virtual thread executor: " + e.getMessage());
+                    }
+                }
+                logger.info("Virtual threads are not available on this JVM, using a bounded pool for " + name);
+                return BOUNDED.newExecutor(name, maximumThreads, daemon);
+            case BOUNDED:
+                return newBoundedPool(name, getConfiguredCoreThreads(maximumThreads), maximumThreads, getConfiguredQueueCapacity(), new ThreadPoolExecutor.AbortPolicy(), daemon);
+            default:
+                return Executors.newCachedThreadPool(new NamedThreadFactory(name, daemon));
+        }
+    }
+
+    /**
+     * Builds a factory for named virtual threads through reflection, since the library is compiled
+     * for JDKs that predate them.
+     * @param name the base name for the threads
+     * @return the factory, or null if this JVM does not support virtual threads
+     */
+    static private ThreadFactory newVirtualThreadFactory(@Nonnull String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + " ", 1L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch( Exception e ) {
+            return null;
+        }
+    }
+}
@@ -23,14 +23,40 @@ import org.dasein.util.uom.time.Millisecond;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A single-direction cursor that stores in memory just the minimal amount of data required to enable
  * a consumer to move through an ordered set of items without the full data set needing to be loaded.
+ * <p>
+ * A cursor is unbounded unless you call {@link #setCapacity(int)}, in which case {@link #push(Object)} blocks
+ * once the capacity is reached until the consumer has drained the cursor to the low watermark. Populators may
+ * check {@link #isAboveHighWatermark()} to pause their source before reaching the hard limit.
+ * </p>
+ * <p>
+ * {@link #pushAll(Collection)} and {@link #drainTo(Collection, int)} move a whole page of items under a single
+ * lock acquisition and wake-up.
+ * </p>
+ * <p>
+ * {@link #stream()} consumes the cursor through <code>java.util.stream</code>, running each stage as items
+ * arrive. Populators that know the size of their result should call {@link #setSize(int)} up front so that
+ * streams can report it.
+ * </p>
+ * <p>
+ * Once the consumer calls {@link #request(long)}, the cursor is demand-driven: pushes beyond what the consumer
+ * has requested block until it asks for more. {@link PopulatorPublisher} publishes a cursor this way.
+ * </p>
  * @param <T> the type of objects stored in the cursor
  */
 public class ForwardCursor<T> implements Iterable<T> {
@@ -44,10 +70,19 @@ public class ForwardCursor<T> implements Iterable<T> {
         public CursorItem<T> nextItem; 
     }
 
+    private int                                              buffered;
+    private int                                              capacity;
     private int                                              count;
+    private long                                             demand;
+    private boolean                                          demandDriven;
+    private boolean                                          failureUnannounced;
     private CursorItem<T>                                    head;
+    private int                                              highWatermark;
+    private volatile Runnable                                listener;
     private final String                                     name;
     private boolean                                          loaded;
+    private int                                              lowWatermark;
+    private int                                              producersWaiting;
     private int                                              size;
     private CursorItem<T>                                    tail;
     private org.dasein.util.uom.time.TimePeriod<Millisecond> timeout;
@@ -80,32 +115,103 @@ public class ForwardCursor<T> implements Iterable<T> {
             size = count;
             notifyAll();
         }
+        fireArrival();
     }
     
     public void error(@Nonnull Throwable t) {
         synchronized( this ) {
-            CursorItem<T> newTail = new CursorItem<T>();
+            recordFailure(t);
+        }
+        announceFailure();
+    }
+    
+    /**
+     * Moves up to <code>max</code> items from the cursor into the target collection. If the cursor is empty,
+     * this method waits for at least one item or for the end of the cursor, then takes whatever is buffered
+     * up to the limit. A load error behind the items taken is reported by the next call.
+     * @param target the collection to receive the items
+     * @param max the maximum number of items to move
+     * @return the number of items moved, which is 0 only once the cursor is exhausted
+     * @throws JiteratorLoadException an error occurred while loading the cursor
+     */
+    public int drainTo(@Nonnull Collection<? super T> target, int max) {
+        if( max < 1 ) {
+            return 0;
+        }
+        try {
+            synchronized( this ) {
+                waitForPush();
+                if( head != null && head.loadError != null ) {
+                    throw new JiteratorLoadException(head.loadError);
+                }
+                int taken = 0;
 
-            newTail.item = null;
-            newTail.loadError = t;
-            newTail.nextItem = null;
-            if( head == null ) {
-                head = newTail;
-                tail = head;
-            }
-            else {
-                tail.nextItem = newTail;
-                tail = newTail;
+                while( taken < max && head != null && head.loadError == null ) {
+                    CursorItem<T> current = head;
+
+                    head = head.nextItem;
+                    target.add(current.item);
+                    // free up references
+                    current.nextItem = null;
+                    current.item = null;
+                    taken++;
+                }
+                if( head == null ) {
+                    tail = null;
+                }
+                buffered -= taken;
+                if( producersWaiting > 0 && buffered <= lowWatermark ) {
+                    notifyAll();
+                }
+                return taken;
             }
-            loaded = true;
-            notifyAll();
+        }
+        finally {
+            announceFailure();
         }
     }
-    
+
+    public int getCapacity() {
+        synchronized( this ) {
+            return capacity;
+        }
+    }
+
+    /**
+     * @return the number of items the consumer of a demand-driven cursor has asked for and producers have yet to
+     * push, or <code>Long.MAX_VALUE</code> if the cursor is not demand-driven
+     */
+    public long getDemand() {
+        synchronized( this ) {
+            return (demandDriven ? demand : Long.MAX_VALUE);
+        }
+    }
+
+    public int getHighWatermark() {
+        synchronized( this ) {
+            return highWatermark;
+        }
+    }
+
+    public int getLowWatermark() {
+        synchronized( this ) {
+            return lowWatermark;
+        }
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * @return the number of pushed items the consumer has not yet read
+     */
+    public int getPendingCount() {
+        synchronized( this ) {
+            return buffered;
+        }
+    }
+
     public int getSize() {
         synchronized( this ) {
             return size;
@@ -113,18 +219,42 @@ public class ForwardCursor<T> implements Iterable<T> {
     }
 
     private boolean hasNextItem() {
-        synchronized( this ) {
-            waitForPush();
-            if( head != null ) {
-                if( head.loadError != null ) {
-                    throw new JiteratorLoadException(head.loadError);
+        try {
+            synchronized( this ) {
+                waitForPush();
+                if( head != null ) {
+                    if( head.loadError != null ) {
+                        throw new JiteratorLoadException(head.loadError);
+                    }
+                    return true;
                 }
-                return true;
+                return false;
             }
-            return false;
+        }
+        finally {
+            announceFailure();
         }
     }
             
+    /**
+     * @return true if the cursor is bounded and its unread items have reached the high watermark, or if the cursor
+     * is demand-driven and the consumer has no outstanding demand
+     */
+    public boolean isAboveHighWatermark() {
+        synchronized( this ) {
+            return ((capacity > 0 && buffered >= highWatermark) || (demandDriven && demand == 0L));
+        }
+    }
+
+    /**
+     * @return true once the cursor has been completed or has failed and every item in it has been read
+     */
+    public boolean isComplete() {
+        synchronized( this ) {
+            return (loaded && buffered == 0);
+        }
+    }
+
     @Override
     public @Nonnull Iterator<T> iterator() {
         return new Iterator<T>() {
@@ -146,33 +276,195 @@ public class ForwardCursor<T> implements Iterable<T> {
     }
     
     private @Nullable T nextItem() {
-        synchronized( this ) {
-            waitForPush();
-            if( head != null ) {
-                CursorItem<T> current = head;
+        try {
+            synchronized( this ) {
+                waitForPush();
+                if( head != null ) {
+                    CursorItem<T> current = head;
 
-                head = head.nextItem;
-                if( head == null ) {
-                    tail = null;
-                }
+                    head = head.nextItem;
+                    if( head == null ) {
+                        tail = null;
+                    }
 
-                if( current.loadError != null ) {
-                    throw new JiteratorLoadException(current.loadError);
-                }
-                T item = current.item;
+                    if( current.loadError != null ) {
+                        throw new JiteratorLoadException(current.loadError);
+                    }
+                    buffered--;
+                    if( producersWaiting > 0 && buffered <= lowWatermark ) {
+                        notifyAll();
+                    }
+                    T item = current.item;
 
-                // free up references
-                current.nextItem = null;
-                current.item = null;
+                    // free up references
+                    current.nextItem = null;
+                    current.item = null;
 
-                // return the value
-                return item;
+                    // return the value
+                    return item;
+                }
+                throw new ArrayIndexOutOfBoundsException("Attempt to move beyond the last item");
             }
-            throw new ArrayIndexOutOfBoundsException("Attempt to move beyond the last item");
+        }
+        finally {
+            announceFailure();
         }
     }
     
+    /**
+     * Provides up to <code>max</code> items from the cursor, waiting if none are buffered yet.
+     * @param max the maximum number of items to return
+     * @return the next items in the cursor, or an empty list once it is exhausted
+     * @throws JiteratorLoadException an error occurred while loading the cursor
+     */
+    public @Nonnull List<T> nextBatch(int max) {
+        ArrayList<T> batch = new ArrayList<T>(Math.max(0, Math.min(max, 1024)));
+
+        drainTo(batch, max);
+        return batch;
+    }
+
+    /**
+     * Offers an item to the cursor, waiting up to the specified time for the consumer to make room if the
+     * cursor is bounded and full.
+     * @param item the item to add
+     * @param timeout the maximum time to wait for room
+     * @param unit the unit of the timeout
+     * @return true if the item was added, false if the cursor remained full for the whole timeout
+     * @throws InterruptedException the calling thread was interrupted while waiting for room
+     * @throws JiteratorLoadException the cursor failed, or its consumer stopped reading, while waiting for room
+     */
+    public boolean offer(@Nullable T item, long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        try {
+            synchronized( this ) {
+                long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+                if( !waitForRoom(unit.toMillis(timeout), true) ) {
+                    return false;
+                }
+                if( waitForDemand(1, Math.max(0L, deadline - System.currentTimeMillis()), true) < 1 ) {
+                    return false;
+                }
+                append(item);
+            }
+        }
+        finally {
+            announceFailure();
+        }
+        fireArrival();
+        return true;
+    }
+
+    /**
+     * Adds an item to the end of the cursor. If the cursor is bounded and full, this method blocks until
+     * the consumer drains it to the low watermark.
+     * @param item the item to add
+     * @throws JiteratorLoadException the cursor failed, or its consumer stopped reading, while waiting for room
+     */
     public void push(@Nullable T item) {
+        try {
+            synchronized( this ) {
+                try {
+                    waitForRoom(-1L, false);
+                    waitForDemand(1, -1L, false);
+                }
+                catch( InterruptedException e ) {
+                    // not thrown by an uninterruptible wait
+                }
+                append(item);
+            }
+        }
+        finally {
+            announceFailure();
+        }
+        fireArrival();
+    }
+
+    /**
+     * Adds a batch of items to the end of the cursor under a single lock acquisition and wake-up. If the cursor
+     * is bounded or demand-driven, the batch is added in pieces no larger than the room available or the
+     * items requested, blocking as {@link #push(Object)} does in between.
+     * @param items the items to add
+     * @throws JiteratorLoadException the cursor failed, or its consumer stopped reading, while waiting for room
+     */
+    public void pushAll(@Nonnull Collection<? extends T> items) {
+        Iterator<? extends T> it = items.iterator();
+        int left = items.size();
+
+        while( it.hasNext() ) {
+            try {
+                synchronized( this ) {
+                    int room = left;
+
+                    try {
+                        waitForRoom(-1L, false);
+                        if( capacity > 0 ) {
+                            room = Math.min(room, Math.max(1, capacity - buffered));
+                        }
+                        room = waitForDemand(room, -1L, false);
+                    }
+                    catch( InterruptedException e ) {
+                        // not thrown by an uninterruptible wait
+                    }
+                    while( room-- > 0 && it.hasNext() ) {
+                        CursorItem<T> newTail = new CursorItem<T>();
+
+                        newTail.item = it.next();
+                        if( head == null ) {
+                            head = newTail;
+                        }
+                        else {
+                            tail.nextItem = newTail;
+                        }
+                        tail = newTail;
+                        count++;
+                        buffered++;
+                        left--;
+                    }
+                    lastTouch = System.currentTimeMillis();
+                    notifyAll();
+                }
+            }
+            finally {
+                announceFailure();
+            }
+            fireArrival();
+        }
+    }
+
+    /**
+     * Asks for <code>count</code> more items, making the cursor demand-driven if it is not already. Producers
+     * then block before pushing any item beyond those requested, and a cursor that receives no request for the
+     * length of its timeout while a producer waits fails with a {@link TimeoutException}. Requests accumulate
+     * up to <code>Long.MAX_VALUE</code>, which stands for unlimited demand.
+     * @param count the number of additional items wanted
+     * @throws IllegalArgumentException the count is not positive
+     */
+    public void request(long count) {
+        if( count < 1L ) {
+            throw new IllegalArgumentException("Requests must be for at least one item: " + count);
+        }
+        synchronized( this ) {
+            demandDriven = true;
+            demand += count;
+            if( demand < 0L ) {
+                demand = Long.MAX_VALUE;
+            }
+            lastTouch = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Adds an array of items to the end of the cursor. See {@link #pushAll(Collection)}.
+     * @param items the items to add
+     * @throws JiteratorLoadException the cursor failed, or its consumer stopped reading, while waiting for room
+     */
+    public void pushBatch(@Nonnull T[] items) {
+        pushAll(Arrays.asList(items));
+    }
+
+    private void append(@Nullable T item) {
         synchronized( this ) {
             lastTouch = System.currentTimeMillis();
             
@@ -190,10 +482,52 @@ public class ForwardCursor<T> implements Iterable<T> {
                 tail = newTail;
             }
             count++;
+            buffered++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Bounds the cursor at the specified number of unread items. Pushes block at the capacity until the
+     * consumer drains the cursor to half of it; the high watermark is the capacity itself.
+     * @param capacity the maximum number of unread items, or 0 for no limit
+     * @throws IllegalArgumentException the capacity is negative
+     */
+    public void setCapacity(int capacity) {
+        setCapacity(capacity, capacity, capacity/2);
+    }
+
+    /**
+     * Bounds the cursor at the specified number of unread items with explicit watermarks.
+     * @param capacity the maximum number of unread items, or 0 for no limit
+     * @param highWatermark the level from which {@link #isAboveHighWatermark()} reports true
+     * @param lowWatermark the level to which the consumer must drain a full cursor before pushes resume
+     * @throws IllegalArgumentException the watermarks do not satisfy 0 &lt;= low &lt; high &lt;= capacity
+     */
+    public void setCapacity(int capacity, int highWatermark, int lowWatermark) {
+        if( capacity < 0 ) {
+            throw new IllegalArgumentException("Capacity may not be negative: " + capacity);
+        }
+        if( capacity > 0 && (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity) ) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity: " + lowWatermark + "/" + highWatermark + "/" + capacity);
+        }
+        synchronized( this ) {
+            this.capacity = capacity;
+            this.highWatermark = (capacity == 0 ? 0 : highWatermark);
+            this.lowWatermark = (capacity == 0 ? 0 : lowWatermark);
             notifyAll();
         }
     }
 
+    /**
+     * Registers a callback to run, outside the cursor's lock, whenever items arrive or the cursor completes or
+     * fails. The callback runs on the thread that made the change and must not block.
+     * @param listener the callback, or <code>null</code> to remove it
+     */
+    void setArrivalListener(@Nullable Runnable listener) {
+        this.listener = listener;
+    }
+
     public void setSize(int size) {
         synchronized( this ) {
             if( this.size < 0 ) {
@@ -203,8 +537,229 @@ public class ForwardCursor<T> implements Iterable<T> {
         }
     }
 
+    /**
+     * Provides a spliterator that takes items from the cursor a batch at a time as they arrive. It reports its
+     * size if the cursor is complete or {@link #setSize(int)} has been called, and may be consumed only once.
+     * @return a spliterator over the unread items in the cursor
+     */
+    @Override
+    public @Nonnull Spliterator<T> spliterator() {
+        return new BatchSpliterator<T>(getSize() >= 0) {
+            @Override
+            @Nonnull List<T> fetch(int max) {
+                return nextBatch(max);
+            }
+
+            @Override
+            long remaining() {
+                synchronized( ForwardCursor.this ) {
+                    return (size < 0 ? -1L : Math.max(0, size - (count - buffered)));
+                }
+            }
+        };
+    }
+
+    /**
+     * Provides a lazy stream over the items in the cursor. Stages run on each item as soon as it is pushed,
+     * reading the stream consumes the cursor, and a load error surfaces from the terminal operation as a
+     * {@link JiteratorLoadException}.
+     * @return a sequential stream that consumes the cursor
+     */
+    public @Nonnull Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Provides a parallel stream over the items in the cursor. See {@link #stream()}.
+     * @return a parallel stream that consumes the cursor
+     */
+    public @Nonnull Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     private transient long lastTouch = System.currentTimeMillis();
     private transient long scream = 0L;
+
+    /**
+     * Runs the arrival listener for a failure recorded by {@link #recordFailure(Throwable)}, if there is one. Must
+     * be called without holding the cursor's lock.
+     */
+    private void announceFailure() {
+        boolean unannounced;
+
+        synchronized( this ) {
+            unannounced = failureUnannounced;
+            failureUnannounced = false;
+        }
+        if( unannounced ) {
+            fireArrival();
+        }
+    }
+
+    private void fireArrival() {
+        Runnable callback = listener;
+
+        if( callback != null ) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Ends the cursor with the specified error. The caller must hold the cursor's lock and, once it has released
+     * the lock, call {@link #announceFailure()} so that the arrival listener never runs under the lock.
+     * @param t the error that ended the load
+     */
+    private void recordFailure(@Nonnull Throwable t) {
+        CursorItem<T> newTail = new CursorItem<T>();
+
+        newTail.item = null;
+        newTail.loadError = t;
+        newTail.nextItem = null;
+        if( head == null ) {
+            head = newTail;
+            tail = head;
+        }
+        else {
+            tail.nextItem = newTail;
+            tail = newTail;
+        }
+        loaded = true;
+        failureUnannounced = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the consumer of a demand-driven cursor has asked for items the producer has yet to push, then
+     * claims up to the specified number of them. Returns at once for a cursor that is not demand-driven. Fails
+     * the cursor with a {@link TimeoutException} if no request arrives for the length of the cursor's timeout.
+     * @param wanted the number of items the caller would like to push
+     * @param millis the maximum time to wait, or a negative value to wait indefinitely
+     * @param interruptible true if an interrupt should abort the wait
+     * @return the number of items the caller may push, which is 0 only if the wait timed out
+     * @throws InterruptedException the wait was interruptible and the thread was interrupted
+     */
+    private int waitForDemand(int wanted, long millis, boolean interruptible) throws InterruptedException {
+        if( !demandDriven ) {
+            return wanted;
+        }
+        long deadline = (millis < 0L ? -1L : System.currentTimeMillis() + millis);
+        boolean interrupted = false;
+
+        try {
+            while( true ) {
+                if( loaded ) {
+                    if( head != null && tail.loadError != null ) {
+                        throw new JiteratorLoadException(tail.loadError);
+                    }
+                    throw new IllegalStateException("Invalid attempt to add an item to a completed cursor.");
+                }
+                if( demand == Long.MAX_VALUE ) {
+                    return wanted;
+                }
+                if( demand > 0L ) {
+                    int granted = (int)Math.min(demand, wanted);
+
+                    demand -= granted;
+                    return granted;
+                }
+                long now = System.currentTimeMillis();
+                long idle = now - lastTouch;
+
+                if( idle > timeout.longValue() ) {
+                    logger.error("[" + this.name + "] Cursor consumer stopped requesting items from " + getName());
+                    TimeoutException e = new TimeoutException("Cursor timed out waiting for demand");
+
+                    recordFailure(e);
+                    throw new JiteratorLoadException(e);
+                }
+                long sleep = timeout.longValue() - idle + 1L;
+
+                if( deadline != -1L ) {
+                    if( now >= deadline ) {
+                        return 0;
+                    }
+                    sleep = Math.min(sleep, deadline - now);
+                }
+                try { wait(sleep); }
+                catch( InterruptedException e ) {
+                    if( interruptible ) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for a full cursor to drain to the low watermark. Fails the cursor with a {@link TimeoutException}
+     * if the consumer reads nothing for the length of the cursor's timeout.
+     * @param millis the maximum time to wait, or a negative value to wait indefinitely
+     * @param interruptible true if an interrupt should abort the wait
+     * @return true if there is room for another item, false if the wait timed out
+     * @throws InterruptedException the wait was interruptible and the thread was interrupted
+     */
+    private boolean waitForRoom(long millis, boolean interruptible) throws InterruptedException {
+        if( capacity < 1 || buffered < capacity ) {
+            return true;
+        }
+        long deadline = (millis < 0L ? -1L : System.currentTimeMillis() + millis);
+        long progress = System.currentTimeMillis();
+        int seen = buffered;
+        boolean interrupted = false;
+
+        producersWaiting++;
+        try {
+            while( capacity > 0 && buffered > lowWatermark ) {
+                if( loaded ) {
+                    if( head != null && tail.loadError != null ) {
+                        throw new JiteratorLoadException(tail.loadError);
+                    }
+                    throw new IllegalStateException("Invalid attempt to add an item to a completed cursor.");
+                }
+                long now = System.currentTimeMillis();
+
+                if( buffered < seen ) {
+                    seen = buffered;
+                    progress = now;
+                }
+                else if( now - progress > timeout.longValue() ) {
+                    logger.error("[" + this.name + "] Cursor consumer stopped reading " + getName());
+                    TimeoutException e = new TimeoutException("Cursor timed out waiting for its consumer");
+
+                    recordFailure(e);
+                    throw new JiteratorLoadException(e);
+                }
+                long sleep = timeout.longValue() - (now - progress) + 1L;
+
+                if( deadline != -1L ) {
+                    if( now >= deadline ) {
+                        return false;
+                    }
+                    sleep = Math.min(sleep, deadline - now);
+                }
+                try { wait(sleep); }
+                catch( InterruptedException e ) {
+                    if( interruptible ) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+            return true;
+        }
+        finally {
+            producersWaiting--;
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
     
     private void waitForPush() {
         long waitStart = -1L;
@@ -214,7 +769,7 @@ public class ForwardCursor<T> implements Iterable<T> {
 
             if( untouched > timeout.longValue() ) {
                 logger.error("[" + this.name + "] Cursor timeout for " + getName());
-                this.error(new TimeoutException("Cursor timed out while loading"));
+                recordFailure(new TimeoutException("Cursor timed out while loading"));
             }
             if( waitStart == -1L ) {
                 waitStart = System.currentTimeMillis();
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * <p>
+ *   Announces that the value cached under a key is stale wherever it is cached. An
+ *   invalidation is published on a named channel so that only caches holding the same kind
+ *   of object act on it. Invalidations for a {@link ConcurrentMultiCache} also name the unique
+ *   identifier attribute the key belongs to.
+ * </p>
+ */
+public final class Invalidation implements Serializable {
+    static private final long serialVersionUID = -3810377422766253851L;
+
+    private final String attribute;
+    private final String channel;
+    private final Object key;
+
+    /**
+     * Constructs an invalidation of the specified key.
+     * @param channel the channel on which the invalidation is published
+     * @param attribute the unique identifier attribute of the key, or <code>null</code> for a plain cache key
+     * @param key the key whose value is stale
+     */
+    public Invalidation(@Nonnull String channel, @Nullable String attribute, @Nonnull Object key) {
+        this.channel = channel;
+        this.attribute = attribute;
+        this.key = key;
+    }
+
+    public boolean equals(Object ob) {
+        if( ob == this ) {
+            return true;
+        }
+        if( !(ob instanceof Invalidation) ) {
+            return false;
+        }
+        Invalidation other = (Invalidation)ob;
+
+        if( attribute == null ? other.attribute != null : !attribute.equals(other.attribute) ) {
+            return false;
+        }
+        return (channel.equals(other.channel) && key.equals(other.key));
+    }
+
+    /**
+     * @return the unique identifier attribute of the key, or <code>null</code> for a plain cache key
+     */
+    public @Nullable String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the channel on which the invalidation is published
+     */
+    public @Nonnull String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the key whose value is stale
+     */
+    public @Nonnull Object getKey() {
+        return key;
+    }
+
+    public int hashCode() {
+        return (channel.hashCode() * 31 + (attribute == null ? 0 : attribute.hashCode())) * 31 + key.hashCode();
+    }
+
+    public String toString() {
+        return (channel + ":" + (attribute == null ? "" : attribute + "=") + key);
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ *   Keeps several caches holding the same objects coherent by propagating invalidations among
+ *   them. Caches subscribe to a named channel, and an invalidation published on that channel by
+ *   one subscriber is applied to every other subscriber of the channel. Publishing never blocks:
+ *   invalidations are queued and delivered asynchronously, with everything queued since the last
+ *   delivery coalesced by key into a single batch per channel.
+ * </p>
+ * <p>
+ *   A bus given an {@link InvalidationTransport} also sends each batch to the buses reachable
+ *   through that transport and applies the batches they send to its own subscribers, so that
+ *   caches in several JVMs stay coherent.
+ * </p>
+ * <p>
+ *   Both {@link ConcurrentCache} and {@link ConcurrentMultiCache} can be attached to a bus
+ *   through their <code>setInvalidationBus()</code> methods.
+ * </p>
+ */
+public class InvalidationBus {
+    static private final Logger logger = Logger.getLogger(InvalidationBus.class);
+
+    /**
+     * A queued invalidation along with the subscriber that published it, if any.
+     */
+    static private class Pending {
+        private final Invalidation         invalidation;
+        private final InvalidationListener source;
+
+        private Pending(Invalidation invalidation, InvalidationListener source) {
+            this.invalidation = invalidation;
+            this.source = source;
+        }
+    }
+
+    static private class Subscription {
+        private final String               channel;
+        private final InvalidationListener listener;
+
+        private Subscription(String channel, InvalidationListener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Marks invalidations whose publishers differ, which must therefore reach every subscriber.
+     */
+    static private final InvalidationListener MIXED = new InvalidationListener() {
+        public void invalidate(@Nonnull Collection<Invalidation> invalidations) { }
+    };
+
+    private final Runnable                                 drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    private volatile Executor                              executor;
+    private final ConcurrentLinkedQueue<Pending>           queue = new ConcurrentLinkedQueue<Pending>();
+    private final AtomicBoolean                            scheduled = new AtomicBoolean(false);
+    private final CopyOnWriteArrayList<Subscription>       subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final InvalidationTransport                    transport;
+
+    /**
+     * Constructs a bus that propagates invalidations only within this JVM.
+     */
+    public InvalidationBus() {
+        this(null);
+    }
+
+    /**
+     * Constructs a bus that also propagates invalidations through the specified transport.
+     * @param transport the transport connecting this bus to others, or <code>null</code> for none
+     */
+    public InvalidationBus(@Nullable InvalidationTransport transport) {
+        super();
+        this.transport = transport;
+        if( transport != null ) {
+            transport.connect(this);
+        }
+    }
+
+    /**
+     * Detaches this bus from its transport. Subscribers remain subscribed to local invalidations.
+     */
+    public void close() {
+        if( transport != null ) {
+            transport.disconnect(this);
+        }
+    }
+
+    /**
+     * Queues the specified invalidations for delivery to the other subscribers of their channels
+     * and to any buses reachable through the transport. This method never blocks.
+     * @param source the subscriber publishing the invalidations, which does not receive them back,
+     * or <code>null</code> if the publisher is not a subscriber
+     * @param invalidations the invalidations to publish
+     */
+    public void publish(@Nullable InvalidationListener source, @Nonnull Collection<Invalidation> invalidations) {
+        for( Invalidation invalidation : invalidations ) {
+            queue.offer(new Pending(invalidation, source));
+        }
+        schedule();
+    }
+
+    /**
+     * Applies a batch of invalidations that arrived through the transport to every local
+     * subscriber of their channels. The batch is not sent back out through the transport.
+     * @param invalidations the invalidations received
+     */
+    public void receive(@Nonnull Collection<Invalidation> invalidations) {
+        LinkedHashMap<Invalidation,InvalidationListener> batch = new LinkedHashMap<Invalidation,InvalidationListener>();
+
+        for( Invalidation invalidation : invalidations ) {
+            batch.put(invalidation, MIXED);
+        }
+        deliver(batch);
+    }
+
+    /**
+     * Sets the executor on which invalidations are delivered.
+     * @param executor the executor for deliveries, or <code>null</code> to use {@link DaseinUtilTasks}
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribes the specified listener to the invalidations published on the specified channel.
+     * @param channel the channel of interest
+     * @param listener the listener that drops stale values
+     */
+    public void subscribe(@Nonnull String channel, @Nonnull InvalidationListener listener) {
+        subscriptions.add(new Subscription(channel, listener));
+    }
+
+    /**
+     * Cancels every subscription of the specified listener.
+     * @param listener the listener to unsubscribe
+     */
+    public void unsubscribe(@Nonnull InvalidationListener listener) {
+        for( Subscription subscription : subscriptions ) {
+            if( subscription.listener == listener ) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void schedule() {
+        if( scheduled.compareAndSet(false, true) ) {
+            Executor e = executor;
+
+            try {
+                if( e == null ) {
+                    DaseinUtilTasks.execute(drainer);
+                }
+                else {
+                    e.execute(drainer);
+                }
+            }
+            catch( RejectedExecutionException ex ) {
+                scheduled.set(false);
+                logger.warn("Unable to schedule delivery of invalidations: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delivers everything queued, in batches coalesced by key, until the queue is empty.
+     */
+    private void drain() {
+        try {
+            while( true ) {
+                LinkedHashMap<Invalidation,InvalidationListener> batch = new LinkedHashMap<Invalidation,InvalidationListener>();
+                Pending pending;
+
+                while( (pending = queue.poll()) != null ) {
+                    InvalidationListener source = batch.get(pending.invalidation);
+
+                    if( source == null && !batch.containsKey(pending.invalidation) ) {
+                        batch.put(pending.invalidation, (pending.source == null ? MIXED : pending.source));
+                    }
+                    else if( source != pending.source ) {
+                        batch.put(pending.invalidation, MIXED);
+                    }
+                }
+                if( batch.isEmpty() ) {
+                    break;
+                }
+                deliver(batch);
+                if( transport != null ) {
+                    try {
+                        transport.send(this, new ArrayList<Invalidation>(batch.keySet()));
+                    }
+                    catch( RuntimeException e ) {
+                        logger.warn("Unable to send invalidations: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        finally {
+            scheduled.set(false);
+            if( !queue.isEmpty() ) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Hands each subscriber the invalidations for its channel, other than those it published itself.
+     * @param batch the invalidations to deliver mapped to their publisher
+     */
+    private void deliver(@Nonnull Map<Invalidation,InvalidationListener> batch) {
+        HashMap<String,ArrayList<Map.Entry<Invalidation,InvalidationListener>>> channels = new HashMap<String,ArrayList<Map.Entry<Invalidation,InvalidationListener>>>();
+
+        for( Map.Entry<Invalidation,InvalidationListener> entry : batch.entrySet() ) {
+            ArrayList<Map.Entry<Invalidation,InvalidationListener>> entries = channels.get(entry.getKey().getChannel());
+
+            if( entries == null ) {
+                entries = new ArrayList<Map.Entry<Invalidation,InvalidationListener>>();
+                channels.put(entry.getKey().getChannel(), entries);
+            }
+            entries.add(entry);
+        }
+        for( Subscription subscription : subscriptions ) {
+            ArrayList<Map.Entry<Invalidation,InvalidationListener>> entries = channels.get(subscription.channel);
+            ArrayList<Invalidation> invalidations;
+
+            if( entries == null ) {
+                continue;
+            }
+            invalidations = new ArrayList<Invalidation>(entries.size());
+            for( Map.Entry<Invalidation,InvalidationListener> entry : entries ) {
+                if( entry.getValue() != subscription.listener ) {
+                    invalidations.add(entry.getKey());
+                }
+            }
+            if( !invalidations.isEmpty() ) {
+                try {
+                    subscription.listener.invalidate(invalidations);
+                }
+                catch( RuntimeException e ) {
+                    logger.warn("Invalidation listener failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+
+/**
+ * <p>
+ *   Receives batches of invalidations from an {@link InvalidationBus}. Listeners are called
+ *   on a background thread and should drop the stale values quickly.
+ * </p>
+ */
+public interface InvalidationListener {
+    /**
+     * Drops the values named by the specified invalidations.
+     * @param invalidations the invalidations for the channel to which the listener subscribed
+     */
+    public abstract void invalidate(@Nonnull Collection<Invalidation> invalidations);
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+
+/**
+ * <p>
+ *   Carries batches of invalidations between {@link InvalidationBus} instances, typically in
+ *   different JVMs. A transport delivers the batches it receives to its bus by calling
+ *   {@link InvalidationBus#receive(Collection)}, and sends the batches published locally when
+ *   the bus calls {@link #send(InvalidationBus, Collection)}.
+ * </p>
+ * @see LoopbackTransport
+ */
+public interface InvalidationTransport {
+    /**
+     * Attaches the specified bus to this transport so that batches arriving from elsewhere are
+     * delivered to it.
+     * @param bus the bus to which received batches are delivered
+     */
+    public abstract void connect(@Nonnull InvalidationBus bus);
+
+    /**
+     * Detaches the specified bus from this transport.
+     * @param bus the bus to detach
+     */
+    public abstract void disconnect(@Nonnull InvalidationBus bus);
+
+    /**
+     * Sends a batch published on the specified bus to every other bus reachable through this transport.
+     * @param origin the bus on which the batch was published
+     * @param invalidations the invalidations in the batch
+     */
+    public abstract void send(@Nonnull InvalidationBus origin, @Nonnull Collection<Invalidation> invalidations);
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * <p>
+ *   Serializes values with standard Java object serialization. Values must implement
+ *   {@link java.io.Serializable}. A serializer written for the specific type of value being
+ *   cached will generally be both faster and more compact.
+ * </p>
+ * @param <V> the type of values being serialized
+ */
+public class JavaSerializer<V> implements Serializer<V> {
+    public JavaSerializer() { }
+
+    public @Nonnull byte[] serialize(@Nonnull V value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+            out.writeObject(value);
+            out.close();
+        }
+        catch( IOException e ) {
+            throw new CacheManagementException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nonnull V deserialize(@Nonnull byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+            try {
+                return (V)in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch( IOException e ) {
+            throw new CacheManagementException(e);
+        }
+        catch( ClassNotFoundException e ) {
+            throw new CacheManagementException(e);
+        }
+    }
+}
@@ -23,16 +23,47 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
+/**
+ * <p>
+ *   A collection loaded in the background from a {@link Jiterator}. Elements are stored in an append-only
+ *   {@link AppendList} as they arrive, so any number of threads can iterate over the collection while it loads:
+ *   each iterator reads the elements already loaded directly from the shared storage and then waits for more
+ *   at the tail, without copying anything or holding the lock the loader appends under.
+ * </p>
+ * <p>
+ *   Methods that must wait for elements, such as {@link #get(int)} and {@link #contains(Object)}, sleep on the
+ *   storage's condition and wake exactly when elements arrive or loading ends. Searches resume from where
+ *   their previous scan stopped, so each element is examined once however many times the searcher wakes.
+ * </p>
+ * <p>
+ *   Changes other than appends, such as removing an element, replace the storage with a modified copy. An
+ *   iterator started before such a change while the collection was still loading fails with a
+ *   {@link ConcurrentModificationException} once it runs out of the elements it can see.
+ * </p>
+ * <p>
+ *   Streams over the collection read the shared storage in the same way, so they process elements as they
+ *   load, and parallel streams split off the elements loaded so far while the tail keeps loading.
+ * </p>
+ */
 public class JitCollection<T> implements Collection<T> {
-    private volatile boolean   complete;
-    private Throwable          error;
-    final private List<T>      list;
-    private int                size;
-    final private Jiterator<T> source;
-    private volatile List<T>   toAdd;
+    private volatile boolean       complete;
+    private volatile Throwable     error;
+    private volatile AppendList<T> list;
+    private int                    size;
+    final private Jiterator<T>     source;
+    private volatile List<T>       toAdd;
+
+    /**
+     * The number of elements the loader takes from the jiterator at a time.
+     */
+    static private final int LOAD_BATCH = 256;
 
     @SuppressWarnings("unused")
     private JitCollection() {  throw new RuntimeException("Don't do this"); }
@@ -45,7 +76,7 @@ public class JitCollection<T> implements Collection<T> {
     public JitCollection(@Nonnull Jiterator<T> src, @Nonnull String nom) {
         source = src;
         size = -1;
-        list  = new ArrayList<T>();
+        list  = new AppendList<T>();
         DaseinUtilTasks.submit(new JitCollectionAddTask());
     }
 
@@ -53,13 +84,14 @@ public class JitCollection<T> implements Collection<T> {
         @Override
         public void run() {
             try {
-                for( T item : source ) {
+                List<T> batch;
+
+                while( !(batch = source.nextBatch(LOAD_BATCH)).isEmpty() ) {
                     synchronized( source ) {
                         if( complete ) {
                             return;
                         }
-                        list.add(item);
-                        source.notifyAll();
+                        list.addAll(batch);
                     }
                 }
             }
@@ -67,7 +99,7 @@ public class JitCollection<T> implements Collection<T> {
                 synchronized( source ) {
                     error = e.getCause();
                     complete = true;
-                    source.notifyAll();
+                    list.fail(error);
                 }
                 toAdd = null;
                 return;
@@ -76,7 +108,7 @@ public class JitCollection<T> implements Collection<T> {
                 synchronized( source ) {
                     error = t;
                     complete = true;
-                    source.notifyAll();
+                    list.fail(error);
                 }
                 toAdd = null;
                 return;
@@ -87,11 +119,303 @@ public class JitCollection<T> implements Collection<T> {
                     toAdd = null;
                 }
                 complete = true;
-                source.notifyAll();
+                list.complete();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the shared storage of the collection, waiting at the tail while the collection loads.
+     */
+    private class SnapshotIterator implements Iterator<T> {
+        private int           index = 0;
+        private AppendList<T> items;
+        private int           known = 0;
+        private int           last  = -1;
+
+        private SnapshotIterator(@Nonnull AppendList<T> items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( index < known ) {
+                return true;
+            }
+            known = awaitIndex(items, index);
+            return (index < known);
+        }
+
+        @Override
+        public T next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException("Invalid attempt to get another element from empty iterator.");
+            }
+            last = index;
+            return items.get(index++);
+        }
+
+        @Override
+        public void remove() {
+            if( last < 0 ) {
+                throw new IllegalStateException("No element to remove");
+            }
+            synchronized( source ) {
+                if( !complete ) {
+                    throw new UnsupportedOperationException("Cannot remove items from a collection that is still loading.");
+                }
+                if( list != items ) {
+                    throw new ConcurrentModificationException("The collection was modified outside of this iterator");
+                }
+                ArrayList<T> copy = items.toList();
+
+                copy.remove(last);
+                replace(copy);
+                items = list;
+                index = last;
+                known = items.size();
+                last = -1;
+            }
+        }
+    }
+
+    /**
+     * Splits the shared storage of the collection by index. A spliterator either covers a fixed range of
+     * elements that have already loaded or follows the tail of the collection while it loads, in which case
+     * splitting hands off the elements loaded so far and keeps the tail.
+     */
+    private class SnapshotSpliterator implements Spliterator<T> {
+        private final int           characteristics;
+        private int                 fence;
+        private int                 index;
+        private final AppendList<T> items;
+
+        /**
+         * @param items the storage to read from
+         * @param index the index of the first element to read
+         * @param fence the index after the last element to read, or -1 to follow the tail
+         * @param sized true if the size of the collection was known when the stream was created
+         */
+        private SnapshotSpliterator(@Nonnull AppendList<T> items, int index, int fence, boolean sized) {
+            this.items = items;
+            this.index = index;
+            this.fence = fence;
+            this.characteristics = ORDERED | (sized ? SIZED | SUBSIZED : 0);
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics;
+        }
+
+        @Override
+        public long estimateSize() {
+            if( fence < 0 ) {
+                if( items.getState() == AppendList.COMPLETE ) {
+                    fence = items.size();
+                }
+                else {
+                    synchronized( source ) {
+                        return (size > 0 ? Math.max(0, size - index) : Long.MAX_VALUE);
+                    }
+                }
+            }
+            return (fence - index);
+        }
+
+        @Override
+        public void forEachRemaining(@Nonnull Consumer<? super T> action) {
+            while( true ) {
+                int known = (fence < 0 ? awaitIndex(items, index) : fence);
+
+                if( index >= known ) {
+                    return;
+                }
+                while( index < known ) {
+                    action.accept(items.get(index++));
+                }
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(@Nonnull Consumer<? super T> action) {
+            if( index >= (fence < 0 ? awaitIndex(items, index) : fence) ) {
+                return false;
+            }
+            action.accept(items.get(index++));
+            return true;
+        }
+
+        @Override
+        public @Nullable Spliterator<T> trySplit() {
+            int lo = index;
+
+            if( fence < 0 ) {
+                if( items.getState() == AppendList.COMPLETE ) {
+                    fence = items.size();
+                }
+                else {
+                    int hi = awaitIndex(items, lo);
+
+                    if( lo >= hi ) {
+                        return null;
+                    }
+                    index = hi;
+                    return new SnapshotSpliterator(items, lo, hi, true);
+                }
+            }
+            int mid = (lo + fence) >>> 1;
+
+            if( lo >= mid ) {
+                return null;
+            }
+            index = mid;
+            return new SnapshotSpliterator(items, lo, mid, true);
+        }
+    }
+
+    /**
+     * Waits until the storage holds an element at the specified index or has ended.
+     * @param items the storage to wait on
+     * @param index the index of the element wanted
+     * @return the number of elements known to be in the storage, which is no more than the index only if it has completed
+     * @throws JiteratorLoadException loading failed before the element arrived
+     * @throws ConcurrentModificationException the collection was modified before the element arrived
+     */
+    static private int awaitIndex(@Nonnull AppendList<?> items, int index) {
+        while( true ) {
+            int known = items.await(index);
+
+            if( index < known ) {
+                return known;
+            }
+            switch( items.getState() ) {
+                case AppendList.FAILED:
+                    throw new JiteratorLoadException(items.getError());
+                case AppendList.SUPERSEDED:
+                    throw new ConcurrentModificationException("The collection was modified while it was loading");
+                case AppendList.COMPLETE:
+                    // the last elements may have been appended after the size was read
+                    return items.size();
+            }
+            // woken without new elements, for example by setSize()
+        }
+    }
+
+    /**
+     * Swaps in new storage holding the specified elements after a change other than an append. Must be
+     * called while holding the lock on the source.
+     * @param items the new contents of the collection
+     */
+    private void replace(@Nonnull List<T> items) {
+        AppendList<T> old = list;
+        AppendList<T> next = new AppendList<T>(items);
+
+        if( complete ) {
+            if( error != null ) {
+                next.fail(error);
+            }
+            else {
+                next.complete();
+            }
+        }
+        list = next;
+        old.supersede();
+    }
+
+    /**
+     * Waits until more than the specified number of elements have loaded or loading has ended. Wake-ups
+     * that bring neither, such as those from {@link #setSize(int)}, are waited out.
+     * @param count the number of elements that must be exceeded
+     * @return the storage of the collection at the end of the wait
+     */
+    private @Nonnull AppendList<T> awaitElements(int count) {
+        while( true ) {
+            AppendList<T> items = list;
+            int known = items.await(count);
+
+            switch( items.getState() ) {
+                case AppendList.SUPERSEDED:
+                    break;
+                case AppendList.OPEN:
+                    if( count < known ) {
+                        return items;
+                    }
+                    break;
+                default:
+                    return items;
+            }
+        }
+    }
+
+    /**
+     * Waits for loading to end.
+     * @return the storage of the collection once loading has ended
+     * @throws JiteratorLoadException loading failed
+     */
+    private @Nonnull AppendList<T> awaitLoaded() {
+        while( true ) {
+            AppendList<T> items = awaitElements(Integer.MAX_VALUE);
+
+            switch( items.getState() ) {
+                case AppendList.OPEN:
+                    break;
+                case AppendList.FAILED:
+                    throw new JiteratorLoadException(items.getError());
+                default:
+                    return items;
             }
         }
     }
 
+    /**
+     * Searches the collection for an element, waiting for more elements to load while there is no match.
+     * Each wake-up scans only the elements that arrived since the previous scan.
+     * @param o the element being sought
+     * @param pending true if elements added by the application while loading should also be checked
+     * @return the index of the first match, -1 if there is none, or -2 if the only match was added while loading
+     * @throws JiteratorLoadException loading failed before a match was found
+     */
+    private int find(@Nullable Object o, boolean pending) {
+        AppendList<T> items = list;
+        int scanned = 0;
+
+        while( true ) {
+            int n = items.size();
+            int idx = items.indexOf(o, scanned, n);
+
+            if( idx != -1 ) {
+                return idx;
+            }
+            scanned = n;
+            int state = items.getState();
+
+            if( state == AppendList.SUPERSEDED ) {
+                items = list;
+                scanned = 0;
+                continue;
+            }
+            if( state != AppendList.OPEN ) {
+                if( items.size() > scanned ) {
+                    // appended after the size was read
+                    continue;
+                }
+                if( state == AppendList.FAILED ) {
+                    throw new JiteratorLoadException(items.getError());
+                }
+                return -1;
+            }
+            if( pending && toAdd != null ) {
+                synchronized( source ) {
+                    if( toAdd != null && toAdd.contains(o) ) {
+                        return -2;
+                    }
+                }
+            }
+            items.await(scanned);
+        }
+    }
+
     @Override
     public boolean add(@Nullable T item) {
         synchronized( source ) {
@@ -99,7 +423,8 @@ public class JitCollection<T> implements Collection<T> {
                 throw new JiteratorLoadException(error);
             }
             if( complete ) {
-                return list.add(item);
+                list.add(item);
+                return true;
             }
             else {
                 if( toAdd == null ) {
@@ -111,23 +436,16 @@ public class JitCollection<T> implements Collection<T> {
     }
 
     public void add(@Nonnegative int index, @Nullable T element) {
+        AppendList<T> items = awaitElements(index);
+
+        if( items.getState() == AppendList.FAILED ) {
+            throw new JiteratorLoadException(items.getError());
+        }
         synchronized( source ) {
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            if( complete || list.size() > index ) {
-                list.add(index, element);
-            }
-            else {
-                while( !complete && list.size() <= index ) {
-                    try { source.wait(100L); }
-                    catch( InterruptedException e ) { /* ignore */ }
-                }
-                if( error != null ) {
-                    throw new JiteratorLoadException(error);
-                }
-                list.add(index, element);
-            }
+            ArrayList<T> copy = list.toList();
+
+            copy.add(index, element);
+            replace(copy);
         }
     }
 
@@ -138,7 +456,8 @@ public class JitCollection<T> implements Collection<T> {
                 throw new JiteratorLoadException(error);
             }
             if( complete) {
-                return list.addAll(c);
+                list.addAll(c);
+                return !c.isEmpty();
             }
             else {
                 if( toAdd == null ) {
@@ -150,24 +469,18 @@ public class JitCollection<T> implements Collection<T> {
     }
 
     public boolean addAll(@Nonnegative int index, @Nonnull Collection<? extends T> c) {
+        AppendList<T> items = awaitElements(index);
+
+        if( items.getState() == AppendList.FAILED ) {
+            throw new JiteratorLoadException(items.getError());
+        }
         synchronized( source ) {
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            if( complete || list.size() > index ) {
-                return list.addAll(index, c);
-            }
-            else {
-                while( !complete && list.size() <= index ) {
-                    try { wait(100L); }
-                    catch( InterruptedException e ) { /* ignore */ }
-                }
-                if( error != null ) {
-                    throw new JiteratorLoadException(error);
-                }
-                return list.addAll(index, c);
-            }
-        }        
+            ArrayList<T> copy = list.toList();
+            boolean changed = copy.addAll(index, c);
+
+            replace(copy);
+            return changed;
+        }
     }
 
     @Override
@@ -175,279 +488,186 @@ public class JitCollection<T> implements Collection<T> {
         synchronized( source ) {
             error = null;
             complete = true;
-            list.clear();
+            replace(new ArrayList<T>());
             toAdd = null;
         }
     }
 
     @Override
     public boolean contains(@Nullable Object item) {
-        synchronized( source ) {
-            while( !complete ) {
-                if( list.contains(item) ) {
-                    return true;
-                }
-                else if( toAdd != null && toAdd.contains(item) ) {
-                    return true;
-                }
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            return list.contains(item);
-        }
+        return (find(item, true) != -1);
     }
 
     @Override
     public boolean containsAll(@Nonnull Collection<?> c) {
-        synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }                
+        for( Object item : c ) {
+            if( find(item, false) == -1 ) {
+                return false;
             }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }            
-            return list.containsAll(c);
         }
+        return true;
     }
 
     public T get(@Nonnegative int index) {
-        synchronized( source ) {
-            while( !complete && list.size() <= index ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }                                
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }            
-            return list.get(index);
+        AppendList<T> items = awaitElements(index);
+
+        if( items.getState() == AppendList.FAILED ) {
+            throw new JiteratorLoadException(items.getError());
+        }
+        if( index < 0 || index >= items.size() ) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + items.size());
         }
+        return items.get(index);
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     public int indexOf(@Nullable Object o) {
-        synchronized( source ) {
-            while( !complete ) {
-                int idx;
-                
-                idx = list.indexOf(o);
-                if( idx != -1 ) {
-                    return idx;
-                }
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }            
-            return list.indexOf(o);
-        }        
+        return find(o, false);
     }
 
     @Override
     public boolean isEmpty() {
-        synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }            
-            return list.isEmpty();
-        }
-    }
+        AppendList<T> items = awaitElements(0);
 
-    private class JitCollectionJiteratorIteratorTask implements Runnable {
-
-        private final Jiterator<T> it;
-
-        private JitCollectionJiteratorIteratorTask(Jiterator<T> it) {
-            this.it = it;
-        }
-
-        @Override
-        public void run() {
-            int idx = 0;
-
-            synchronized( source ) {
-                try {
-                    while( !complete ) {
-                        if( idx < list.size() ) {
-                            this.it.push(list.get(idx++));
-                        }
-                        else {
-                            try { source.wait(100L); }
-                            catch( InterruptedException e ) { /* ignore */ }
-                        }
-                    }
-                    while( idx < list.size() ) {
-                        this.it.push(list.get(idx++));
-                    }
-                    if( error != null ) {
-                        throw new JiteratorLoadException(error);
-                    }
-                    this.it.complete();
-                }
-                catch( JiteratorLoadException e ) {
-                    error = e.getCause();
-                    this.it.setLoadException(e);
-                }
-                catch( Throwable t ) {
-                    error = t.getCause();
-                    this.it.setLoadException(error == null ? new JiteratorLoadException(t) : new JiteratorLoadException(error));
-                }
-            }
+        if( items.getState() == AppendList.FAILED ) {
+            throw new JiteratorLoadException(items.getError());
         }
+        return (items.size() == 0);
     }
 
     @Override
     public @Nonnull Iterator<T> iterator() {
         synchronized( source ) {
-            if( complete ) {
-                if( error != null ) {
-                    throw new JiteratorLoadException(error);
-                }                
-                return list.iterator();
+            if( complete && error != null ) {
+                throw new JiteratorLoadException(error);
             }
+            return new SnapshotIterator(list);
         }
-
-        final Jiterator<T> it = new Jiterator<T>();
-        DaseinUtilTasks.submit(new JitCollectionJiteratorIteratorTask(it));
-        return it;
     }
 
-    @SuppressWarnings({ "SuspiciousMethodCalls", "unused" })
+    @SuppressWarnings("unused")
     public int lastIndexOf(@Nullable Object o) {
-        synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            return list.lastIndexOf(o);
-        }
+        return awaitLoaded().lastIndexOf(o);
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     public boolean remove(@Nullable Object o) {
-        synchronized( source ) {
-            while( !complete ) {
-                if( error != null ) {
-                    throw new JiteratorLoadException(error);
-                }
-                if( list.contains(o) ) {
-                    return list.remove(o);
-                }
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
+        while( true ) {
+            int idx = find(o, false);
+
+            if( idx == -1 ) {
+                return false;
             }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
+            synchronized( source ) {
+                AppendList<T> items = list;
+
+                // only remove the match if nothing was changed since it was found
+                if( idx < items.size() && items.indexOf(o, idx, idx + 1) == idx ) {
+                    ArrayList<T> copy = items.toList();
+
+                    copy.remove(idx);
+                    replace(copy);
+                    return true;
+                }
             }
-            return list.remove(o);
         }
     }
 
     @SuppressWarnings("unused")
     public @Nullable T remove(@Nonnegative int index) {
+        AppendList<T> items = awaitElements(index);
+
+        if( items.getState() == AppendList.FAILED ) {
+            throw new JiteratorLoadException(items.getError());
+        }
         synchronized( source ) {
-            while( !complete ) {
-                if( error != null ) {
-                    throw new JiteratorLoadException(error);
-                }
-                if( list.size() > index ) {
-                    return list.remove(index);
-                }
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            return list.remove(index);
+            ArrayList<T> copy = list.toList();
+            T item = copy.remove(index);
+
+            replace(copy);
+            return item;
         }
     }
 
     public boolean removeAll(@Nonnull Collection<?> c) {
+        awaitLoaded();
         synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
+            ArrayList<T> copy = list.toList();
+
+            if( !copy.removeAll(c) ) {
+                return false;
             }
-            return list.removeAll(c);
+            replace(copy);
+            return true;
         }
     }
 
     public boolean retainAll(@Nonnull Collection<?> c) {
+        awaitLoaded();
         synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
+            ArrayList<T> copy = list.toList();
+
+            if( !copy.retainAll(c) ) {
+                return false;
             }
-            return list.retainAll(c);
+            replace(copy);
+            return true;
         }
     }
 
     public void setSize(int size) {
         synchronized( source ) {
             this.size = size;
-            source.notifyAll();
         }
+        list.wake();
     }
 
     public @Nonnegative int size() {
-        synchronized( source ) {
-            while( !complete ) {
+        while( true ) {
+            AppendList<T> items = list;
+
+            switch( items.getState() ) {
+                case AppendList.SUPERSEDED:
+                    continue;
+                case AppendList.FAILED:
+                    throw new JiteratorLoadException(items.getError());
+                case AppendList.COMPLETE:
+                    return items.size();
+            }
+            synchronized( source ) {
                 if( size > 0 ) {
                     return size;
                 }
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
             }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            return list.size();
+            items.await(Integer.MAX_VALUE);
         }
     }
 
-    public @Nonnull Object[] toArray() {
+    /**
+     * Provides a spliterator that reads the elements of the collection as they load, so that streams over the
+     * collection process each element as it arrives. Splitting hands off the elements loaded so far. The
+     * spliterator reports its size if the collection had loaded, or {@link #setSize(int)} had been called,
+     * when it was created.
+     * @return a spliterator over the elements of the collection
+     * @throws JiteratorLoadException loading has already failed
+     */
+    @Override
+    public @Nonnull Spliterator<T> spliterator() {
         synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
+            if( complete && error != null ) {
                 throw new JiteratorLoadException(error);
             }
-            return list.toArray();
-        }        
+            AppendList<T> items = list;
+
+            return new SnapshotSpliterator(items, 0, -1, items.getState() == AppendList.COMPLETE || size > 0);
+        }
+    }
+
+    public @Nonnull Object[] toArray() {
+        return awaitLoaded().toArray();
     }
 
     @SuppressWarnings({"hiding", "SuspiciousToArrayCall"})
     public <T> T[] toArray(T[] a) {
-        synchronized( source ) {
-            while( !complete ) {
-                try { source.wait(100L); }
-                catch( InterruptedException e ) { /* ignore */ }
-            }
-            if( error != null ) {
-                throw new JiteratorLoadException(error);
-            }
-            return list.toArray(a);
-        }
+        return awaitLoaded().toArray(a);
     }
     
     @Override
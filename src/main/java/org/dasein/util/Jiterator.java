@@ -18,20 +18,30 @@
 
 package org.dasein.util;
 
-import com.sun.istack.internal.Nullable;
 import org.apache.log4j.Logger;
 import org.dasein.util.uom.time.Millisecond;
 import org.dasein.util.uom.time.TimePeriod;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>
@@ -45,6 +55,33 @@ import java.util.concurrent.TimeoutException;
  * been added, call {@link #complete()}.
  * </p>
  * <p>
+ * Pending items sit in a lock-free queue, so pushing and pulling an item costs the same no matter how
+ * far the consumer has fallen behind. Readers that find the jiterator empty park until a push, completion,
+ * or load error unparks them rather than polling for new items.
+ * </p>
+ * <p>
+ * By default a jiterator buffers as many items as its producers push. When the consumer may be slower than
+ * the source, call {@link #setCapacity(int)} to bound the buffer: {@link #push(Object)} then blocks once the
+ * capacity is reached and resumes when readers have drained the buffer to the low watermark, while
+ * {@link #offer(Object, long, TimeUnit)} gives up after a timeout. Populators that can cheaply pause their
+ * source (for example, between pages of a query) may check {@link #isAboveHighWatermark()} before fetching more.
+ * </p>
+ * <p>
+ * Producers that read their source a page at a time should hand each page over with {@link #pushAll(Collection)}
+ * and readers that process items in groups should use {@link #drainTo(Collection, int)} or {@link #nextBatch(int)}.
+ * Both pay the bookkeeping and wake-up costs once per batch rather than once per item.
+ * </p>
+ * <p>
+ * {@link #stream()} processes the items with <code>java.util.stream</code> as they arrive. If the populator
+ * knows how many items it will push, it should say so with {@link #setSize(int)} so streams can size their
+ * results and split parallel work evenly.
+ * </p>
+ * <p>
+ * A jiterator becomes demand-driven once a reader calls {@link #request(long)}: producers may then push only
+ * as many items as readers have asked for, blocking until more are requested. {@link PopulatorPublisher} uses
+ * this to let reactive subscribers pace the populator.
+ * </p>
+ * <p>
  * Last Modified $Date: 2009/07/02 01:37:02 $
  * </p>
  * @author George Reese
@@ -54,17 +91,31 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
     static private final Logger logger = Logger.getLogger(Jiterator.class);
     static private final Random idGenerator = new Random();
 
+    /**
+     * Stands in for <code>null</code> items, which the underlying queue cannot hold.
+     */
+    static private final Object NULL = new Object();
+
+    private final ConcurrentLinkedQueue<Thread> blocked = new ConcurrentLinkedQueue<Thread>();
+    private volatile int             capacity;
+    private final AtomicInteger      delivered = new AtomicInteger(0);
+    private final AtomicLong         demand = new AtomicLong(0L);
+    private volatile boolean         demandDriven;
     private final JiteratorFilter<T> filter;
+    private volatile int             highWatermark;
     private final String             jiteratorId;
+    private volatile Runnable        listener;
     private volatile long            lastTouch;
     private volatile Exception       loadException;
-    private boolean                  loaded;
+    private volatile boolean         loaded;
+    private volatile int             lowWatermark;
     private final String             name;
+    private final ConcurrentLinkedQueue<Thread> parked = new ConcurrentLinkedQueue<Thread>();
+    private final AtomicInteger      pending = new AtomicInteger(0);
+    private volatile int             size = -1;
     private TimePeriod<Millisecond>  timeout;
-    private ArrayList<T>             waiting;
+    private final ConcurrentLinkedQueue<Object> waiting = new ConcurrentLinkedQueue<Object>();
 
-    private transient boolean nexting = false;
-    
     /**
      * Constructs an empty jiterator into which you can start adding items.
      */
@@ -133,7 +184,6 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
     public Jiterator(@Nullable String name, @Nullable Collection<T> starterList, @Nullable JiteratorFilter<T> filter, @Nullable TimePeriod<?> timeout) {
         lastTouch = System.currentTimeMillis();
         loaded = false;
-        waiting = new ArrayList<T>();
         jiteratorId = new UUID(idGenerator.nextLong(), idGenerator.nextLong()).toString();
         this.filter = filter;
         if( name != null ) {
@@ -157,7 +207,7 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
      * items into the jiterator. If you fail to call this method, any threads reading from this
      * jiterator will ultimately hang until you call this method.
      */
-    public synchronized void complete() {
+    public void complete() {
         if( logger.isInfoEnabled() ) {
             logger.info("[" + this + "] Marking complete");
         }
@@ -166,10 +216,75 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
         }
         loaded = true;
         lastTouch = System.currentTimeMillis();
-        if( waiting != null && waiting.isEmpty() ) {
-            waiting = null;
+        wakeAll();
+        fireArrival();
+    }
+
+    /**
+     * Moves up to <code>max</code> items from the jiterator into the target collection. If the jiterator is
+     * empty, this method waits just as {@link #hasNext()} does until at least one item arrives or the jiterator
+     * is complete; it then takes whatever is buffered, up to the limit, without waiting further.
+     * @param target the collection to receive the items
+     * @param max the maximum number of items to move
+     * @return the number of items moved, which is 0 only once the jiterator is exhausted
+     * @throws JiteratorLoadException an error occurred during the load of the jiterator
+     */
+    public int drainTo(@Nonnull Collection<? super T> target, int max) {
+        if( max < 1 ) {
+            return 0;
         }
-        notifyAll();
+        while( true ) {
+            if( loadException != null ) {
+                throw new JiteratorLoadException(loadException);
+            }
+            boolean done = loaded;
+            int taken = 0;
+            Object item;
+
+            while( taken < max && (item = waiting.poll()) != null ) {
+                target.add(unwrap(item));
+                taken++;
+            }
+            if( taken > 0 ) {
+                int left = pending.addAndGet(-taken);
+
+                delivered.addAndGet(taken);
+
+                if( left <= lowWatermark && !blocked.isEmpty() ) {
+                    wakeProducers();
+                }
+                return taken;
+            }
+            if( done ) {
+                if( loadException != null ) {
+                    throw new JiteratorLoadException(loadException);
+                }
+                return 0;
+            }
+            waitForPush();
+        }
+    }
+
+    /**
+     * @return the number of buffered items at which {@link #push(Object)} blocks, or 0 if the jiterator is unbounded
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of items readers of a demand-driven jiterator have asked for and producers have yet to
+     * push, or <code>Long.MAX_VALUE</code> if the jiterator is not demand-driven
+     */
+    public long getDemand() {
+        return (demandDriven ? demand.get() : Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the buffer level at or above which {@link #isAboveHighWatermark()} advises producers to ease off
+     */
+    public int getHighWatermark() {
+        return highWatermark;
     }
 
     /**
@@ -179,6 +294,20 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
         return jiteratorId;
     }
             
+    /**
+     * @return the time at which an item was last pushed or the jiterator last changed state
+     */
+    long getLastTouch() {
+        return lastTouch;
+    }
+
+    /**
+     * @return the buffer level to which readers must drain a full jiterator before blocked producers resume
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
     /**
      * Provides a user-friendly name for the loader
      * @return the user-friendly name for the loader
@@ -187,6 +316,27 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
         return name;
     }
     
+    /**
+     * @return the number of items pushed into the jiterator that have not yet been read
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return the total number of items the jiterator will provide, or -1 if the populator has not said
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the time the jiterator may go untouched before waiting readers or producers fail it
+     */
+    public @Nonnull TimePeriod<Millisecond> getTimeout() {
+        return timeout;
+    }
+
     /**
      * Checks to see if there are more elements to be processed in the jiterator. If this method
      * is called prior to the jiterator being loaded with an item, it will hang until
@@ -194,50 +344,40 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
      * @return true if there are more elements to be processed
      * @throws JiteratorLoadException an error occurred during the load of the jiterator
      */
-    public synchronized boolean hasNext() {
-        while( nexting ) {
-            if( logger.isInfoEnabled() ) {
-                logger.info("[" + this + "] Waiting for another thread to pull item...");
-            }
-            try { wait(150L); }
-            catch( InterruptedException e ) { /* ignore */ }
-        }
+    public boolean hasNext() {
         if( loadException != null ) {
             throw new JiteratorLoadException(loadException);
         }
-        nexting = true;
-        try {
-            if( waiting == null ) {
-                return false;
-            }
-            if( !waiting.isEmpty() ) {
-                return true;
-            }
-            waitForPush();
-            if( loadException != null ) {
-                throw new JiteratorLoadException(loadException);
-            }
-            return (waiting != null && !waiting.isEmpty());
-        }
-        finally {
-            nexting = false;
-            notifyAll();
+        waitForPush();
+        if( loadException != null ) {
+            throw new JiteratorLoadException(loadException);
         }
+        return !waiting.isEmpty();
+    }
+
+    /**
+     * Indicates whether a bounded jiterator has buffered enough unread items that a populator should stop
+     * fetching new ones until the reader catches up. A demand-driven jiterator also reports true while readers
+     * have no outstanding demand. Always false for unbounded jiterators that are not demand-driven.
+     * @return true if the number of pending items has reached the high watermark or no items are wanted
+     */
+    public boolean isAboveHighWatermark() {
+        return ((capacity > 0 && pending.get() >= highWatermark) || (demandDriven && demand.get() == 0L));
     }
 
     /** 
      * @return true if all items have been processed and this jiterator can be discarded
      */
     @SuppressWarnings("unused")
-    public synchronized boolean isComplete() {
-        return (waiting == null);
+    public boolean isComplete() {
+        return (loadException != null || (loaded && waiting.isEmpty()));
     }
     
     /**
      * @return true if all items have been loaded into the jiterator
      */
     @SuppressWarnings("unused")
-    public synchronized boolean isLoaded() {
+    public boolean isLoaded() {
         return loaded;
     }
 
@@ -258,65 +398,340 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
      * @return true if there are more elements to be processed
      * @throws NoSuchElementException an attempt was made to read beyond the last item in the jiterator
      */    
-    public synchronized @Nullable T next() throws JiteratorLoadException {
-        while( nexting ) {
-            if( logger.isInfoEnabled() ) {
-                logger.info("[" + this + "] Waiting for another thread to pull item...");
+    public @Nullable T next() throws JiteratorLoadException {
+        while( true ) {
+            if( loadException != null ) {
+                throw new JiteratorLoadException(loadException);
             }
-            try { wait(150L); }
-            catch( InterruptedException e ) { /* ignore */ }
+            // read the flag before polling; everything pushed before complete() is visible once it is set
+            boolean done = loaded;
+            Object item = waiting.poll();
+
+            if( item != null ) {
+                int left = pending.decrementAndGet();
+
+                delivered.incrementAndGet();
+
+                if( left <= lowWatermark && !blocked.isEmpty() ) {
+                    wakeProducers();
+                }
+                return unwrap(item);
+            }
+            if( done ) {
+                if( loadException != null ) {
+                    throw new JiteratorLoadException(loadException);
+                }
+                throw new NoSuchElementException("Invalid attempt to get another element from empty iterator.");
+            }
+            waitForPush();
         }
-        if( loadException != null ) {
-            throw new JiteratorLoadException(loadException);
+    }
+
+    /**
+     * Provides up to <code>max</code> items from the jiterator, waiting as {@link #hasNext()} does if none are
+     * buffered yet.
+     * @param max the maximum number of items to return
+     * @return the next items in the jiterator, or an empty list once it is exhausted
+     * @throws JiteratorLoadException an error occurred during the load of the jiterator
+     */
+    public @Nonnull List<T> nextBatch(int max) {
+        ArrayList<T> batch = new ArrayList<T>(Math.max(0, Math.min(max, 1024)));
+
+        drainTo(batch, max);
+        return batch;
+    }
+
+    /**
+     * Offers a new item to the jiterator, waiting up to the specified time for room in the buffer if the jiterator
+     * is bounded and full. Items rejected by the filter count as accepted.
+     * @param item the item to be added
+     * @param timeout the maximum time to wait for room
+     * @param unit the unit of the timeout
+     * @return true if the item was added (or filtered out), false if the buffer remained full for the whole timeout
+     * @throws IllegalStateException an attempt was made to push an item on a jiterator marked complete
+     * @throws InterruptedException the calling thread was interrupted while waiting for room
+     * @throws JiteratorLoadException the jiterator has failed, for example because its reader cancelled, or its reader stopped draining it while waiting for room
+     */
+    public boolean offer(@Nullable T item, long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        if( !accept(item) ) {
+            return true;
+        }
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+
+        if( !awaitCapacity(nanos, true) ) {
+            return false;
+        }
+        if( awaitDemand(1, Math.max(0L, deadline - System.nanoTime()), true) < 1 ) {
+            return false;
+        }
+        enqueue(item);
+        return true;
+    }
+
+    /**
+     * Pushes a new item into the jiterator. The new item will be added to the end of the jiterator. If the
+     * jiterator is bounded and full, this method blocks until the reader drains it to the low watermark.
+     * @param item the item to be added
+     * @throws IllegalStateException an attempt was made to push an item on a jiterator marked complete
+     * @throws JiteratorLoadException the jiterator has failed, for example because its reader cancelled, or its reader stopped draining it while waiting for room
+     */
+    public void push(@Nullable T item) {
+        if( !accept(item) ) {
+            return;
         }
-        nexting = true;
         try {
-            T t;
-            
-            if( waiting == null ) {
-                throw new NoSuchElementException("Invalid attempt to get another element from empty iterator.");
+            awaitCapacity(-1L, false);
+            awaitDemand(1, -1L, false);
+        }
+        catch( InterruptedException e ) {
+            // not thrown by an uninterruptible wait
+        }
+        enqueue(item);
+    }
+
+    /**
+     * Pushes a batch of items into the jiterator in order, paying for the timestamp and for waking readers
+     * once per batch rather than once per item. Items go through the filter individually. If the jiterator is
+     * bounded, the batch is handed over in pieces no larger than the room available, blocking as
+     * {@link #push(Object)} does whenever the buffer is full.
+     * @param items the items to be added
+     * @throws IllegalStateException an attempt was made to push items on a jiterator marked complete
+     * @throws JiteratorLoadException the jiterator has failed, for example because its reader cancelled, or its reader stopped draining it while waiting for room
+     */
+    public void pushAll(@Nonnull Collection<? extends T> items) {
+        checkOpen();
+        ArrayList<Object> batch = new ArrayList<Object>(items.size());
+
+        for( T item : items ) {
+            if( filter == null || accept(item) ) {
+                batch.add(item == null ? NULL : item);
             }
-            if( !waiting.isEmpty() ) {
-                t = waiting.get(0);
-                waiting.remove(0);
-                if( waiting.isEmpty() && loaded ) { 
-                    waiting = null;
-                } 
-                return t;
+            else if( loaded ) {
+                // the filter failed the jiterator
+                return;
             }
-            waitForPush();
-            if( loadException != null ) {
-                throw new JiteratorLoadException(loadException);
+        }
+        int offset = 0;
+
+        while( offset < batch.size() ) {
+            int max = capacity;
+            int end = batch.size();
+
+            try {
+                awaitCapacity(-1L, false);
+                if( max > 0 ) {
+                    end = Math.min(end, offset + Math.max(1, max - pending.get()));
+                }
+                end = offset + awaitDemand(end - offset, -1L, false);
             }
-            if( waiting == null || waiting.isEmpty() ) {
-                throw new NoSuchElementException("Invalid attempt to get another element from empty iterator.");            
+            catch( InterruptedException e ) {
+                // not thrown by an uninterruptible wait
             }
-            t = waiting.get(0);
-            waiting.remove(0);
-            if( waiting.isEmpty() && loaded ) { 
-                waiting = null;
+            List<Object> piece = (offset == 0 && end == batch.size() ? batch : batch.subList(offset, end));
+
+            pending.addAndGet(piece.size());
+            waiting.addAll(piece);
+            lastTouch = System.currentTimeMillis();
+            if( !parked.isEmpty() ) {
+                wakeAll();
             }
-            return t;        
+            fireArrival();
+            offset = end;
         }
-        finally {
-            nexting = false;
-            notifyAll();
+    }
+
+    /**
+     * Pushes an array of items into the jiterator. See {@link #pushAll(Collection)}.
+     * @param items the items to be added
+     * @throws IllegalStateException an attempt was made to push items on a jiterator marked complete
+     * @throws JiteratorLoadException the jiterator has failed, for example because its reader cancelled, or its reader stopped draining it while waiting for room
+     */
+    public void pushBatch(@Nonnull T[] items) {
+        pushAll(Arrays.asList(items));
+    }
+
+    /**
+     * Bounds the jiterator's buffer at the specified capacity. Once it holds that many unread items, pushes
+     * block until readers drain it to half the capacity. The high watermark is the capacity itself. A
+     * capacity of 0 makes the jiterator unbounded again.
+     * @param capacity the maximum number of unread items to buffer, or 0 for no limit
+     * @throws IllegalArgumentException the capacity is negative
+     */
+    public void setCapacity(int capacity) {
+        setCapacity(capacity, capacity, capacity/2);
+    }
+
+    /**
+     * Bounds the jiterator's buffer at the specified capacity with explicit watermarks. Once the buffer holds
+     * <code>capacity</code> unread items, pushes block until readers drain it to <code>lowWatermark</code>.
+     * {@link #isAboveHighWatermark()} reports true from <code>highWatermark</code> items onwards so populators
+     * can pause their source before they hit the hard limit. With multiple producers, the buffer may briefly
+     * exceed the capacity by at most one item per producer.
+     * @param capacity the maximum number of unread items to buffer, or 0 for no limit
+     * @param highWatermark the level at which producers are advised to ease off
+     * @param lowWatermark the level at which blocked producers resume
+     * @throws IllegalArgumentException the watermarks do not satisfy 0 &lt;= low &lt; high &lt;= capacity
+     */
+    public void setCapacity(int capacity, int highWatermark, int lowWatermark) {
+        if( capacity < 0 ) {
+            throw new IllegalArgumentException("Capacity may not be negative: " + capacity);
+        }
+        if( capacity > 0 && (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity) ) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity: " + lowWatermark + "/" + highWatermark + "/" + capacity);
         }
+        if( capacity == 0 ) {
+            highWatermark = 0;
+            lowWatermark = 0;
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.capacity = capacity;
+        wakeProducers();
     }
 
     /**
-     * Pushes a new item into the jiterator. The new item will be added to the end of the jiterator.
-     * @param item the item to be added
-     * @throws IllegalStateException an attempt was made to push an item on a jiterator marked complete
+     * Provides a parallel stream over the items in this jiterator. See {@link #stream()}.
+     * @return a parallel stream that consumes the jiterator
+     */
+    public @Nonnull Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Asks for <code>count</code> more items, making the jiterator demand-driven if it is not already. From then
+     * on, producers block before pushing any item beyond those requested, and a request that adds nothing for the
+     * length of the jiterator's timeout while a producer waits fails the jiterator with a {@link TimeoutException}.
+     * Items removed by the filter do not use up demand. Requests accumulate up to <code>Long.MAX_VALUE</code>,
+     * which stands for unlimited demand.
+     * @param count the number of additional items wanted
+     * @throws IllegalArgumentException the count is not positive
+     */
+    public void request(long count) {
+        if( count < 1L ) {
+            throw new IllegalArgumentException("Requests must be for at least one item: " + count);
+        }
+        demandDriven = true;
+        while( true ) {
+            long current = demand.get();
+            long next = current + count;
+
+            if( next < 0L ) {
+                next = Long.MAX_VALUE;
+            }
+            if( demand.compareAndSet(current, next) ) {
+                break;
+            }
+        }
+        lastTouch = System.currentTimeMillis();
+        wakeProducers();
+    }
+
+    /**
+     * Records the total number of items this jiterator will provide, after filtering, so that streams over it
+     * can report their size. Only the first call has any effect and the size must be exact.
+     * @param size the total number of items the populator will push
+     * @throws IllegalArgumentException the size is negative
+     */
+    public void setSize(int size) {
+        if( size < 0 ) {
+            throw new IllegalArgumentException("Size may not be negative: " + size);
+        }
+        synchronized( this ) {
+            if( this.size < 0 ) {
+                this.size = size;
+            }
+        }
+    }
+
+    /**
+     * Provides a spliterator that takes items from this jiterator a batch at a time as they arrive. Like
+     * the jiterator itself, it may be consumed only once.
+     * @return a spliterator over the unread items in this jiterator
+     */
+    @Override
+    public @Nonnull Spliterator<T> spliterator() {
+        return new BatchSpliterator<T>(size >= 0) {
+            @Override
+            @Nonnull List<T> fetch(int max) {
+                return nextBatch(max);
+            }
+
+            @Override
+            long remaining() {
+                int total = size;
+
+                return (total < 0 ? -1L : Math.max(0, total - delivered.get()));
+            }
+        };
+    }
+
+    /**
+     * Provides a lazy stream over the items in this jiterator. Stages run on each item as soon as it is pushed
+     * rather than once the jiterator is loaded. Reading the stream consumes the jiterator, and an error during
+     * the load surfaces from the terminal operation as a {@link JiteratorLoadException}.
+     * @return a sequential stream that consumes the jiterator
+     */
+    public @Nonnull Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * This operation is not allowed
+     * @throws UnsupportedOperationException always thrown
      */
-    public synchronized void push(@Nullable T item) {
-        if( waiting == null ) {
+    public void remove() {
+        throw new UnsupportedOperationException("Removing from a jiterator is not supported.");
+    }
+
+    public void setLoadException(Exception e) {
+        logger.warn("[" + this + "] Setting error for jiterator " + this + ": " + e.getMessage());
+        loadException  = e;
+        loaded = true;
+        waiting.clear();
+        pending.set(0);
+        lastTouch = System.currentTimeMillis();
+        wakeAll();
+        fireArrival();
+    }
+
+    /**
+     * Registers a callback to run whenever items arrive or the jiterator completes or fails. The callback runs
+     * on the thread that made the change and must not block.
+     * @param listener the callback, or <code>null</code> to remove it
+     */
+    void setArrivalListener(@Nullable Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Checks that items may still be pushed. A jiterator that failed, including one whose reader gave up on
+     * it, reports its failure rather than claiming to have completed.
+     * @throws JiteratorLoadException the jiterator failed
+     * @throws IllegalStateException the jiterator completed
+     */
+    private void checkOpen() {
+        Exception e = loadException;
+
+        if( e != null ) {
+            throw new JiteratorLoadException(e);
+        }
+        if( loaded ) {
             throw new IllegalStateException("Invalid attempt to add an item to a completed list.");
         }
+    }
+
+    /**
+     * Checks that items may still be pushed and applies the filter.
+     * @param item the item being pushed
+     * @return true if the item should be added to the buffer
+     */
+    private boolean accept(@Nullable T item) {
+        checkOpen();
         if( filter != null ) {
             try {
                 if( !filter.filter(item) ) {
-                    return;
+                    return false;
                 }
             }
             catch( Throwable t ) {
@@ -330,45 +745,218 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
                     e = new RuntimeException(t);
                 }
                 setLoadException(e);
-                return;
+                return false;
             }
         }
-        waiting.add(item);
-        lastTouch = System.currentTimeMillis();
-        notifyAll();
+        return true;
     }
-    
+
     /**
-     * This operation is not allowed
-     * @throws UnsupportedOperationException always thrown
+     * Waits until a bounded jiterator has room for another item. Once the buffer is full, the caller waits
+     * for readers to drain it to the low watermark rather than for a single free slot so that producers
+     * and readers do not wake each other for every item. If readers take nothing for the length of the
+     * jiterator's timeout, the jiterator fails with a {@link TimeoutException}.
+     * @param nanos the maximum time to wait, or a negative value to wait indefinitely
+     * @param interruptible true if an interrupt should abort the wait
+     * @return true if there is room, false if the wait timed out
+     * @throws InterruptedException the wait was interruptible and the thread was interrupted
      */
-    public synchronized void remove() {
-        throw new UnsupportedOperationException("Removing from a jiterator is not supported.");
+    private boolean awaitCapacity(long nanos, boolean interruptible) throws InterruptedException {
+        int max = capacity;
+
+        if( max < 1 || pending.get() < max ) {
+            return true;
+        }
+        Thread me = Thread.currentThread();
+        long deadline = (nanos < 0L ? -1L : System.nanoTime() + nanos);
+        long progress = System.currentTimeMillis();
+        int seen = pending.get();
+        boolean interrupted = false;
+
+        try {
+            while( true ) {
+                checkOpen();
+                int n = pending.get();
+
+                if( capacity < 1 || n <= lowWatermark ) {
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+
+                if( n < seen ) {
+                    seen = n;
+                    progress = now;
+                }
+                else if( now - progress > timeout.longValue() ) {
+                    logger.error("[" + this + "] Jiterator reader stopped draining " + getName());
+                    setLoadException(new TimeoutException("Jiterator " + getName() + " timed out waiting for its reader"));
+                    throw new JiteratorLoadException(loadException);
+                }
+                long sleep = TimeUnit.MILLISECONDS.toNanos(timeout.longValue() - (now - progress) + 1L);
+
+                if( deadline != -1L ) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if( remaining <= 0L ) {
+                        return false;
+                    }
+                    sleep = Math.min(sleep, remaining);
+                }
+                blocked.add(me);
+                try {
+                    // re-check after registering so a drain between the test above and here is not missed
+                    if( pending.get() > lowWatermark && !loaded ) {
+                        LockSupport.parkNanos(this, sleep);
+                    }
+                }
+                finally {
+                    blocked.remove(me);
+                }
+                if( Thread.interrupted() ) {
+                    if( interruptible ) {
+                        throw new InterruptedException();
+                    }
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if( interrupted ) {
+                me.interrupt();
+            }
+        }
     }
 
-    public synchronized void setLoadException(Exception e) {
-        logger.warn("[" + this + "] Setting error for jiterator " + this + ": " + e.getMessage());
-        loadException  = e;
-        loaded = true;
-        waiting = null;
-        nexting = false;
+    /**
+     * Waits until readers of a demand-driven jiterator have asked for items the producer has yet to push, then
+     * claims up to the specified number of them. Returns at once for a jiterator that is not demand-driven. If
+     * no request arrives for the length of the jiterator's timeout, the jiterator fails with a
+     * {@link TimeoutException}.
+     * @param wanted the number of items the caller would like to push
+     * @param nanos the maximum time to wait, or a negative value to wait indefinitely
+     * @param interruptible true if an interrupt should abort the wait
+     * @return the number of items the caller may push, which is 0 only if the wait timed out
+     * @throws InterruptedException the wait was interruptible and the thread was interrupted
+     */
+    private int awaitDemand(int wanted, long nanos, boolean interruptible) throws InterruptedException {
+        if( !demandDriven ) {
+            return wanted;
+        }
+        Thread me = Thread.currentThread();
+        long deadline = (nanos < 0L ? -1L : System.nanoTime() + nanos);
+        boolean interrupted = false;
+
+        try {
+            while( true ) {
+                checkOpen();
+                long current = demand.get();
+
+                if( current == Long.MAX_VALUE ) {
+                    return wanted;
+                }
+                if( current > 0L ) {
+                    int granted = (int)Math.min(current, wanted);
+
+                    if( demand.compareAndSet(current, current - granted) ) {
+                        return granted;
+                    }
+                    continue;
+                }
+                long idle = System.currentTimeMillis() - lastTouch;
+
+                if( idle > timeout.longValue() ) {
+                    logger.error("[" + this + "] Jiterator readers stopped requesting items from " + getName());
+                    setLoadException(new TimeoutException("Jiterator " + getName() + " timed out waiting for demand"));
+                    throw new JiteratorLoadException(loadException);
+                }
+                long sleep = TimeUnit.MILLISECONDS.toNanos(timeout.longValue() - idle + 1L);
+
+                if( deadline != -1L ) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if( remaining <= 0L ) {
+                        return 0;
+                    }
+                    sleep = Math.min(sleep, remaining);
+                }
+                blocked.add(me);
+                try {
+                    // re-check after registering so a request between the test above and here is not missed
+                    if( demand.get() == 0L && !loaded ) {
+                        LockSupport.parkNanos(this, sleep);
+                    }
+                }
+                finally {
+                    blocked.remove(me);
+                }
+                if( Thread.interrupted() ) {
+                    if( interruptible ) {
+                        throw new InterruptedException();
+                    }
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if( interrupted ) {
+                me.interrupt();
+            }
+        }
+    }
+
+    private void enqueue(@Nullable T item) {
+        pending.incrementAndGet();
+        waiting.offer(item == null ? NULL : item);
         lastTouch = System.currentTimeMillis();
-        notifyAll();
+        if( !parked.isEmpty() ) {
+            wakeAll();
+        }
+        fireArrival();
     }
-    
-    private transient long scream = 0L;
+
+    private void fireArrival() {
+        Runnable callback = listener;
+
+        if( callback != null ) {
+            callback.run();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nullable T unwrap(@Nonnull Object item) {
+        return (item == NULL ? null : (T)item);
+    }
+
+    private void wakeAll() {
+        for( Thread t : parked ) {
+            LockSupport.unpark(t);
+        }
+        wakeProducers();
+    }
+
+    private void wakeProducers() {
+        for( Thread t : blocked ) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private transient volatile long scream = 0L;
     /**
-     * Waits for a new item to be put into the jiterator or for the jiterator to be marked empty.
+     * Waits for a new item to be put into the jiterator or for the jiterator to be marked empty. The
+     * calling thread parks until a push, completion, or error wakes it, or until it is time to check
+     * the timeout.
      */
-    private synchronized void waitForPush() {
+    private void waitForPush() {
+        Thread me = Thread.currentThread();
         long waitStart = -1L;
-        
-        while( waiting != null && waiting.isEmpty() && !loaded ) {
+
+        while( waiting.isEmpty() && !loaded ) {
             long untouched = System.currentTimeMillis() - lastTouch;
             
             if( untouched > timeout.longValue() ) {
                 logger.error("[" + this + "] Jiterator timeout for " + getName());
                 setLoadException(new TimeoutException("Jiterator " + getName() + " timed out while loading"));
+                return;
             }
             if( waitStart == -1L ) {
                 waitStart = System.currentTimeMillis();
@@ -381,11 +969,20 @@ public class Jiterator<T> implements Iterator<T>, Iterable<T> {
                     }
                 }
             }
-            long multiplier = (untouched/(15 * CalendarWrapper.SECOND)) + 1;
+            // wake no later than the timeout (or the next progress warning) if nothing else does
+            long sleep = Math.min(timeout.longValue() - untouched + 1L, CalendarWrapper.MINUTE);
 
-            try { wait(150L * multiplier); }
-            catch( InterruptedException ignore ) { }
-        }        
+            parked.add(me);
+            try {
+                // re-check after registering so a push between the loop test and here is not missed
+                if( waiting.isEmpty() && !loaded ) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
+                }
+            }
+            finally {
+                parked.remove(me);
+            }
+        }
     }
     
     @Override
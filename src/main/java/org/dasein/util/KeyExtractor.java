@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * <p>
+ *   Extracts the value of a unique identifier attribute from an object stored in a
+ *   {@link ConcurrentMultiCache}. Supplying an extractor for an attribute with
+ *   {@link ConcurrentMultiCache#setKeyExtractor(String, KeyExtractor)} replaces the
+ *   reflective field or getter lookup the cache would otherwise use for it.
+ * </p>
+ * @param <T> the type of objects from which values are extracted
+ */
+public interface KeyExtractor<T> {
+    /**
+     * Provides the value of the attribute for the specified item.
+     * @param item the item whose attribute value is being sought
+     * @return the attribute value, <code>null</code> if the item has none
+     */
+    public abstract @Nullable Object extract(@Nonnull T item);
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *   Ensures that at most one load is in flight for any given key. The first thread to ask
+ *   for a key runs the load; any other thread asking for the same key while that load is
+ *   running parks on the same pending result and receives the same value or exception.
+ *   Once the load completes, the key is forgotten so that a later miss triggers a fresh load.
+ * </p>
+ * <p>
+ *   Loads may also be run in batches. A batch claims every requested key that is not already
+ *   in flight and loads all of them in a single call, while keys already in flight are simply
+ *   waited on. Single-key requests may further be gathered into micro-batches: the first
+ *   request for a given batch loader opens a batch and waits out a short window, and every
+ *   request arriving for the same loader within that window joins the batch.
+ * </p>
+ * @param <K> the type of key identifying a load
+ * @param <V> the type of value being loaded
+ */
+class LoadCoalescer<K,V> {
+    /**
+     * A load of many keys in a single call. The result may omit keys for which no value exists.
+     * @param <K> the type of key identifying a load
+     * @param <V> the type of value being loaded
+     */
+    static interface BatchLoad<K,V> {
+        public @Nonnull Map<K,V> call(@Nonnull Collection<K> keys) throws Exception;
+    }
+
+    /**
+     * A pending result completed from outside by whichever thread runs the batch containing it.
+     */
+    static private class Promise<V> extends FutureTask<V> {
+        static private final Callable<Object> UNUSED = new Callable<Object>() {
+            public Object call() {
+                throw new IllegalStateException("Promises are completed explicitly");
+            }
+        };
+
+        @SuppressWarnings("unchecked")
+        public Promise() {
+            super((Callable<V>)UNUSED);
+        }
+
+        public void complete(@Nullable V value) {
+            set(value);
+        }
+
+        public void fail(@Nonnull Throwable t) {
+            setException(t);
+        }
+    }
+
+    static private class Batch<K,V> {
+        public volatile boolean                 closed  = false;
+        public final LinkedHashMap<K,Promise<V>> entries = new LinkedHashMap<K,Promise<V>>();
+        public final Thread                     leader  = Thread.currentThread();
+    }
+
+    private final HashMap<Object,Batch<K,V>>            batches   = new HashMap<Object,Batch<K,V>>();
+    private final AtomicLong                           coalesced = new AtomicLong(0L);
+    private final AtomicLong                           loads     = new AtomicLong(0L);
+    private final ConcurrentHashMap<K,FutureTask<V>>   pending   = new ConcurrentHashMap<K,FutureTask<V>>();
+
+    /**
+     * @return the number of callers that shared the result of a load already in flight
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of loads actually executed
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of loads currently in flight
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Runs the specified load for the specified key unless a load for that key is already in
+     * flight, in which case this method waits for and returns the result of that load.
+     * @param key the key identifying the load
+     * @param loader the load to execute if no load is in flight for the key
+     * @return the loaded value
+     * @throws CacheManagementException the load failed with a checked exception
+     */
+    public @Nullable V load(@Nonnull K key, @Nonnull Callable<V> loader) {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> current = pending.putIfAbsent(key, task);
+
+        if( current == null ) {
+            loads.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                pending.remove(key, task);
+            }
+            current = task;
+        }
+        else {
+            coalesced.incrementAndGet();
+        }
+        return await(current);
+    }
+
+    /**
+     * Loads the specified keys, running a single batch for every key not already in flight and
+     * waiting on the in-flight loads for the rest.
+     * @param keys the keys to load
+     * @param loader the batch load to execute for the keys not already in flight
+     * @return the loaded values in key order, omitting keys for which no value was loaded
+     * @throws CacheManagementException the load failed with a checked exception
+     */
+    public @Nonnull Map<K,V> loadAll(@Nonnull Collection<? extends K> keys, @Nonnull BatchLoad<K,V> loader) {
+        LinkedHashMap<K,FutureTask<V>> tasks = new LinkedHashMap<K,FutureTask<V>>();
+        Batch<K,V> batch = new Batch<K,V>();
+
+        for( K key : keys ) {
+            if( tasks.containsKey(key) ) {
+                continue;
+            }
+            Promise<V> promise = new Promise<V>();
+            FutureTask<V> current = pending.putIfAbsent(key, promise);
+
+            if( current == null ) {
+                batch.entries.put(key, promise);
+                current = promise;
+            }
+            else {
+                coalesced.incrementAndGet();
+            }
+            tasks.put(key, current);
+        }
+        if( !batch.entries.isEmpty() ) {
+            run(batch, loader);
+        }
+        LinkedHashMap<K,V> results = new LinkedHashMap<K,V>();
+
+        for( Map.Entry<K,FutureTask<V>> entry : tasks.entrySet() ) {
+            V value = await(entry.getValue());
+
+            if( value != null ) {
+                results.put(entry.getKey(), value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Loads a single key as part of a micro-batch. Requests sharing the same batch identity that
+     * arrive within the specified window of the first are loaded together in one call. A batch is
+     * run early once it reaches the specified maximum size.
+     * @param key the key to load
+     * @param batchId the identity of the batch loader; only requests with the same identity share a batch
+     * @param loader the batch load to execute
+     * @param windowNanos how long the first request of a batch waits for others to join
+     * @param maximumBatchSize the number of keys at which a batch is run without waiting out the window
+     * @return the loaded value
+     * @throws CacheManagementException the load failed with a checked exception
+     */
+    public @Nullable V loadBatched(@Nonnull K key, @Nonnull Object batchId, @Nonnull BatchLoad<K,V> loader, long windowNanos, int maximumBatchSize) {
+        Promise<V> promise = new Promise<V>();
+        FutureTask<V> current = pending.putIfAbsent(key, promise);
+
+        if( current != null ) {
+            coalesced.incrementAndGet();
+            return await(current);
+        }
+        Batch<K,V> batch, full = null;
+        boolean leader = false;
+
+        synchronized( batches ) {
+            batch = batches.get(batchId);
+            if( batch == null ) {
+                batch = new Batch<K,V>();
+                batches.put(batchId, batch);
+                leader = true;
+            }
+            batch.entries.put(key, promise);
+            if( batch.entries.size() >= maximumBatchSize ) {
+                batches.remove(batchId);
+                batch.closed = true;
+                full = batch;
+            }
+        }
+        if( full != null ) {
+            if( !leader ) {
+                // the leader is still waiting out the window for a batch that no longer needs it
+                LockSupport.unpark(full.leader);
+            }
+            run(full, loader);
+        }
+        else if( leader ) {
+            long deadline = System.nanoTime() + windowNanos;
+            long remaining;
+
+            while( !batch.closed && (remaining = deadline - System.nanoTime()) > 0L ) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            synchronized( batches ) {
+                if( batch.closed ) {
+                    batch = null;
+                }
+                else {
+                    batches.remove(batchId);
+                    batch.closed = true;
+                }
+            }
+            if( batch != null ) {
+                run(batch, loader);
+            }
+        }
+        return await(promise);
+    }
+
+    private void run(@Nonnull Batch<K,V> batch, @Nonnull BatchLoad<K,V> loader) {
+        loads.incrementAndGet();
+        try {
+            Map<K,V> values = loader.call(new ArrayList<K>(batch.entries.keySet()));
+
+            for( Map.Entry<K,Promise<V>> entry : batch.entries.entrySet() ) {
+                entry.getValue().complete(values.get(entry.getKey()));
+            }
+        }
+        catch( Throwable t ) {
+            for( Promise<V> promise : batch.entries.values() ) {
+                promise.fail(t);
+            }
+        }
+        finally {
+            for( Map.Entry<K,Promise<V>> entry : batch.entries.entrySet() ) {
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private V await(FutureTask<V> task) {
+        boolean interrupted = false;
+
+        try {
+            while( true ) {
+                try {
+                    return task.get();
+                }
+                catch( InterruptedException e ) {
+                    interrupted = true;
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+
+                    if( cause instanceof RuntimeException ) {
+                        throw (RuntimeException)cause;
+                    }
+                    if( cause instanceof Error ) {
+                        throw (Error)cause;
+                    }
+                    throw new CacheManagementException(cause);
+                }
+            }
+        }
+        finally {
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
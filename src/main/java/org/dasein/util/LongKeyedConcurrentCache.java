@@ -0,0 +1,802 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   A concurrent cache keyed by primitive <code>long</code> values, for the common case of objects
+ *   identified by numeric IDs. It follows the same rules as an unbounded {@link ConcurrentCache}:
+ *   values are held through soft references and released when the garbage collector needs the
+ *   memory, values implementing {@link CachedItem} that are no longer valid are treated as absent,
+ *   and entries may expire a fixed time after they were written or last read.
+ * </p>
+ * <p>
+ *   Entries are stored in open-addressing hash tables split into independently locked segments.
+ *   Each slot refers directly to the soft reference holding a value, which also holds the
+ *   primitive key, so the cache allocates no boxed key and no hash node per entry, and a lookup by
+ *   a <code>long</code> key allocates nothing. Tables are kept at most half full so that probes
+ *   stay short. Reads never block; writes lock only the segment of their key.
+ * </p>
+ * <p>
+ *   Expired entries are removed when read and by a periodic sweep in the background. Entries
+ *   whose values the garbage collector cleared are purged through a reference queue, a little on
+ *   every write and fully by the periodic sweep.
+ * </p>
+ * <p>
+ *   A {@link ConcurrentMultiCache} uses this cache for the index of a numeric unique identifier
+ *   set up with {@link ConcurrentMultiCache#setLongKeyed(String)}.
+ * </p>
+ * @param <V> the type of objects stored in the cache
+ */
+public class LongKeyedConcurrentCache<V> {
+    /**
+     * The default number of segments, bounding the number of threads that can write at once.
+     */
+    static public final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    /**
+     * The default initial number of entries the cache is sized for.
+     */
+    static public final int DEFAULT_INITIAL_CAPACITY  = 16;
+    /**
+     * The maximum number of cleared references purged as a side effect of a single write.
+     */
+    static private final int COLLECTED_DRAIN_LIMIT = 16;
+    /**
+     * The time between background sweeps of the cache.
+     */
+    static private final long MAINTENANCE_PERIOD_MILLIS = 1000L;
+    /**
+     * The smallest table held by a segment.
+     */
+    static private final int MINIMUM_TABLE_SIZE = 4;
+
+    /**
+     * A soft reference to a cached value that remembers its key, so that a cleared reference
+     * can be removed from the table and so that probes can compare keys. Whether the value needs
+     * validating is decided once when the entry is created, which keeps a type check against
+     * {@link CachedItem} off every read.
+     * @param <V> the type of value being cached
+     */
+    static private class Entry<V> extends SoftReference<V> {
+        private final long    key;
+        private final boolean validating;
+
+        private Entry(long key, V val, ReferenceQueue<? super V> queue) {
+            super(val, queue);
+            this.key = key;
+            this.validating = (val instanceof CachedItem);
+        }
+
+        boolean isExpired(long now) {
+            return false;
+        }
+
+        void touch(long now) {
+            // entries without expiry do not track reads
+        }
+    }
+
+    /**
+     * An entry that expires a fixed time after being written, a fixed time after being read, or both.
+     * Only entries written while expiry is configured carry the extra fields.
+     * @param <V> the type of value being cached
+     */
+    static private class ExpiringEntry<V> extends Entry<V> {
+        private final long    deadline;
+        private final boolean expires;
+        private final long    idleNanos;
+        private volatile long idleDeadline;
+
+        private ExpiringEntry(long key, V val, ReferenceQueue<? super V> queue, long ttlNanos, long idleNanos) {
+            super(key, val, queue);
+            long now = System.nanoTime();
+
+            this.expires = (ttlNanos >= 0L);
+            this.deadline = now + ttlNanos;
+            this.idleNanos = idleNanos;
+            this.idleDeadline = now + idleNanos;
+        }
+
+        boolean isExpired(long now) {
+            return ((expires && now - deadline >= 0L) || (idleNanos >= 0L && now - idleDeadline >= 0L));
+        }
+
+        void touch(long now) {
+            if( idleNanos >= 0L ) {
+                idleDeadline = now + idleNanos;
+            }
+        }
+    }
+
+    /**
+     * Marks a slot whose entry was removed, so that probes for keys placed beyond it keep going.
+     */
+    static private final Entry<Object> REMOVED = new Entry<Object>(0L, null, null);
+
+    /**
+     * An open-addressing table with linear probing. Tables are only modified under the lock of
+     * their segment and are replaced wholesale when they fill up.
+     * @param <V> the type of value being cached
+     */
+    static private class Table<V> {
+        private final AtomicReferenceArray<Entry<V>> entries;
+        private final int                            mask;
+
+        private Table(int size) {
+            entries = new AtomicReferenceArray<Entry<V>>(size);
+            mask = size - 1;
+        }
+    }
+
+    /**
+     * A lock guarding writes to one table of the cache.
+     * @param <V> the type of value being cached
+     */
+    static private class Segment<V> extends ReentrantLock {
+        private static final long serialVersionUID = -4526379160233497016L;
+
+        private volatile int      live = 0;
+        private volatile Table<V> table;
+        private int               used = 0;
+
+        private Segment(int size) {
+            table = new Table<V>(size);
+        }
+    }
+
+    /**
+     * Sweeps a cache from the background maintenance thread without keeping it reachable.
+     */
+    static private class CacheCleaner extends CacheMaintenance.Task<LongKeyedConcurrentCache<?>> {
+        private CacheCleaner(LongKeyedConcurrentCache<?> cache) {
+            super(cache);
+        }
+
+        protected void maintain(LongKeyedConcurrentCache<?> cache) {
+            cache.cleanUp();
+        }
+    }
+
+    /**
+     * Reports the entries whose values the garbage collector has cleared.
+     */
+    private final ReferenceQueue<V>  collected = new ReferenceQueue<V>();
+    /**
+     * True once any entry that can expire has been written.
+     */
+    private volatile boolean         expiring = false;
+    private volatile long            expireAfterAccessNanos = -1L;
+    private volatile long            expireAfterWriteNanos = -1L;
+    /**
+     * True once the cache is registered for periodic background maintenance.
+     */
+    private final AtomicBoolean      maintained = new AtomicBoolean(false);
+    private final int                segmentShift;
+    private final Segment<V>[]       segments;
+    private final int                segmentSize;
+    private final CacheStatsRecorder stats = new CacheStatsRecorder();
+    private volatile ObjectName      statsName;
+
+    /**
+     * Constructs an empty cache with the default initial capacity and concurrency level.
+     */
+    public LongKeyedConcurrentCache() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Constructs an empty cache sized for the specified number of entries and concurrent writers.
+     * @param initialCapacity the number of entries the cache should hold without growing
+     * @param concurrencyLevel the number of threads expected to write at once
+     */
+    @SuppressWarnings("unchecked")
+    public LongKeyedConcurrentCache(int initialCapacity, int concurrencyLevel) {
+        int count = 1;
+        int shift = 0;
+        int size = MINIMUM_TABLE_SIZE;
+
+        while( count < Math.max(1, concurrencyLevel) && count < (1 << 16) ) {
+            count <<= 1;
+            shift++;
+        }
+        while( size < (Math.max(0, initialCapacity) / count + 1) * 2 ) {
+            size <<= 1;
+        }
+        segmentShift = 32 - shift;
+        segmentSize = size;
+        segments = (Segment<V>[])new Segment[count];
+        for( int i=0; i<count; i++ ) {
+            segments[i] = new Segment<V>(size);
+        }
+    }
+
+    /**
+     * Spreads the bits of a key so that sequential IDs are scattered over segments and slots.
+     * @param key the key to hash
+     * @return the hash of the key
+     */
+    static private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return (segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift]);
+    }
+
+    /**
+     * Finds the entry for the specified key without locking.
+     * @param segment the segment holding the key
+     * @param key the key being sought
+     * @param hash the hash of the key
+     * @return the entry for the key, whether or not its value is still live, or <code>null</code> if none
+     */
+    static private <V> Entry<V> find(Segment<V> segment, long key, int hash) {
+        Table<V> t = segment.table;
+        int i = hash & t.mask;
+
+        while( true ) {
+            Entry<V> e = t.entries.get(i);
+
+            if( e == null ) {
+                return null;
+            }
+            if( e.key == key && e != REMOVED ) {
+                return e;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Finds the slot for the specified key in the current table of a locked segment.
+     * @param t the table of the segment
+     * @param key the key being sought
+     * @param hash the hash of the key
+     * @return the slot holding the key, or the complement of the slot where it should be placed if it is absent
+     */
+    static private <V> int slot(Table<V> t, long key, int hash) {
+        int i = hash & t.mask;
+        int free = -1;
+
+        while( true ) {
+            Entry<V> e = t.entries.get(i);
+
+            if( e == null ) {
+                return ~(free < 0 ? i : free);
+            }
+            if( e == REMOVED ) {
+                if( free < 0 ) {
+                    free = i;
+                }
+            }
+            else if( e.key == key ) {
+                return i;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Provides the live value of the specified entry. An entry whose value has been collected,
+     * has expired or is no longer valid is removed, provided it is still the entry for its key.
+     * @param segment the segment holding the entry
+     * @param hash the hash of the entry's key
+     * @param e the entry
+     * @return the live value or <code>null</code>
+     */
+    private V resolve(Segment<V> segment, int hash, Entry<V> e) {
+        V item = e.get();
+        EvictionCause cause = null;
+        long now = 0L;
+
+        if( item == null ) {
+            cause = EvictionCause.COLLECTED;
+        }
+        else if( expiring ) {
+            now = System.nanoTime();
+            if( e.isExpired(now) ) {
+                cause = EvictionCause.EXPIRED;
+            }
+        }
+        if( cause == null && e.validating && !((CachedItem)item).isValidForCache() ) {
+            cause = EvictionCause.INVALID;
+        }
+        if( cause != null ) {
+            if( removeEntry(segment, e.key, hash, e) != null ) {
+                stats.recordEviction(cause);
+            }
+            return null;
+        }
+        if( expiring ) {
+            e.touch(now);
+        }
+        return item;
+    }
+
+    /**
+     * Removes the entry for the specified key.
+     * @param segment the segment holding the key
+     * @param key the key to remove
+     * @param hash the hash of the key
+     * @param expected the entry that must be the current entry, or <code>null</code> to remove any entry
+     * @return the removed entry or <code>null</code> if nothing was removed
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<V> removeEntry(Segment<V> segment, long key, int hash, @Nullable Entry<V> expected) {
+        segment.lock();
+        try {
+            Table<V> t = segment.table;
+            int i = slot(t, key, hash);
+            Entry<V> e;
+
+            if( i < 0 ) {
+                return null;
+            }
+            e = t.entries.get(i);
+            if( expected != null && e != expected ) {
+                return null;
+            }
+            t.entries.set(i, (Entry<V>)REMOVED);
+            segment.live--;
+            return e;
+        }
+        finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Places a new entry in the cache.
+     * @param key the key for the entry
+     * @param val the value for the entry
+     * @param ttlNanos the time to live for the entry, or a negative number for the cache default
+     * @param onlyIfAbsent true to keep a live existing entry
+     * @return the live value the entry replaced or was kept in favor of, if any
+     */
+    private V write(long key, V val, long ttlNanos, boolean onlyIfAbsent) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        Entry<V> entry = newEntry(key, val, ttlNanos);
+        Entry<V> replaced = null;
+        V current = null;
+
+        segment.lock();
+        try {
+            Table<V> t = segment.table;
+            int i = slot(t, key, hash);
+
+            if( i >= 0 ) {
+                replaced = t.entries.get(i);
+                current = replaced.get();
+                if( onlyIfAbsent && current != null && !replaced.isExpired(System.nanoTime()) && isValid(current) ) {
+                    return current;
+                }
+                t.entries.set(i, entry);
+            }
+            else {
+                i = ~i;
+                if( t.entries.get(i) == null ) {
+                    segment.used++;
+                }
+                t.entries.set(i, entry);
+                segment.live++;
+                if( segment.used * 2 > t.mask + 1 ) {
+                    rehash(segment);
+                }
+            }
+        }
+        finally {
+            segment.unlock();
+        }
+        if( onlyIfAbsent && replaced != null ) {
+            stats.recordEviction(current == null ? EvictionCause.COLLECTED : (isValid(current) ? EvictionCause.EXPIRED : EvictionCause.INVALID));
+            current = null;
+        }
+        afterWrite();
+        return current;
+    }
+
+    /**
+     * Rebuilds the table of a locked segment without its removed and collected entries, doubling it if it
+     * is more than half full of live entries.
+     * @param segment the segment whose table is full
+     */
+    private void rehash(Segment<V> segment) {
+        Table<V> old = segment.table;
+        int size = old.mask + 1;
+        Table<V> t;
+        int live = 0;
+
+        if( segment.live * 4 > size ) {
+            size <<= 1;
+        }
+        t = new Table<V>(size);
+        for( int i=0; i<=old.mask; i++ ) {
+            Entry<V> e = old.entries.get(i);
+
+            if( e == null || e == REMOVED ) {
+                continue;
+            }
+            if( e.get() == null ) {
+                stats.recordEviction(EvictionCause.COLLECTED);
+                continue;
+            }
+            int j = hash(e.key) & t.mask;
+
+            while( t.entries.get(j) != null ) {
+                j = (j + 1) & t.mask;
+            }
+            t.entries.set(j, e);
+            live++;
+        }
+        segment.live = live;
+        segment.used = live;
+        segment.table = t;
+    }
+
+    private Entry<V> newEntry(long key, V val, long ttlNanos) {
+        long idleNanos = expireAfterAccessNanos;
+
+        if( ttlNanos < 0L ) {
+            ttlNanos = expireAfterWriteNanos;
+        }
+        if( ttlNanos < 0L && idleNanos < 0L ) {
+            return new Entry<V>(key, val, collected);
+        }
+        expiring = true;
+        return new ExpiringEntry<V>(key, val, collected, ttlNanos, idleNanos);
+    }
+
+    /**
+     * Purges a few collected entries and makes sure the cache is swept in the background.
+     */
+    private void afterWrite() {
+        if( maintained.compareAndSet(false, true) ) {
+            CacheMaintenance.schedule(new CacheCleaner(this), MAINTENANCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        purgeCollected(COLLECTED_DRAIN_LIMIT);
+    }
+
+    /**
+     * Removes entries whose values the garbage collector has cleared, as reported through the reference queue.
+     * @param limit the maximum number of cleared references to process, or a negative number for all of them
+     */
+    @SuppressWarnings("unchecked")
+    private void purgeCollected(int limit) {
+        Reference<? extends V> ref;
+
+        while( limit-- != 0 && (ref = collected.poll()) != null ) {
+            Entry<V> e = (Entry<V>)ref;
+            int hash = hash(e.key);
+
+            if( removeEntry(segmentFor(hash), e.key, hash, e) != null ) {
+                stats.recordEviction(EvictionCause.COLLECTED);
+            }
+        }
+    }
+
+    static private boolean isValid(Object item) {
+        return !(item instanceof CachedItem) || ((CachedItem)item).isValidForCache();
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public void clear() {
+        for( Segment<V> segment : segments ) {
+            segment.lock();
+            try {
+                segment.table = new Table<V>(segmentSize);
+                segment.live = 0;
+                segment.used = 0;
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Purges collected and expired entries. The cache does this on its own as it is used and
+     * periodically in the background, so there is rarely any need to call this method directly.
+     */
+    public void cleanUp() {
+        purgeCollected(-1);
+        if( expiring ) {
+            long now = System.nanoTime();
+
+            for( Segment<V> segment : segments ) {
+                Table<V> t = segment.table;
+
+                for( int i=0; i<=t.mask; i++ ) {
+                    Entry<V> e = t.entries.get(i);
+
+                    if( e != null && e != REMOVED && e.isExpired(now) ) {
+                        if( removeEntry(segment, e.key, hash(e.key), e) != null ) {
+                            stats.recordEviction(EvictionCause.EXPIRED);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key the key to test for existence
+     * @return true if the cache has a live, valid value for the specified key
+     */
+    public boolean containsKey(long key) {
+        return (peek(key) != null);
+    }
+
+    /**
+     * Retrieves the value for the specified key.
+     * @param key the key being sought
+     * @return the current value for that key, if any
+     */
+    public V get(long key) {
+        V item = peek(key);
+
+        if( item == null ) {
+            stats.recordMiss();
+        }
+        else {
+            stats.recordHit();
+        }
+        return item;
+    }
+
+    /**
+     * Retrieves the value for the specified key exactly as {@link #get(long)} does, but without
+     * counting the lookup as a hit or miss.
+     * @param key the key being sought
+     * @return the current value for that key, if any
+     */
+    V peek(long key) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        Entry<V> e = find(segment, key, hash);
+
+        return (e == null ? null : resolve(segment, hash, e));
+    }
+
+    /**
+     * @return a snapshot of the statistics of this cache
+     */
+    public @Nonnull CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * @return the recorder of this cache's statistics
+     */
+    @Nonnull CacheStatsRecorder getStatsRecorder() {
+        return stats;
+    }
+
+    /**
+     * @return true if the cache holds no entries
+     */
+    public boolean isEmpty() {
+        return (size() == 0);
+    }
+
+    /**
+     * Places the specified value into the cache.
+     * @param key the key for the value
+     * @param val the value to be cached
+     * @return the resulting value stored in the cache
+     * @throws NullPointerException the value is <code>null</code>
+     */
+    public V put(long key, @Nonnull V val) {
+        return put(key, val, null);
+    }
+
+    /**
+     * Places the specified value into the cache for no longer than the specified time to live,
+     * overriding any expire-after-write period configured for the cache.
+     * @param key the key for the value
+     * @param val the value to be cached
+     * @param ttl the time after which the entry expires, or <code>null</code> for the cache default
+     * @return the resulting value stored in the cache
+     * @throws NullPointerException the value is <code>null</code>
+     */
+    public V put(long key, @Nonnull V val, @Nullable TimePeriod<?> ttl) {
+        if( val == null ) {
+            throw new NullPointerException("Null values may not be cached");
+        }
+        write(key, val, toNanos(ttl), false);
+        return (isValid(val) ? val : null);
+    }
+
+    /**
+     * Places the specified value into the cache unless a live, valid value is already cached for the key.
+     * @param key the key for the value
+     * @param val the proposed new value
+     * @return the actual value stored with key, whether the old or the new
+     * @throws NullPointerException the value is <code>null</code>
+     */
+    public V putIfAbsent(long key, @Nonnull V val) {
+        return putIfAbsent(key, val, null);
+    }
+
+    /**
+     * Places the specified value into the cache for no longer than the specified time to live
+     * unless a live, valid value is already cached for the key.
+     * @param key the key for the value
+     * @param val the proposed new value
+     * @param ttl the time after which a new entry expires, or <code>null</code> for the cache default
+     * @return the actual value stored with key, whether the old or the new
+     * @throws NullPointerException the value is <code>null</code>
+     */
+    public V putIfAbsent(long key, @Nonnull V val, @Nullable TimePeriod<?> ttl) {
+        V current;
+
+        if( val == null ) {
+            throw new NullPointerException("Null values may not be cached");
+        }
+        current = write(key, val, toNanos(ttl), true);
+        if( current != null ) {
+            return current;
+        }
+        return (isValid(val) ? val : null);
+    }
+
+    /**
+     * Removes the value for the specified key from the cache.
+     * @param key the key to be removed
+     * @return the previous value, or <code>null</code> if there was no live value
+     */
+    public V remove(long key) {
+        int hash = hash(key);
+        Entry<V> e = removeEntry(segmentFor(hash), key, hash, null);
+        V item = (e == null ? null : e.get());
+
+        return (item != null && isValid(item) ? item : null);
+    }
+
+    /**
+     * Removes the specified key only if its current value equals the specified value.
+     * @param key the key to be removed
+     * @param val the value that must be matched by the current value for this key
+     * @return true if the key was removed
+     */
+    public boolean remove(long key, @Nullable Object val) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        Entry<V> e = find(segment, key, hash);
+        V item = (e == null ? null : resolve(segment, hash, e));
+
+        if( item == null || val == null || !val.equals(item) ) {
+            return false;
+        }
+        return (removeEntry(segment, key, hash, e) != null);
+    }
+
+    /**
+     * Publishes the statistics of this cache over JMX through the platform MBean server, under
+     * the object name <code>org.dasein.util:type=LongKeyedConcurrentCache,name=<i>name</i></code>.
+     * @param name the name identifying this cache
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    public @Nonnull ObjectName registerMBean(@Nonnull String name) {
+        ObjectName objectName = CacheStatsRecorder.register("LongKeyedConcurrentCache", name, null, stats);
+
+        statsName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Withdraws the statistics of this cache from JMX if they were published with {@link #registerMBean(String)}.
+     * @throws CacheManagementException the statistics could not be unregistered
+     */
+    public void unregisterMBean() {
+        ObjectName objectName = statsName;
+
+        if( objectName != null ) {
+            statsName = null;
+            CacheStatsRecorder.unregister(objectName);
+        }
+    }
+
+    /**
+     * Sets how long after its last read an entry expires. The period applies to entries
+     * written after this call.
+     * @param period the idle period after which entries expire, or <code>null</code> for no idle expiry
+     */
+    public void setExpireAfterAccess(@Nullable TimePeriod<?> period) {
+        expireAfterAccessNanos = toNanos(period);
+    }
+
+    /**
+     * Sets how long after being written an entry expires. The period applies to entries
+     * written after this call.
+     * @param period the age after which entries expire, or <code>null</code> for no age-based expiry
+     */
+    public void setExpireAfterWrite(@Nullable TimePeriod<?> period) {
+        expireAfterWriteNanos = toNanos(period);
+    }
+
+    /**
+     * @return the approximate number of entries in the cache, including any that have been collected
+     * or invalidated but not yet purged
+     */
+    public int size() {
+        int size = 0;
+
+        for( Segment<V> segment : segments ) {
+            size += segment.live;
+        }
+        return size;
+    }
+
+    /**
+     * @return the live, valid values in the cache
+     */
+    public @Nonnull Collection<V> values() {
+        ArrayList<V> values = new ArrayList<V>();
+
+        for( Segment<V> segment : segments ) {
+            Table<V> t = segment.table;
+
+            for( int i=0; i<=t.mask; i++ ) {
+                Entry<V> e = t.entries.get(i);
+
+                if( e != null && e != REMOVED ) {
+                    V item = resolve(segment, hash(e.key), e);
+
+                    if( item != null ) {
+                        values.add(item);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    static private long toNanos(@Nullable TimePeriod<?> period) {
+        if( period == null ) {
+            return -1L;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(period.convertTo(TimePeriod.MILLISECOND).longValue());
+    }
+
+    public String toString() {
+        return (super.toString() + ": " + size() + " entries");
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ *   Carries invalidations between buses in the same JVM, standing in for a network transport
+ *   when testing several cache nodes in one process. Every bus connected to the same loopback
+ *   transport receives the batches published on every other.
+ * </p>
+ */
+public class LoopbackTransport implements InvalidationTransport {
+    private final CopyOnWriteArrayList<InvalidationBus> buses = new CopyOnWriteArrayList<InvalidationBus>();
+
+    public LoopbackTransport() { }
+
+    public void connect(@Nonnull InvalidationBus bus) {
+        buses.addIfAbsent(bus);
+    }
+
+    public void disconnect(@Nonnull InvalidationBus bus) {
+        buses.remove(bus);
+    }
+
+    public void send(@Nonnull InvalidationBus origin, @Nonnull Collection<Invalidation> invalidations) {
+        for( InvalidationBus bus : buses ) {
+            if( bus != origin ) {
+                bus.receive(new ArrayList<Invalidation>(invalidations));
+            }
+        }
+    }
+}
@@ -20,17 +20,33 @@ package org.dasein.util;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Creates threads named after their pool, numbered in order of creation, so that they are easy
+ * to pick out of a thread dump.
+ */
 public class NamedThreadFactory implements ThreadFactory {
-    private int    count = 1;
-    private String name  = "Unknown";
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final boolean       daemon;
+    private final String        name;
     
     public NamedThreadFactory(Class owner) {
         this(owner, "");
     }
     
     public NamedThreadFactory(Class owner, String name) {
-        this.name = "[" + owner.getName() + "] " + name;
+        this("[" + owner.getName() + "] " + name, false);
+    }
+
+    /**
+     * Constructs a factory for threads named <code><i>name</i> (<i>n</i>)</code>.
+     * @param name the base name of the threads
+     * @param daemon true if the threads should not keep the JVM alive
+     */
+    public NamedThreadFactory(String name, boolean daemon) {
+        this.name = name;
+        this.daemon = daemon;
     }
     
     public Thread newThread(Runnable r) {
@@ -38,7 +54,10 @@ public class NamedThreadFactory implements ThreadFactory {
         Thread t;
         
         t = factory.newThread(r);
-        t.setName(name + " (" + (count++) + ")");
+        t.setName(name + " (" + count.incrementAndGet() + ")");
+        if( daemon ) {
+            t.setDaemon(true);
+        }
         return t;
     }
     
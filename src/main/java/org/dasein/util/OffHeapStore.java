@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ *   Holds serialized values in direct byte buffers outside of the garbage-collected heap.
+ *   Storage is divided into equally sized segments that are filled one after another like a
+ *   log. Once every segment is full, the oldest segment is recycled and the values written to
+ *   it are forgotten, so the store never grows beyond its configured size and never needs to
+ *   compact. Only the index of keys to locations lives on the heap.
+ * </p>
+ * <p>
+ *   Writes and segment recycling take an exclusive lock; reads take a shared lock, so reads
+ *   never see a segment being overwritten.
+ * </p>
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+class OffHeapStore<K,V> {
+    /**
+     * A value read back from the store along with its expiry deadline.
+     */
+    static class Stored<V> {
+        public final long    deadline;
+        public final boolean expires;
+        public final V       value;
+        private final Slot   slot;
+
+        private Stored(V value, Slot slot) {
+            this.value = value;
+            this.slot = slot;
+            expires = slot.expires;
+            deadline = slot.deadline;
+        }
+    }
+
+    /**
+     * The location of a value within the store.
+     */
+    static private class Slot {
+        private final long    deadline;
+        private final boolean expires;
+        private final int     generation;
+        private final int     length;
+        private final int     offset;
+        private final int     segment;
+
+        private Slot(int segment, int generation, int offset, int length, boolean expires, long deadline) {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.expires = expires;
+            this.deadline = deadline;
+        }
+    }
+
+    private int                              current = 0;
+    private final int[]                      generations;
+    private final ConcurrentHashMap<K,Slot>  index = new ConcurrentHashMap<K,Slot>();
+    private final ReentrantReadWriteLock     lock = new ReentrantReadWriteLock();
+    private int                              position = 0;
+    private final ArrayList<ArrayList<K>>    residents;
+    private final int                        segmentSize;
+    private final ByteBuffer[]               segments;
+    private final Serializer<V>              serializer;
+
+    /**
+     * Constructs a store holding at most the specified number of bytes.
+     * @param maximumBytes the capacity of the store, rounded up to a whole number of segments
+     * @param segmentSize the size of each segment, which is also the largest value the store can hold
+     * @param serializer converts values to and from bytes
+     */
+    OffHeapStore(long maximumBytes, int segmentSize, @Nonnull Serializer<V> serializer) {
+        int count = (int)Math.max(2L, (maximumBytes + segmentSize - 1) / segmentSize);
+
+        this.segmentSize = segmentSize;
+        this.serializer = serializer;
+        segments = new ByteBuffer[count];
+        generations = new int[count];
+        residents = new ArrayList<ArrayList<K>>(count);
+        for( int i=0; i<count; i++ ) {
+            residents.add(new ArrayList<K>());
+        }
+    }
+
+    /**
+     * Forgets every value in the store. Allocated segments are kept for reuse.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            for( int i=0; i<segments.length; i++ ) {
+                generations[i]++;
+                residents.get(i).clear();
+            }
+            current = 0;
+            position = 0;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of values in the store
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Serializes the specified value into the store, replacing any value stored for the key.
+     * Values too large for a segment are not stored.
+     * @param key the key of the value
+     * @param value the value to store
+     * @param expires true if the value expires at the deadline
+     * @param deadline the {@link System#nanoTime()} after which the value has expired, ignored if it does not expire
+     * @return true if the value was stored
+     * @throws CacheManagementException the value could not be serialized
+     */
+    public boolean put(@Nonnull K key, @Nonnull V value, boolean expires, long deadline) {
+        byte[] bytes = serializer.serialize(value);
+
+        if( bytes.length > segmentSize ) {
+            index.remove(key);
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            ByteBuffer buffer;
+
+            if( position + bytes.length > segmentSize ) {
+                current = (current + 1) % segments.length;
+                position = 0;
+                recycle(current);
+            }
+            buffer = segments[current];
+            if( buffer == null ) {
+                buffer = ByteBuffer.allocateDirect(segmentSize);
+                segments[current] = buffer;
+            }
+            buffer.position(position);
+            buffer.put(bytes);
+            index.put(key, new Slot(current, generations[current], position, bytes.length, expires, deadline));
+            residents.get(current).add(key);
+            position += bytes.length;
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the value stored for the specified key, if any. The space it occupied is reclaimed
+     * when its segment is recycled.
+     * @param key the key of the value
+     */
+    public void remove(@Nonnull Object key) {
+        index.remove(key);
+    }
+
+    /**
+     * Forgets the specified value of the specified key, unless the key has been given another value since
+     * the value was read.
+     * @param key the key of the value
+     * @param stored the value read for the key
+     * @return true if the value was forgotten
+     */
+    public boolean remove(@Nonnull Object key, @Nonnull Stored<V> stored) {
+        return index.remove(key, stored.slot);
+    }
+
+    /**
+     * Provides the value for the specified key, leaving it in the store.
+     * @param key the key of the value
+     * @param now the current value of {@link System#nanoTime()}
+     * @return the value stored for the key, or <code>null</code> if none is stored or it has expired
+     * @throws CacheManagementException the value could not be deserialized
+     */
+    public @Nullable Stored<V> get(@Nonnull Object key, long now) {
+        return read(index.get(key), now);
+    }
+
+    /**
+     * Removes the value for the specified key from the store and provides it.
+     * @param key the key of the value
+     * @param now the current value of {@link System#nanoTime()}
+     * @return the value stored for the key, or <code>null</code> if none is stored or it has expired
+     * @throws CacheManagementException the value could not be deserialized
+     */
+    public @Nullable Stored<V> take(@Nonnull Object key, long now) {
+        return read(index.remove(key), now);
+    }
+
+    private @Nullable Stored<V> read(@Nullable Slot slot, long now) {
+        byte[] bytes;
+
+        if( slot == null || (slot.expires && now - slot.deadline >= 0L) ) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            ByteBuffer buffer;
+
+            if( generations[slot.segment] != slot.generation ) {
+                return null;
+            }
+            buffer = segments[slot.segment].duplicate();
+            bytes = new byte[slot.length];
+            buffer.position(slot.offset);
+            buffer.get(bytes);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return new Stored<V>(serializer.deserialize(bytes), slot);
+    }
+
+    /**
+     * Forgets every value in the specified segment so that it may be overwritten. Must be
+     * called while holding the write lock.
+     * @param segment the segment being recycled
+     */
+    private void recycle(int segment) {
+        ArrayList<K> keys = residents.get(segment);
+
+        generations[segment]++;
+        for( K key : keys ) {
+            Slot slot = index.get(key);
+
+            if( slot != null && slot.segment == segment ) {
+                index.remove(key, slot);
+            }
+        }
+        keys.clear();
+    }
+}
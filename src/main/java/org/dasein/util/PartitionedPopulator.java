@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>
+ *   A populator for results that come from several independent sources, such as shards or ranges of pages.
+ *   Subclasses declare their partitions in {@link #getPartitions()} and load a single partition in
+ *   {@link #populate(Object, Jiterator)}. When a {@link PopulatorThread} runs the populator, the partitions are
+ *   loaded concurrently, at most {@link #getParallelism()} at a time if a limit is set, and all of them feed the
+ *   one jiterator the reader sees. The thread running the populator loads partitions itself while helpers on the
+ *   {@link DaseinUtilTasks} pool take the others as threads become free, so the load completes even on a small
+ *   bounded pool that cannot run every partition at once.
+ * </p>
+ * <p>
+ *   By default items reach the reader in whatever order the partitions produce them. An ordered populator
+ *   instead gives each partition its own buffer and hands the buffers to the reader one after another in the
+ *   order of {@link #getPartitions()}, so later partitions load while earlier ones are being read but their
+ *   items wait their turn. If the target jiterator is bounded, each buffer is bounded in the same way.
+ * </p>
+ * <p>
+ *   The jiterator completes once every partition has finished. The first partition to fail fails the whole
+ *   load with its exception, and the partitions still running are cancelled.
+ * </p>
+ * @param <T> the type of object being loaded
+ * @param <P> the type describing a partition
+ */
+public abstract class PartitionedPopulator<T,P> implements JiteratorPopulator<T> {
+    static private final Logger logger = Logger.getLogger(PartitionedPopulator.class);
+
+    /**
+     * The number of items moved at a time from a partition's buffer to the target of an ordered populator.
+     */
+    static private final int MERGE_BATCH = 256;
+
+    private final boolean  ordered;
+    private volatile int   parallelism = 0;
+
+    /**
+     * Constructs a populator that delivers items in the order the partitions produce them.
+     */
+    public PartitionedPopulator() {
+        this(false);
+    }
+
+    /**
+     * Constructs a populator.
+     * @param ordered true to deliver all of the items of each partition before any of the next
+     */
+    public PartitionedPopulator(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return the maximum number of partitions loaded at once, or 0 if all partitions start together
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Declares the partitions of the load. This is called once per load, before any partition starts.
+     * @return the partitions, in the order an ordered populator delivers them
+     * @throws Exception the partitions could not be determined
+     */
+    public abstract @Nonnull List<P> getPartitions() throws Exception;
+
+    /**
+     * @return true if the items of each partition are delivered together, in partition order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Loads the items of a single partition into the specified jiterator. Do not mark the jiterator complete;
+     * the populator does that once all partitions are done.
+     * @param partition the partition to load
+     * @param iterator the jiterator to push the partition's items into
+     * @throws Exception the partition failed to load
+     */
+    public abstract void populate(@Nonnull P partition, @Nonnull Jiterator<T> iterator) throws Exception;
+
+    /**
+     * Loads every partition into the specified jiterator, returning once all of them have finished.
+     * @param iterator the jiterator to populate
+     * @throws Exception the first exception thrown by a partition
+     */
+    @Override
+    public final void populate(@Nonnull Jiterator<T> iterator) throws Exception {
+        List<P> partitions = new ArrayList<P>(getPartitions());
+
+        if( partitions.isEmpty() ) {
+            return;
+        }
+        new Load(partitions, iterator).run();
+    }
+
+    /**
+     * Limits the number of partitions loaded at once. Partitions start in order as earlier ones finish.
+     * @param parallelism the maximum number of partitions loaded at once, or 0 for no limit
+     * @throws IllegalArgumentException the limit is negative
+     */
+    public void setParallelism(int parallelism) {
+        if( parallelism < 0 ) {
+            throw new IllegalArgumentException("Parallelism may not be negative: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * The state of a single run of the populator. Partitions are claimed one at a time by whichever worker gets
+     * to them first: the thread running the populator works through them itself, and helpers submitted to the
+     * pool join in as threads become free. A helper that is still queued therefore holds no partition, and the
+     * populator only ever waits for partitions that are actually running.
+     */
+    private class Load {
+        private final AtomicIntegerArray claims;
+        private Throwable                failure;
+        private int                      finished   = 0;
+        private final List<Future<?>>    helpers    = new ArrayList<Future<?>>();
+        private long                     lastFinish = System.currentTimeMillis();
+        private final AtomicInteger      next       = new AtomicInteger(0);
+        private final Jiterator<T>       output;
+        private final List<P>            partitions;
+        private final List<Jiterator<T>> sinks;
+
+        private Load(@Nonnull List<P> partitions, @Nonnull Jiterator<T> output) {
+            this.partitions = partitions;
+            this.output = output;
+            this.claims = new AtomicIntegerArray(partitions.size());
+            if( ordered ) {
+                sinks = new ArrayList<Jiterator<T>>(partitions.size());
+                for( int i=0; i<partitions.size(); i++ ) {
+                    Jiterator<T> sink = new Jiterator<T>(output.getName() + " #" + i, null, null, output.getTimeout());
+
+                    if( output.getCapacity() > 0 ) {
+                        sink.setCapacity(output.getCapacity(), output.getHighWatermark(), output.getLowWatermark());
+                    }
+                    sinks.add(sink);
+                }
+            }
+            else {
+                sinks = null;
+            }
+        }
+
+        private void run() throws Exception {
+            int workers = (parallelism > 0 ? Math.min(parallelism, partitions.size()) : partitions.size());
+
+            // the calling thread is one of the workers
+            for( int i=1; i<workers; i++ ) {
+                try {
+                    Future<?> helper = DaseinUtilTasks.submit(new Helper());
+
+                    synchronized( this ) {
+                        helpers.add(helper);
+                    }
+                }
+                catch( RejectedExecutionException e ) {
+                    // no partition is lost: the calling thread claims whatever the helpers do not
+                    logger.debug("[" + output + "] Task pool rejected a partition helper, loading with " + i + " workers");
+                    break;
+                }
+            }
+            try {
+                if( ordered ) {
+                    merge();
+                }
+                else {
+                    int idx;
+
+                    while( !isFailed() && (idx = claimNext()) != -1 ) {
+                        load(idx, output);
+                    }
+                    awaitRunning();
+                }
+            }
+            catch( RuntimeException e ) {
+                // the target jiterator failed or its reader went away
+                fail(e);
+            }
+            Throwable t;
+
+            synchronized( this ) {
+                t = failure;
+            }
+            if( t instanceof Exception ) {
+                throw (Exception)t;
+            }
+            else if( t instanceof Error ) {
+                throw (Error)t;
+            }
+            else if( t != null ) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        /**
+         * Waits for the partitions claimed by helpers to finish. Fails the load with a {@link TimeoutException}
+         * if neither a partition finishes nor an item reaches the target for the length of its timeout.
+         */
+        private void awaitRunning() {
+            long timeout = output.getTimeout().longValue();
+            Throwable stalled = null;
+
+            synchronized( this ) {
+                while( finished < partitions.size() && failure == null ) {
+                    long idle = System.currentTimeMillis() - Math.max(lastFinish, output.getLastTouch());
+
+                    if( idle > timeout ) {
+                        stalled = new TimeoutException("Partitioned load of " + output.getName() + " timed out waiting for its partitions");
+                        break;
+                    }
+                    try {
+                        wait(timeout - idle + 1L);
+                    }
+                    catch( InterruptedException e ) {
+                        stalled = e;
+                        break;
+                    }
+                }
+            }
+            if( stalled != null ) {
+                fail(stalled);
+            }
+        }
+
+        /**
+         * Claims a specific partition.
+         * @param idx the index of the partition
+         * @return true if the caller now owns the partition, false if another worker already claimed it
+         */
+        private boolean claim(int idx) {
+            return claims.compareAndSet(idx, 0, 1);
+        }
+
+        /**
+         * Claims the first partition no worker has claimed yet.
+         * @return the index of the claimed partition, or -1 if every partition has been claimed
+         */
+        private int claimNext() {
+            for( int i=next.get(); i<partitions.size(); i++ ) {
+                if( claim(i) ) {
+                    next.set(i + 1);
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Fails the load with the specified exception unless it has already failed, and stops the
+         * partitions still running.
+         * @param error the cause of the failure
+         */
+        private void fail(@Nonnull Throwable error) {
+            List<Future<?>> running;
+
+            synchronized( this ) {
+                if( failure != null ) {
+                    return;
+                }
+                failure = error;
+                running = new ArrayList<Future<?>>(helpers);
+                notifyAll();
+            }
+            logger.warn("[" + output + "] Partitioned load failed: " + error.getMessage());
+            if( sinks != null ) {
+                for( Jiterator<T> sink : sinks ) {
+                    if( !sink.isLoaded() ) {
+                        sink.setLoadException(error instanceof Exception ? (Exception)error : new RuntimeException(error));
+                    }
+                }
+            }
+            for( Future<?> f : running ) {
+                f.cancel(true);
+            }
+        }
+
+        private boolean isFailed() {
+            synchronized( this ) {
+                return (failure != null);
+            }
+        }
+
+        /**
+         * Loads a single partition and records its end.
+         * @param idx the index of the partition
+         * @param target the jiterator to load the partition into
+         */
+        private void load(int idx, @Nonnull Jiterator<T> target) {
+            try {
+                populate(partitions.get(idx), target);
+                if( target != output ) {
+                    target.complete();
+                }
+            }
+            catch( Throwable t ) {
+                fail(t);
+            }
+            finally {
+                synchronized( this ) {
+                    finished++;
+                    lastFinish = System.currentTimeMillis();
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Moves the items of each partition to the target in partition order. A partition that no helper has
+         * claimed by the time its turn comes is loaded straight into the target by the calling thread.
+         */
+        private void merge() {
+            List<T> batch;
+
+            for( int i=0; i<partitions.size() && !isFailed(); i++ ) {
+                if( claim(i) ) {
+                    load(i, output);
+                    continue;
+                }
+                Jiterator<T> sink = sinks.get(i);
+
+                while( !(batch = sink.nextBatch(MERGE_BATCH)).isEmpty() ) {
+                    output.pushAll(batch);
+                }
+            }
+        }
+
+        /**
+         * Loads partitions into their buffers, or straight into the target if the load is unordered, until
+         * none are left to claim.
+         */
+        private class Helper implements Runnable {
+            @Override
+            public void run() {
+                int idx;
+
+                while( !isFailed() && (idx = claimNext()) != -1 ) {
+                    load(idx, sinks == null ? output : sinks.get(idx));
+                }
+            }
+        }
+    }
+}
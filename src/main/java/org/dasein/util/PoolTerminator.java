@@ -37,22 +37,32 @@ public class PoolTerminator implements ServletContextListener {
         }
     }
     
+    static public void removeTerminationHandler(Callable<Boolean> handler) {
+        synchronized( terminationHandlers ) {
+            terminationHandlers.remove(handler);
+        }
+    }
+    
     public void contextDestroyed(ServletContextEvent event) {
         logger.debug("enter - contextDestroyed(ServletContextEvent)");
         try {
+            ArrayList<Callable<Boolean>> handlers;
+
+            // handlers may remove themselves, or others, while they run
             synchronized( terminationHandlers ) {
-                for( Callable<Boolean> handler : terminationHandlers ) {
-                    try {
-                        Boolean success = handler.call();
-                        
-                        if( success == null || !success ) {
-                            logger.warn("Failure from " + handler.getClass().getName());
-                        }
-                    }
-                    catch( Exception e ) {
-                        logger.warn(handler.getClass().getName() + ": " + e.getMessage());
+                handlers = new ArrayList<Callable<Boolean>>(terminationHandlers);
+            }
+            for( Callable<Boolean> handler : handlers ) {
+                try {
+                    Boolean success = handler.call();
+                    
+                    if( success == null || !success ) {
+                        logger.warn("Failure from " + handler.getClass().getName());
                     }
                 }
+                catch( Exception e ) {
+                    logger.warn(handler.getClass().getName() + ": " + e.getMessage());
+                }
             }
         }
         finally {
@@ -0,0 +1,395 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   Publishes the items loaded by a {@link JiteratorPopulator} or a {@link CursorPopulator} to reactive-streams
+ *   subscribers through {@link Flow.Publisher}. The jiterator or cursor behind each subscription is demand-driven
+ *   (see {@link Jiterator#request(long)}), so the populator pushes only the items subscribers have requested and
+ *   blocks until they ask for more. Back-pressure thus runs from the subscriber all the way to the data source,
+ *   and populators that check {@link Jiterator#isAboveHighWatermark()} can stop fetching while nothing is wanted.
+ * </p>
+ * <p>
+ *   The populator starts on the {@link DaseinUtilTasks} pool with the subscriber's first request. Items are
+ *   delivered to {@link Flow.Subscriber#onNext(Object)} as they are pushed, normally on the populator's thread,
+ *   so subscribers must hand slow work off rather than run it in the callback. A load error is delivered through
+ *   {@link Flow.Subscriber#onError(Throwable)}, and cancelling a subscription, even from within
+ *   <code>onNext</code>, fails the populator's next push with a {@link JiteratorLoadException} caused by a
+ *   {@link CancellationException}.
+ * </p>
+ * <p>
+ *   A publisher over a {@link JiteratorPopulator} is cold: every subscriber runs the populator into a jiterator
+ *   of its own. A {@link CursorPopulator} owns a single cursor, so its publisher accepts a single subscriber and
+ *   rejects any others with an {@link IllegalStateException}. Do not call {@link CursorPopulator#populate()} on a
+ *   populator that is being published.
+ * </p>
+ * @param <T> the type of items published
+ */
+public class PopulatorPublisher<T> implements Flow.Publisher<T> {
+    static private final Logger logger = Logger.getLogger(PopulatorPublisher.class);
+
+    /**
+     * The largest number of items taken from the jiterator or cursor at a time for delivery.
+     */
+    static private final int DELIVERY_BATCH = 256;
+
+    private final CursorPopulator<T>    cursorPopulator;
+    private final JiteratorFilter<T>    filter;
+    private final JiteratorPopulator<T> populator;
+    private final AtomicBoolean         subscribed = new AtomicBoolean(false);
+    private final TimePeriod<?>         timeout;
+
+    public PopulatorPublisher(@Nonnull JiteratorPopulator<T> populator) {
+        this(null, populator, null);
+    }
+
+    public PopulatorPublisher(@Nullable TimePeriod<?> timeout, @Nonnull JiteratorPopulator<T> populator) {
+        this(timeout, populator, null);
+    }
+
+    public PopulatorPublisher(@Nullable TimePeriod<?> timeout, @Nonnull JiteratorPopulator<T> populator, @Nullable JiteratorFilter<T> filter) {
+        this.cursorPopulator = null;
+        this.filter = filter;
+        this.populator = populator;
+        this.timeout = timeout;
+    }
+
+    public PopulatorPublisher(@Nonnull CursorPopulator<T> populator) {
+        this.cursorPopulator = populator;
+        this.filter = null;
+        this.populator = null;
+        this.timeout = null;
+    }
+
+    @Override
+    public void subscribe(@Nonnull Flow.Subscriber<? super T> subscriber) {
+        //noinspection ConstantConditions
+        if( subscriber == null ) {
+            throw new NullPointerException("A subscriber is required");
+        }
+        if( cursorPopulator == null ) {
+            new JiteratorSubscription(subscriber).open();
+        }
+        else if( subscribed.compareAndSet(false, true) ) {
+            new CursorSubscription(subscriber).open();
+        }
+        else {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long count) { }
+
+                @Override
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("A cursor may be published to only one subscriber"));
+        }
+    }
+
+    /**
+     * Delivers the items buffered in a demand-driven jiterator or cursor to a subscriber. Deliveries are
+     * triggered by requests and by arrivals in the buffer, and whichever thread triggers one drains the
+     * buffer on behalf of any that arrive while it is at work, so calls to the subscriber never overlap.
+     */
+    private abstract class Subscription implements Flow.Subscription, Runnable {
+        private volatile boolean              cancelled = false;
+        private boolean                       done      = false;
+        private volatile Throwable            rejection = null;
+        private final AtomicLong              requested = new AtomicLong(0L);
+        private final AtomicBoolean           started   = new AtomicBoolean(false);
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicInteger           work      = new AtomicInteger(0);
+
+        private Subscription(@Nonnull Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return the number of items buffered and ready for delivery
+         */
+        abstract int available();
+
+        /**
+         * Passes the subscriber's demand on to the populator.
+         * @param count the number of additional items requested
+         */
+        abstract void demand(long count);
+
+        /**
+         * @return true once the populator has finished or failed and every item has been taken
+         */
+        abstract boolean isExhausted();
+
+        /**
+         * Registers this subscription to be run whenever items arrive.
+         */
+        abstract void listen();
+
+        /**
+         * Starts the populator.
+         */
+        abstract void start();
+
+        /**
+         * Stops the populator by failing its jiterator or cursor.
+         * @param reason the reason for stopping
+         */
+        abstract void stop(@Nonnull Exception reason);
+
+        /**
+         * Takes buffered items without waiting, or reports the end of the load.
+         * @param max the maximum number of items to take
+         * @return the items taken, which is empty only if the load completed normally
+         * @throws JiteratorLoadException the load failed
+         */
+        abstract @Nonnull List<T> take(int max);
+
+        @Override
+        public void cancel() {
+            if( !cancelled ) {
+                cancelled = true;
+                stop(new CancellationException("The subscriber cancelled its subscription"));
+            }
+        }
+
+        void open() {
+            listen();
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long count) {
+            if( cancelled ) {
+                return;
+            }
+            if( count < 1L ) {
+                rejection = new IllegalArgumentException("Subscribers must request at least one item: " + count);
+                deliver();
+                return;
+            }
+            while( true ) {
+                long current = requested.get();
+                long next = current + count;
+
+                if( next < 0L ) {
+                    next = Long.MAX_VALUE;
+                }
+                if( requested.compareAndSet(current, next) ) {
+                    break;
+                }
+            }
+            try {
+                demand(count);
+            }
+            catch( RuntimeException e ) {
+                // the load has already ended
+            }
+            if( started.compareAndSet(false, true) ) {
+                start();
+            }
+            deliver();
+        }
+
+        @Override
+        public void run() {
+            deliver();
+        }
+
+        private void deliver() {
+            if( work.getAndIncrement() != 0 ) {
+                return;
+            }
+            int missed = 1;
+
+            do {
+                if( !done && !cancelled ) {
+                    drain();
+                }
+                missed = work.addAndGet(-missed);
+            } while( missed != 0 );
+        }
+
+        private void drain() {
+            Throwable error = rejection;
+
+            if( error != null ) {
+                cancel();
+                terminate(error);
+                return;
+            }
+            long wanted = requested.get();
+            long sent = 0L;
+
+            try {
+                while( sent < wanted && !cancelled && available() > 0 ) {
+                    for( T item : take((int)Math.min(wanted - sent, DELIVERY_BATCH)) ) {
+                        subscriber.onNext(item);
+                        sent++;
+                    }
+                }
+                if( sent > 0L && wanted != Long.MAX_VALUE ) {
+                    requested.addAndGet(-sent);
+                }
+                if( !cancelled && available() == 0 && isExhausted() ) {
+                    take(1);
+                    terminate(null);
+                }
+            }
+            catch( JiteratorLoadException e ) {
+                terminate(e.getCause() == null ? e : e.getCause());
+            }
+            catch( RuntimeException e ) {
+                logger.error("Subscriber " + subscriber + " failed while receiving items: " + e.getMessage());
+                cancel();
+            }
+        }
+
+        private void terminate(@Nullable Throwable error) {
+            if( done ) {
+                return;
+            }
+            done = true;
+            if( error == null ) {
+                subscriber.onComplete();
+            }
+            else {
+                subscriber.onError(error);
+            }
+        }
+    }
+
+    private class JiteratorSubscription extends Subscription {
+        private final Jiterator<T> sink;
+
+        private JiteratorSubscription(@Nonnull Flow.Subscriber<? super T> subscriber) {
+            super(subscriber);
+            sink = new Jiterator<T>(null, null, filter, timeout);
+        }
+
+        @Override
+        int available() {
+            return sink.getPendingCount();
+        }
+
+        @Override
+        void demand(long count) {
+            sink.request(count);
+        }
+
+        @Override
+        boolean isExhausted() {
+            return sink.isComplete();
+        }
+
+        @Override
+        void listen() {
+            sink.setArrivalListener(this);
+        }
+
+        @Override
+        void start() {
+            DaseinUtilTasks.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        populator.populate(sink);
+                        sink.complete();
+                    }
+                    catch( Throwable t ) {
+                        // a cancelled subscription has already failed the jiterator
+                        if( !sink.isLoaded() ) {
+                            sink.setLoadException(t instanceof Exception ? (Exception)t : new RuntimeException(t));
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        void stop(@Nonnull Exception reason) {
+            if( !sink.isLoaded() ) {
+                sink.setLoadException(reason);
+            }
+        }
+
+        @Override
+        @Nonnull List<T> take(int max) {
+            return sink.nextBatch(max);
+        }
+    }
+
+    private class CursorSubscription extends Subscription {
+        private final ForwardCursor<T> cursor;
+
+        private CursorSubscription(@Nonnull Flow.Subscriber<? super T> subscriber) {
+            super(subscriber);
+            cursor = cursorPopulator.getCursor();
+        }
+
+        @Override
+        int available() {
+            return cursor.getPendingCount();
+        }
+
+        @Override
+        void demand(long count) {
+            cursor.request(count);
+        }
+
+        @Override
+        boolean isExhausted() {
+            return cursor.isComplete();
+        }
+
+        @Override
+        void listen() {
+            cursor.setArrivalListener(this);
+        }
+
+        @Override
+        void start() {
+            cursorPopulator.populate();
+        }
+
+        @Override
+        void stop(@Nonnull Exception reason) {
+            if( !cursor.isComplete() ) {
+                cursor.error(reason);
+            }
+        }
+
+        @Override
+        @Nonnull List<T> take(int max) {
+            return cursor.nextBatch(max);
+        }
+    }
+}
@@ -19,9 +19,6 @@
 package org.dasein.util;
 
 import java.util.Collection;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 import org.dasein.util.uom.time.*;
@@ -33,25 +30,16 @@ import javax.annotation.Nullable;
 public class PopulatorThread<T> implements Runnable {
     static private final Logger logger = Logger.getLogger(PopulatorThread.class);
     
-    static private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    
-    static {
-    	try {
-    		PoolTerminator.addTerminationHandler(new Callable<Boolean>() {
-    			public Boolean call() {
-    				threadPool.shutdown();
-    				return true;
-    			}
-    		});
-    	}
-    	catch( Throwable ignore ) {
-    		// this will get thrown when not in a J2EE container
-    	}
-    }
+    static private final String THREAD_NAME = "Jiterator Populator";
 
+    /**
+     * Populators now run on the shared {@link DaseinUtilTasks} pool, which shuts down with the application.
+     * @deprecated use {@link DaseinUtilTasks#shutdown()}
+     */
+    @Deprecated
     @SuppressWarnings("unused")
     static public void terminate() {
-    	threadPool.shutdown();
+        DaseinUtilTasks.shutdown();
     }
     
     private JitCollection<T>                                 collection;
@@ -81,7 +69,7 @@ public class PopulatorThread<T> implements Runnable {
     }
     
     public void populate() {
-        threadPool.submit(this);
+        DaseinUtilTasks.submit(this);
     }
 
     public void setSize(int size) {
@@ -89,10 +77,13 @@ public class PopulatorThread<T> implements Runnable {
     }
 
     public void run() {
+        Thread thread = Thread.currentThread();
+        String poolName = thread.getName();
         boolean success = false;
         
         try {
-            Thread.currentThread().setName("Jiterator Populator");
+            // the pool thread goes back to other work afterwards, so only borrow the name
+            thread.setName(THREAD_NAME);
             populator.populate(iterator);
             success = true;
         }
@@ -106,6 +97,7 @@ public class PopulatorThread<T> implements Runnable {
             if( success ) {
                 iterator.complete();
             }
+            thread.setName(poolName);
         }
     }
 }
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * <p>
+ *   Extracts an attribute value through a field or getter resolved once for a given class.
+ *   Resolution walks the class hierarchy from the class itself upwards, looking at each level
+ *   first for a field named for the attribute and then for a no-argument getter following the
+ *   bean naming convention. A transient or static field stops the search and always yields
+ *   <code>null</code>.
+ * </p>
+ */
+class ReflectiveKeyExtractor implements KeyExtractor<Object> {
+    static private final KeyExtractor<Object> NONE = new KeyExtractor<Object>() {
+        public Object extract(@Nonnull Object item) {
+            return null;
+        }
+    };
+
+    /**
+     * Resolves the accessor for the specified attribute of the specified class.
+     * @param cls the class whose instances will be read
+     * @param attr the name of the attribute
+     * @return an extractor for the attribute
+     * @throws CacheManagementException the class has no such attribute
+     */
+    static @Nonnull KeyExtractor<Object> resolve(@Nonnull Class<?> cls, @Nonnull String attr) {
+        String getter = "get" + attr.substring(0,1).toUpperCase() + attr.substring(1);
+
+        for( Class<?> c = cls; c != null; c = c.getSuperclass() ) {
+            for( Field f : c.getDeclaredFields() ) {
+                if( f.getName().equals(attr) ) {
+                    int m = f.getModifiers();
+
+                    if( Modifier.isTransient(m) || Modifier.isStatic(m) ) {
+                        return NONE;
+                    }
+                    f.setAccessible(true);
+                    return new ReflectiveKeyExtractor(f, null);
+                }
+            }
+            for( Method method : c.getDeclaredMethods() ) {
+                if( method.getName().equals(getter) && method.getParameterTypes().length == 0 ) {
+                    method.setAccessible(true);
+                    return new ReflectiveKeyExtractor(null, method);
+                }
+            }
+        }
+        throw new CacheManagementException("No such property: " + attr);
+    }
+
+    private final Field  field;
+    private final Method method;
+
+    private ReflectiveKeyExtractor(@Nullable Field field, @Nullable Method method) {
+        this.field = field;
+        this.method = method;
+    }
+
+    public @Nullable Object extract(@Nonnull Object item) {
+        try {
+            if( field != null ) {
+                return field.get(item);
+            }
+            return method.invoke(item);
+        }
+        catch( IllegalAccessException e ) {
+            throw new CacheManagementException(e);
+        }
+        catch( InvocationTargetException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new CacheManagementException(cause);
+        }
+    }
+
+    public String toString() {
+        return (field != null ? field.toString() : method.toString());
+    }
+}
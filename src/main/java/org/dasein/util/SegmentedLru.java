@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ *   A segmented LRU eviction policy for the bounded modes of {@link Cache} and
+ *   {@link ConcurrentCache}. New entries enter a probationary segment; entries that are
+ *   accessed again while on probation are promoted to a protected segment that holds up to
+ *   80% of the maximum weight. Entries demoted from the protected segment go back to
+ *   probation, and eviction always takes the least recently used probationary entries
+ *   first. A single scan over many keys therefore only churns the probationary segment
+ *   and cannot flush the working set.
+ * </p>
+ * <p>
+ *   This class is not synchronized. Callers must guard every method with the same lock.
+ * </p>
+ * @param <E> the type of cache entry tracked by the policy
+ */
+class SegmentedLru<E> {
+    static private final int NONE      = 0;
+    static private final int PROBATION = 1;
+    static private final int PROTECTED = 2;
+
+    /**
+     * The position of a single cache entry within the policy.
+     * @param <E> the type of cache entry tracked by the policy
+     */
+    static class Node<E> {
+        private final E       entry;
+        private Node<E>       next;
+        private Node<E>       prev;
+        private int           segment;
+        private final long    weight;
+
+        private Node(E entry, long weight) {
+            this.entry = entry;
+            this.weight = weight;
+            this.segment = NONE;
+        }
+
+        public E getEntry() {
+            return entry;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    private final long    maximum;
+    private final Node<E> probation;
+    private long          probationWeight;
+    private final Node<E> protect;
+    private final long    protectedMaximum;
+    private long          protectedWeight;
+
+    /**
+     * Constructs a policy that holds at most the specified total weight.
+     * @param maximum the maximum total weight of all entries in the cache
+     */
+    public SegmentedLru(long maximum) {
+        this.maximum = maximum;
+        this.protectedMaximum = maximum - (maximum / 5);
+        probation = new Node<E>(null, 0L);
+        probation.next = probation;
+        probation.prev = probation;
+        protect = new Node<E>(null, 0L);
+        protect.next = protect;
+        protect.prev = protect;
+    }
+
+    /**
+     * Records that the specified node was read. Nodes that are no longer tracked are ignored.
+     * @param node the node that was read
+     */
+    public void access(@Nonnull Node<E> node) {
+        if( node.segment == PROBATION ) {
+            unlink(node);
+            probationWeight -= node.weight;
+            link(protect, node);
+            protectedWeight += node.weight;
+            node.segment = PROTECTED;
+            while( protectedWeight > protectedMaximum && protect.next != node ) {
+                Node<E> eldest = protect.next;
+
+                unlink(eldest);
+                protectedWeight -= eldest.weight;
+                link(probation, eldest);
+                probationWeight += eldest.weight;
+                eldest.segment = PROBATION;
+            }
+        }
+        else if( node.segment == PROTECTED ) {
+            unlink(node);
+            link(protect, node);
+        }
+    }
+
+    /**
+     * Starts tracking a new entry on probation.
+     * @param entry the entry being added to the cache
+     * @param weight the weight of the entry
+     * @return the node tracking the entry
+     */
+    public @Nonnull Node<E> add(@Nonnull E entry, long weight) {
+        Node<E> node = new Node<E>(entry, weight);
+
+        link(probation, node);
+        probationWeight += weight;
+        node.segment = PROBATION;
+        return node;
+    }
+
+    /**
+     * Stops tracking all entries.
+     */
+    public void clear() {
+        clear(probation);
+        clear(protect);
+        probationWeight = 0L;
+        protectedWeight = 0L;
+    }
+
+    private void clear(Node<E> head) {
+        Node<E> node = head.next;
+
+        while( node != head ) {
+            Node<E> next = node.next;
+
+            node.next = null;
+            node.prev = null;
+            node.segment = NONE;
+            node = next;
+        }
+        head.next = head;
+        head.prev = head;
+    }
+
+    /**
+     * Removes least recently used entries until the total weight is within the maximum.
+     * @return the entries that were evicted, which the caller must remove from the cache
+     */
+    public @Nonnull List<E> evict() {
+        ArrayList<E> victims = null;
+
+        while( probationWeight + protectedWeight > maximum ) {
+            Node<E> victim = (probation.next != probation ? probation.next : protect.next);
+
+            if( victim == protect ) {
+                break;
+            }
+            remove(victim);
+            if( victims == null ) {
+                victims = new ArrayList<E>();
+            }
+            victims.add(victim.entry);
+        }
+        if( victims == null ) {
+            return Collections.emptyList();
+        }
+        return victims;
+    }
+
+    /**
+     * @return the maximum total weight permitted by this policy
+     */
+    public long getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return the total weight of all tracked entries
+     */
+    public long getWeightedSize() {
+        return probationWeight + protectedWeight;
+    }
+
+    private void link(Node<E> head, Node<E> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    /**
+     * Stops tracking the specified node. Nodes that are no longer tracked are ignored.
+     * @param node the node to stop tracking
+     */
+    public void remove(@Nonnull Node<E> node) {
+        if( node.segment == PROBATION ) {
+            probationWeight -= node.weight;
+        }
+        else if( node.segment == PROTECTED ) {
+            protectedWeight -= node.weight;
+        }
+        else {
+            return;
+        }
+        unlink(node);
+        node.segment = NONE;
+    }
+
+    private void unlink(Node<E> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.next = null;
+        node.prev = null;
+    }
+}
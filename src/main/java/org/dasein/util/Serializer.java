@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>
+ *   Converts cached values to and from bytes so that they can be held outside of the Java
+ *   heap or written to disk. Implementations must be safe for use by multiple threads at once.
+ * </p>
+ * @param <V> the type of values being serialized
+ * @see JavaSerializer
+ */
+public interface Serializer<V> {
+    /**
+     * Converts the specified value into bytes.
+     * @param value the value to serialize
+     * @return the serialized form of the value
+     * @throws CacheManagementException the value could not be serialized
+     */
+    public abstract @Nonnull byte[] serialize(@Nonnull V value);
+
+    /**
+     * Reconstructs a value from bytes produced by {@link #serialize(Object)}.
+     * @param bytes the serialized form of the value
+     * @return the reconstructed value
+     * @throws CacheManagementException the bytes could not be deserialized
+     */
+    public abstract @Nonnull V deserialize(@Nonnull byte[] bytes);
+}
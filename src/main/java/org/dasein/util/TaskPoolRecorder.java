@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   Accumulates the statistics of the {@link DaseinUtilTasks} pool. Every task handed to the pool is wrapped
+ *   so that the time it waits to start and the time it runs are measured whatever kind of executor runs it.
+ * </p>
+ */
+class TaskPoolRecorder {
+    /**
+     * Publishes the statistics of a recorder as an MXBean.
+     */
+    static private class View implements TaskPoolStatsMXBean {
+        private final TaskPoolRecorder recorder;
+
+        private View(TaskPoolRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        public int getActiveCount() {
+            return recorder.snapshot().getActiveCount();
+        }
+
+        public double getAverageRunTime() {
+            return recorder.snapshot().getAverageRunTime();
+        }
+
+        public double getAverageWaitTime() {
+            return recorder.snapshot().getAverageWaitTime();
+        }
+
+        public long getCompletedCount() {
+            return recorder.snapshot().getCompletedCount();
+        }
+
+        public long getFailedCount() {
+            return recorder.snapshot().getFailedCount();
+        }
+
+        public int getLargestPoolSize() {
+            return recorder.snapshot().getLargestPoolSize();
+        }
+
+        public long getMaximumRunTime() {
+            return recorder.snapshot().getMaximumRunTime();
+        }
+
+        public long getMaximumWaitTime() {
+            return recorder.snapshot().getMaximumWaitTime();
+        }
+
+        public int getPoolSize() {
+            return recorder.snapshot().getPoolSize();
+        }
+
+        public int getQueueDepth() {
+            return recorder.snapshot().getQueueDepth();
+        }
+
+        public long getRejectedCount() {
+            return recorder.snapshot().getRejectedCount();
+        }
+
+        public long getSubmittedCount() {
+            return recorder.snapshot().getSubmittedCount();
+        }
+    }
+
+    /**
+     * Measures a single task on behalf of the recorder.
+     */
+    private class Timed<V> implements Callable<V>, Runnable {
+        private final Callable<V> callable;
+        private final long        queued = System.nanoTime();
+        private final Runnable    runnable;
+
+        private Timed(Callable<V> callable, Runnable runnable) {
+            this.callable = callable;
+            this.runnable = runnable;
+        }
+
+        public V call() throws Exception {
+            long start = begin(queued);
+            boolean success = false;
+
+            try {
+                V result;
+
+                if( callable != null ) {
+                    result = callable.call();
+                }
+                else {
+                    runnable.run();
+                    result = null;
+                }
+                success = true;
+                return result;
+            }
+            finally {
+                end(start, success);
+            }
+        }
+
+        public void run() {
+            long start = begin(queued);
+            boolean success = false;
+
+            try {
+                runnable.run();
+                success = true;
+            }
+            finally {
+                end(start, success);
+            }
+        }
+    }
+
+    /**
+     * Counts the tasks a pool's rejection policy absorbs, such as those it runs in the caller or discards.
+     * Policies that throw are counted where the exception is caught.
+     */
+    private class CountingRejectionHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler delegate;
+
+        private CountingRejectionHandler(RejectedExecutionHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            delegate.rejectedExecution(r, executor);
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Registers the statistics of the specified recorder with the platform MBean server under
+     * <code>org.dasein.util:type=TaskPool,name=<i>name</i></code>.
+     * @param name the name of the pool
+     * @param recorder the recorder to publish
+     * @return the object name under which the statistics were registered
+     * @throws CacheManagementException the statistics could not be registered
+     */
+    static @Nonnull ObjectName register(@Nonnull String name, @Nonnull TaskPoolRecorder recorder) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName objectName = new ObjectName("org.dasein.util:type=TaskPool,name=" + ObjectName.quote(name));
+
+            server.registerMBean(new StandardMBean(new View(recorder), TaskPoolStatsMXBean.class, true), objectName);
+            return objectName;
+        }
+        catch( JMException e ) {
+            throw new CacheManagementException(e);
+        }
+    }
+
+    private final AtomicInteger     active          = new AtomicInteger(0);
+    private final AtomicLong        completed       = new AtomicLong(0L);
+    private volatile ExecutorService executor;
+    private final AtomicLong        failed          = new AtomicLong(0L);
+    private final AtomicInteger     largestActive   = new AtomicInteger(0);
+    private final AtomicLong        maximumRunNanos = new AtomicLong(0L);
+    private final AtomicLong        maximumWaitNanos= new AtomicLong(0L);
+    private final AtomicLong        rejected        = new AtomicLong(0L);
+    private final AtomicLong        started         = new AtomicLong(0L);
+    private final AtomicLong        submitted       = new AtomicLong(0L);
+    private final AtomicLong        totalRunNanos   = new AtomicLong(0L);
+    private final AtomicLong        totalWaitNanos  = new AtomicLong(0L);
+
+    TaskPoolRecorder(@Nonnull ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private long begin(long queued) {
+        long start = System.nanoTime();
+        int running = active.incrementAndGet();
+
+        started.incrementAndGet();
+        record(totalWaitNanos, maximumWaitNanos, start - queued);
+        while( true ) {
+            int largest = largestActive.get();
+
+            if( running <= largest || largestActive.compareAndSet(largest, running) ) {
+                break;
+            }
+        }
+        return start;
+    }
+
+    private void end(long start, boolean success) {
+        record(totalRunNanos, maximumRunNanos, System.nanoTime() - start);
+        active.decrementAndGet();
+        if( success ) {
+            completed.incrementAndGet();
+        }
+        else {
+            failed.incrementAndGet();
+        }
+    }
+
+    private void record(@Nonnull AtomicLong total, @Nonnull AtomicLong maximum, long nanos) {
+        total.addAndGet(nanos);
+        while( true ) {
+            long max = maximum.get();
+
+            if( nanos <= max || maximum.compareAndSet(max, nanos) ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param delegate the rejection policy of a pool
+     * @return a policy that applies the delegate and counts the tasks it absorbs
+     */
+    @Nonnull RejectedExecutionHandler countRejections(@Nonnull RejectedExecutionHandler delegate) {
+        return new CountingRejectionHandler(delegate);
+    }
+
+    void recordRejection() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Points the pool-specific statistics, such as the number of threads, at a new executor.
+     * @param executor the executor now running the pool's tasks
+     */
+    void setExecutor(@Nonnull ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the statistics accumulated so far
+     */
+    @Nonnull TaskPoolStats snapshot() {
+        ExecutorService current = executor;
+        int running = active.get();
+        int poolSize, largest, queueDepth;
+
+        if( current instanceof ThreadPoolExecutor ) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor)current;
+
+            // tasks accepted by a replaced executor may still be finishing, so ask the pool itself
+            running = pool.getActiveCount();
+            poolSize = pool.getPoolSize();
+            largest = pool.getLargestPoolSize();
+            queueDepth = pool.getQueue().size();
+        }
+        else {
+            poolSize = running;
+            largest = largestActive.get();
+            queueDepth = (int)Math.max(0L, submitted.get() - started.get() - rejected.get());
+        }
+        return new TaskPoolStats(running, poolSize, largest, queueDepth, submitted.get(), completed.get(), failed.get(), rejected.get(), totalWaitNanos.get(), maximumWaitNanos.get(), totalRunNanos.get(), maximumRunNanos.get());
+    }
+
+    @Nonnull <V> Callable<V> wrap(@Nonnull Callable<V> task) {
+        submitted.incrementAndGet();
+        return new Timed<V>(task, null);
+    }
+
+    @Nonnull Runnable wrap(@Nonnull Runnable task) {
+        submitted.incrementAndGet();
+        return new Timed<Object>(null, task);
+    }
+
+    @Nonnull <V> List<Callable<V>> wrapAll(@Nonnull Collection<? extends Callable<V>> tasks) {
+        ArrayList<Callable<V>> wrapped = new ArrayList<Callable<V>>(tasks.size());
+
+        for( Callable<V> task : tasks ) {
+            wrapped.add(wrap(task));
+        }
+        return wrapped;
+    }
+}
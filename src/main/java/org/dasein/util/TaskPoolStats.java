@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+/**
+ * <p>
+ *   An immutable snapshot of the activity of the {@link DaseinUtilTasks} pool: how busy it is right now and
+ *   how long tasks have waited to start and taken to run. Counts and times accumulate from the first use
+ *   of the pool and carry over when the pool is reconfigured.
+ * </p>
+ */
+public class TaskPoolStats {
+    private final int  activeCount;
+    private final long completedCount;
+    private final long failedCount;
+    private final int  largestPoolSize;
+    private final long maximumRunNanos;
+    private final long maximumWaitNanos;
+    private final int  poolSize;
+    private final int  queueDepth;
+    private final long rejectedCount;
+    private final long submittedCount;
+    private final long totalRunNanos;
+    private final long totalWaitNanos;
+
+    TaskPoolStats(int activeCount, int poolSize, int largestPoolSize, int queueDepth, long submittedCount, long completedCount, long failedCount, long rejectedCount, long totalWaitNanos, long maximumWaitNanos, long totalRunNanos, long maximumRunNanos) {
+        this.activeCount = activeCount;
+        this.poolSize = poolSize;
+        this.largestPoolSize = largestPoolSize;
+        this.queueDepth = queueDepth;
+        this.submittedCount = submittedCount;
+        this.completedCount = completedCount;
+        this.failedCount = failedCount;
+        this.rejectedCount = rejectedCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maximumWaitNanos = maximumWaitNanos;
+        this.totalRunNanos = totalRunNanos;
+        this.maximumRunNanos = maximumRunNanos;
+    }
+
+    /**
+     * @return the number of tasks running at the time of the snapshot
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return the average time a task spent running in nanoseconds, or 0 if no task has finished
+     */
+    public double getAverageRunTime() {
+        long finished = completedCount + failedCount;
+
+        return (finished == 0L ? 0.0 : ((double)totalRunNanos) / finished);
+    }
+
+    /**
+     * @return the average time a task waited between submission and start in nanoseconds, or 0 if no task has started
+     */
+    public double getAverageWaitTime() {
+        long started = completedCount + failedCount + activeCount;
+
+        return (started == 0L ? 0.0 : ((double)totalWaitNanos) / started);
+    }
+
+    /**
+     * @return the number of tasks that ran to completion
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return the number of tasks that ended by throwing an exception
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return the largest number of threads the current pool has had, or the largest number of tasks
+     * seen running at once for pools that start a thread per task
+     */
+    public int getLargestPoolSize() {
+        return largestPoolSize;
+    }
+
+    /**
+     * @return the longest time a single task has run in nanoseconds
+     */
+    public long getMaximumRunTime() {
+        return maximumRunNanos;
+    }
+
+    /**
+     * @return the longest time a single task has waited to start in nanoseconds
+     */
+    public long getMaximumWaitTime() {
+        return maximumWaitNanos;
+    }
+
+    /**
+     * @return the number of threads in the pool, or the number of running tasks for pools that start a thread per task
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return the number of tasks accepted but not yet started
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the number of tasks the pool refused to accept or handed to its rejection policy
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return the number of tasks submitted to the pool, including rejected ones
+     */
+    public long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * @return the total time tasks have spent running in nanoseconds
+     */
+    public long getTotalRunTime() {
+        return totalRunNanos;
+    }
+
+    /**
+     * @return the total time tasks have spent waiting to start in nanoseconds
+     */
+    public long getTotalWaitTime() {
+        return totalWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskPoolStats[active=" + activeCount + ",poolSize=" + poolSize + ",queueDepth=" + queueDepth +
+                ",submitted=" + submittedCount + ",completed=" + completedCount + ",failed=" + failedCount +
+                ",rejected=" + rejectedCount + ",averageWait=" + getAverageWaitTime() + "ns,averageRun=" + getAverageRunTime() + "ns]";
+    }
+}
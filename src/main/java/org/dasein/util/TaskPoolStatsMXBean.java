@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+/**
+ * <p>
+ *   The management interface through which the statistics of the {@link DaseinUtilTasks} pool are
+ *   published over JMX. Each attribute reads a fresh snapshot of the underlying {@link TaskPoolStats}.
+ * </p>
+ */
+public interface TaskPoolStatsMXBean {
+    public abstract int getActiveCount();
+
+    public abstract double getAverageRunTime();
+
+    public abstract double getAverageWaitTime();
+
+    public abstract long getCompletedCount();
+
+    public abstract long getFailedCount();
+
+    public abstract int getLargestPoolSize();
+
+    public abstract long getMaximumRunTime();
+
+    public abstract long getMaximumWaitTime();
+
+    public abstract int getPoolSize();
+
+    public abstract int getQueueDepth();
+
+    public abstract long getRejectedCount();
+
+    public abstract long getSubmittedCount();
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ *   A hierarchical timer wheel that tracks when cache entries expire. Each of the five
+ *   levels has 64 buckets; a bucket on the first level spans about 17 milliseconds and each
+ *   subsequent level spans 64 times as long as the one below it, so the wheel covers
+ *   deadlines up to roughly 200 days away before wrapping. Scheduling and descheduling an
+ *   entry are O(1), and advancing the wheel only visits the buckets whose time has passed,
+ *   cascading entries down to finer levels as their deadlines approach.
+ * </p>
+ * <p>
+ *   Deadlines are read from the entries themselves each time their bucket is visited. An
+ *   entry whose deadline has been pushed back since it was scheduled is simply rescheduled
+ *   rather than expired, so readers can extend a deadline without touching the wheel.
+ * </p>
+ * <p>
+ *   This class is not synchronized. Callers must guard every method with the same lock.
+ * </p>
+ * @param <E> the type of entry tracked by the wheel
+ */
+class TimerWheel<E extends TimerWheel.Timed> {
+    /**
+     * An entry with a deadline expressed in {@link System#nanoTime()} terms.
+     */
+    static interface Timed {
+        public abstract long getDeadline();
+    }
+
+    /**
+     * The position of a single entry within the wheel.
+     * @param <E> the type of entry tracked by the wheel
+     */
+    static class Node<E> {
+        private final E entry;
+        private Node<E> next;
+        private Node<E> prev;
+
+        private Node(E entry) {
+            this.entry = entry;
+        }
+    }
+
+    static private final int   BUCKETS = 64;
+    static private final int   MASK    = BUCKETS - 1;
+    static private final int[] SHIFT   = { 24, 30, 36, 42, 48 };
+
+    private final long        origin;
+    private long              time;
+    private final Node<E>[][] wheel;
+
+    /**
+     * Constructs an empty wheel whose clock starts at the specified time.
+     * @param now the current value of {@link System#nanoTime()}
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long now) {
+        origin = now;
+        time = 0L;
+        wheel = new Node[SHIFT.length][];
+        for( int i=0; i<SHIFT.length; i++ ) {
+            wheel[i] = new Node[BUCKETS];
+            for( int j=0; j<BUCKETS; j++ ) {
+                Node<E> sentinel = new Node<E>(null);
+
+                sentinel.next = sentinel;
+                sentinel.prev = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Moves the clock forward to the specified time and removes all entries whose deadline
+     * has passed.
+     * @param now the current value of {@link System#nanoTime()}
+     * @return the expired entries, which the caller must remove from the cache
+     */
+    public @Nonnull List<E> advance(long now) {
+        long previous = time;
+        long current = now - origin;
+        List<E> victims = null;
+
+        if( current - previous <= 0L ) {
+            return Collections.emptyList();
+        }
+        time = current;
+        for( int i=0; i<SHIFT.length; i++ ) {
+            long previousTicks = previous >>> SHIFT[i];
+            long currentTicks = current >>> SHIFT[i];
+
+            if( currentTicks - previousTicks <= 0L ) {
+                break;
+            }
+            victims = expire(i, previousTicks, currentTicks - previousTicks, victims);
+        }
+        if( victims == null ) {
+            return Collections.emptyList();
+        }
+        return victims;
+    }
+
+    /**
+     * Stops tracking all entries.
+     */
+    public void clear() {
+        for( Node<E>[] level : wheel ) {
+            for( Node<E> sentinel : level ) {
+                Node<E> node = sentinel.next;
+
+                while( node != sentinel ) {
+                    Node<E> next = node.next;
+
+                    node.next = null;
+                    node.prev = null;
+                    node = next;
+                }
+                sentinel.next = sentinel;
+                sentinel.prev = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the specified node. Nodes that are no longer tracked are ignored.
+     * @param node the node to stop tracking
+     */
+    public void deschedule(@Nonnull Node<E> node) {
+        if( node.next != null ) {
+            unlink(node);
+        }
+    }
+
+    private List<E> expire(int level, long previousTicks, long delta, List<E> victims) {
+        Node<E>[] buckets = wheel[level];
+        int start = (int)(previousTicks & MASK);
+        int steps = (int)Math.min(1L + delta, BUCKETS);
+
+        for( int i=start; i<start+steps; i++ ) {
+            Node<E> sentinel = buckets[i & MASK];
+            Node<E> node = sentinel.next;
+
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+            while( node != sentinel ) {
+                Node<E> next = node.next;
+
+                node.next = null;
+                node.prev = null;
+                if( (node.entry.getDeadline() - origin) - time > 0L ) {
+                    link(findBucket(node.entry.getDeadline() - origin), node);
+                }
+                else {
+                    if( victims == null ) {
+                        victims = new ArrayList<E>();
+                    }
+                    victims.add(node.entry);
+                }
+                node = next;
+            }
+        }
+        return victims;
+    }
+
+    private Node<E> findBucket(long deadline) {
+        long duration = deadline - time;
+        int last = SHIFT.length - 1;
+
+        if( duration < 0L ) {
+            deadline = time;
+            duration = 0L;
+        }
+        for( int i=0; i<last; i++ ) {
+            if( duration < (1L << SHIFT[i + 1]) ) {
+                return wheel[i][(int)((deadline >>> SHIFT[i]) & MASK)];
+            }
+        }
+        return wheel[last][(int)((deadline >>> SHIFT[last]) & MASK)];
+    }
+
+    private void link(Node<E> sentinel, Node<E> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    /**
+     * Starts tracking the specified entry according to its current deadline.
+     * @param entry the entry to track
+     * @return the node tracking the entry
+     */
+    public @Nonnull Node<E> schedule(@Nonnull E entry) {
+        Node<E> node = new Node<E>(entry);
+
+        link(findBucket(entry.getDeadline() - origin), node);
+        return node;
+    }
+
+    private void unlink(Node<E> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.next = null;
+        node.prev = null;
+    }
+}
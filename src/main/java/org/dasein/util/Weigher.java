@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * <p>
+ *   Calculates the relative weight of cached entries for caches bounded by total weight
+ *   rather than by number of entries. The weight of an entry is calculated once, when the
+ *   entry is placed in the cache.
+ * </p>
+ * @param <K> the type of keys being weighed
+ * @param <V> the type of values being weighed
+ */
+public interface Weigher<K,V> {
+    /**
+     * Provides the weight of the specified entry.
+     * @param key the key of the entry
+     * @param value the value of the entry
+     * @return the weight of the entry, never negative
+     */
+    public abstract @Nonnegative int weigh(K key, V value);
+}
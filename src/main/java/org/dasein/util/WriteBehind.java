@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   Writes the updates made to a cache back to its persistent data store from the background.
+ *   Each put or removal marks its key dirty, replacing whatever update was already pending for
+ *   the key, so a key updated many times between two flushes is written only once. Dirty keys
+ *   are flushed in batches through a {@link BulkCacheWriter} as soon as a full batch is pending,
+ *   and in any case once per flush delay. A batch that fails stays dirty and is retried with the
+ *   next flush.
+ * </p>
+ * <p>
+ *   When the store falls behind and the number of dirty keys reaches its maximum, updates of keys
+ *   that are not already dirty wait until a flush makes room. Pending updates are also flushed
+ *   when the application is shut down through {@link PoolTerminator}.
+ * </p>
+ * @param <K> the type of keys being written
+ * @param <V> the type of values being written
+ */
+class WriteBehind<K,V> {
+    static private final Logger logger = Logger.getLogger(WriteBehind.class);
+
+    /**
+     * A pending update of a single key. Updates compare by identity, so that a flush only
+     * clears the update it actually wrote and never a newer one for the same key.
+     * @param <V> the type of value being written
+     */
+    static final class Write<V> {
+        private final boolean deleted;
+        private final V       value;
+
+        private Write(V value, boolean deleted) {
+            this.value = value;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return the value to be written, or <code>null</code> for a deletion
+         */
+        @Nullable V getValue() {
+            return value;
+        }
+
+        /**
+         * @return true if the key is to be deleted from the store
+         */
+        boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * Starts a flush once per flush delay. The write-behind is held only weakly while it has nothing
+     * to write, but strongly from its first pending update until a flush has written them all, so
+     * that dropping a cache with dirty keys never loses updates it has already accepted.
+     */
+    static private class Flusher extends CacheMaintenance.Task<WriteBehind<?,?>> {
+        private volatile WriteBehind<?,?> pinned;
+        private final Terminator          terminator;
+
+        private Flusher(WriteBehind<?,?> target, Terminator terminator) {
+            super(target);
+            this.terminator = terminator;
+        }
+
+        /**
+         * Stops periodic flushing and withdraws the shutdown flush, which happens either when the
+         * write-behind is closed or when it is found to have been garbage collected.
+         */
+        void cancel() {
+            super.cancel();
+            pinned = null;
+            try {
+                PoolTerminator.removeTerminationHandler(terminator);
+            }
+            catch( Throwable ignore ) {
+                // this will get thrown when not in a J2EE container
+            }
+        }
+
+        /**
+         * Keeps the specified write-behind reachable until its pending updates are written.
+         * @param target the write-behind with pending updates
+         */
+        void pin(@Nonnull WriteBehind<?,?> target) {
+            if( pinned == null ) {
+                pinned = target;
+            }
+        }
+
+        /**
+         * Lets the specified write-behind be collected once it has no pending updates. The pending
+         * updates are checked again after letting go so that an update recorded concurrently with a
+         * flush is never left without a strong reference.
+         * @param target the write-behind that has just been flushed
+         */
+        void unpin(@Nonnull WriteBehind<?,?> target) {
+            if( target.size() < 1 ) {
+                pinned = null;
+                if( target.size() > 0 ) {
+                    pinned = target;
+                }
+            }
+        }
+
+        protected void maintain(WriteBehind<?,?> target) {
+            if( target.size() > 0 ) {
+                target.schedule();
+            }
+        }
+    }
+
+    /**
+     * Flushes pending updates when the application is shut down without keeping the write-behind
+     * reachable from the static list of termination handlers. A write-behind with pending updates
+     * is kept reachable by its {@link Flusher}, so a cleared reference means there is nothing to write.
+     */
+    static private class Terminator implements Callable<Boolean> {
+        private final WeakReference<WriteBehind<?,?>> target;
+
+        private Terminator(WriteBehind<?,?> target) {
+            this.target = new WeakReference<WriteBehind<?,?>>(target);
+        }
+
+        public Boolean call() {
+            WriteBehind<?,?> t = target.get();
+
+            return (t == null || t.flush());
+        }
+    }
+
+    private final int                            batchSize;
+    private final ReentrantLock                  capacityLock = new ReentrantLock();
+    private volatile boolean                     closed = false;
+    private final long                           delayNanos;
+    private final ConcurrentHashMap<K,Write<V>>  dirty = new ConcurrentHashMap<K,Write<V>>();
+    private final Condition                      drained = capacityLock.newCondition();
+    private final ReentrantLock                  flushLock = new ReentrantLock();
+    private final Flusher                        flusher;
+    private final Runnable                       flushTask = new Runnable() {
+        public void run() {
+            scheduled.set(false);
+            flush();
+        }
+    };
+    private final int                            maximumPending;
+    private final AtomicBoolean                  scheduled = new AtomicBoolean(false);
+    private final BulkCacheWriter<K,V>           writer;
+
+    /**
+     * Constructs a write-behind and starts its periodic flushing.
+     * @param writer the writer for the persistent data store
+     * @param delayNanos the longest time an update stays pending while the store is available
+     * @param batchSize the number of dirty keys written in a single batch
+     * @param maximumPending the number of dirty keys at which new keys wait for a flush
+     */
+    WriteBehind(@Nonnull BulkCacheWriter<K,V> writer, long delayNanos, int batchSize, int maximumPending) {
+        this.writer = writer;
+        this.delayNanos = delayNanos;
+        this.batchSize = batchSize;
+        this.maximumPending = maximumPending;
+        Terminator terminator = new Terminator(this);
+
+        flusher = new Flusher(this, terminator);
+        CacheMaintenance.schedule(flusher, delayNanos, TimeUnit.NANOSECONDS);
+        try {
+            PoolTerminator.addTerminationHandler(terminator);
+        }
+        catch( Throwable ignore ) {
+            // this will get thrown when not in a J2EE container
+        }
+    }
+
+    /**
+     * Marks the specified key to be written with the specified value.
+     * @param key the key that was updated
+     * @param value the new value for the key
+     */
+    void write(@Nonnull K key, @Nullable V value) {
+        record(key, new Write<V>(value, false));
+    }
+
+    /**
+     * Marks the specified key to be deleted.
+     * @param key the key that was removed
+     */
+    void delete(@Nonnull K key) {
+        record(key, new Write<V>(null, true));
+    }
+
+    private void record(K key, Write<V> write) {
+        dirty.put(key, write);
+        flusher.pin(this);
+        if( dirty.size() >= batchSize ) {
+            schedule();
+        }
+    }
+
+    /**
+     * Holds back an update of the specified key until there is room to record it, which is right
+     * away unless the maximum number of keys are dirty and the key is not one of them. Callers reserve
+     * room before updating the cache, so that a held back update is not visible until it is released.
+     * A thread interrupted while waiting stops waiting, so its update goes ahead regardless, and keeps
+     * its interrupt status.
+     * @param key the key about to be updated
+     */
+    void reserve(@Nonnull Object key) {
+        boolean interrupted = false;
+
+        if( dirty.size() < maximumPending || dirty.containsKey(key) ) {
+            return;
+        }
+        capacityLock.lock();
+        try {
+            while( !closed && dirty.size() >= maximumPending ) {
+                schedule();
+                try {
+                    drained.await(delayNanos, TimeUnit.NANOSECONDS);
+                }
+                catch( InterruptedException e ) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        }
+        finally {
+            capacityLock.unlock();
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Provides the update still pending for the specified key, if any. The cache consults it before
+     * loading a missing key so that it never loads a value the store has not yet been given.
+     * @param key the key being loaded
+     * @return the pending update or <code>null</code> if the store is up to date for the key
+     */
+    @Nullable Write<V> pending(@Nonnull Object key) {
+        return dirty.get(key);
+    }
+
+    /**
+     * @return the number of keys with updates not yet written
+     */
+    int size() {
+        return dirty.size();
+    }
+
+    /**
+     * Starts a flush in the background unless one is already waiting to start.
+     */
+    private void schedule() {
+        if( scheduled.compareAndSet(false, true) ) {
+            try {
+                DaseinUtilTasks.execute(flushTask);
+            }
+            catch( RejectedExecutionException e ) {
+                scheduled.set(false);
+                logger.warn("Unable to schedule write-behind flush: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes every pending update to the store in batches, stopping at the first batch that fails.
+     * Flushes never overlap, so updates of a key reach the store in the order they were made.
+     * @return true if every update pending when the flush started was written
+     */
+    boolean flush() {
+        flushLock.lock();
+        try {
+            ArrayList<K> keys = new ArrayList<K>();
+            ArrayList<Write<V>> writes = new ArrayList<Write<V>>();
+
+            for( Map.Entry<K,Write<V>> entry : dirty.entrySet() ) {
+                keys.add(entry.getKey());
+                writes.add(entry.getValue());
+                if( keys.size() >= batchSize ) {
+                    if( !flush(keys, writes) ) {
+                        return false;
+                    }
+                    keys.clear();
+                    writes.clear();
+                }
+            }
+            return (keys.isEmpty() || flush(keys, writes));
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean flush(List<K> keys, List<Write<V>> writes) {
+        LinkedHashMap<K,V> items = new LinkedHashMap<K,V>();
+        ArrayList<K> deletions = new ArrayList<K>();
+
+        for( int i=0; i<keys.size(); i++ ) {
+            Write<V> write = writes.get(i);
+
+            if( write.deleted ) {
+                deletions.add(keys.get(i));
+            }
+            else {
+                items.put(keys.get(i), write.value);
+            }
+        }
+        try {
+            if( !items.isEmpty() ) {
+                writer.writeAll(items);
+            }
+            if( !deletions.isEmpty() ) {
+                writer.deleteAll(deletions);
+            }
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Unable to write " + keys.size() + " cached items to the store, will retry: " + e.getMessage());
+            return false;
+        }
+        for( int i=0; i<keys.size(); i++ ) {
+            dirty.remove(keys.get(i), writes.get(i));
+        }
+        flusher.unpin(this);
+        capacityLock.lock();
+        try {
+            drained.signalAll();
+        }
+        finally {
+            capacityLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stops periodic flushing and the shutdown flush, releases any threads waiting for room, and writes
+     * every pending update.
+     * @return true if every pending update was written
+     */
+    boolean close() {
+        closed = true;
+        flusher.cancel();
+        capacityLock.lock();
+        try {
+            drained.signalAll();
+        }
+        finally {
+            capacityLock.unlock();
+        }
+        return flush();
+    }
+}
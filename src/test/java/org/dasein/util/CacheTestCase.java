@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies the functioning of the single-threaded cache.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class CacheTestCase {
+    static private class LengthWeigher implements Weigher<Object,String>, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        public int weigh(Object key, String value) {
+            return value.length();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static private <T> Cache<T> roundTrip(Cache<T> cache) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(cache);
+        out.close();
+        return (Cache<T>)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @Rule
+    public TestName testName = new TestName();
+
+    public CacheTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    @Test
+    public void testCacheAndGet() {
+        Cache<String> cache = new Cache<String>();
+
+        cache.cache("1", "one");
+        assertEquals("Value not found", "one", cache.get("1"));
+        assertTrue("Key not found", cache.containsKey("1"));
+        assertTrue("Value not found", cache.contains("one"));
+        cache.release("1");
+        assertNull("Released value still found", cache.get("1"));
+    }
+
+    @Test
+    public void testBoundedBySize() {
+        Cache<String> cache = new Cache<String>(10L);
+
+        cache.cache("hot", "hot");
+        cache.get("hot");
+        for( int i=0; i<100; i++ ) {
+            cache.cache(i, String.valueOf(i));
+        }
+        assertEquals("Cache exceeded its maximum size", 10, cache.size());
+        assertEquals("Hot entry was flushed by a scan", "hot", cache.get("hot"));
+        assertEquals("Most recent entry was evicted", "99", cache.get(99));
+        assertNull("Eldest entry was not evicted", cache.get(0));
+    }
+
+    @Test
+    public void testSizeTracksCachedEntries() {
+        Cache<String> cache = new Cache<String>();
+
+        assertTrue("New cache is not empty", cache.isEmpty());
+        for( int i=0; i<50; i++ ) {
+            cache.cache(i, String.valueOf(i));
+        }
+        cache.cache(0, "zero");
+        assertEquals("Replacing an entry changed the size", 50, cache.size());
+        for( int i=0; i<20; i++ ) {
+            cache.release(i);
+        }
+        assertEquals("Released entries still counted", 30, cache.size());
+    }
+
+    @Test
+    public void testDeserializedCacheKeepsItsWeigher() throws Exception {
+        Cache<String> cache = roundTrip(new Cache<String>(20L, new LengthWeigher()));
+
+        for( int i=0; i<10; i++ ) {
+            cache.cache(i, "abcde");
+        }
+        assertEquals("Deserialized cache ignored the weight of its entries", 4, cache.size());
+    }
+
+    @Test
+    public void testDeserializedCacheKeepsItsContentsAndBound() throws Exception {
+        Cache<String> cache = new Cache<String>(20L, new LengthWeigher());
+
+        for( int i=0; i<4; i++ ) {
+            cache.cache(i, "abcde");
+        }
+        cache = roundTrip(cache);
+        assertEquals("Cached objects were lost", 4, cache.size());
+        for( int i=0; i<4; i++ ) {
+            assertEquals("Wrong object read back", "abcde", cache.get(i));
+        }
+        cache.cache(4, "abcde");
+        assertEquals("Deserialized cache exceeded its maximum weight", 4, cache.size());
+        assertEquals("Newest object was evicted", "abcde", cache.get(4));
+    }
+
+    @Test
+    public void testDeserializedUnboundedCacheStaysUnbounded() throws Exception {
+        Cache<String> cache = new Cache<String>();
+
+        cache.cache("1", "one");
+        cache = roundTrip(cache);
+        assertEquals("Cached object was lost", "one", cache.get("1"));
+        for( int i=0; i<100; i++ ) {
+            cache.cache(i, String.valueOf(i));
+        }
+        assertEquals("Deserialized cache became bounded", 101, cache.size());
+    }
+
+    @Test
+    public void testNonSerializableWeigherIsRejected() throws Exception {
+        Cache<String> cache = new Cache<String>(20L, new Weigher<Object,String>() {
+            public int weigh(Object key, String value) {
+                return value.length();
+            }
+        });
+
+        try {
+            roundTrip(cache);
+            fail("Cache serialized without its weigher");
+        }
+        catch( NotSerializableException expected ) {
+            // the weigher must travel with the cache
+        }
+    }
+}
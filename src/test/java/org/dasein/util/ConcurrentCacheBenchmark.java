@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   Measures multi-threaded throughput of {@link ConcurrentCache} against the single-monitor
+ *   design it replaced. Each worker performs a mix of reads and writes against a shared key
+ *   space for a fixed period. This is not run as part of the test suite; run it directly:
+ * </p>
+ * <p>
+ * <code>
+ * java -cp ... org.dasein.util.ConcurrentCacheBenchmark [seconds] [keys] [writePercent]
+ * </code>
+ * </p>
+ */
+public class ConcurrentCacheBenchmark {
+    /**
+     * The minimal surface shared by the engines being compared.
+     */
+    static private interface Engine {
+        public Object get(Integer key);
+        public void put(Integer key, Object val);
+    }
+
+    /**
+     * The previous engine: a hash map of soft references guarded by a single monitor.
+     */
+    static private class MonitorEngine implements Engine {
+        private final HashMap<Integer,SoftReference<Object>> cache = new HashMap<Integer,SoftReference<Object>>();
+
+        public synchronized Object get(Integer key) {
+            SoftReference<Object> ref = cache.get(key);
+
+            return (ref == null ? null : ref.get());
+        }
+
+        public synchronized void put(Integer key, Object val) {
+            cache.put(key, new SoftReference<Object>(val));
+        }
+    }
+
+    static private class StripedEngine implements Engine {
+        private final ConcurrentCache<Integer,Object> cache = new ConcurrentCache<Integer,Object>();
+
+        public Object get(Integer key) {
+            return cache.get(key);
+        }
+
+        public void put(Integer key, Object val) {
+            cache.put(key, val);
+        }
+    }
+
+    static public void main(@Nonnull String ... args) throws InterruptedException {
+        long seconds = (args.length > 0 ? Long.parseLong(args[0]) : 3L);
+        int keys = (args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+        int writePercent = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("threads\tmonitor ops/s\tstriped ops/s");
+        for( int threads = 1; threads <= cpus * 2; threads *= 2 ) {
+            long monitor = run(new MonitorEngine(), threads, keys, writePercent, seconds);
+            long striped = run(new StripedEngine(), threads, keys, writePercent, seconds);
+
+            System.out.println(threads + "\t" + monitor + "\t" + striped);
+        }
+    }
+
+    static private long run(final Engine engine, int threads, final int keys, final int writePercent, long seconds) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong operations = new AtomicLong(0L);
+        final Object value = new Object();
+        final long[] stop = new long[1];
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for( int i=0; i<keys; i++ ) {
+            engine.put(i, value);
+        }
+        for( int i=0; i<threads; i++ ) {
+            final long seed = i;
+            Thread worker = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0L;
+
+                    try { start.await(); }
+                    catch( InterruptedException e ) { return; }
+                    while( System.nanoTime() < stop[0] ) {
+                        for( int j=0; j<1000; j++ ) {
+                            Integer key = random.nextInt(keys);
+
+                            if( random.nextInt(100) < writePercent ) {
+                                engine.put(key, value);
+                            }
+                            else {
+                                engine.get(key);
+                            }
+                        }
+                        count += 1000;
+                    }
+                    operations.addAndGet(count);
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        stop[0] = System.nanoTime() + (seconds * 1000000000L);
+        start.countDown();
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        return (operations.get() / seconds);
+    }
+}
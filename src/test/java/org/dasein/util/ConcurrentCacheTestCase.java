@@ -0,0 +1,746 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies the functioning of the concurrent cache.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class ConcurrentCacheTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public ConcurrentCacheTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    static private class ExpiringItem implements CachedItem {
+        public volatile boolean valid = true;
+
+        @Override
+        public boolean isValidForCache() {
+            return valid;
+        }
+    }
+
+    static private class RecordingWriter implements BulkCacheWriter<String,String> {
+        public final CountDownLatch                    available;
+        public final CopyOnWriteArrayList<String>      deleted = new CopyOnWriteArrayList<String>();
+        public final ConcurrentHashMap<String,String>  written = new ConcurrentHashMap<String,String>();
+        public final AtomicInteger                     writes = new AtomicInteger(0);
+
+        public RecordingWriter(CountDownLatch available) {
+            this.available = available;
+        }
+
+        private void await() {
+            try {
+                available.await();
+            }
+            catch( InterruptedException e ) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void writeAll(Map<String,String> items) {
+            await();
+            writes.addAndGet(items.size());
+            written.putAll(items);
+        }
+
+        @Override
+        public void deleteAll(Collection<String> keys) {
+            await();
+            deleted.addAll(keys);
+        }
+    }
+
+    @Test
+    public void testPutAndGet() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        assertEquals("Put did not return the stored value", "one", cache.put("1", "one"));
+        assertEquals("Value not found", "one", cache.get("1"));
+        assertTrue("Key not found", cache.containsKey("1"));
+        assertNull("Found a value that was never put", cache.get("2"));
+        assertNull("Found a value for a null key", cache.get(null));
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsExisting() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        assertEquals("First value not stored", "one", cache.putIfAbsent("1", "one"));
+        assertEquals("Existing value not returned", "one", cache.putIfAbsent("1", "uno"));
+        assertEquals("Existing value was overwritten", "one", cache.get("1"));
+    }
+
+    @Test
+    public void testInvalidItemIsAbsent() {
+        ConcurrentCache<String,ExpiringItem> cache = new ConcurrentCache<String,ExpiringItem>();
+        ExpiringItem first = new ExpiringItem();
+        ExpiringItem second = new ExpiringItem();
+
+        cache.put("1", first);
+        first.valid = false;
+        assertFalse("Invalid item still reported as present", cache.containsKey("1"));
+        assertSame("Invalid item was not replaced", second, cache.putIfAbsent("1", second));
+        assertSame("Replacement not returned", second, cache.get("1"));
+    }
+
+    @Test
+    public void testConditionalReplaceAndRemove() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        assertNull("Replaced a missing key", cache.replace("1", "one"));
+        assertFalse("Missing key was created by replace", cache.containsKey("1"));
+        cache.put("1", "one");
+        assertFalse("Replaced a mismatched value", cache.replace("1", "two", "three"));
+        assertTrue("Did not replace a matching value", cache.replace("1", "one", "uno"));
+        assertFalse("Removed a mismatched value", cache.remove("1", "one"));
+        assertTrue("Did not remove a matching value", cache.remove("1", "uno"));
+        assertTrue("Cache not empty", cache.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsentIsAtomic() throws InterruptedException {
+        final ConcurrentCache<Integer,Object> cache = new ConcurrentCache<Integer,Object>();
+        final int threads = 8;
+        final int keys = 1000;
+        final Object[][] seen = new Object[threads][keys];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger(0);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for( int t=0; t<threads; t++ ) {
+            final int id = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for( int k=0; k<keys; k++ ) {
+                            seen[id][k] = cache.putIfAbsent(k, new Object());
+                        }
+                    }
+                    catch( Throwable e ) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        assertEquals("Worker threads failed", 0, failures.get());
+        for( int k=0; k<keys; k++ ) {
+            for( int t=1; t<threads; t++ ) {
+                assertSame("Threads disagree on the value for " + k, seen[0][k], seen[t][k]);
+            }
+            assertSame("Cache disagrees on the value for " + k, seen[0][k], cache.get(k));
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws InterruptedException {
+        final ConcurrentCache<String,Object> cache = new ConcurrentCache<String,Object>();
+        final AtomicInteger invocations = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final int threads = 16;
+        final Object[] seen = new Object[threads];
+        final CacheLoader<Object> loader = new CacheLoader<Object>() {
+            public Object load(Object ... args) {
+                invocations.incrementAndGet();
+                try { Thread.sleep(250L); }
+                catch( InterruptedException ignore ) { }
+                return new Object();
+            }
+        };
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for( int t=0; t<threads; t++ ) {
+            final int id = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    try { start.await(); }
+                    catch( InterruptedException ignore ) { }
+                    seen[id] = cache.getOrLoad("key", loader);
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        assertEquals("Loader ran more than once", 1, invocations.get());
+        assertEquals("Load count is wrong", 1L, cache.getLoadCount());
+        assertEquals("Coalesced count is wrong", (long)(threads - 1), cache.getCoalescedLoadCount());
+        for( int t=0; t<threads; t++ ) {
+            assertSame("Thread " + t + " got a different value", seen[0], seen[t]);
+        }
+    }
+
+    @Test
+    public void testLoadFailureIsPropagated() {
+        ConcurrentCache<String,Object> cache = new ConcurrentCache<String,Object>();
+
+        try {
+            cache.getOrLoad("key", new CacheLoader<Object>() {
+                public Object load(Object ... args) {
+                    throw new IllegalStateException("Load failed");
+                }
+            });
+            fail("Load failure was swallowed");
+        }
+        catch( IllegalStateException e ) {
+            // success
+        }
+        assertFalse("Failed load left a value behind", cache.containsKey("key"));
+    }
+
+    @Test
+    public void testBoundedBySize() {
+        ConcurrentCache<Integer,String> cache = new ConcurrentCache<Integer,String>(100L);
+
+        for( int i=0; i<1000; i++ ) {
+            cache.put(i, String.valueOf(i));
+        }
+        assertEquals("Cache exceeded its maximum size", 100, cache.size());
+        assertEquals("Most recent entry was evicted", "999", cache.get(999));
+        assertNull("Eldest entry was not evicted", cache.get(0));
+    }
+
+    @Test
+    public void testScanDoesNotFlushHotEntry() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>(100L);
+
+        cache.put("hot", "hot");
+        assertEquals("Hot entry missing", "hot", cache.get("hot"));
+        for( int i=0; i<1000; i++ ) {
+            cache.put("scan-" + i, String.valueOf(i));
+        }
+        assertEquals("Hot entry was flushed by a scan", "hot", cache.get("hot"));
+        assertEquals("Cache exceeded its maximum size", 100, cache.size());
+    }
+
+    @Test
+    public void testBoundedByWeight() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>(10L, new Weigher<String,String>() {
+            public int weigh(String key, String value) {
+                return value.length();
+            }
+        });
+
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        cache.put("c", "123");
+        assertNull("Eldest entry was not evicted", cache.get("a"));
+        assertEquals("Entry b missing", "12345", cache.get("b"));
+        assertEquals("Entry c missing", "123", cache.get("c"));
+        cache.remove("b");
+        cache.put("d", "1234567");
+        assertEquals("Entry c missing after removal freed weight", "123", cache.get("c"));
+        assertEquals("Entry d missing", "1234567", cache.get("d"));
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws InterruptedException {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        cache.setExpireAfterWrite(new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND));
+        cache.put("1", "one");
+        assertEquals("Value not found before expiry", "one", cache.get("1"));
+        Thread.sleep(150L);
+        assertNull("Value found after expiry", cache.get("1"));
+        assertFalse("Key found after expiry", cache.containsKey("1"));
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws InterruptedException {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        cache.setExpireAfterAccess(new TimePeriod<Millisecond>(200, TimePeriod.MILLISECOND));
+        cache.put("1", "one");
+        for( int i=0; i<4; i++ ) {
+            Thread.sleep(100L);
+            assertEquals("Value expired while being read", "one", cache.get("1"));
+        }
+        Thread.sleep(300L);
+        assertNull("Idle value did not expire", cache.get("1"));
+    }
+
+    @Test
+    public void testPerEntryTimeToLive() throws InterruptedException {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+
+        cache.put("short", "short", new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND));
+        cache.put("forever", "forever");
+        Thread.sleep(150L);
+        assertNull("Short-lived value did not expire", cache.get("short"));
+        assertEquals("Long-lived value expired", "forever", cache.get("forever"));
+    }
+
+    @Test
+    public void testExpiredEntriesArePurgedWithoutReads() throws InterruptedException {
+        ConcurrentCache<Integer,String> cache = new ConcurrentCache<Integer,String>();
+
+        cache.setExpireAfterWrite(new TimePeriod<Millisecond>(50, TimePeriod.MILLISECOND));
+        for( int i=0; i<100; i++ ) {
+            cache.put(i, String.valueOf(i));
+        }
+        assertEquals("Entries missing", 100, cache.size());
+        long stop = System.currentTimeMillis() + 5000L;
+
+        while( cache.size() > 0 && System.currentTimeMillis() < stop ) {
+            Thread.sleep(100L);
+        }
+        assertEquals("Expired entries were not purged in the background", 0, cache.size());
+    }
+
+    @Test
+    public void testRefreshAheadServesCurrentValue() throws InterruptedException {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+        final AtomicInteger version = new AtomicInteger(0);
+        CacheLoader<String> loader = new CacheLoader<String>() {
+            public String load(Object ... args) {
+                int v = version.incrementAndGet();
+
+                if( v > 1 ) {
+                    try { Thread.sleep(500L); }
+                    catch( InterruptedException ignore ) { }
+                }
+                return "v" + v;
+            }
+        };
+
+        cache.setRefreshAfterWrite(new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND));
+        assertEquals("Initial load failed", "v1", cache.getOrLoad("key", loader));
+        Thread.sleep(150L);
+        long start = System.currentTimeMillis();
+
+        assertEquals("Refresh did not serve the current value", "v1", cache.getOrLoad("key", loader));
+        assertEquals("Concurrent read did not serve the current value", "v1", cache.getOrLoad("key", loader));
+        assertTrue("Reader waited for the refresh", System.currentTimeMillis() - start < 400L);
+        long stop = System.currentTimeMillis() + 5000L;
+
+        while( !"v2".equals(cache.get("key")) && System.currentTimeMillis() < stop ) {
+            Thread.sleep(50L);
+        }
+        assertEquals("Refreshed value never arrived", "v2", cache.get("key"));
+        assertEquals("Refresh ran more than once", 2, version.get());
+    }
+
+    @Test
+    public void testGetAllLoadsOnlyMissesInOneBatch() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+        final ArrayList<Collection<? extends String>> batches = new ArrayList<Collection<? extends String>>();
+        BulkCacheLoader<String,String> loader = new BulkCacheLoader<String,String>() {
+            public Map<String,String> loadAll(Collection<? extends String> keys) {
+                HashMap<String,String> values = new HashMap<String,String>();
+
+                batches.add(new ArrayList<String>(keys));
+                for( String key : keys ) {
+                    if( !key.equals("missing") ) {
+                        values.put(key, "loaded-" + key);
+                    }
+                }
+                return values;
+            }
+        };
+
+        cache.put("b", "cached-b");
+        Map<String,String> values = cache.getAll(Arrays.asList("a", "b", "c", "missing"), loader);
+
+        assertEquals("Loader was not called exactly once", 1, batches.size());
+        assertEquals("Loader was asked for cached keys", Arrays.asList("a", "c", "missing"), batches.get(0));
+        assertEquals("Wrong keys returned", Arrays.asList("a", "b", "c"), new ArrayList<String>(values.keySet()));
+        assertEquals("Cached value not returned", "cached-b", values.get("b"));
+        assertEquals("Loaded value not cached", "loaded-a", cache.get("a"));
+        values = cache.getAll(Arrays.asList("a", "c"), loader);
+        assertEquals("Hits went to the loader", 1, batches.size());
+        assertEquals("Wrong number of hits", 2, values.size());
+    }
+
+    @Test
+    public void testBatchWindowGathersSingleMisses() throws InterruptedException {
+        final ConcurrentCache<Integer,String> cache = new ConcurrentCache<Integer,String>();
+        final AtomicInteger batches = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final int threads = 8;
+        final String[] seen = new String[threads];
+        final BulkCacheLoader<Integer,String> loader = new BulkCacheLoader<Integer,String>() {
+            public Map<Integer,String> loadAll(Collection<? extends Integer> keys) {
+                HashMap<Integer,String> values = new HashMap<Integer,String>();
+
+                batches.incrementAndGet();
+                for( Integer key : keys ) {
+                    values.put(key, "v" + key);
+                }
+                return values;
+            }
+        };
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        cache.setBatchWindow(new TimePeriod<Millisecond>(500, TimePeriod.MILLISECOND));
+        for( int t=0; t<threads; t++ ) {
+            final int id = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    try { start.await(); }
+                    catch( InterruptedException ignore ) { }
+                    seen[id] = cache.getOrLoadBatched(id, loader);
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        assertEquals("Misses were not gathered into one batch", 1, batches.get());
+        for( int t=0; t<threads; t++ ) {
+            assertEquals("Thread " + t + " got the wrong value", "v" + t, seen[t]);
+            assertEquals("Value " + t + " was not cached", "v" + t, cache.get(t));
+        }
+    }
+
+    @Test
+    public void testFullBatchDoesNotWaitOutWindow() throws InterruptedException {
+        final ConcurrentCache<Integer,String> cache = new ConcurrentCache<Integer,String>();
+        final AtomicInteger batches = new AtomicInteger(0);
+        final BulkCacheLoader<Integer,String> loader = new BulkCacheLoader<Integer,String>() {
+            public Map<Integer,String> loadAll(Collection<? extends Integer> keys) {
+                HashMap<Integer,String> values = new HashMap<Integer,String>();
+
+                batches.incrementAndGet();
+                for( Integer key : keys ) {
+                    values.put(key, "v" + key);
+                }
+                return values;
+            }
+        };
+        final String[] seen = new String[1];
+        long started = System.currentTimeMillis();
+
+        cache.setBatchWindow(new TimePeriod<Millisecond>(30000, TimePeriod.MILLISECOND));
+        cache.setMaximumBatchSize(2);
+        Thread leader = new Thread() {
+            public void run() {
+                seen[0] = cache.getOrLoadBatched(0, loader);
+            }
+        };
+        leader.start();
+        Thread.sleep(100L);
+        assertEquals("Joiner got the wrong value", "v1", cache.getOrLoadBatched(1, loader));
+        leader.join(10000L);
+        assertFalse("Leader waited out the window of a full batch", leader.isAlive());
+        assertTrue("Full batch took too long", System.currentTimeMillis() - started < 10000L);
+        assertEquals("Leader got the wrong value", "v0", seen[0]);
+        assertEquals("Keys were not loaded in one batch", 1, batches.get());
+    }
+
+    @Test
+    public void testStatsRecordHitsMissesLoadsAndEvictions() {
+        ConcurrentCache<String,Object> cache = new ConcurrentCache<String,Object>(2L);
+        CacheLoader<Object> loader = new CacheLoader<Object>() {
+            public Object load(Object ... args) {
+                return new Object();
+            }
+        };
+
+        cache.getOrLoad("a", loader);
+        cache.getOrLoad("a", loader);
+        cache.get("missing");
+        try {
+            cache.getOrLoad("b", new CacheLoader<Object>() {
+                public Object load(Object ... args) {
+                    throw new IllegalStateException("Load failed");
+                }
+            });
+        }
+        catch( IllegalStateException ignore ) { }
+        cache.put("c", new Object());
+        cache.put("d", new Object());
+        cache.put("e", new Object());
+        cache.cleanUp();
+
+        CacheStats stats = cache.getStats();
+
+        assertEquals("Wrong hit count", 1L, stats.getHitCount());
+        assertEquals("Wrong miss count", 3L, stats.getMissCount());
+        assertEquals("Wrong load success count", 1L, stats.getLoadSuccessCount());
+        assertEquals("Wrong load failure count", 1L, stats.getLoadFailureCount());
+        assertEquals("Load time histogram does not cover every load", 2L, sum(stats.getLoadTimeHistogram()));
+        assertEquals("Wrong size eviction count", 2L, stats.getEvictionCount(EvictionCause.SIZE));
+    }
+
+    @Test
+    public void testStatsArePublishedOverJmx() throws Exception {
+        ConcurrentCache<String,Object> cache = new ConcurrentCache<String,Object>();
+        ObjectName name = cache.registerMBean(getName());
+
+        try {
+            cache.put("key", new Object());
+            cache.get("key");
+            assertEquals("Hit count not published", 1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HitCount"));
+        }
+        finally {
+            cache.unregisterMBean();
+        }
+        assertFalse("Statistics still registered", ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    static private long sum(long[] values) {
+        long total = 0L;
+
+        for( long value : values ) {
+            total += value;
+        }
+        return total;
+    }
+
+    @Test
+    public void testEvictedEntriesSpillOffHeap() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>(2L);
+
+        cache.setOffHeapStorage(1024L * 1024L, 64 * 1024, new JavaSerializer<String>());
+        cache.put("a", "alpha");
+        cache.put("b", "beta");
+        cache.put("c", "gamma");
+        cache.cleanUp();
+        assertEquals("Cache exceeded its maximum size on the heap", 2, cache.size());
+        assertEquals("Spilled value was not promoted", "alpha", cache.get("a"));
+        assertEquals("Promotion exceeded the maximum size on the heap", 2, cache.size());
+        cache.put("a", "aleph");
+        cache.put("d", "delta");
+        cache.put("e", "epsilon");
+        cache.cleanUp();
+        assertEquals("Stale off-heap value was promoted", "aleph", cache.get("a"));
+        assertEquals("Spilled value was lost", "beta", cache.get("b"));
+        cache.remove("c");
+        assertNull("Removed value was promoted", cache.get("c"));
+    }
+
+    @Test
+    public void testRemovingSpilledKeysLeavesHeapAlone() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>(2L);
+
+        cache.setOffHeapStorage(1024L * 1024L, 64 * 1024, new JavaSerializer<String>());
+        cache.put("a", "alpha");
+        cache.put("b", "beta");
+        cache.put("c", "gamma");
+        cache.cleanUp();
+        assertFalse("Removed a spilled key with the wrong value", cache.remove("a", "aleph"));
+        assertTrue("Spilled key was not removed", cache.remove("a", "alpha"));
+        assertEquals("Removing a spilled key evicted from the heap", 1L, cache.getStats().getEvictionCount(EvictionCause.SIZE));
+        assertNull("Removed value was promoted", cache.get("a"));
+        cache.put("d", "delta");
+        cache.cleanUp();
+        assertEquals("Wrong value removed", "beta", cache.removeLocally("b"));
+        assertEquals("Invalidating a spilled key evicted from the heap", 2L, cache.getStats().getEvictionCount(EvictionCause.SIZE));
+        assertNull("Invalidated value was promoted", cache.get("b"));
+        cache.put("e", "epsilon");
+        cache.cleanUp();
+        assertFalse("Replaced a spilled key with the wrong value", cache.replace("c", "sea", "see"));
+        assertEquals("Failed replacement evicted from the heap", 3L, cache.getStats().getEvictionCount(EvictionCause.SIZE));
+        assertTrue("Spilled key was not replaced", cache.replace("c", "gamma", "sea"));
+        assertEquals("Replacement was lost", "sea", cache.get("c"));
+        assertNull("Replaced a key that has no value", cache.replace("z", "zeta"));
+        assertEquals("Wrong value replaced", "epsilon", cache.replace("e", "epsilon"));
+    }
+
+    @Test
+    public void testOffHeapDeadlinesSurviveNegativeClock() {
+        OffHeapStore<String,String> store = new OffHeapStore<String,String>(1024L * 1024L, 64 * 1024, new JavaSerializer<String>());
+        // System.nanoTime() may have a negative origin
+        long now = -TimeUnit.SECONDS.toNanos(100L);
+
+        store.put("expiring", "alpha", true, now + TimeUnit.SECONDS.toNanos(1L));
+        store.put("expired", "beta", true, now + TimeUnit.SECONDS.toNanos(1L));
+        store.put("immortal", "gamma", false, 0L);
+        OffHeapStore.Stored<String> stored = store.take("expiring", now);
+
+        assertNotNull("Live value was not returned", stored);
+        assertTrue("Expiring value came back as immortal", stored.expires);
+        assertNull("Expired value was returned", store.take("expired", now + TimeUnit.SECONDS.toNanos(2L)));
+        stored = store.take("immortal", now + TimeUnit.DAYS.toNanos(365L));
+        assertNotNull("Immortal value expired", stored);
+        assertFalse("Immortal value came back with an expiry", stored.expires);
+    }
+
+    @Test
+    public void testWritesInvalidateCachesOnOtherBuses() throws InterruptedException {
+        LoopbackTransport transport = new LoopbackTransport();
+        InvalidationBus local = new InvalidationBus(transport);
+        InvalidationBus remote = new InvalidationBus(transport);
+        ConcurrentCache<String,String> writer = new ConcurrentCache<String,String>();
+        ConcurrentCache<String,String> reader = new ConcurrentCache<String,String>();
+        ConcurrentCache<String,String> unrelated = new ConcurrentCache<String,String>();
+
+        writer.setInvalidationBus(local, "values");
+        reader.setInvalidationBus(remote, "values");
+        unrelated.setInvalidationBus(remote, "others");
+        reader.putIfAbsent("key", "old");
+        unrelated.putIfAbsent("key", "other");
+        writer.put("key", "new");
+
+        long stop = System.currentTimeMillis() + 5000L;
+
+        while( reader.get("key") != null && System.currentTimeMillis() < stop ) {
+            Thread.sleep(10L);
+        }
+        assertNull("Stale value was not invalidated", reader.get("key"));
+        assertEquals("Writer lost its own value", "new", writer.get("key"));
+        assertEquals("Value on another channel was invalidated", "other", unrelated.get("key"));
+        local.close();
+        remote.close();
+    }
+
+    @Test
+    public void testWriteBehindCoalescesUpdates() {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+        RecordingWriter writer = new RecordingWriter(new CountDownLatch(0));
+
+        cache.setWriteBehind(writer, new TimePeriod<Millisecond>(3600000, TimePeriod.MILLISECOND), 10, 100);
+        cache.put("a", "one");
+        cache.put("a", "two");
+        cache.replace("a", "three");
+        cache.put("b", "bee");
+        cache.put("c", "sea");
+        cache.remove("c");
+        cache.removeLocally("a");
+        assertEquals("Updates were not all pending", 3, cache.getPendingWriteCount());
+        assertEquals("Load did not use the pending value", "three", cache.getOrLoad("a", new CacheLoader<String>() {
+            public String load(Object ... args) {
+                return "stale";
+            }
+        }));
+        assertNull("Load ignored the pending deletion", cache.getOrLoad("c", new CacheLoader<String>() {
+            public String load(Object ... args) {
+                return "stale";
+            }
+        }));
+        assertEquals("Nothing should be written before the flush", 0, writer.writes.get());
+        assertTrue("Flush failed", cache.flush());
+        assertEquals("Updates were not coalesced", 2, writer.writes.get());
+        assertEquals("Latest value was not written", "three", writer.written.get("a"));
+        assertEquals("Value was not written", "bee", writer.written.get("b"));
+        assertEquals("Removal was not written", Arrays.asList("c"), new ArrayList<String>(writer.deleted));
+        assertEquals("Flushed updates are still pending", 0, cache.getPendingWriteCount());
+        cache.setWriteBehind(null, null);
+    }
+
+    @Test
+    public void testWriteBehindHoldsBackWritersWhenStoreFallsBehind() throws InterruptedException {
+        final ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+        CountDownLatch available = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter(available);
+        Thread blocked;
+
+        cache.setWriteBehind(writer, new TimePeriod<Millisecond>(50, TimePeriod.MILLISECOND), 1, 2);
+        cache.put("a", "one");
+        cache.put("b", "two");
+        blocked = new Thread() {
+            public void run() {
+                cache.put("c", "three");
+            }
+        };
+        blocked.start();
+        blocked.join(300L);
+        assertTrue("Writer was not held back", blocked.isAlive());
+        assertEquals("Held back update was already applied", null, cache.get("c"));
+        available.countDown();
+        blocked.join(5000L);
+        assertFalse("Writer was never released", blocked.isAlive());
+
+        long stop = System.currentTimeMillis() + 5000L;
+
+        while( cache.getPendingWriteCount() > 0 && System.currentTimeMillis() < stop ) {
+            Thread.sleep(10L);
+        }
+        assertEquals("Updates were not written in the background", 0, cache.getPendingWriteCount());
+        assertEquals("Not every value was written", 3, writer.written.size());
+        assertEquals("Wrong value written", "three", writer.written.get("c"));
+        cache.setWriteBehind(null, null);
+    }
+
+    @Test
+    public void testWriteBehindOfDroppedCacheIsStillWritten() throws InterruptedException {
+        ConcurrentCache<String,String> cache = new ConcurrentCache<String,String>();
+        WeakReference<ConcurrentCache<String,String>> dropped = new WeakReference<ConcurrentCache<String,String>>(cache);
+        RecordingWriter writer = new RecordingWriter(new CountDownLatch(0));
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        cache.setWriteBehind(writer, new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND), 10, 100);
+        cache.put("a", "one");
+        cache.put("b", "bee");
+        cache.remove("c");
+        //noinspection UnusedAssignment
+        cache = null;
+        while( dropped.get() != null && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertNull("Dropped cache was never collected", dropped.get());
+        while( writer.deleted.isEmpty() && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertEquals("Updates of the dropped cache were lost", 2, writer.written.size());
+        assertEquals("Removal from the dropped cache was lost", Arrays.asList("c"), new ArrayList<String>(writer.deleted));
+    }
+}
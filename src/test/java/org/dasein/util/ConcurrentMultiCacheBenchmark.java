@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * <p>
+ *   Measures the cost of indexing items in a {@link ConcurrentMultiCache} by several attributes.
+ *   Three approaches to reading the attribute values are compared: the per-call reflective walk
+ *   the cache used to perform on every operation, the accessors the cache now resolves once per
+ *   class, and extractors supplied by the caller. It then compares lookups by numeric ID in an
+ *   index backed by a {@link ConcurrentCache} with lookups in one backed by a
+ *   {@link LongKeyedConcurrentCache}. This is not run as part of the test suite; run it directly:
+ * </p>
+ * <p>
+ * <code>
+ * java -cp ... org.dasein.util.ConcurrentMultiCacheBenchmark [seconds] [items]
+ * </code>
+ * </p>
+ */
+public class ConcurrentMultiCacheBenchmark {
+    static private final String[] ATTRIBUTES = { "itemId", "code", "name" };
+
+    static private class Item {
+        private long   itemId;
+        private String code;
+        private String name;
+
+        public Item(long itemId) {
+            this.itemId = itemId;
+            this.code = "C" + itemId;
+            this.name = "Item " + itemId;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    static private class DerivedItem extends Item {
+        public DerivedItem(long itemId) {
+            super(itemId);
+        }
+    }
+
+    /**
+     * The lookup every cache operation previously performed: a walk of the class hierarchy
+     * with exceptions signalling absent fields.
+     */
+    static private Object legacyValue(String key, Object item) throws Exception {
+        Class<?> cls = item.getClass();
+
+        while( cls != null ) {
+            try {
+                Field f = cls.getDeclaredField(key);
+
+                f.setAccessible(true);
+                return f.get(item);
+            }
+            catch( NoSuchFieldException e ) {
+                String mname = "get" + key.substring(0,1).toUpperCase() + key.substring(1);
+
+                try {
+                    Method method = cls.getDeclaredMethod(mname);
+
+                    return method.invoke(item);
+                }
+                catch( NoSuchMethodException e2 ) {
+                    cls = cls.getSuperclass();
+                }
+            }
+        }
+        throw new CacheManagementException("No such property: " + key);
+    }
+
+    static public void main(@Nonnull String ... args) throws Exception {
+        long seconds = (args.length > 0 ? Long.parseLong(args[0]) : 3L);
+        int items = (args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+        DerivedItem[] pool = new DerivedItem[items];
+
+        for( int i=0; i<items; i++ ) {
+            pool[i] = new DerivedItem(i);
+        }
+        System.out.println("approach\tcache() ops/s");
+        System.out.println("legacy reflection\t" + runLegacy(pool, seconds));
+        System.out.println("resolved accessors\t" + run(new ConcurrentMultiCache<Item>(Item.class, ATTRIBUTES), pool, seconds));
+
+        ConcurrentMultiCache<Item> custom = new ConcurrentMultiCache<Item>(Item.class, ATTRIBUTES);
+
+        custom.setKeyExtractor("itemId", new KeyExtractor<Item>() {
+            public Object extract(@Nonnull Item item) {
+                return item.itemId;
+            }
+        });
+        custom.setKeyExtractor("code", new KeyExtractor<Item>() {
+            public Object extract(@Nonnull Item item) {
+                return item.code;
+            }
+        });
+        custom.setKeyExtractor("name", new KeyExtractor<Item>() {
+            public Object extract(@Nonnull Item item) {
+                return item.name;
+            }
+        });
+        System.out.println("supplied extractors\t" + run(custom, pool, seconds));
+
+        ConcurrentMultiCache<Item> longKeyed = new ConcurrentMultiCache<Item>(Item.class, ATTRIBUTES);
+
+        longKeyed.setLongKeyed("itemId");
+        System.out.println();
+        System.out.println("index\tfind() ops/s");
+        System.out.println("ConcurrentCache\t" + runFind(new ConcurrentMultiCache<Item>(Item.class, ATTRIBUTES), pool, seconds));
+        System.out.println("LongKeyedConcurrentCache\t" + runFind(longKeyed, pool, seconds));
+    }
+
+    static private long run(ConcurrentMultiCache<Item> cache, Item[] pool, long seconds) {
+        long stop = System.nanoTime() + (seconds * 1000000000L);
+        long count = 0L;
+
+        while( System.nanoTime() < stop ) {
+            for( Item item : pool ) {
+                cache.cache(item);
+            }
+            count += pool.length;
+        }
+        return (count / seconds);
+    }
+
+    /**
+     * Looks items up by ID in a shuffled order, so that neither index benefits from IDs that
+     * happen to be stored next to one another. The IDs are boxed up front, as they would be by
+     * a caller passing them to <code>find()</code>.
+     */
+    static private long runFind(ConcurrentMultiCache<Item> cache, Item[] pool, long seconds) {
+        Long[] ids = new Long[pool.length];
+        Random random = new Random(pool.length);
+        long stop = System.nanoTime() + (seconds * 1000000000L);
+        long count = 0L;
+        long found = 0L;
+
+        for( int i=0; i<pool.length; i++ ) {
+            cache.cache(pool[i]);
+            ids[i] = pool[i].itemId;
+        }
+        for( int i=ids.length-1; i>0; i-- ) {
+            int j = random.nextInt(i + 1);
+            Long id = ids[i];
+
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+        while( System.nanoTime() < stop ) {
+            for( Long id : ids ) {
+                if( cache.find("itemId", id) != null ) {
+                    found++;
+                }
+            }
+            count += ids.length;
+        }
+        if( found < count ) {
+            System.err.println("Lost " + (count - found) + " lookups; items were collected");
+        }
+        return (count / seconds);
+    }
+
+    /**
+     * Approximates the legacy cost of {@link ConcurrentMultiCache#cache(Object)}, which extracted
+     * every attribute twice, once to find the current item and once to index it, by adding
+     * two legacy extractions per attribute to each call.
+     */
+    static private long runLegacy(Item[] pool, long seconds) throws Exception {
+        ConcurrentMultiCache<Item> cache = new ConcurrentMultiCache<Item>(Item.class, ATTRIBUTES);
+        long stop = System.nanoTime() + (seconds * 1000000000L);
+        long count = 0L;
+
+        while( System.nanoTime() < stop ) {
+            for( Item item : pool ) {
+                for( String attr : ATTRIBUTES ) {
+                    legacyValue(attr, item);
+                    legacyValue(attr, item);
+                }
+                cache.cache(item);
+            }
+            count += pool.length;
+        }
+        return (count / seconds);
+    }
+}
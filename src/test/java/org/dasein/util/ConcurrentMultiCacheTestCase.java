@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies the functioning of the concurrent multi-cache.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class ConcurrentMultiCacheTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public ConcurrentMultiCacheTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    static private class Person implements Serializable {
+        private long   personId;
+        private String email;
+
+        public Person(long personId, String email) {
+            this.personId = personId;
+            this.email = email;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+    }
+
+    static private class Employee extends Person {
+        public Employee(long personId, String email) {
+            super(personId, email);
+        }
+    }
+
+    @Test
+    public void testReflectiveKeys() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        Employee employee = new Employee(1L, "one@example.com");
+
+        assertSame("Cache returned a different item", employee, cache.cache(employee));
+        assertSame("Item not found by inherited field", employee, cache.find("personId", 1L));
+        assertSame("Item not found by getter", employee, cache.find("email", "one@example.com"));
+        assertSame("Duplicate replaced the cached item", employee, cache.cache(new Employee(1L, "one@example.com")));
+    }
+
+    @Test
+    public void testLongKeyedIndex() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        Person person = new Person(7L, "seven@example.com");
+
+        cache.setLongKeyed("personId");
+        assertSame("Cache returned a different item", person, cache.cache(person));
+        assertSame("Item not found by long key", person, cache.find("personId", 7L));
+        assertSame("Item not found by integer key", person, cache.find("personId", 7));
+        assertSame("Item not found by decimal key", person, cache.find("personId", new BigDecimal(7)));
+        assertNull("Item found by non-numeric key", cache.find("personId", "7"));
+        assertSame("Duplicate replaced the cached item", person, cache.cache(new Person(7L, "seven@example.com")));
+        cache.release(person);
+        assertNull("Released item still found by long key", cache.find("personId", 7L));
+        assertNull("Released item still found by email", cache.find("email", "seven@example.com"));
+        cache.cache(new Person(8L, "eight@example.com"));
+        try {
+            cache.setLongKeyed("personId");
+            fail("Index was replaced after items were cached");
+        }
+        catch( IllegalStateException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCustomKeyExtractor() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        final AtomicInteger calls = new AtomicInteger(0);
+        Person person = new Person(2L, "Two@Example.com");
+
+        cache.setKeyExtractor("email", new KeyExtractor<Person>() {
+            public Object extract(@Nonnull Person item) {
+                calls.incrementAndGet();
+                return item.getEmail().toLowerCase();
+            }
+        });
+        cache.cache(person);
+        assertSame("Item not found by extracted key", person, cache.find("email", "two@example.com"));
+        assertNull("Item found by unextracted key", cache.find("email", "Two@Example.com"));
+        assertEquals("Extractor was not used", true, calls.get() > 0);
+    }
+
+    @Test
+    public void testFindAllLoadsMissesInOneBatch() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        final AtomicInteger batches = new AtomicInteger(0);
+        Person cached = new Person(3L, "three@example.com");
+
+        cache.cache(cached);
+        Map<Object,Person> found = cache.findAll("personId", Arrays.asList(3L, 4L, 5L), new BulkCacheLoader<Object,Person>() {
+            public Map<Object,Person> loadAll(Collection<?> keys) {
+                HashMap<Object,Person> people = new HashMap<Object,Person>();
+
+                batches.incrementAndGet();
+                assertEquals("Loader was asked for cached values", Arrays.asList(4L, 5L), keys);
+                for( Object key : keys ) {
+                    people.put(key, new Person((Long)key, key + "@example.com"));
+                }
+                return people;
+            }
+        });
+
+        assertEquals("Loader was not called exactly once", 1, batches.get());
+        assertEquals("Wrong number of items", 3, found.size());
+        assertSame("Cached item not returned", cached, found.get(3L));
+        assertSame("Loaded item not indexed", found.get(5L), cache.find("email", "5@example.com"));
+    }
+
+    @Test
+    public void testConcurrentCachingAgreesOnOneInstance() throws InterruptedException {
+        final ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        final CountDownLatch start = new CountDownLatch(1);
+        final int threads = 8;
+        final int people = 500;
+        final Person[][] seen = new Person[threads][people];
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for( int t=0; t<threads; t++ ) {
+            final int id = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    try { start.await(); }
+                    catch( InterruptedException ignore ) { }
+                    for( int i=0; i<people; i++ ) {
+                        seen[id][i] = cache.cache(new Person(i, i + "@example.com"));
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        for( int i=0; i<people; i++ ) {
+            Person person = cache.find("personId", (long)i);
+
+            for( int t=0; t<threads; t++ ) {
+                assertSame("Thread " + t + " got a different instance of " + i, person, seen[t][i]);
+            }
+            assertSame("Indexes disagree for " + i, person, cache.find("email", i + "@example.com"));
+        }
+    }
+
+    @Test
+    public void testReleaseRemovesAllIndexes() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        Person person = new Person(6L, "six@example.com");
+
+        cache.cache(person);
+        cache.release(person);
+        assertNull("Item still indexed by ID", cache.find("personId", 6L));
+        assertNull("Item still indexed by email", cache.find("email", "six@example.com"));
+    }
+
+    @Test
+    public void testStatsAreBrokenDownByAttribute() {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+
+        cache.find("personId", 7L, new CacheLoader<Person>() {
+            public Person load(Object ... args) {
+                return new Person(7L, "seven@example.com");
+            }
+        });
+        cache.find("personId", 7L);
+        cache.find("email", "nobody@example.com");
+
+        assertEquals("Wrong ID hit count", 1L, cache.getStats("personId").getHitCount());
+        assertEquals("Wrong ID miss count", 1L, cache.getStats("personId").getMissCount());
+        assertEquals("Wrong ID load count", 1L, cache.getStats("personId").getLoadSuccessCount());
+        assertEquals("Wrong email miss count", 1L, cache.getStats("email").getMissCount());
+        assertEquals("Wrong email load count", 0L, cache.getStats("email").getLoadSuccessCount());
+        assertEquals("Wrong total miss count", 2L, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void testSnapshotRestoresAllIndexes() throws IOException {
+        ConcurrentMultiCache<Person> cache = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        File file = File.createTempFile("multicache", ".snapshot");
+
+        try {
+            for( int i=0; i<2500; i++ ) {
+                cache.cache(new Person(i, i + "@example.com"));
+            }
+            assertEquals("Wrong number of objects saved", 2500, cache.saveSnapshot(file, new JavaSerializer<Person>()));
+
+            ConcurrentMultiCache<Person> restored = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+
+            assertEquals("Wrong number of objects loaded", 2500, restored.loadSnapshot(file, new JavaSerializer<Person>()));
+            for( int i=0; i<2500; i++ ) {
+                Person person = restored.find("personId", (long)i);
+
+                assertEquals("Wrong object restored for " + i, i + "@example.com", person.getEmail());
+                assertSame("Indexes disagree for " + i, person, restored.find("email", i + "@example.com"));
+            }
+            try {
+                new ConcurrentMultiCache<Person>(Person.class, "email").loadSnapshot(file, new JavaSerializer<Person>());
+                fail("Snapshot loaded into a cache with different unique identifiers");
+            }
+            catch( IOException e ) {
+                // success
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReleaseInvalidatesOtherCaches() throws InterruptedException {
+        InvalidationBus bus = new InvalidationBus();
+        ConcurrentMultiCache<Person> first = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        ConcurrentMultiCache<Person> second = new ConcurrentMultiCache<Person>(Person.class, "personId", "email");
+        Person person = new Person(8L, "eight@example.com");
+
+        first.setInvalidationBus(bus, "people");
+        second.setInvalidationBus(bus, "people");
+        first.cache(person);
+        second.cache(new Person(8L, "eight@example.com"));
+        first.release(person);
+
+        long stop = System.currentTimeMillis() + 5000L;
+
+        while( second.find("email", "eight@example.com") != null && System.currentTimeMillis() < stop ) {
+            Thread.sleep(10L);
+        }
+        assertNull("Other cache still holds the released object", second.find("email", "eight@example.com"));
+        assertNull("Other cache still indexes the released object", second.find("personId", 8L));
+    }
+}
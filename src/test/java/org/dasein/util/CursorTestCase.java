@@ -26,9 +26,12 @@ import org.junit.rules.TestName;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.StreamSupport;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -280,4 +283,121 @@ public class CursorTestCase {
         }
         assertEquals("Count of elements is not right", source.size(), count);
     }
+
+    @Test
+    public void testBoundedCursorHoldsBackProducer() {
+        final int[] maxPending = new int[1];
+        final boolean[] warned = new boolean[1];
+
+        CursorPopulator<Integer> populator = new CursorPopulator<Integer>("Test Cursor", null) {
+            @Override
+            public void populate(ForwardCursor<Integer> cursor) {
+                for( int i=0; i<1000; i++ ) {
+                    cursor.push(i);
+                    maxPending[0] = Math.max(maxPending[0], cursor.getPendingCount());
+                    if( cursor.isAboveHighWatermark() ) {
+                        warned[0] = true;
+                    }
+                }
+            }
+        };
+
+        populator.setCapacity(10);
+        populator.populate();
+        ForwardCursor<Integer> result = populator.getCursor();
+        int count = 0;
+
+        for( Integer i : result ) {
+            assertEquals("Element " + count + " differs", count++, i.intValue());
+            if( count % 100 == 0 ) {
+                try { Thread.sleep(50L); }
+                catch( InterruptedException ignore ) { }
+            }
+        }
+        assertEquals("Count of elements is not right", 1000, count);
+        assertEquals("The producer was never told to ease off", true, warned[0]);
+        assertEquals("The cursor buffered beyond its capacity", true, maxPending[0] <= 10);
+    }
+
+    @Test
+    public void testCursorBatches() {
+        CursorPopulator<Integer> populator = new CursorPopulator<Integer>("Test Cursor", null) {
+            @Override
+            public void populate(ForwardCursor<Integer> cursor) {
+                ArrayList<Integer> page = new ArrayList<Integer>();
+
+                for( int i=0; i<1000; i++ ) {
+                    page.add(i);
+                    if( page.size() == 100 ) {
+                        cursor.pushAll(page);
+                        page.clear();
+                    }
+                }
+                throw new RuntimeException("End exception");
+            }
+        };
+
+        populator.setCapacity(50);
+        populator.populate();
+        ForwardCursor<Integer> result = populator.getCursor();
+        ArrayList<Integer> items = new ArrayList<Integer>();
+
+        try {
+            while( result.drainTo(items, 30) > 0 ) {
+                // keep draining
+            }
+            fail("Cursor finished without an exception");
+        }
+        catch( JiteratorLoadException e ) {
+            // success
+        }
+        assertEquals("Items ahead of the error were lost", 1000, items.size());
+        for( int i=0; i<1000; i++ ) {
+            assertEquals("Element " + i + " differs", i, items.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testCursorStream() {
+        CursorPopulator<Integer> populator = new CursorPopulator<Integer>("Stream Cursor", null) {
+            @Override
+            public void populate(ForwardCursor<Integer> cursor) {
+                for( int i=0; i<10000; i++ ) {
+                    cursor.push(i);
+                }
+            }
+        };
+
+        populator.setSize(10000);
+        populator.populate();
+        Spliterator<Integer> items = populator.getCursor().spliterator();
+
+        assertTrue("Spliterator does not report the size of the cursor", items.hasCharacteristics(Spliterator.SIZED));
+        assertEquals("Parallel sum is wrong", 49995000L, StreamSupport.stream(items, true).mapToLong(Integer::longValue).sum());
+        assertEquals("Spliterator did not consume the cursor", 0L, items.estimateSize());
+    }
+
+    @Test
+    public void testFailureWhileWaitingIsAnnouncedOutsideLock() {
+        final ForwardCursor<Integer> cursor = new ForwardCursor<Integer>("Demand Timeout", new org.dasein.util.uom.time.TimePeriod<Second>(1, org.dasein.util.uom.time.TimePeriod.SECOND));
+        final ArrayList<Boolean> locked = new ArrayList<Boolean>();
+
+        cursor.setArrivalListener(new Runnable() {
+            public void run() {
+                locked.add(Thread.holdsLock(cursor));
+            }
+        });
+        cursor.request(1);
+        cursor.push(0);
+        try {
+            // nothing more is requested, so the cursor times out waiting for demand
+            cursor.push(1);
+            fail("Push succeeded without demand");
+        }
+        catch( JiteratorLoadException expected ) {
+            // expected
+        }
+        assertEquals("Listener did not run for the item and the failure", 2, locked.size());
+        assertTrue("Listener ran while holding the cursor's lock", !locked.contains(Boolean.TRUE));
+    }
 }
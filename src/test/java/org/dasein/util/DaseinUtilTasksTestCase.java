@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies the configuration and instrumentation of the shared task pool.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class DaseinUtilTasksTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public DaseinUtilTasksTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinUtilTasks.setExecutorStrategy(ExecutorStrategy.CACHED);
+    }
+
+    @Test
+    public void testStatsTrackQueuedAndRunningTasks() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch running = new CountDownLatch(2);
+
+        DaseinUtilTasks.configure(2, 2, 10, new ThreadPoolExecutor.AbortPolicy());
+        TaskPoolStats before = DaseinUtilTasks.getStats();
+
+        for( int i=0; i<5; i++ ) {
+            DaseinUtilTasks.execute(new Runnable() {
+                public void run() {
+                    running.countDown();
+                    try { release.await(); }
+                    catch( InterruptedException ignore ) { }
+                }
+            });
+        }
+        assertTrue("Tasks did not start", running.await(10L, TimeUnit.SECONDS));
+        TaskPoolStats busy = DaseinUtilTasks.getStats();
+
+        assertEquals("Active tasks", 2, busy.getActiveCount());
+        assertEquals("Pool size", 2, busy.getPoolSize());
+        assertEquals("Queue depth", 3, busy.getQueueDepth());
+        assertEquals("Submitted tasks", 5L, busy.getSubmittedCount() - before.getSubmittedCount());
+        Thread.sleep(50L);
+        release.countDown();
+        DaseinUtilTasks.submit(new Runnable() {
+            public void run() {
+                throw new RuntimeException("Failure");
+            }
+        });
+        long deadline = System.currentTimeMillis() + 10000L;
+        TaskPoolStats after;
+
+        do {
+            Thread.sleep(10L);
+            after = DaseinUtilTasks.getStats();
+        } while( after.getCompletedCount() + after.getFailedCount() - before.getCompletedCount() - before.getFailedCount() < 6 && System.currentTimeMillis() < deadline );
+        assertEquals("Completed tasks", 5L, after.getCompletedCount() - before.getCompletedCount());
+        assertEquals("Failed tasks", 1L, after.getFailedCount() - before.getFailedCount());
+        assertEquals("Active tasks", 0, after.getActiveCount());
+        assertTrue("Queued tasks should have waited", after.getMaximumWaitTime() >= TimeUnit.MILLISECONDS.toNanos(50L));
+        assertTrue("Blocked tasks should have run a while", after.getMaximumRunTime() >= TimeUnit.MILLISECONDS.toNanos(50L));
+    }
+
+    @Test
+    public void testRejectionsAreCounted() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                try { release.await(); }
+                catch( InterruptedException ignore ) { }
+            }
+        };
+
+        DaseinUtilTasks.configure(1, 1, 1, new ThreadPoolExecutor.AbortPolicy());
+        long rejected = DaseinUtilTasks.getStats().getRejectedCount();
+
+        try {
+            DaseinUtilTasks.execute(blocker);
+            DaseinUtilTasks.execute(blocker);
+            try {
+                DaseinUtilTasks.execute(blocker);
+                fail("The full pool accepted a task");
+            }
+            catch( RejectedExecutionException expected ) {
+                // success
+            }
+            assertEquals("Aborted task was not counted", rejected + 1L, DaseinUtilTasks.getStats().getRejectedCount());
+        }
+        finally {
+            release.countDown();
+        }
+        final CountDownLatch second = new CountDownLatch(1);
+
+        DaseinUtilTasks.configure(1, 1, 1, new ThreadPoolExecutor.CallerRunsPolicy());
+        DaseinUtilTasks.execute(new Runnable() {
+            public void run() {
+                try { second.await(); }
+                catch( InterruptedException ignore ) { }
+            }
+        });
+        DaseinUtilTasks.execute(new Runnable() {
+            public void run() { }
+        });
+        final Thread caller = Thread.currentThread();
+        final boolean[] ranInCaller = new boolean[1];
+
+        DaseinUtilTasks.execute(new Runnable() {
+            public void run() {
+                ranInCaller[0] = (Thread.currentThread() == caller);
+            }
+        });
+        second.countDown();
+        assertTrue("Caller-runs policy was not applied", ranInCaller[0]);
+        assertEquals("Absorbed task was not counted", rejected + 2L, DaseinUtilTasks.getStats().getRejectedCount());
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *   Measures the per-item cost of streaming items from a producer thread to a consumer through a
+ *   {@link Jiterator} and a {@link ForwardCursor}, first one item at a time with <code>push()</code>
+ *   and <code>next()</code>, then a page at a time with <code>pushAll()</code> and
+ *   <code>drainTo()</code>. This is not run as part of the test suite; run it directly:
+ * </p>
+ * <p>
+ * <code>
+ * java -cp ... org.dasein.util.JiteratorBenchmark [items] [page size]
+ * </code>
+ * </p>
+ */
+public class JiteratorBenchmark {
+    static public void main(@Nonnull String ... args) throws Exception {
+        int items = (args.length > 0 ? Integer.parseInt(args[0]) : 5000000);
+        int page = (args.length > 1 ? Integer.parseInt(args[1]) : 500);
+        Integer[] source = new Integer[items];
+
+        for( int i=0; i<items; i++ ) {
+            source[i] = i;
+        }
+        // warm up both paths before measuring
+        for( int i=0; i<3; i++ ) {
+            runJiterator(source, 1);
+            runJiterator(source, page);
+            runCursor(source, 1);
+            runCursor(source, page);
+        }
+        System.out.println("structure\thand-off\tns/item");
+        System.out.println("Jiterator\tsingle\t" + runJiterator(source, 1));
+        System.out.println("Jiterator\tpage of " + page + "\t" + runJiterator(source, page));
+        System.out.println("ForwardCursor\tsingle\t" + runCursor(source, 1));
+        System.out.println("ForwardCursor\tpage of " + page + "\t" + runCursor(source, page));
+    }
+
+    static private double runJiterator(final Integer[] source, final int page) throws InterruptedException {
+        final Jiterator<Integer> it = new Jiterator<Integer>();
+        Thread producer = new Thread() {
+            public void run() {
+                if( page == 1 ) {
+                    for( Integer i : source ) {
+                        it.push(i);
+                    }
+                }
+                else {
+                    ArrayList<Integer> batch = new ArrayList<Integer>(page);
+
+                    for( Integer i : source ) {
+                        batch.add(i);
+                        if( batch.size() == page ) {
+                            it.pushAll(batch);
+                            batch.clear();
+                        }
+                    }
+                    it.pushAll(batch);
+                }
+                it.complete();
+            }
+        };
+        long start = System.nanoTime();
+        long count = 0L;
+
+        producer.start();
+        if( page == 1 ) {
+            while( it.hasNext() ) {
+                it.next();
+                count++;
+            }
+        }
+        else {
+            List<Integer> batch = new ArrayList<Integer>(page);
+            int n;
+
+            while( (n = it.drainTo(batch, page)) > 0 ) {
+                count += n;
+                batch.clear();
+            }
+        }
+        producer.join();
+        return check(source, count, System.nanoTime() - start);
+    }
+
+    static private double runCursor(final Integer[] source, final int page) {
+        CursorPopulator<Integer> populator = new CursorPopulator<Integer>("Benchmark", null) {
+            @Override
+            public void populate(ForwardCursor<Integer> cursor) {
+                if( page == 1 ) {
+                    for( Integer i : source ) {
+                        cursor.push(i);
+                    }
+                }
+                else {
+                    ArrayList<Integer> batch = new ArrayList<Integer>(page);
+
+                    for( Integer i : source ) {
+                        batch.add(i);
+                        if( batch.size() == page ) {
+                            cursor.pushAll(batch);
+                            batch.clear();
+                        }
+                    }
+                    cursor.pushAll(batch);
+                }
+            }
+        };
+        long start = System.nanoTime();
+        long count = 0L;
+
+        populator.populate();
+        ForwardCursor<Integer> cursor = populator.getCursor();
+
+        if( page == 1 ) {
+            for( Integer ignore : cursor ) {
+                count++;
+            }
+        }
+        else {
+            List<Integer> batch = new ArrayList<Integer>(page);
+            int n;
+
+            while( (n = cursor.drainTo(batch, page)) > 0 ) {
+                count += n;
+                batch.clear();
+            }
+        }
+        return check(source, count, System.nanoTime() - start);
+    }
+
+    static private double check(Integer[] source, long count, long nanos) {
+        if( count != source.length ) {
+            System.err.println("Read " + count + " of " + source.length + " items");
+        }
+        return ((double)nanos / count);
+    }
+}
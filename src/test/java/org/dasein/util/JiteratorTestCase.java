@@ -26,11 +26,19 @@ import org.junit.rules.TestName;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 /**
@@ -285,4 +293,438 @@ public class JiteratorTestCase {
             assertEquals("Element " + (i-1) + " differs", original, s);
         }
     }
+
+    @Test
+    public void testJiteratorStreamsDirectlyToConsumer() throws InterruptedException {
+        final int count = 1000000;
+        final Jiterator<Integer> it = new Jiterator<Integer>();
+
+        Thread producer = new Thread() {
+            public void run() {
+                for( int i=0; i<count; i++ ) {
+                    it.push(i);
+                    if( i % 100000 == 0 ) {
+                        // let the consumer drain the queue and park
+                        try { Thread.sleep(20L); }
+                        catch( InterruptedException ignore ) { }
+                    }
+                }
+                it.complete();
+            }
+        };
+        producer.start();
+
+        int expected = 0;
+
+        for( Integer i : it ) {
+            assertEquals("Item out of order", expected++, i.intValue());
+        }
+        producer.join();
+        assertEquals("Not all items were read", count, expected);
+        assertEquals("Jiterator should be complete", true, it.isComplete());
+    }
+
+    @Test
+    public void testBoundedJiteratorHoldsBackProducer() throws InterruptedException {
+        final Jiterator<Integer> it = new Jiterator<Integer>();
+        final int[] maxPending = new int[1];
+
+        it.setCapacity(8, 6, 2);
+        for( int i=0; i<8; i++ ) {
+            it.push(i);
+        }
+        assertEquals("Jiterator should advise the producer to ease off", true, it.isAboveHighWatermark());
+        assertEquals("Offer should time out on a full jiterator", false, it.offer(8, 100L, TimeUnit.MILLISECONDS));
+
+        Thread producer = new Thread() {
+            public void run() {
+                for( int i=8; i<10000; i++ ) {
+                    it.push(i);
+                    maxPending[0] = Math.max(maxPending[0], it.getPendingCount());
+                }
+                it.complete();
+            }
+        };
+        producer.start();
+
+        int expected = 0;
+
+        for( Integer i : it ) {
+            assertEquals("Item out of order", expected++, i.intValue());
+        }
+        producer.join();
+        assertEquals("Not all items were read", 10000, expected);
+        assertEquals("The jiterator buffered beyond its capacity", true, maxPending[0] <= 8);
+    }
+
+    @Test
+    public void testJiteratorBatches() throws InterruptedException {
+        final Jiterator<Integer> it = new Jiterator<Integer>();
+
+        it.setCapacity(100);
+        Thread producer = new Thread() {
+            public void run() {
+                ArrayList<Integer> page = new ArrayList<Integer>();
+
+                for( int i=0; i<10000; i++ ) {
+                    page.add(i);
+                    if( page.size() == 250 ) {
+                        it.pushAll(page);
+                        page.clear();
+                    }
+                }
+                it.pushBatch(new Integer[] { 10000, null });
+                it.complete();
+            }
+        };
+        producer.start();
+
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        List<Integer> batch;
+
+        while( !(batch = it.nextBatch(64)).isEmpty() ) {
+            assertEquals("Batch exceeds the requested size", true, batch.size() <= 64);
+            result.addAll(batch);
+        }
+        producer.join();
+        assertEquals("Not all items were read", 10002, result.size());
+        for( int i=0; i<=10000; i++ ) {
+            assertEquals("Item out of order", i, result.get(i).intValue());
+        }
+        assertEquals("Null item was lost", null, result.get(10001));
+        assertEquals("Drained an exhausted jiterator", 0, it.drainTo(result, 10));
+    }
+
+    @Test
+    public void testPopulatorOnAlternateStrategies() {
+        try {
+            for( ExecutorStrategy strategy : new ExecutorStrategy[] { ExecutorStrategy.BOUNDED, ExecutorStrategy.VIRTUAL } ) {
+                DaseinUtilTasks.setExecutorStrategy(strategy);
+                PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+                    @Override
+                    public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                        for( int i=0; i<100; i++ ) {
+                            iterator.push(i);
+                        }
+                    }
+                });
+                populator.populate();
+                int expected = 0;
+
+                for( Integer i : populator.getResult() ) {
+                    assertEquals("Item out of order with " + strategy, expected++, i.intValue());
+                }
+                assertEquals("Not all items were read with " + strategy, 100, expected);
+            }
+        }
+        finally {
+            DaseinUtilTasks.setExecutorStrategy(ExecutorStrategy.CACHED);
+        }
+    }
+
+    @Test
+    public void testConcurrentReadersOfLoadingCollection() throws InterruptedException {
+        final int count = 100000;
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                for( int i=0; i<count; i++ ) {
+                    iterator.push(i);
+                    if( i % 10000 == 0 ) {
+                        try { Thread.sleep(10L); }
+                        catch( InterruptedException ignore ) { }
+                    }
+                }
+            }
+        });
+        populator.populate();
+        final Collection<Integer> result = populator.getResult();
+        final int[] seen = new int[4];
+        Thread[] readers = new Thread[seen.length];
+
+        for( int r=0; r<readers.length; r++ ) {
+            final int reader = r;
+
+            readers[r] = new Thread() {
+                public void run() {
+                    for( Integer i : result ) {
+                        if( i != seen[reader] ) {
+                            return;
+                        }
+                        seen[reader]++;
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        for( Thread reader : readers ) {
+            reader.join();
+        }
+        for( int r=0; r<seen.length; r++ ) {
+            assertEquals("Reader " + r + " did not see every element in order", count, seen[r]);
+        }
+        assertEquals("Not the same size", count, result.size());
+    }
+
+    @Test
+    public void testSearchesWaitForLoadingCollection() {
+        final int count = 50000;
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                for( int i=0; i<count; i++ ) {
+                    iterator.push(i);
+                    if( i % 5000 == 0 ) {
+                        try { Thread.sleep(20L); }
+                        catch( InterruptedException ignore ) { }
+                    }
+                }
+            }
+        });
+        populator.populate();
+        JitCollection<Integer> result = (JitCollection<Integer>)populator.getResult();
+
+        assertEquals("Collection should not be empty", false, result.isEmpty());
+        assertEquals("Element was not found", true, result.contains(count - 1));
+        assertEquals("Wrong element at index", Integer.valueOf(count/2), result.get(count/2));
+        assertEquals("Wrong index", count - 10, result.indexOf(count - 10));
+        assertEquals("Found an element that was never loaded", -1, result.indexOf(count));
+        assertEquals("Not the same size", count, result.size());
+        assertEquals("Element was not removed", true, result.remove((Object)7));
+        assertEquals("Removed element is still present", false, result.contains(7));
+        assertEquals("Size after removal", count - 1, result.size());
+    }
+
+    /**
+     * Starts loading a collection of three elements that are pushed only after another thread has told
+     * the collection its size, waking any readers that are already waiting.
+     * @return the collection being loaded
+     */
+    private JitCollection<Integer> loadSizedLate() {
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                Thread.sleep(200L);
+                for( int i=0; i<3; i++ ) {
+                    iterator.push(i);
+                }
+            }
+        });
+        populator.populate();
+        final JitCollection<Integer> result = (JitCollection<Integer>)populator.getResult();
+
+        new Thread() {
+            public void run() {
+                try { Thread.sleep(50L); }
+                catch( InterruptedException ignore ) { }
+                result.setSize(3);
+            }
+        }.start();
+        return result;
+    }
+
+    @Test
+    public void testSetSizeDoesNotEndWaitsForElements() {
+        assertEquals("Collection reported empty when its size was set", false, loadSizedLate().isEmpty());
+        assertEquals("Wrong element after the size was set", Integer.valueOf(0), loadSizedLate().get(0));
+        assertEquals("Wrong index after the size was set", 2, loadSizedLate().indexOf(2));
+        assertEquals("Wrong size", 3, loadSizedLate().size());
+    }
+
+    /**
+     * Loads the 1000 integers of each of the partitions 0-3, with later partitions producing faster.
+     */
+    static private class RangePopulator extends PartitionedPopulator<Integer,Integer> {
+        private final int failing;
+
+        RangePopulator(boolean ordered, int failing) {
+            super(ordered);
+            this.failing = failing;
+        }
+
+        @Override
+        public @Nonnull List<Integer> getPartitions() {
+            return Arrays.asList(0, 1, 2, 3);
+        }
+
+        @Override
+        public void populate(@Nonnull Integer partition, @Nonnull Jiterator<Integer> iterator) throws Exception {
+            for( int i=0; i<1000; i++ ) {
+                if( partition == failing && i == 500 ) {
+                    throw new IllegalStateException("Partition " + partition + " failed");
+                }
+                iterator.push(partition * 1000 + i);
+                if( i % 100 == 0 ) {
+                    Thread.sleep(4 - partition);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedPopulator() {
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new RangePopulator(false, -1));
+
+        populator.populate();
+        ArrayList<Integer> result = new ArrayList<Integer>(populator.getResult());
+
+        assertEquals("Not all items were loaded", 4000, result.size());
+        Collections.sort(result);
+        for( int i=0; i<4000; i++ ) {
+            assertEquals("Item " + i + " is missing", i, result.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testOrderedPartitionedPopulator() {
+        RangePopulator ranges = new RangePopulator(true, -1);
+
+        ranges.setParallelism(2);
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(ranges);
+
+        populator.populate();
+        int expected = 0;
+
+        for( Integer i : populator.getResult() ) {
+            assertEquals("Partitions were not merged in order", expected++, i.intValue());
+        }
+        assertEquals("Not all items were loaded", 4000, expected);
+    }
+
+    @Test
+    public void testPartitionFailureFailsLoad() {
+        for( boolean ordered : new boolean[] { false, true } ) {
+            PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new RangePopulator(ordered, 2));
+
+            populator.populate();
+            try {
+                //noinspection UnusedDeclaration
+                for( Integer i : populator.getResult() ) {
+
+                }
+                fail("List finished without an exception");
+            }
+            catch( JiteratorLoadException e ) {
+                assertEquals("Not the partition's exception", IllegalStateException.class, e.getCause().getClass());
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedPopulatorOnBoundedPool() throws InterruptedException {
+        try {
+            // fewer threads than partitions, and then too small a queue to take every helper
+            for( int queue : new int[] { 0, 1 } ) {
+                for( final boolean ordered : new boolean[] { false, true } ) {
+                    // a fresh pool each time so that helpers still queued from the last load take no room
+                    DaseinUtilTasks.configure(2, 2, queue, new ThreadPoolExecutor.AbortPolicy());
+                    final int[] loaded = new int[] { -1 };
+                    Thread reader = new Thread() {
+                        public void run() {
+                            PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new RangePopulator(ordered, -1));
+
+                            populator.populate();
+                            ArrayList<Integer> result = new ArrayList<Integer>(populator.getResult());
+
+                            for( int i=0; ordered && i<result.size(); i++ ) {
+                                if( result.get(i) != i ) {
+                                    return;
+                                }
+                            }
+                            loaded[0] = result.size();
+                        }
+                    };
+
+                    reader.setDaemon(true);
+                    reader.start();
+                    reader.join(30000L);
+                    assertEquals("Load on a bounded pool (queue=" + queue + ", ordered=" + ordered + ") did not finish correctly", 4000, loaded[0]);
+                }
+            }
+        }
+        finally {
+            DaseinUtilTasks.setExecutorStrategy(ExecutorStrategy.CACHED);
+        }
+    }
+
+    @Test
+    public void testJiteratorStream() {
+        final Jiterator<Integer> it = new Jiterator<Integer>();
+
+        it.setSize(10000);
+        assertTrue("Stream does not report the size of the jiterator", it.spliterator().hasCharacteristics(Spliterator.SIZED));
+        DaseinUtilTasks.submit(new Runnable() {
+            public void run() {
+                for( int i=0; i<10000; i++ ) {
+                    it.push(i);
+                }
+                it.complete();
+            }
+        });
+        List<Integer> evens = it.stream().filter(i -> i % 2 == 0).collect(Collectors.toList());
+
+        assertEquals("Wrong number of matches", 5000, evens.size());
+        for( int i=0; i<evens.size(); i++ ) {
+            assertEquals("Stream did not preserve the order of the jiterator", i*2, evens.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testParallelStreams() {
+        final int count = 200000;
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                ArrayList<Integer> page = new ArrayList<Integer>();
+
+                for( int i=0; i<count; i++ ) {
+                    page.add(i);
+                    if( page.size() == 1000 ) {
+                        iterator.pushAll(page);
+                        page.clear();
+                    }
+                }
+            }
+        });
+        Jiterator<Integer> it = new Jiterator<Integer>();
+
+        for( int i=0; i<count; i++ ) {
+            it.push(i);
+        }
+        it.complete();
+        List<Integer> doubled = it.parallelStream().map(i -> i * 2).collect(Collectors.toList());
+
+        assertEquals("Wrong number of items", count, doubled.size());
+        for( int i=0; i<count; i++ ) {
+            assertEquals("Parallel stream did not preserve encounter order", i*2, doubled.get(i).intValue());
+        }
+        populator.populate();
+        Collection<Integer> result = populator.getResult();
+
+        assertEquals("Parallel sum over a loading collection is wrong", (long)count*(count-1)/2, result.parallelStream().mapToLong(Integer::longValue).sum());
+        assertEquals("Sequential stream over a loaded collection is wrong", count, result.stream().count());
+        assertEquals("Loaded collection lost its order", new ArrayList<Integer>(result), result.parallelStream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testStreamReportsLoadFailure() {
+        PopulatorThread<Integer> populator = new PopulatorThread<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                for( int i=0; i<500; i++ ) {
+                    iterator.push(i);
+                }
+                throw new IllegalStateException("Failed after 500 items");
+            }
+        });
+
+        populator.populate();
+        try {
+            populator.getResult().stream().count();
+            fail("Stream finished without an exception");
+        }
+        catch( JiteratorLoadException e ) {
+            assertEquals("Not the populator's exception", IllegalStateException.class, e.getCause().getClass());
+        }
+    }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies the functioning of the long-keyed concurrent cache.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class LongKeyedConcurrentCacheTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public LongKeyedConcurrentCacheTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    static private class ExpiringItem implements CachedItem {
+        public volatile boolean valid = true;
+
+        @Override
+        public boolean isValidForCache() {
+            return valid;
+        }
+    }
+
+    @Test
+    public void testPutGetAndRemove() {
+        LongKeyedConcurrentCache<String> cache = new LongKeyedConcurrentCache<String>();
+
+        cache.put(0L, "zero");
+        cache.put(-1L, "minus one");
+        cache.put(Long.MIN_VALUE, "minimum");
+        assertEquals("Value not found", "zero", cache.get(0L));
+        assertEquals("Value not found", "minus one", cache.get(-1L));
+        assertEquals("Value not found", "minimum", cache.get(Long.MIN_VALUE));
+        assertNull("Found a value that was never put", cache.get(1L));
+        assertEquals("Existing value was replaced", "zero", cache.putIfAbsent(0L, "nought"));
+        assertFalse("Removed a non-matching value", cache.remove(0L, "nought"));
+        assertTrue("Did not remove the matching value", cache.remove(0L, "zero"));
+        assertNull("Removed value still found", cache.get(0L));
+        assertEquals("Wrong value removed", "minus one", cache.remove(-1L));
+        assertEquals("Removed values were counted", 1, cache.size());
+        assertEquals("Absent key did not take the value", "one", cache.putIfAbsent(0L, "one"));
+    }
+
+    @Test
+    public void testGrowsAndReusesRemovedSlots() {
+        LongKeyedConcurrentCache<Long> cache = new LongKeyedConcurrentCache<Long>(4, 2);
+
+        for( long i=0; i<10000; i++ ) {
+            cache.put(i * 31L, i);
+        }
+        for( long i=0; i<10000; i+=2 ) {
+            assertEquals("Wrong value removed", Long.valueOf(i), cache.remove(i * 31L));
+        }
+        for( long i=0; i<10000; i++ ) {
+            if( i % 2 == 0 ) {
+                assertNull("Removed key still found", cache.get(i * 31L));
+                cache.put(i * 31L, -i);
+            }
+            else {
+                assertEquals("Key lost while growing", Long.valueOf(i), cache.get(i * 31L));
+            }
+        }
+        assertEquals("Wrong number of entries", 10000, cache.size());
+        assertEquals("Wrong number of values", 10000, new HashSet<Long>(cache.values()).size());
+    }
+
+    @Test
+    public void testInvalidAndExpiredItemsAreAbsent() throws InterruptedException {
+        LongKeyedConcurrentCache<Object> cache = new LongKeyedConcurrentCache<Object>();
+        ExpiringItem item = new ExpiringItem();
+
+        cache.put(1L, item);
+        assertSame("Valid item not found", item, cache.get(1L));
+        item.valid = false;
+        assertNull("Invalid item was returned", cache.get(1L));
+        assertEquals("Invalid item was not purged", 0, cache.size());
+        cache.setExpireAfterWrite(new TimePeriod<Millisecond>(50, TimePeriod.MILLISECOND));
+        cache.put(2L, "two");
+        cache.put(3L, "three", new TimePeriod<Millisecond>(60000, TimePeriod.MILLISECOND));
+        Thread.sleep(100L);
+        cache.cleanUp();
+        assertEquals("Expired entry was not swept", 1, cache.size());
+        assertNull("Expired value was returned", cache.get(2L));
+        assertEquals("Per-entry time to live was ignored", "three", cache.get(3L));
+        assertEquals("Evictions were not recorded", 2L, cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsentIsAtomic() throws InterruptedException {
+        final LongKeyedConcurrentCache<Object> cache = new LongKeyedConcurrentCache<Object>(16, 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger mismatches = new AtomicInteger(0);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for( int t=0; t<8; t++ ) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( long key=0; key<2000; key++ ) {
+                        Object mine = new Object();
+                        Object stored = cache.putIfAbsent(key, mine);
+
+                        if( stored != cache.get(key) ) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        assertEquals("Threads disagreed on the stored value", 0, mismatches.get());
+        assertEquals("Wrong number of entries", 2000, cache.size());
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that published populators produce only what their subscribers request.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class PopulatorPublisherTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public PopulatorPublisherTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    /**
+     * Records what a publisher sends, requesting <code>batch</code> items at a time as the previous batch arrives.
+     */
+    static private class Recorder implements Flow.Subscriber<Integer> {
+        private final int                       batch;
+        private final CountDownLatch            done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        private final List<Integer>             items = new ArrayList<Integer>();
+        private int                             outstanding;
+        private volatile Flow.Subscription      subscription;
+
+        Recorder(int batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if( batch > 0 ) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            synchronized( items ) {
+                items.add(item);
+            }
+            if( batch > 0 && --outstanding == 0 ) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error.set(t);
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        int received() {
+            synchronized( items ) {
+                return items.size();
+            }
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Publisher never finished", done.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Pushes the integers up to <code>count</code>, counting each push that returns.
+     */
+    static private class Counter implements JiteratorPopulator<Integer> {
+        private final int            count;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final AtomicInteger  produced = new AtomicInteger(0);
+
+        Counter(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+            try {
+                for( int i=0; i<count; i++ ) {
+                    iterator.push(i);
+                    produced.incrementAndGet();
+                }
+            }
+            finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testPopulatorProducesOnlyWhatIsRequested() throws InterruptedException {
+        Counter counter = new Counter(10000);
+        Recorder recorder = new Recorder(0);
+
+        new PopulatorPublisher<Integer>(counter).subscribe(recorder);
+        Thread.sleep(200L);
+        assertEquals("Populator ran before anything was requested", 0, counter.produced.get());
+        recorder.subscription.request(25);
+        Thread.sleep(500L);
+        assertEquals("Wrong number of items delivered", 25, recorder.received());
+        assertEquals("Populator produced more than was requested", 25, counter.produced.get());
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.await();
+        assertNull("Publisher failed", recorder.error.get());
+        assertEquals("Not all items were delivered", 10000, recorder.received());
+        for( int i=0; i<10000; i++ ) {
+            assertEquals("Items were delivered out of order", i, recorder.items.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSubscriberPacesPopulator() throws InterruptedException {
+        Recorder recorder = new Recorder(7);
+
+        new PopulatorPublisher<Integer>(new Counter(1000)).subscribe(recorder);
+        recorder.await();
+        assertNull("Publisher failed", recorder.error.get());
+        assertEquals("Not all items were delivered", 1000, recorder.received());
+    }
+
+    @Test
+    public void testCancelStopsPopulator() throws InterruptedException {
+        Counter counter = new Counter(10000);
+        Recorder recorder = new Recorder(0);
+
+        new PopulatorPublisher<Integer>(counter).subscribe(recorder);
+        recorder.subscription.request(10);
+        Thread.sleep(200L);
+        recorder.subscription.cancel();
+        assertTrue("Populator did not stop after cancellation", counter.finished.await(10, TimeUnit.SECONDS));
+        assertEquals("Populator produced more than was requested", 10, counter.produced.get());
+        assertEquals("Cancelled subscription was terminated", 1L, recorder.done.getCount());
+    }
+
+    /**
+     * Requests everything and cancels its subscription from within <code>onNext</code> once it has received
+     * <code>limit</code> items.
+     */
+    static private class Quitter implements Flow.Subscriber<Integer> {
+        private final int                  limit;
+        private final AtomicInteger        received = new AtomicInteger(0);
+        private volatile Flow.Subscription subscription;
+
+        Quitter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            if( received.incrementAndGet() == limit ) {
+                subscription.cancel();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) { }
+
+        @Override
+        public void onComplete() { }
+    }
+
+    @Test
+    public void testCancelFromOnNextReportsCancellation() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Throwable> stopped = new AtomicReference<Throwable>();
+        Quitter quitter = new Quitter(5);
+
+        new PopulatorPublisher<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                try {
+                    for( int i=0; i<1000; i++ ) {
+                        iterator.push(i);
+                    }
+                }
+                catch( RuntimeException e ) {
+                    stopped.set(e);
+                    throw e;
+                }
+                finally {
+                    finished.countDown();
+                }
+            }
+        }).subscribe(quitter);
+        assertTrue("Populator did not stop after cancellation", finished.await(10, TimeUnit.SECONDS));
+        assertTrue("Push did not report the cancellation: " + stopped.get(), stopped.get() instanceof JiteratorLoadException);
+        assertTrue("Not a cancellation", stopped.get().getCause() instanceof CancellationException);
+        assertEquals("Items were delivered after cancellation", 5, quitter.received.get());
+    }
+
+    @Test
+    public void testLoadErrorReachesSubscriber() throws InterruptedException {
+        Recorder recorder = new Recorder(100);
+
+        new PopulatorPublisher<Integer>(new JiteratorPopulator<Integer>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Integer> iterator) throws Exception {
+                for( int i=0; i<50; i++ ) {
+                    iterator.push(i);
+                }
+                throw new IllegalStateException("Failed after 50 items");
+            }
+        }).subscribe(recorder);
+        recorder.await();
+        assertEquals("Items before the failure were not delivered", 50, recorder.received());
+        assertTrue("Not the populator's exception", recorder.error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testInvalidRequestFailsSubscription() throws InterruptedException {
+        Counter counter = new Counter(100);
+        Recorder recorder = new Recorder(0);
+
+        new PopulatorPublisher<Integer>(counter).subscribe(recorder);
+        recorder.subscription.request(0);
+        recorder.await();
+        assertTrue("Invalid request was not reported", recorder.error.get() instanceof IllegalArgumentException);
+        assertEquals("Populator ran despite the invalid request", 0, counter.produced.get());
+    }
+
+    @Test
+    public void testCursorPublisher() throws InterruptedException {
+        final AtomicInteger produced = new AtomicInteger(0);
+        CursorPopulator<Integer> populator = new CursorPopulator<Integer>("Published Cursor", null) {
+            @Override
+            public void populate(ForwardCursor<Integer> cursor) {
+                ArrayList<Integer> page = new ArrayList<Integer>();
+
+                for( int i=0; i<1000; i++ ) {
+                    page.add(i);
+                    if( page.size() == 100 ) {
+                        cursor.pushAll(page);
+                        produced.addAndGet(page.size());
+                        page.clear();
+                    }
+                }
+            }
+        };
+        Flow.Publisher<Integer> publisher = populator.publish();
+        Recorder recorder = new Recorder(0);
+        Recorder late = new Recorder(1);
+
+        publisher.subscribe(recorder);
+        publisher.subscribe(late);
+        late.await();
+        assertTrue("A second subscriber was accepted", late.error.get() instanceof IllegalStateException);
+        recorder.subscription.request(150);
+        Thread.sleep(500L);
+        assertEquals("Wrong number of items delivered", 150, recorder.received());
+        assertEquals("Populator finished a page nobody asked for", 100, produced.get());
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.await();
+        assertNull("Publisher failed", recorder.error.get());
+        for( int i=0; i<1000; i++ ) {
+            assertEquals("Items were delivered out of order", i, recorder.items.get(i).intValue());
+        }
+    }
+}
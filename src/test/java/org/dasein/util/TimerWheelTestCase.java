@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 1998-2013 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies the functioning of the timer wheel behind cache expiry.
+ * @since 2013.02
+ * @version 2013.02
+ */
+public class TimerWheelTestCase {
+    @Rule
+    public TestName testName = new TestName();
+
+    public TimerWheelTestCase() { }
+
+    public String getName() {
+        return testName.getMethodName();
+    }
+
+    static private class Timer implements TimerWheel.Timed {
+        public long deadline;
+
+        public Timer(long deadline) {
+            this.deadline = deadline;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    @Test
+    public void testExpiresAcrossLevels() {
+        long start = 1000L;
+        TimerWheel<Timer> wheel = new TimerWheel<Timer>(start);
+        long[] delays = { TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(2), TimeUnit.MINUTES.toNanos(3), TimeUnit.HOURS.toNanos(5), TimeUnit.DAYS.toNanos(20) };
+        ArrayList<Timer> timers = new ArrayList<Timer>();
+        ArrayList<Timer> expired = new ArrayList<Timer>();
+        long step = TimeUnit.MILLISECONDS.toNanos(10);
+        long tolerance = TimeUnit.MILLISECONDS.toNanos(40);
+
+        for( long delay : delays ) {
+            Timer t = new Timer(start + delay);
+
+            timers.add(t);
+            wheel.schedule(t);
+        }
+        for( long now = start; expired.size() < timers.size(); ) {
+            long next = timers.get(expired.size()).deadline;
+
+            // jump close to the next deadline, then creep up on it
+            if( next - now > tolerance ) {
+                now = next - tolerance;
+            }
+            else {
+                now += step;
+            }
+            List<Timer> victims = wheel.advance(now);
+
+            for( Timer t : victims ) {
+                assertTrue("Timer expired early", now - t.deadline >= 0L);
+                assertTrue("Timer expired late by " + (now - t.deadline), now - t.deadline <= tolerance);
+                expired.add(t);
+            }
+        }
+        assertEquals("Timers expired out of order", timers, expired);
+    }
+
+    @Test
+    public void testExtendedDeadlineIsRescheduled() {
+        TimerWheel<Timer> wheel = new TimerWheel<Timer>(0L);
+        Timer t = new Timer(TimeUnit.SECONDS.toNanos(1));
+
+        wheel.schedule(t);
+        t.deadline = TimeUnit.SECONDS.toNanos(10);
+        assertEquals("Extended timer expired", 0, wheel.advance(TimeUnit.SECONDS.toNanos(2)).size());
+        assertEquals("Extended timer did not expire", 1, wheel.advance(TimeUnit.SECONDS.toNanos(11)).size());
+    }
+
+    @Test
+    public void testDescheduledTimerDoesNotExpire() {
+        TimerWheel<Timer> wheel = new TimerWheel<Timer>(0L);
+        Timer t = new Timer(TimeUnit.SECONDS.toNanos(1));
+
+        wheel.deschedule(wheel.schedule(t));
+        assertEquals("Descheduled timer expired", 0, wheel.advance(TimeUnit.SECONDS.toNanos(2)).size());
+    }
+}